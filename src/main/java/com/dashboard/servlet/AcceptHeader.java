@@ -0,0 +1,83 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+/**
+ * Parser of the Accept and Accept-Encoding headers: a comma separated list of values with optional parameters, where
+ * the q parameter is the preference of the value and q=0 means "not acceptable".
+ */
+public final class AcceptHeader {
+
+    private AcceptHeader() {
+    }
+
+    /**
+     * Get the preference of a value in a header, e.g. 0.5 for gzip in "br, gzip;q=0.5". Only the values listed
+     * explicitly are considered, wildcards are ignored.
+     *
+     * @param header the value of the header, can be null
+     * @param value the media type or encoding, case insensitive
+     * @return the highest q of the value in the header, 0 if it is not listed or not acceptable
+     */
+    public static double getQuality(String header, String value) {
+        if (header == null) {
+            return 0;
+        }
+        double quality = 0;
+        for (String element : header.split(",")) {
+            String[] parts = element.split(";");
+            if (!parts[0].trim().equalsIgnoreCase(value)) {
+                continue;
+            }
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.length() > 2 && Character.toLowerCase(parameter.charAt(0)) == 'q' && parameter.charAt(1) == '=') {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            quality = Math.max(quality, q);
+        }
+        return quality;
+    }
+
+    /**
+     * @return if the value is listed in the header with a q greater than 0
+     */
+    public static boolean accepts(String header, String value) {
+        return getQuality(header, value) > 0;
+    }
+
+    /**
+     * Check if a media type is preferred to the default one, e.g. application/x-protobuf to application/json. On a
+     * tie the default one wins, and the wildcards (e.g. {@literal *}/{@literal *}) count as the default one.
+     *
+     * @param header the value of the Accept header, can be null
+     * @param mediaType the media type
+     * @param defaultType the media type returned otherwise
+     * @return if the q of the media type is greater than the ones of the default type and of the wildcards
+     */
+    public static boolean prefers(String header, String mediaType, String defaultType) {
+        double quality = getQuality(header, mediaType);
+        if (quality <= 0) {
+            return false;
+        }
+        String typeWildcard = mediaType.substring(0, mediaType.indexOf('/') + 1) + "*";
+        return quality > getQuality(header, defaultType) && quality > getQuality(header, "*/*")
+                && quality > getQuality(header, typeWildcard);
+    }
+}
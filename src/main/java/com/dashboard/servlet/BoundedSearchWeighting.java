@@ -0,0 +1,96 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.weighting.AbstractAdjustedWeighting;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.util.DistancePlaneProjection;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Weighting that enforces the SearchLimits inside the search, wrapping the weighting of the request.
+ * <p>
+ * The search is stopped with a SearchLimitException when the timeout expires (checked every 1024 relaxed edges), the
+ * timeout starts when the first weighting of the request is created.
+ * With a maximum distance D, the edges whose node is out of the ellipse of every leg (the points whose distances from
+ * the two waypoints sum to more than D) get an infinite weight, so a waypoint that cannot be reached within D fails
+ * after exploring the ellipse instead of the whole graph. With a single waypoint (e.g. the target of a dispatch) the
+ * ellipse is the circle of radius D around it. The maximum visited nodes are enforced by GraphHopper.
+ */
+public class BoundedSearchWeighting extends AbstractAdjustedWeighting {
+    private static final int TIMEOUT_CHECK_INTERVAL = 1024;
+
+    private final SearchLimits limits;
+    private final NodeAccess nodeAccess;
+    private final int baseNodes;  // Nodes of the base graph, the others are the virtual nodes of the waypoints
+    private final double[] waypoints;  // lat, lon of each waypoint
+    private long relaxedEdges = 0;
+
+    public BoundedSearchWeighting(Weighting superWeighting, SearchLimits limits, NodeAccess nodeAccess, int baseNodes, List<GHPoint> waypoints) {
+        super(superWeighting);
+        this.limits = limits;
+        limits.start();
+        this.nodeAccess = nodeAccess;
+        this.baseNodes = baseNodes;
+        this.waypoints = new double[waypoints.size() * 2];
+        for (int i = 0; i < waypoints.size(); i++) {
+            this.waypoints[2 * i] = waypoints.get(i).lat;
+            this.waypoints[2 * i + 1] = waypoints.get(i).lon;
+        }
+    }
+
+    @Override
+    public double calcEdgeWeight(EdgeIteratorState edgeState, boolean reverse) {
+        if (++relaxedEdges % TIMEOUT_CHECK_INTERVAL == 0 && limits.isExpired()) {
+            Map<String, Object> details = new HashMap<>();
+            details.put("timeout", limits.getTimeoutMillis());
+            details.put("relaxed_edges", relaxedEdges);
+            throw new SearchLimitException("Route search timed out after " + limits.getElapsedMillis() + " ms", details);
+        }
+        if (limits.getMaxDistance() > 0 && !isInBounds(edgeState.getAdjNode())) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return superWeighting.calcEdgeWeight(edgeState, reverse);
+    }
+
+    private boolean isInBounds(int node) {
+        if (node >= baseNodes) {
+            return true;
+        }
+        double lat = nodeAccess.getLat(node);
+        double lon = nodeAccess.getLon(node);
+        double maxDistance = limits.getMaxDistance();
+        if (waypoints.length == 2) {
+            return DistancePlaneProjection.DIST_PLANE.calcDist(waypoints[0], waypoints[1], lat, lon) <= maxDistance;
+        }
+        for (int i = 0; i + 3 < waypoints.length; i += 2) {
+            double distance = DistancePlaneProjection.DIST_PLANE.calcDist(waypoints[i], waypoints[i + 1], lat, lon)
+                    + DistancePlaneProjection.DIST_PLANE.calcDist(lat, lon, waypoints[i + 2], waypoints[i + 3]);
+            if (distance <= maxDistance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return superWeighting.getName();
+    }
+}
@@ -0,0 +1,47 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.ev.RoadClass;
+
+/**
+ * Bureau of Public Roads function: travel time = free flow time * (1 + alpha * (density / max) ^ beta).
+ * <p>
+ * Unlike Greenshields' model the speed never reaches 0, so a road over its maximum density is slow but can still be
+ * used. alpha and beta are the usual 0.15 and 4.
+ */
+public class BprSpeedModel implements SpeedModel {
+    public static final String NAME = "bpr";
+
+    private final double alpha;
+    private final double beta;
+
+    public BprSpeedModel() {
+        this(0.15, 4);
+    }
+
+    public BprSpeedModel(double alpha, double beta) {
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public double getSpeed(double freeFlowSpeed, double density, double maxDensity, RoadClass roadClass) {
+        return freeFlowSpeed / (1 + alpha * Math.pow(density / maxDensity, beta));
+    }
+}
@@ -0,0 +1,59 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.shapes.BBox;
+
+/**
+ * LocationIndex that looks up the SnapCache before querying the spatial index.
+ * <p>
+ * The router snaps the waypoints of a request one after the other with findClosest, so a point repeated in the same
+ * request, or already used by a previous request of the same scenario, does not query the spatial index again.
+ * The scenario key must identify the edge filter, which depends on the profile and on the weighting (blocked areas
+ * and traffic make edges not snappable).
+ */
+public class CachingLocationIndex implements LocationIndex {
+    private final LocationIndex delegate;
+    private final BaseGraph graph;
+    private final String scenario;
+
+    public CachingLocationIndex(LocationIndex delegate, BaseGraph graph, String scenario) {
+        this.delegate = delegate;
+        this.graph = graph;
+        this.scenario = scenario;
+    }
+
+    @Override
+    public Snap findClosest(double lat, double lon, EdgeFilter edgeFilter) {
+        Snap snap = SnapCache.get(scenario, graph, lat, lon);
+        if (snap == null) {
+            snap = delegate.findClosest(lat, lon, edgeFilter);
+            SnapCache.put(scenario, lat, lon, snap);
+        }
+        return snap;
+    }
+
+    @Override
+    public void query(BBox queryBBox, Visitor function) {
+        delegate.query(queryBBox, function);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -0,0 +1,106 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.routing.ev.EncodedValueLookup;
+import com.graphhopper.routing.ev.Roundabout;
+import com.graphhopper.routing.ev.TurnCost;
+import com.graphhopper.routing.ev.VehicleAccess;
+import com.graphhopper.routing.ev.VehicleSpeed;
+import com.graphhopper.routing.util.CarTagParser;
+import com.graphhopper.routing.util.WayAccess;
+import com.graphhopper.storage.IntsRef;
+import com.graphhopper.util.PMap;
+
+/**
+ * Tag parser of a custom vehicle declared in the configuration (see CustomVehicleProfile).
+ * <p>
+ * It works like TaxiTagParser: the restrictions, restricted values, barriers and speeds of the car parser are changed
+ * in the constructor as declared, and the rules of the profile give access to ways that the car parser would skip,
+ * allow pedestrian zones and the opposite direction of a way, or deny a way. The rules are evaluated once per way.
+ */
+public class ConfigurableTagParser extends CarTagParser {
+    private final CustomVehicleProfile profile;
+
+    private ReaderWay lastWay;
+    private int lastActions;
+
+    public ConfigurableTagParser(EncodedValueLookup lookup, CustomVehicleProfile profile, PMap properties) {
+        super(
+            lookup.getBooleanEncodedValue(VehicleAccess.key(profile.getName())),
+            lookup.getDecimalEncodedValue(VehicleSpeed.key(profile.getName())),
+            lookup.hasEncodedValue(TurnCost.key(profile.getName())) ? lookup.getDecimalEncodedValue(TurnCost.key(profile.getName())) : null,
+            lookup.getBooleanEncodedValue(Roundabout.KEY),
+            new PMap(properties).putObject("name", profile.getName()),
+            profile.getTransportationMode(),
+            lookup.getDecimalEncodedValue(VehicleSpeed.key(profile.getName())).getNextStorableValue(profile.getMaxSpeed())
+        );
+        this.profile = profile;
+
+        restrictions.removeAll(profile.getRemovedRestrictions());
+        restrictions.addAll(profile.getAddedRestrictions());
+        restrictedValues.removeAll(profile.getRemovedRestrictedValues());
+        restrictedValues.addAll(profile.getAddedRestrictedValues());
+        barriers.removeAll(profile.getRemovedBarriers());
+        barriers.addAll(profile.getAddedBarriers());
+        defaultSpeedMap.putAll(profile.getSpeeds());
+    }
+
+    @Override
+    public IntsRef handleWayTags(IntsRef edgeFlags, ReaderWay way) {
+        try {
+            WayAccess access = getAccess(way);
+            if (access == WayAccess.CAN_SKIP)
+                return edgeFlags;
+
+            int actions = getActions(way);
+            if ((actions & CustomVehicleProfile.PEDESTRIAN) != 0) {
+                accessEnc.setBool(false, edgeFlags, true);
+                avgSpeedEnc.setDecimal(false, edgeFlags, profile.getPedestrianSpeed());
+                accessEnc.setBool(true, edgeFlags, true);
+                avgSpeedEnc.setDecimal(true, edgeFlags, profile.getPedestrianSpeed());
+                return edgeFlags;
+            }
+
+            edgeFlags = super.handleWayTags(edgeFlags, way);
+
+            if ((actions & CustomVehicleProfile.BOTH_DIRECTIONS) != 0)
+                accessEnc.setBool(true, edgeFlags, true);
+            return edgeFlags;
+        } catch (Exception e) {
+            //the rules can open ways the car parser does not expect, the failures are reported at the end of the import
+            ImportStats.countFailure(way, e);
+            return edgeFlags;
+        }
+    }
+
+    @Override
+    public WayAccess getAccess(ReaderWay way) {
+        int actions = getActions(way);
+        if ((actions & CustomVehicleProfile.DENY) != 0)
+            return WayAccess.CAN_SKIP;
+        if ((actions & (CustomVehicleProfile.ACCESS | CustomVehicleProfile.PEDESTRIAN)) != 0)
+            return WayAccess.WAY;
+        return super.getAccess(way);
+    }
+
+    //getAccess is called by the OSM reader and again by handleWayTags, so the rules are evaluated once per way
+    private int getActions(ReaderWay way) {
+        if (lastWay != way) {
+            lastActions = profile.evaluate(way);
+            lastWay = way;
+        }
+        return lastActions;
+    }
+}
@@ -0,0 +1,275 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * The costs of a weighting on the overlay of a CrpPartition, the customization phase of the customizable route
+ * planning.
+ * <p>
+ * For every cell, the weight of the best path inside the cell between each pair of its boundary nodes is calculated
+ * with a search from every boundary node that does not leave the cell. The cells are independent, so they are
+ * customized in parallel on GH_CRP_THREADS threads (default: the number of cores). A customization depends on the
+ * weighting only: it is needed once per vehicle, traffic slot, speed model and blocked area, and the last
+ * GH_CRP_METRIC_CACHE ones (default 4) are cached. The cached customizations are saved in the RouterSnapshot, so they
+ * are not calculated again after a restart.
+ */
+public class CrpMetric {
+    private static final int MAX_METRICS = EnvConfig.getInt("GH_CRP_METRIC_CACHE", 4);
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            EnvConfig.getInt("GH_CRP_THREADS", Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "crp-customizer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // The customizations by key, the ones in progress are shared by the requests that need them
+    private static final Map<String, CompletableFuture<CrpMetric>> cache = new LinkedHashMap<String, CompletableFuture<CrpMetric>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<CrpMetric>> eldest) {
+            return size() > MAX_METRICS;
+        }
+    };
+
+    private final int[] boundaryCounts;  // number of boundary nodes of each cell
+    private final float[][] cliques;  // for each cell, the weights between its boundary nodes (row-major)
+    private final long millis;
+
+    private CrpMetric(int[] boundaryCounts, float[][] cliques, long millis) {
+        this.boundaryCounts = boundaryCounts;
+        this.cliques = cliques;
+        this.millis = millis;
+    }
+
+    /**
+     * Stop the threads of the customizations, when the application is stopped (see RouterLifecycle).
+     */
+    public static void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get a customization from the cache, calculating it if it is missing.
+     *
+     * @param key graph, profile, traffic and blocked area of the weighting, null to skip the cache
+     * @param customizer calculates the customization on a cache miss
+     */
+    public static CrpMetric get(String key, Supplier<CrpMetric> customizer) throws InterruptedException {
+        if (key == null) {
+            return customizer.get();
+        }
+        CompletableFuture<CrpMetric> future;
+        boolean owner = false;
+        synchronized (cache) {
+            future = cache.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                cache.put(key, future);
+                owner = true;
+            }
+        }
+        if (owner) {
+            // The future is always completed, otherwise the requests waiting for it would never return
+            try {
+                future.complete(customizer.get());
+            } catch (Throwable e) {
+                synchronized (cache) {
+                    cache.remove(key, future);
+                }
+                future.completeExceptionally(e);
+            }
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("Customization failed", e.getCause());
+        }
+    }
+
+    /**
+     * Calculate the weights between the boundary nodes of every cell.
+     *
+     * @param weighting the weighting, without the limits of a request
+     */
+    public static CrpMetric customize(CrpPartition partition, BaseGraph graph, Weighting weighting) {
+        long start = System.nanoTime();
+        float[][] cliques = new float[partition.getCellCount()][];
+        int[] boundaryCounts = new int[cliques.length];
+        for (int cell = 0; cell < cliques.length; cell++) {
+            boundaryCounts[cell] = partition.getBoundaryCount(cell);
+        }
+        List<Future<?>> futures = new ArrayList<>(cliques.length);
+        for (int cell = 0; cell < cliques.length; cell++) {
+            int c = cell;
+            futures.add(executor.submit(() -> cliques[c] = customizeCell(partition, graph, weighting, c)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Customization interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Customization failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Customized " + cliques.length + " cells in " + millis + " ms");
+        return new CrpMetric(boundaryCounts, cliques, millis);
+    }
+
+    /**
+     * Write the finished customizations of the cache in a snapshot (see RouterSnapshot), with the cell size of the
+     * partition they were calculated on.
+     *
+     * @return the number of customizations written
+     */
+    public static int save(DataOutputStream out) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<CrpMetric> metrics = new ArrayList<>();
+        synchronized (cache) {
+            for (Map.Entry<String, CompletableFuture<CrpMetric>> entry : cache.entrySet()) {
+                CompletableFuture<CrpMetric> future = entry.getValue();
+                if (future.isDone() && !future.isCompletedExceptionally()) {
+                    keys.add(entry.getKey());
+                    metrics.add(future.join());
+                }
+            }
+        }
+        out.writeInt(CrpPartition.getCellSize());
+        out.writeInt(keys.size());
+        for (int m = 0; m < keys.size(); m++) {
+            CrpMetric metric = metrics.get(m);
+            out.writeUTF(keys.get(m));
+            out.writeLong(metric.millis);
+            out.writeInt(metric.cliques.length);
+            for (int cell = 0; cell < metric.cliques.length; cell++) {
+                out.writeInt(metric.boundaryCounts[cell]);
+                for (float weight : metric.cliques[cell]) {
+                    out.writeFloat(weight);
+                }
+            }
+        }
+        return keys.size();
+    }
+
+    /**
+     * Put the customizations of a snapshot in the cache. They are skipped if the cell size has changed, since the
+     * partition is computed again, or if their key is not valid.
+     *
+     * @param valid checks the key (graph folder, profile, traffic and blocked area) of a customization
+     * @return the number of customizations restored
+     */
+    public static int restore(DataInputStream in, Predicate<String> valid) throws IOException {
+        boolean sameCells = in.readInt() == CrpPartition.getCellSize();
+        int count = in.readInt();
+        int restored = 0;
+        for (int m = 0; m < count; m++) {
+            String key = in.readUTF();
+            long millis = in.readLong();
+            float[][] cliques = new float[in.readInt()][];
+            int[] boundaryCounts = new int[cliques.length];
+            for (int cell = 0; cell < cliques.length; cell++) {
+                boundaryCounts[cell] = in.readInt();
+                cliques[cell] = new float[boundaryCounts[cell] * boundaryCounts[cell]];
+                for (int i = 0; i < cliques[cell].length; i++) {
+                    cliques[cell][i] = in.readFloat();
+                }
+            }
+            if (!sameCells || !valid.test(key)) {
+                continue;
+            }
+            synchronized (cache) {
+                cache.putIfAbsent(key, CompletableFuture.completedFuture(new CrpMetric(boundaryCounts, cliques, millis)));
+            }
+            restored++;
+        }
+        return restored;
+    }
+
+    private static float[] customizeCell(CrpPartition partition, BaseGraph graph, Weighting weighting, int cell) {
+        int boundary = partition.getBoundaryCount(cell);
+        float[] clique = new float[boundary * boundary];
+        Arrays.fill(clique, Float.POSITIVE_INFINITY);
+        try (SearchState state = SearchState.acquire(graph.getNodes())) {
+            EdgeExplorer explorer = graph.createEdgeExplorer();
+            for (int i = 0; i < boundary; i++) {
+                state.reset(graph.getNodes());
+                state.update(partition.getBoundaryNode(cell, i), 0, EdgeIterator.NO_EDGE, -1);
+                int remaining = boundary;
+                int node;
+                while (remaining > 0 && (node = state.poll()) >= 0) {
+                    double weight = state.getWeight(node);
+                    int j = partition.getBoundaryIndex(node);
+                    if (j != CrpPartition.NO_BOUNDARY) {
+                        clique[i * boundary + j] = (float) weight;
+                        remaining--;
+                    }
+                    EdgeIterator iter = explorer.setBaseNode(node);
+                    while (iter.next()) {
+                        if (partition.getCell(iter.getAdjNode()) != cell) {
+                            continue;
+                        }
+                        double edgeWeight = weighting.calcEdgeWeightWithAccess(iter, false);
+                        if (!Double.isInfinite(edgeWeight)) {
+                            state.update(iter.getAdjNode(), weight + edgeWeight, iter.getEdge(), node);
+                        }
+                    }
+                }
+            }
+        }
+        return clique;
+    }
+
+    /**
+     * @return the weight of the best path inside the cell from its i-th to its j-th boundary node, infinite if there is
+     * none
+     */
+    public double getWeight(int cell, int i, int j) {
+        return cliques[cell][i * boundaryCounts[cell] + j];
+    }
+
+    /**
+     * @return the time taken by the customization in milliseconds
+     */
+    public long getMillis() {
+        return millis;
+    }
+}
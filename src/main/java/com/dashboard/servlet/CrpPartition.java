@@ -0,0 +1,229 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.util.AllEdgesIterator;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.NodeAccess;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metric-independent partition of the graph in cells, the first phase of the customizable route planning (see
+ * CrpMetric and CrpRouter).
+ * <p>
+ * The nodes are split by recursive coordinate bisection: the nodes of a region are split at the median of the longer
+ * side of their bounding box until a region has at most GH_CRP_CELL_SIZE nodes (default 2048). The boundary nodes of a
+ * cell are the ones with an edge to another cell. The partition does not depend on the access or the speed of the
+ * edges, so it is computed once after the import, saved in the graph folder (see CustomDataAccess) and shared by all
+ * the vehicles, traffic slots and scenarios.
+ */
+public class CrpPartition {
+    public static final String NAME = "crp_cells";
+    public static final int NO_BOUNDARY = -1;
+
+    private static final int CELL_SIZE = Math.max(16, EnvConfig.getInt("GH_CRP_CELL_SIZE", 2048));
+
+    // The partitions loaded by graph folder
+    private static final Map<String, CrpPartition> partitions = new ConcurrentHashMap<>();
+
+    private final DataAccess nodeToCell;  // 4 bytes per node
+    private final int nodeCount;
+    private final int cellCount;
+
+    // Boundary nodes of cell c in boundaryNodes[boundaryStart[c]..boundaryStart[c + 1]), and the position of each
+    // node in the boundary of its cell
+    private final int[] boundaryStart;
+    private final int[] boundaryNodes;
+    private final int[] boundaryIndex;
+
+    private CrpPartition(BaseGraph graph, DataAccess nodeToCell, int nodeCount, int cellCount) {
+        this.nodeToCell = nodeToCell;
+        this.nodeCount = nodeCount;
+        this.cellCount = cellCount;
+
+        // Find the boundary nodes, the ends of the edges between two cells
+        boundaryIndex = new int[nodeCount];
+        Arrays.fill(boundaryIndex, NO_BOUNDARY);
+        int[] counts = new int[cellCount + 1];
+        AllEdgesIterator edges = graph.getAllEdges();
+        while (edges.next()) {
+            int base = edges.getBaseNode();
+            int adj = edges.getAdjNode();
+            int baseCell = getCell(base);
+            int adjCell = getCell(adj);
+            if (baseCell == adjCell) {
+                continue;
+            }
+            if (boundaryIndex[base] == NO_BOUNDARY) {
+                boundaryIndex[base] = counts[baseCell]++;
+            }
+            if (boundaryIndex[adj] == NO_BOUNDARY) {
+                boundaryIndex[adj] = counts[adjCell]++;
+            }
+        }
+        boundaryStart = new int[cellCount + 1];
+        for (int cell = 0; cell < cellCount; cell++) {
+            boundaryStart[cell + 1] = boundaryStart[cell] + counts[cell];
+        }
+        boundaryNodes = new int[boundaryStart[cellCount]];
+        for (int node = 0; node < nodeCount; node++) {
+            if (boundaryIndex[node] != NO_BOUNDARY) {
+                boundaryNodes[boundaryStart[getCell(node)] + boundaryIndex[node]] = node;
+            }
+        }
+    }
+
+    /**
+     * Get the partition of a graph folder, loading it or computing it if it does not exist or it was computed for a
+     * different graph or cell size.
+     */
+    public static CrpPartition get(String location, BaseGraph graph) {
+        return partitions.computeIfAbsent(location, l -> {
+            CrpPartition partition = loadExisting(l, graph);
+            return partition != null ? partition : build(l, graph);
+        });
+    }
+
+    private static CrpPartition loadExisting(String location, BaseGraph graph) {
+        DataAccess da = CustomDataAccess.createDirectory(location).create(NAME);
+        if (!da.loadExisting()) {
+            return null;
+        }
+        if (da.getHeader(0) != graph.getNodes() || da.getHeader(8) != CELL_SIZE) {
+            da.close();
+            return null;
+        }
+        return new CrpPartition(graph, da, da.getHeader(0), da.getHeader(4));
+    }
+
+    /**
+     * @return the maximum number of nodes of a cell, from GH_CRP_CELL_SIZE
+     */
+    public static int getCellSize() {
+        return CELL_SIZE;
+    }
+
+    /**
+     * Partition the nodes of a graph and save the cell of each node in the graph folder.
+     */
+    public static CrpPartition build(String location, BaseGraph graph) {
+        long start = System.nanoTime();
+        int nodeCount = graph.getNodes();
+        NodeAccess nodeAccess = graph.getNodeAccess();
+        int[] nodes = new int[nodeCount];
+        double[] lats = new double[nodeCount];
+        double[] lons = new double[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            nodes[node] = node;
+            lats[node] = nodeAccess.getLat(node);
+            lons[node] = nodeAccess.getLon(node);
+        }
+
+        DataAccess nodeToCell = CustomDataAccess.createDirectory(location).create(NAME);
+        nodeToCell.create(Math.max(4L * nodeCount, 1 << 10));
+        nodeToCell.ensureCapacity(4L * nodeCount);
+        int cellCount = bisect(nodes, lats, lons, 0, nodeCount, 0, nodeToCell);
+        nodeToCell.setHeader(0, nodeCount);
+        nodeToCell.setHeader(4, cellCount);
+        nodeToCell.setHeader(8, CELL_SIZE);
+        nodeToCell.flush();
+
+        CrpPartition partition = new CrpPartition(graph, nodeToCell, nodeCount, cellCount);
+        System.out.println("Partitioned " + nodeCount + " nodes in " + cellCount + " cells with " + partition.boundaryNodes.length
+                + " boundary nodes in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return partition;
+    }
+
+    // Split nodes[from..to) until the regions fit in a cell, numbering the cells from the given one
+    private static int bisect(int[] nodes, double[] lats, double[] lons, int from, int to, int cell, DataAccess nodeToCell) {
+        if (to - from <= CELL_SIZE) {
+            for (int i = from; i < to; i++) {
+                nodeToCell.setInt(4L * nodes[i], cell);
+            }
+            return cell + 1;
+        }
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE, minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            minLat = Math.min(minLat, lats[nodes[i]]);
+            maxLat = Math.max(maxLat, lats[nodes[i]]);
+            minLon = Math.min(minLon, lons[nodes[i]]);
+            maxLon = Math.max(maxLon, lons[nodes[i]]);
+        }
+        // A degree of longitude is shorter than a degree of latitude away from the equator
+        double lonScale = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        double[] keys = (maxLat - minLat) >= (maxLon - minLon) * lonScale ? lats : lons;
+        int middle = (from + to) >>> 1;
+        select(nodes, keys, from, to - 1, middle);
+        cell = bisect(nodes, lats, lons, from, middle, cell, nodeToCell);
+        return bisect(nodes, lats, lons, middle, to, cell, nodeToCell);
+    }
+
+    // Move the node with the k-th smallest key to position k, the smaller ones before it and the larger ones after it
+    private static void select(int[] nodes, double[] keys, int left, int right, int k) {
+        while (left < right) {
+            double pivot = keys[nodes[(left + right) >>> 1]];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (keys[nodes[i]] < pivot) i++;
+                while (keys[nodes[j]] > pivot) j--;
+                if (i <= j) {
+                    int tmp = nodes[i];
+                    nodes[i++] = nodes[j];
+                    nodes[j--] = tmp;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    public int getCell(int node) {
+        return nodeToCell.getInt(4L * node);
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getBoundaryCount(int cell) {
+        return boundaryStart[cell + 1] - boundaryStart[cell];
+    }
+
+    /**
+     * @return the i-th boundary node of the cell
+     */
+    public int getBoundaryNode(int cell, int i) {
+        return boundaryNodes[boundaryStart[cell] + i];
+    }
+
+    /**
+     * @return the position of the node in the boundary nodes of its cell, NO_BOUNDARY if it is not a boundary node
+     */
+    public int getBoundaryIndex(int node) {
+        return boundaryIndex[node];
+    }
+}
@@ -0,0 +1,299 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.config.Profile;
+import com.graphhopper.routing.Path;
+import com.graphhopper.routing.ev.Subnetwork;
+import com.graphhopper.routing.querygraph.QueryGraph;
+import com.graphhopper.routing.util.DefaultSnapFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.PMap;
+import com.graphhopper.util.Parameters;
+import com.graphhopper.util.PathMerger;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.exceptions.ConnectionNotFoundException;
+import com.graphhopper.util.exceptions.MaximumNodesExceededException;
+import com.graphhopper.util.exceptions.PointNotFoundException;
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Query phase of the customizable route planning (routing=crp).
+ * <p>
+ * The weighting of the request (traffic and blocked area included) is customized on the overlay of the partition of
+ * the graph (see CrpPartition and CrpMetric), once per scenario. A query is a Dijkstra search that uses the edges of
+ * the graph only in the cells of the waypoints: in the other cells it jumps from a boundary node to the others with the
+ * customized weights, and leaves the cell through the edges to the other cells. The jumps of the best path are then
+ * unpacked with a search inside their cell, and the path is built by GraphHopper as usual. Turn costs are not
+ * considered and there are no alternative routes.
+ */
+public class CrpRouter {
+    // Parent edge of a node reached with a jump between two boundary nodes of a cell
+    private static final int CLIQUE = -2;
+
+    private final DynamicGraphHopper hopper;
+    private final CrpPartition partition;
+    private final CrpMetric metric;
+    private final Weighting metricWeighting;
+    private final BaseGraph graph;
+    private QueryGraph queryGraph;
+    private Weighting queryWeighting;
+    private final IntHashSet localCells = new IntHashSet();
+    private final int maxVisitedNodes;
+    private int visitedNodes;
+
+    private CrpRouter(DynamicGraphHopper hopper, CrpPartition partition, CrpMetric metric, Weighting metricWeighting) {
+        this.hopper = hopper;
+        this.partition = partition;
+        this.metric = metric;
+        this.metricWeighting = metricWeighting;
+        graph = hopper.getBaseGraph();
+        SearchLimits limits = hopper.getSearchLimits();
+        maxVisitedNodes = limits != null ? limits.getMaxVisitedNodes() : 0;
+    }
+
+    /**
+     * A router between the nodes of a graph, without waypoints to snap (see calcPath), e.g. to compare it with
+     * another algorithm.
+     *
+     * @param weighting the weighting of the customization
+     */
+    public CrpRouter(BaseGraph graph, CrpPartition partition, CrpMetric metric, Weighting weighting) {
+        hopper = null;
+        this.partition = partition;
+        this.metric = metric;
+        metricWeighting = weighting;
+        this.graph = graph;
+        maxVisitedNodes = 0;
+    }
+
+    /**
+     * Route a request through the waypoints, customizing the weighting of the hopper if it is not in the cache.
+     *
+     * @param hopper GraphHopper instance (could have a blockArea and search limits set)
+     * @param request the request, its points and the instructions and calc_points hints are used
+     * @return the response with the best path, or the errors
+     */
+    public static GHResponse route(DynamicGraphHopper hopper, GHRequest request) throws InterruptedException {
+        Weighting metricWeighting = hopper.createMetricWeighting();
+        CrpPartition partition = CrpPartition.get(hopper.getGraphHopperLocation(), hopper.getBaseGraph());
+        CrpMetric metric = CrpMetric.get(hopper.getMetricKey(), () -> CrpMetric.customize(partition, hopper.getBaseGraph(), metricWeighting));
+        GHResponse response = new CrpRouter(hopper, partition, metric, metricWeighting).route(request);
+        return hopper.checkResponse(request, response);
+    }
+
+    private GHResponse route(GHRequest request) {
+        GHResponse response = new GHResponse();
+        Profile profile = hopper.getProfile(hopper.getRequestProfile());
+        Weighting weighting = hopper.createWeighting(profile, new PMap(), true);
+        String subnetwork = Subnetwork.key(profile.getName());
+        EdgeFilter snapFilter = hopper.getEncodingManager().hasEncodedValue(subnetwork)
+                ? new DefaultSnapFilter(weighting, hopper.getEncodingManager().getBooleanEncodedValue(subnetwork))
+                : EdgeFilter.ALL_EDGES;
+
+        List<Snap> snaps = new ArrayList<>(request.getPoints().size());
+        for (int i = 0; i < request.getPoints().size(); i++) {
+            GHPoint point = request.getPoints().get(i);
+            Snap snap = hopper.getLocationIndex().findClosest(point.lat, point.lon, snapFilter);
+            if (!snap.isValid()) {
+                response.addError(new PointNotFoundException("Cannot find point " + i + ": " + point, i));
+                continue;
+            }
+            snaps.add(snap);
+            // The cells of the snapped edges are searched on the graph, they are the only ones with virtual nodes
+            localCells.add(partition.getCell(snap.getClosestEdge().getBaseNode()));
+            localCells.add(partition.getCell(snap.getClosestEdge().getAdjNode()));
+        }
+        if (response.hasErrors()) {
+            return response;
+        }
+
+        queryGraph = QueryGraph.create(graph, snaps);
+        queryWeighting = queryGraph.wrapWeighting(weighting);
+        List<Path> paths = new ArrayList<>(snaps.size() - 1);
+        PointList waypoints = new PointList(snaps.size(), queryGraph.getNodeAccess().is3D());
+        waypoints.add(snaps.get(0).getSnappedPoint());
+        try {
+            for (int i = 0; i < snaps.size() - 1; i++) {
+                Path path = search(snaps.get(i).getClosestNode(), snaps.get(i + 1).getClosestNode());
+                if (path == null) {
+                    return response.addError(new ConnectionNotFoundException("Connection between locations not found",
+                            Collections.singletonMap("visited_nodes", (Object) visitedNodes)));
+                }
+                paths.add(path);
+                waypoints.add(snaps.get(i + 1).getSnappedPoint());
+            }
+        } catch (IllegalArgumentException e) {
+            // The limits of the search (see BoundedSearchWeighting)
+            return response.addError(e);
+        }
+
+        PathMerger merger = new PathMerger(queryGraph, queryWeighting)
+                .setCalcPoints(request.getHints().getBool(Parameters.Routing.CALC_POINTS, true))
+                .setEnableInstructions(request.getHints().getBool(Parameters.Routing.INSTRUCTIONS, true))
+                .setPathDetailsBuilders(hopper.getPathDetailsBuilderFactory(), request.getPathDetails());
+        ResponsePath path = merger.doWork(waypoints, paths, hopper.getEncodingManager(),
+                hopper.getTranslationMap().getWithFallBack(request.getLocale()));
+        path.addDebugInfo("crp, visited nodes: " + visitedNodes + ", customization: " + metric.getMillis() + " ms");
+        response.getHints().putObject("visited_nodes.sum", visitedNodes);
+        response.add(path);
+        return response;
+    }
+
+    /**
+     * Calculate the best path between two nodes of the graph, with the weighting of the customization.
+     *
+     * @return the path, null if the nodes are not connected
+     */
+    public Path calcPath(int from, int to) {
+        queryGraph = QueryGraph.create(graph, Collections.emptyList());
+        queryWeighting = queryGraph.wrapWeighting(metricWeighting);
+        localCells.clear();
+        localCells.add(partition.getCell(from));
+        localCells.add(partition.getCell(to));
+        visitedNodes = 0;
+        return search(from, to);
+    }
+
+    /**
+     * @return the nodes settled by the searches of the last route or calcPath, without the unpacking
+     */
+    public int getVisitedNodes() {
+        return visitedNodes;
+    }
+
+    // Dijkstra on the graph in the local cells and on the overlay in the others, null if the target is not reached
+    private Path search(int from, int to) {
+        try (SearchState state = SearchState.acquire(queryGraph.getNodes())) {
+            state.update(from, 0, EdgeIterator.NO_EDGE, -1);
+            EdgeExplorer explorer = queryGraph.createEdgeExplorer();
+            int baseNodes = graph.getNodes();
+            int node;
+            boolean found = false;
+            while ((node = state.poll()) >= 0) {
+                if (node == to) {
+                    found = true;
+                    break;
+                }
+                if (maxVisitedNodes > 0 && visitedNodes >= maxVisitedNodes) {
+                    throw new MaximumNodesExceededException("No path found due to maximum nodes exceeded " + maxVisitedNodes, maxVisitedNodes);
+                }
+                visitedNodes++;
+
+                double weight = state.getWeight(node);
+                int cell = node < baseNodes ? partition.getCell(node) : -1;
+                boolean local = cell < 0 || localCells.contains(cell);
+                if (!local) {
+                    // A node of another cell is reached through a boundary node, so it is a boundary node too
+                    int i = partition.getBoundaryIndex(node);
+                    for (int j = 0; j < partition.getBoundaryCount(cell); j++) {
+                        double cliqueWeight = metric.getWeight(cell, i, j);
+                        if (j != i && !Double.isInfinite(cliqueWeight)) {
+                            state.update(partition.getBoundaryNode(cell, j), weight + cliqueWeight, CLIQUE, node);
+                        }
+                    }
+                }
+                EdgeIterator iter = explorer.setBaseNode(node);
+                while (iter.next()) {
+                    // Inside the other cells the jumps replace the edges
+                    if (!local && iter.getAdjNode() < baseNodes && partition.getCell(iter.getAdjNode()) == cell) {
+                        continue;
+                    }
+                    double edgeWeight = queryWeighting.calcEdgeWeightWithAccess(iter, false);
+                    if (!Double.isInfinite(edgeWeight)) {
+                        state.update(iter.getAdjNode(), weight + edgeWeight, iter.getEdge(), node);
+                    }
+                }
+            }
+            if (!found) {
+                return null;
+            }
+
+            // The overlay path backwards: an edge and its end node, or CLIQUE and the two nodes of a jump
+            double pathWeight = state.getWeight(to);
+            IntArrayList steps = new IntArrayList();
+            for (int current = to; state.getParentEdge(current) != EdgeIterator.NO_EDGE; current = state.getParentNode(current)) {
+                steps.add(state.getParentEdge(current), current, state.getParentNode(current));
+            }
+
+            Path path = new Path(queryGraph);
+            path.setFromNode(from);
+            for (int i = steps.size() - 3; i >= 0; i -= 3) {
+                int edge = steps.get(i);
+                int end = steps.get(i + 1);
+                if (edge == CLIQUE) {
+                    // Unpacking searches with another state, this one is still read
+                    unpack(steps.get(i + 2), end, path);
+                } else {
+                    addEdge(path, edge, end);
+                }
+            }
+            return path.setEndNode(to).setWeight(pathWeight).setFound(true);
+        }
+    }
+
+    // Add the edges of the best path between two boundary nodes of a cell, as in the customization
+    private void unpack(int from, int to, Path path) {
+        int cell = partition.getCell(from);
+        IntArrayList edges = new IntArrayList();
+        try (SearchState state = SearchState.acquire(graph.getNodes())) {
+            state.update(from, 0, EdgeIterator.NO_EDGE, -1);
+            EdgeExplorer explorer = graph.createEdgeExplorer();
+            int node;
+            while ((node = state.poll()) != to) {
+                if (node < 0) {
+                    throw new IllegalStateException("The customized path from " + from + " to " + to + " cannot be unpacked");
+                }
+                double weight = state.getWeight(node);
+                EdgeIterator iter = explorer.setBaseNode(node);
+                while (iter.next()) {
+                    if (partition.getCell(iter.getAdjNode()) != cell) {
+                        continue;
+                    }
+                    double edgeWeight = metricWeighting.calcEdgeWeightWithAccess(iter, false);
+                    if (!Double.isInfinite(edgeWeight)) {
+                        state.update(iter.getAdjNode(), weight + edgeWeight, iter.getEdge(), node);
+                    }
+                }
+            }
+            for (int current = to; state.getParentEdge(current) != EdgeIterator.NO_EDGE; current = state.getParentNode(current)) {
+                edges.add(state.getParentEdge(current), current);
+            }
+        }
+        for (int i = edges.size() - 2; i >= 0; i -= 2) {
+            addEdge(path, edges.get(i), edges.get(i + 1));
+        }
+    }
+
+    private void addEdge(Path path, int edge, int end) {
+        EdgeIteratorState state = queryGraph.getEdgeIteratorState(edge, end);
+        path.addEdge(edge);
+        path.addDistance(state.getDistance());
+        path.addTime(queryWeighting.calcEdgeMillis(state, false));
+    }
+}
@@ -0,0 +1,53 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.Directory;
+import com.graphhopper.storage.GHDirectory;
+
+import java.io.File;
+
+/**
+ * Storage of the data added to the graph by this project (edge to way mapping, road element of each edge, travel
+ * times), kept in GraphHopper DataAccess objects instead of Java collections.
+ * <p>
+ * The type is read from GH_DATA_ACCESS: MMAP (default) keeps the data in memory mapped files outside of the heap,
+ * RAM_STORE keeps it in the heap in compact byte arrays. Both are saved in the graph folder.
+ */
+public class CustomDataAccess {
+
+    private CustomDataAccess() {
+    }
+
+    public static DAType getType() {
+        String type = System.getenv("GH_DATA_ACCESS");
+        if (type == null) {
+            return DAType.MMAP;
+        }
+        try {
+            return DAType.fromString(type);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid value for GH_DATA_ACCESS: " + type);
+            return DAType.MMAP;
+        }
+    }
+
+    /**
+     * Create a directory for the DataAccess objects in the given folder, creating the folder if needed.
+     */
+    public static Directory createDirectory(String location) {
+        new File(location).mkdirs();
+        return new GHDirectory(location, getType());
+    }
+}
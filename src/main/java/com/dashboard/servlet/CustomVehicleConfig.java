@@ -0,0 +1,71 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The custom vehicles declared in the configuration, compiled once at startup.
+ * <p>
+ * The configuration is the JSON file in GH_CUSTOM_VEHICLES or, if it is not set, the custom_vehicles.json resource.
+ * It maps the name of each vehicle to its declaration (see the README for the format).
+ */
+public class CustomVehicleConfig {
+    private static final String RESOURCE = "/custom_vehicles.json";
+
+    private static final Map<String, CustomVehicleProfile> vehicles = load();
+
+    private CustomVehicleConfig() {
+    }
+
+    /**
+     * @return the custom vehicle with the given name, null if it is not declared
+     */
+    public static CustomVehicleProfile get(String name) {
+        return vehicles.get(name);
+    }
+
+    public static Set<String> getNames() {
+        return vehicles.keySet();
+    }
+
+    private static Map<String, CustomVehicleProfile> load() {
+        Map<String, CustomVehicleProfile> result = new LinkedHashMap<>();
+        String path = System.getenv("GH_CUSTOM_VEHICLES");
+        try (InputStream in = path != null ? new FileInputStream(path) : CustomVehicleConfig.class.getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                return Collections.emptyMap();
+            }
+            JSONObject config = new JSONObject(new JSONTokener(in));
+            for (String name : config.keySet()) {
+                try {
+                    result.put(name, CustomVehicleProfile.compile(name, config.getJSONObject(name)));
+                } catch (RuntimeException e) {
+                    System.out.println("Skipping custom vehicle " + name + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cannot load the custom vehicles" + (path != null ? " from " + path : "") + ": " + e.getMessage());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+}
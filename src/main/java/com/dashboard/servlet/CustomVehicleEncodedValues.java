@@ -33,4 +33,16 @@ public class CustomVehicleEncodedValues {
         DecimalEncodedValue turnCostEnc = maxTurnCosts > 0 ? TurnCost.create(name, maxTurnCosts) : null;
         return new VehicleEncodedValues(name, accessEnc, speedEnc, null,  turnCostEnc);
     }
+
+    //create vehicle encoded values of a vehicle declared in the configuration, the properties override the declaration
+    public static VehicleEncodedValues configured(CustomVehicleProfile profile, PMap properties) {
+        String name = profile.getName();
+        int speedBits = properties.getInt("speed_bits", profile.getSpeedBits());
+        double speedFactor = properties.getDouble("speed_factor", profile.getSpeedFactor());
+        int maxTurnCosts = properties.getInt("max_turn_costs", properties.getBool("turn_costs", profile.hasTurnCosts()) ? 1 : 0);
+        BooleanEncodedValue accessEnc = VehicleAccess.create(name);
+        DecimalEncodedValue speedEnc = VehicleSpeed.create(name, speedBits, speedFactor, true); //both directions for pedestrian zones and rules
+        DecimalEncodedValue turnCostEnc = maxTurnCosts > 0 ? TurnCost.create(name, maxTurnCosts) : null;
+        return new VehicleEncodedValues(name, accessEnc, speedEnc, null,  turnCostEnc);
+    }
 }
@@ -25,6 +25,11 @@ public class CustomVehicleEncodedValuesFactory extends DefaultVehicleEncodedValu
         if(name.equals(TAXI)){
             return CustomVehicleEncodedValues.taxi(configuration);
         }
+        //vehicles declared in the configuration
+        CustomVehicleProfile profile = CustomVehicleConfig.get(name);
+        if(profile != null){
+            return CustomVehicleEncodedValues.configured(profile, configuration);
+        }
         //use predefined encoded values
         return super.createVehicleEncodedValues(name, configuration);
     }
@@ -0,0 +1,262 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.routing.util.TransportationMode;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A custom vehicle declared in the configuration (see CustomVehicleConfig), compiled in a rule table.
+ * <p>
+ * Every distinct key=value condition used by the rules gets a bit. A way is evaluated by reading each key used by the
+ * rules once and or-ing the bits of the matching values, then a rule applies when all the bits of its conditions are
+ * set. The value "*" matches any value of the key.
+ */
+public class CustomVehicleProfile {
+    // Actions of the rules
+    public static final int ACCESS = 1;          // the way can be used, even if the base parser forbids it
+    public static final int PEDESTRIAN = 1 << 1; // both directions at the pedestrian speed (e.g. pedestrian zones)
+    public static final int BOTH_DIRECTIONS = 1 << 2; // the way can also be used in the opposite direction
+    public static final int DENY = 1 << 3;       // the way cannot be used
+
+    private static final String ANY_VALUE = "*";
+    private static final int MAX_CONDITIONS = 64;
+
+    private final String name;
+    private final String base;
+    private final TransportationMode transportationMode;
+    private final int maxSpeed;
+    private final int pedestrianSpeed;
+    private final int speedBits;
+    private final double speedFactor;
+    private final boolean turnCosts;
+
+    private final List<String> addedRestrictions;
+    private final List<String> removedRestrictions;
+    private final List<String> addedRestrictedValues;
+    private final List<String> removedRestrictedValues;
+    private final List<String> addedBarriers;
+    private final List<String> removedBarriers;
+    private final Map<String, Integer> speeds;
+
+    // Rule table: the keys to read, for each key the condition bits of its values, for each rule its bits and action
+    private final String[] keys;
+    private final List<Map<String, Long>> valueBits;
+    private final long[] ruleConditions;
+    private final int[] ruleActions;
+
+    private CustomVehicleProfile(String name, JSONObject config) {
+        this.name = name;
+        base = config.optString("base", "car");
+        if (!base.equals("car")) {
+            throw new IllegalArgumentException("Custom vehicle " + name + ": unsupported base parser " + base + ", only car is supported");
+        }
+        transportationMode = TransportationMode.valueOf(config.optString("transportation_mode", "car").toUpperCase());
+        maxSpeed = config.optInt("max_speed", 140);
+        pedestrianSpeed = config.optInt("pedestrian_speed", 5);
+        speedBits = config.optInt("speed_bits", 5);
+        speedFactor = config.optDouble("speed_factor", 5);
+        turnCosts = config.optBoolean("turn_costs", false);
+
+        JSONObject restrictions = config.optJSONObject("restrictions");
+        addedRestrictions = getList(restrictions, "add");
+        removedRestrictions = getList(restrictions, "remove");
+        JSONObject restrictedValues = config.optJSONObject("restricted_values");
+        addedRestrictedValues = getList(restrictedValues, "add");
+        removedRestrictedValues = getList(restrictedValues, "remove");
+        JSONObject barriers = config.optJSONObject("barriers");
+        addedBarriers = getList(barriers, "add");
+        removedBarriers = getList(barriers, "remove");
+
+        speeds = new HashMap<>();
+        JSONObject speedsConfig = config.optJSONObject("speeds");
+        if (speedsConfig != null) {
+            for (String highway : speedsConfig.keySet()) {
+                speeds.put(highway, speedsConfig.getInt(highway));
+            }
+        }
+
+        // Compile the rules
+        Map<String, Map<String, Long>> conditions = new LinkedHashMap<>();
+        JSONArray rules = config.optJSONArray("rules");
+        int ruleCount = rules == null ? 0 : rules.length();
+        ruleConditions = new long[ruleCount];
+        ruleActions = new int[ruleCount];
+        int conditionCount = 0;
+        for (int i = 0; i < ruleCount; i++) {
+            JSONObject rule = rules.getJSONObject(i);
+            JSONObject tags = rule.getJSONObject("if");
+            if (tags.isEmpty()) {
+                throw new IllegalArgumentException("Custom vehicle " + name + ": rule " + i + " has no conditions");
+            }
+            for (String key : tags.keySet()) {
+                String value = tags.getString(key);
+                Map<String, Long> values = conditions.computeIfAbsent(key, k -> new HashMap<>());
+                Long bit = values.get(value);
+                if (bit == null) {
+                    if (conditionCount == MAX_CONDITIONS) {
+                        throw new IllegalArgumentException("Custom vehicle " + name + ": more than " + MAX_CONDITIONS + " distinct conditions");
+                    }
+                    bit = 1L << conditionCount++;
+                    values.put(value, bit);
+                }
+                ruleConditions[i] |= bit;
+            }
+            ruleActions[i] = parseAction(rule.getString("then"));
+        }
+        keys = conditions.keySet().toArray(new String[0]);
+        valueBits = new ArrayList<>(conditions.values());
+    }
+
+    /**
+     * Compile a custom vehicle.
+     *
+     * @param name name of the vehicle
+     * @param config its declaration
+     * @throws IllegalArgumentException if the declaration is not valid
+     */
+    public static CustomVehicleProfile compile(String name, JSONObject config) {
+        return new CustomVehicleProfile(name, config);
+    }
+
+    /**
+     * Evaluate the rules on a way.
+     *
+     * @return the or of the actions of the rules that apply
+     */
+    public int evaluate(ReaderWay way) {
+        long bits = 0;
+        for (int i = 0; i < keys.length; i++) {
+            String value = way.getTag(keys[i]);
+            if (value != null) {
+                Map<String, Long> values = valueBits.get(i);
+                Long bit = values.get(value);
+                if (bit != null) {
+                    bits |= bit;
+                }
+                bit = values.get(ANY_VALUE);
+                if (bit != null) {
+                    bits |= bit;
+                }
+            }
+        }
+        int actions = 0;
+        if (bits != 0) {
+            for (int i = 0; i < ruleConditions.length; i++) {
+                if ((bits & ruleConditions[i]) == ruleConditions[i]) {
+                    actions |= ruleActions[i];
+                }
+            }
+        }
+        return actions;
+    }
+
+    private static int parseAction(String action) {
+        switch (action) {
+            case "access":
+                return ACCESS;
+            case "pedestrian":
+                return PEDESTRIAN;
+            case "both_directions":
+                return BOTH_DIRECTIONS;
+            case "deny":
+                return DENY;
+            default:
+                throw new IllegalArgumentException("Unknown custom vehicle rule action: " + action);
+        }
+    }
+
+    private static List<String> getList(JSONObject config, String key) {
+        if (config == null || !config.has(key)) {
+            return Collections.emptyList();
+        }
+        JSONArray array = config.getJSONArray(key);
+        List<String> list = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            list.add(array.getString(i));
+        }
+        return list;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBase() {
+        return base;
+    }
+
+    public TransportationMode getTransportationMode() {
+        return transportationMode;
+    }
+
+    public int getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    public int getPedestrianSpeed() {
+        return pedestrianSpeed;
+    }
+
+    public int getSpeedBits() {
+        return speedBits;
+    }
+
+    public double getSpeedFactor() {
+        return speedFactor;
+    }
+
+    public boolean hasTurnCosts() {
+        return turnCosts;
+    }
+
+    public List<String> getAddedRestrictions() {
+        return addedRestrictions;
+    }
+
+    public List<String> getRemovedRestrictions() {
+        return removedRestrictions;
+    }
+
+    public List<String> getAddedRestrictedValues() {
+        return addedRestrictedValues;
+    }
+
+    public List<String> getRemovedRestrictedValues() {
+        return removedRestrictedValues;
+    }
+
+    public List<String> getAddedBarriers() {
+        return addedBarriers;
+    }
+
+    public List<String> getRemovedBarriers() {
+        return removedBarriers;
+    }
+
+    /**
+     * @return the speed overrides by highway type
+     */
+    public Map<String, Integer> getSpeeds() {
+        return speeds;
+    }
+}
@@ -25,6 +25,11 @@ public class CustomVehicleTagParserFactory extends DefaultVehicleTagParserFactor
         if(name.equals("taxi")){
             return new TaxiTagParser(lookup, configuration);
         }
+        //vehicles declared in the configuration
+        CustomVehicleProfile profile = CustomVehicleConfig.get(name);
+        if(profile != null){
+            return new ConfigurableTagParser(lookup, profile, configuration);
+        }
         //use predefined tag parser
         return super.createParser(lookup, name, configuration);
     }
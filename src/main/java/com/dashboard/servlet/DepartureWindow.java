@@ -0,0 +1,128 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.Trip;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Departure window of a public transport range query.
+ * <p>
+ * With a window the PtRouter runs a single profile query, that finds the journeys departing from the start time to
+ * the end of the window, instead of a search per departure time. The journeys are then reduced to the Pareto set by
+ * departure time (later is better), arrival time and transfers (fewer is better). The window is in minutes and at
+ * most GH_MAX_DEPARTURE_WINDOW (default 180).
+ */
+public class DepartureWindow {
+    private static final int MAX_MINUTES = EnvConfig.getInt("GH_MAX_DEPARTURE_WINDOW", 180);
+
+    private DepartureWindow() {
+    }
+
+    /**
+     * Parse the departureWindow parameter.
+     *
+     * @param minutes the length of the window in minutes
+     * @return the window, null if the parameter is empty
+     * @throws IllegalArgumentException if the window is not valid
+     */
+    public static Duration parse(String minutes) {
+        if (minutes == null || minutes.isEmpty()) {
+            return null;
+        }
+        int value;
+        try {
+            value = Integer.parseInt(minutes);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid departureWindow parameter: " + minutes);
+        }
+        if (value <= 0 || value > MAX_MINUTES) {
+            throw new IllegalArgumentException("invalid departureWindow parameter: " + minutes + " (1-" + MAX_MINUTES + " minutes)");
+        }
+        return Duration.ofMinutes(value);
+    }
+
+    /**
+     * Keep the journeys that are not dominated by another one, i.e. that departs later (or at the same time), arrives
+     * earlier (or at the same time) and has fewer transfers (or the same), sorted by departure time. Of the journeys
+     * with the same departure, arrival and transfers only the first one is kept.
+     */
+    public static GHResponse paretoSet(GHResponse response) {
+        if (response.hasErrors()) {
+            return response;
+        }
+        List<ResponsePath> paths = new ArrayList<>();
+        for (ResponsePath path : response.getAll()) {
+            if (!path.getLegs().isEmpty()) {
+                paths.add(path);
+            }
+        }
+        paths.sort(Comparator.comparingLong(DepartureWindow::getDeparture));
+        GHResponse pareto = new GHResponse();
+        pareto.setHints(response.getHints());
+        for (ResponsePath path : paths) {
+            boolean dominated = false;
+            for (ResponsePath other : paths) {
+                if (other != path && dominates(other, path)) {
+                    dominated = true;
+                    break;
+                }
+            }
+            if (!dominated && !containsEqual(pareto.getAll(), path)) {
+                pareto.add(path);
+            }
+        }
+        return pareto;
+    }
+
+    private static boolean dominates(ResponsePath a, ResponsePath b) {
+        long departureA = getDeparture(a), departureB = getDeparture(b);
+        long arrivalA = getArrival(a), arrivalB = getArrival(b);
+        if (departureA < departureB || arrivalA > arrivalB || a.getNumChanges() > b.getNumChanges()) {
+            return false;
+        }
+        // Equal journeys do not dominate each other
+        return departureA > departureB || arrivalA < arrivalB || a.getNumChanges() < b.getNumChanges();
+    }
+
+    private static boolean containsEqual(List<ResponsePath> paths, ResponsePath path) {
+        for (ResponsePath other : paths) {
+            if (getDeparture(other) == getDeparture(path) && getArrival(other) == getArrival(path)
+                    && other.getNumChanges() == path.getNumChanges()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the departure time of the first leg of a journey (ms)
+     */
+    public static long getDeparture(ResponsePath path) {
+        return path.getLegs().get(0).getDepartureTime().getTime();
+    }
+
+    /**
+     * @return the arrival time of the last leg of a journey (ms)
+     */
+    public static long getArrival(ResponsePath path) {
+        List<Trip.Leg> legs = path.getLegs();
+        return legs.get(legs.size() - 1).getArrivalTime().getTime();
+    }
+}
@@ -13,174 +13,526 @@
 
 package com.dashboard.servlet;
 
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
 import com.graphhopper.GraphHopper;
+import com.graphhopper.ResponsePath;
 import com.graphhopper.config.Profile;
-import com.graphhopper.reader.osm.Pair;
+import com.graphhopper.routing.Router;
+import com.graphhopper.routing.RouterConfig;
 import com.graphhopper.routing.WeightingFactory;
 import com.graphhopper.routing.ev.*;
+import com.graphhopper.routing.lm.LandmarkStorage;
 import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.OSMParsers;
 import com.graphhopper.routing.weighting.BlockAreaWeighting;
 import com.graphhopper.routing.weighting.FastestWeighting;
 import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
 import com.graphhopper.storage.GraphEdgeIdFinder;
+import com.graphhopper.storage.RoutingCHGraph;
+import com.graphhopper.storage.index.LocationIndex;
 import com.graphhopper.util.*;
-import org.apache.commons.io.FileUtils;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.graphhopper.util.details.PathDetailsBuilderFactory;
+import com.graphhopper.util.exceptions.ConnectionNotFoundException;
+import com.graphhopper.util.shapes.GHPoint;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
 
 
 public class DynamicGraphHopper extends GraphHopper {
     private GraphEdgeIdFinder.BlockArea blockArea;  // Area to avoid during routing
+    private String blockAreaKey = "";  // Identifies the blockArea in the snap cache (the avoid_area it was created from), null to skip the cache
+    private final String trafficSlot;  // Day and hour of the traffic data in use (D_HH)
+    private final boolean live;  // If the live observed speeds are used, when the routing starts about now
+    private String requestProfile;  // Profile used by the requests, null to use the first one
+    private final EdgeToWayRecorder edgeToWayRecorder = new EdgeToWayRecorder();  // Builds the edge to way mapping during the import
 
-    // Save mapping between edge id and its way id
-    // NOTE: Edge ids are incremental, starting from 0. It means I can use a simple list in order to store the mapping between edge (whose is is the position) way id (the value, representing the way id)
-    private List<Long> edgeToWayMap = new ArrayList<>();
-
-    // Traffic data of the day and hour of the start of the routing.
-    // RoadElement id => Pair of average traffic density and maximum traffic density for that road element
-    private final Map<String, Pair<Float, Float>> trafficData = new HashMap<>();
+    // Road element of each edge, matched after the import and shared by the requests on the same graph
+    private volatile RoadElementIndex roadElementIndex;
+    private SpeedModel speedModel = SpeedModels.get(SpeedModels.DEFAULT);  // Speed model of fastest_with_traffic
+    private SearchLimits searchLimits;  // Limits of the searches of the request, null for no limits
+    private List<GHPoint> searchWaypoints;  // Waypoints of the request, they bound the search with the max distance
+    // Travel time tables acquired by this instance, released when it is closed
+    private final Map<String, TravelTimeTable> travelTimeTables = new HashMap<>();
 
 
     public DynamicGraphHopper(LocalDateTime startTimestamp) {
         super();
-        loadTrafficData(startTimestamp);
-        if (edgeToWayMap.isEmpty()) {
-            // Check if the file containing the mappings between the edges and the ways exist, and if so, deserialize it
-            if (new File(getGraphHopperLocation() + "/edgeToWayMap.json").exists())
-                deserializeMapping();
-        }
+        trafficSlot = getTrafficSlot(startTimestamp);
+        live = Math.abs(Duration.between(startTimestamp, LocalDateTime.now(EnvConfig.ZONE)).toMinutes()) <= EdgeSpeedObservations.LIVE_MAX_AGE;
     }
 
     // Override the createWeighting method of the GraphHopper class to enable BlockAreaWeighting
     @Override
     protected WeightingFactory createWeightingFactory() {
-        // Get encoded values for the vehicle
         EncodingManager em = this.getEncodingManager();
-        BooleanEncodedValue accessEnc = em.getBooleanEncodedValue(VehicleAccess.key(this.getProfiles().get(0).getVehicle()));
-        DecimalEncodedValue speedEnc = em.getDecimalEncodedValue(VehicleSpeed.key(this.getProfiles().get(0).getVehicle()));
-
-        // Get the weighting in use
-        String weighting = this.getProfiles().get(0).getWeighting();
-        WeightingFactory result;
+        // Other default weightings, like "shortest", "short_fastest", etc. See https://github.com/graphhopper/graphhopper/blob/master/docs/core/profiles.md
+        WeightingFactory defaultFactory = super.createWeightingFactory();
 
-        if (weighting.equals("fastest_with_traffic")) {
-            if (edgeToWayMap.isEmpty()) {
-                result = (Profile profile, PMap hints, boolean disableTurnCosts) -> new FastestWeighting(accessEnc, speedEnc);
+        // The weighting is chosen from the profile of the request, since a shared graph can have several profiles
+        WeightingFactory result = (Profile profile, PMap hints, boolean disableTurnCosts) -> {
+            if (!profile.getWeighting().equals("fastest_with_traffic")) {
+                return defaultFactory.createWeighting(profile, hints, disableTurnCosts);
             }
-            else {
-                result = (Profile profile, PMap hints, boolean disableTurnCosts) -> new FastestWeightingWithTraffic(trafficData, accessEnc, speedEnc, edgeToWayMap);
+            // Get encoded values for the vehicle
+            BooleanEncodedValue accessEnc = em.getBooleanEncodedValue(VehicleAccess.key(profile.getVehicle()));
+            DecimalEncodedValue speedEnc = em.getDecimalEncodedValue(VehicleSpeed.key(profile.getVehicle()));
+            TravelTimeTable travelTimes = getTravelTimeTable(profile.getVehicle());
+            EdgeSpeedObservations liveSpeeds = getObservedSpeeds(EdgeSpeedObservations.LIVE);
+            EdgeSpeedObservations typicalSpeeds = getObservedSpeeds(trafficSlot);
+            if (travelTimes == null && liveSpeeds == null && typicalSpeeds == null) {
+                return new FastestWeighting(accessEnc, speedEnc);
             }
-        }
-        // Other default weightings, like "shortest", "short_fastest", etc. See https://github.com/graphhopper/graphhopper/blob/master/docs/core/profiles.md
-        else result = super.createWeightingFactory();
+            return new FastestWeightingWithTraffic(travelTimes, liveSpeeds, typicalSpeeds, accessEnc, speedEnc);
+        };
 
         // Add the blockArea to the weighting
+        WeightingFactory blocked;
         if (blockArea != null) {
             // Create a new WeightingFactory, with the createWeighting method that returns a BlockAreaWeighting if a BlockArea is set and uses the "result" weighting otherwise
-            return (Profile profile, PMap hints, boolean disableTurnCosts) -> {
+            GraphEdgeIdFinder.BlockArea ba = blockArea;
+            blocked = (Profile profile, PMap hints, boolean disableTurnCosts) -> {
                 Weighting w = result.createWeighting(profile, hints, disableTurnCosts);
-                return new BlockAreaWeighting(w, blockArea);
+                return new BlockAreaWeighting(w, ba);
             };
         }
-        else return result;
+        else blocked = result;
+
+        // Enforce the timeout and the max distance inside the search
+        if (searchLimits != null) {
+            SearchLimits limits = searchLimits;
+            List<GHPoint> waypoints = searchWaypoints;
+            return (Profile profile, PMap hints, boolean disableTurnCosts) -> new BoundedSearchWeighting(
+                    blocked.createWeighting(profile, hints, disableTurnCosts), limits, getBaseGraph().getNodeAccess(), getBaseGraph().getNodes(), waypoints);
+        }
+        return blocked;
     }
 
-    public void setBlockArea(GraphEdgeIdFinder.BlockArea ba) {
-        blockArea = ba;
+    /**
+     * Get the travel times used by the fastest_with_traffic weighting of a vehicle. They are calculated once per graph,
+     * vehicle, traffic slot and speed model, and held by this instance until it is closed.
+     *
+     * @return the travel times, null if the road elements have not been matched to the edges
+     */
+    public synchronized TravelTimeTable getTravelTimeTable(String vehicle) {
+        String key = getTravelTimeKey(vehicle, trafficSlot, speedModel);
+        TravelTimeTable table = travelTimeTables.get(key);
+        if (table == null) {
+            table = acquireTravelTimeTable(vehicle, trafficSlot, speedModel);
+            if (table != null) {
+                travelTimeTables.put(key, table);
+            }
+        }
+        return table;
     }
 
     /**
-     * Imports provided data from disc and creates graph.
-     * Depending on the settings the resulting graph will be stored to disc so on a second call this method will only load the graph from disc which is usually a lot faster.
-     * This will also create and save the mappings between the way and the edges that belong to it (or load them if it isn't the first execution).
+     * Get the travel time table of any traffic slot and speed model without changing this instance, so that it can be
+     * used on a shared instance (see SharedHoppers).
+     *
+     * @return the table, to be released by the caller, or null if there is no traffic data
+     */
+    public TravelTimeTable acquireTravelTimeTable(String vehicle, String slot, SpeedModel model) {
+        EdgeTrafficTable traffic = getTrafficTable(slot);
+        if (traffic == null) {
+            return null;
+        }
+        EncodingManager em = getEncodingManager();
+        DecimalEncodedValue speedEnc = em.getDecimalEncodedValue(VehicleSpeed.key(vehicle));
+        String name = vehicle + "_" + slot + "_" + model.getName();
+        return TravelTimeTable.get(getTravelTimeKey(vehicle, slot, model), () -> TravelTimeTable.build(getGraphHopperLocation(), name, getBaseGraph(),
+                traffic, model, speedEnc,
+                em.hasEncodedValue(RoadClass.KEY) ? em.getEnumEncodedValue(RoadClass.KEY, RoadClass.class) : null));
+    }
+
+    private String getTravelTimeKey(String vehicle, String slot, SpeedModel model) {
+        return getGraphHopperLocation() + "|" + vehicle + "|" + slot + "|" + model.getName();
+    }
+
+    /**
+     * Release the travel time tables used by this instance and close the graph.
      */
     @Override
-    public DynamicGraphHopper importOrLoad() {
-        if (!load()) {
-            // If the graph cannot be loaded, then create it
-            process(false);
+    public void close() {
+        synchronized (this) {
+            travelTimeTables.values().forEach(TravelTimeTable::release);
+            travelTimeTables.clear();
+        }
+        super.close();
+    }
 
-            // Generate the mappings between the way and the edges that belong to it
-            DynamicOSMReader reader = new DynamicOSMReader(GHUtility.newGraph(getBaseGraph()), getEncodingManager(), getOSMParsers(), getReaderConfig());
-            reader.setFile(new File(getOSMFile()));
-            try {
-                reader.readGraph();
-                edgeToWayMap = reader.getEdgeToWayMap();
-                serializeMapping();    // Save the mappings between the way and the edges
-            } catch (IOException e) {
-                System.out.println("Error while reading the graph");
-            }
+    /**
+     * @param slot the traffic slot, or EdgeSpeedObservations.LIVE
+     * @return the speeds observed in the GPS traces used by the fastest_with_traffic weighting, null if there are none
+     * or the live ones are not used because the routing does not start now
+     */
+    public EdgeSpeedObservations getObservedSpeeds(String slot) {
+        if (slot.equals(EdgeSpeedObservations.LIVE) && !live) {
+            return null;
         }
-        else deserializeMapping();  // Load the mappings between the way and the edges
-        return this;
+        return EdgeSpeedObservations.find(getGraphHopperLocation(), slot);
     }
 
     /**
-     * Serialize the mappings between the edge and the way in which it belongs, saving them in a file
+     * @return the traffic density of the edges in the traffic slot, null if the road elements have not been matched
+     * to the edges
      */
-    private void serializeMapping() {
-        try {
-            // Serialize the edgeToWayMap
-            FileUtils.writeLines(new File(getGraphHopperLocation() + "/edgeToWayMap.json"), Collections.singleton(new JSONArray(edgeToWayMap)));
-        } catch (IOException e) {
-            System.out.println("Error while serializing the mappings");
+    public EdgeTrafficTable getTrafficTable() {
+        return getTrafficTable(trafficSlot);
+    }
+
+    /**
+     * @param slot day and hour of the traffic data (D_HH)
+     * @return the traffic density of the edges in the traffic slot, null if the road elements have not been matched
+     * to the edges
+     */
+    public EdgeTrafficTable getTrafficTable(String slot) {
+        RoadElementIndex index = roadElementIndex;
+        if (index == null) {
+            return null;
         }
+        return EdgeTrafficTable.get(getGraphHopperLocation(), index, new File(getTrafficFolder(), slot + ".json"));
+    }
+
+    /**
+     * Describe the data the traffic of a slot is calculated from: the road element index, the traffic data file and
+     * the versions of the observed speeds. It changes when any of them changes, e.g. to invalidate the traffic tiles.
+     *
+     * @param slot day and hour of the traffic data (D_HH)
+     * @param live if the live observed speeds are used too
+     */
+    public String getTrafficDataKey(String slot, boolean live) {
+        RoadElementIndex index = roadElementIndex;
+        EdgeSpeedObservations typical = EdgeSpeedObservations.find(getGraphHopperLocation(), slot);
+        EdgeSpeedObservations liveSpeeds = live ? EdgeSpeedObservations.find(getGraphHopperLocation(), EdgeSpeedObservations.LIVE) : null;
+        return (index == null ? "-" : index.getName()) + "|" + EdgeTrafficTable.getStamp(new File(getTrafficFolder(), slot + ".json"))
+                + "|" + (typical == null ? "-" : String.valueOf(typical.getVersion()))
+                // The live observations also expire with time
+                + "|" + (liveSpeeds == null ? "-" : liveSpeeds.getVersion() + "@" + EdgeSpeedObservations.getLiveMinMinute());
+    }
+
+    /**
+     * @return the day and hour of the traffic data in use (D_HH)
+     */
+    public String getTrafficSlot() {
+        return trafficSlot;
+    }
+
+    /**
+     * @return the day and hour of the traffic data of a time (D_HH)
+     */
+    public static String getTrafficSlot(LocalDateTime time) {
+        return (time.getDayOfWeek().getValue() - 1) + "_" + String.format("%02d", time.getHour());
+    }
+
+    /**
+     * Set the speed model used by the fastest_with_traffic weighting.
+     */
+    public void setSpeedModel(SpeedModel speedModel) {
+        this.speedModel = speedModel;
     }
 
     /**
-     * Read the mappings between the edge and the way in which it belongs, saved in a file and deserialize them (recreate the edgeToWayMap)
+     * The traffic data of a day and hour are in the "typical_ttt" folder (or GH_TYPICAL_TTT_PATH), in the file named
+     * D_HH.json, where D is the day of the week (0 = Monday, 6 = Sunday) and HH is the hour of the day (00, 01, ...,
+     * 23). They are read only when a travel time table or the road element index have to be built.
      */
-    private void deserializeMapping() {
+    private static File getTrafficFolder() {
+        String typicalTttPath = System.getenv("GH_TYPICAL_TTT_PATH");
+        if(typicalTttPath == null)
+            typicalTttPath = "typical_ttt";
+        return new File(typicalTttPath);
+    }
+
+    /**
+     * Set the limits of the searches of the request.
+     *
+     * @param limits the limits, null for no limits
+     * @param waypoints the waypoints of the request, needed for the max distance
+     */
+    public void setSearchLimits(SearchLimits limits, List<GHPoint> waypoints) {
+        searchLimits = limits;
+        searchWaypoints = waypoints;
+    }
+
+    public SearchLimits getSearchLimits() {
+        return searchLimits;
+    }
+
+    /**
+     * Create the weighting of the request profile without the search limits, e.g. for a customization of the overlay
+     * (see CrpMetric) shared by requests with different limits.
+     */
+    public Weighting createMetricWeighting() {
+        SearchLimits limits = searchLimits;
         try {
-            // Deserialize the edgeToWayMap
-            String json = FileUtils.readFileToString(new File(getGraphHopperLocation() + "/edgeToWayMap.json"));
-            JSONArray jsonArray = new JSONArray(json);
-            // For each edge, get the way it belongs to
-            for (int i = 0; i < jsonArray.length(); i++) {
-                edgeToWayMap.add(jsonArray.getLong(i));
-            }
-        } catch (IOException e) {
-            System.out.println("Error while deserializing the edgeToWayMap");
+            searchLimits = null;
+            return createWeighting(getProfile(getRequestProfile()), new PMap(), true);
+        } finally {
+            searchLimits = limits;
         }
     }
 
     /**
-     * Initialize the traffic data map of the day and hour of the start of the routing.
+     * The weights depend on the graph, the profile, the blocked area and, with the traffic weighting, on the traffic
+     * slot, the speed model and the observed speeds.
+     *
+     * @return the key of the weighting of the request profile, null if the blocked area has no key
+     */
+    public String getMetricKey() {
+        if (blockAreaKey == null) {
+            return null;
+        }
+        Profile profile = getProfile(getRequestProfile());
+        boolean traffic = profile.getWeighting().equals("fastest_with_traffic");
+        return getGraphHopperLocation() + "|" + profile.getName() + "|" + (traffic ? trafficSlot + "|" + speedModel.getName()
+                + "|" + getObservedVersion(EdgeSpeedObservations.LIVE) + "|" + getObservedVersion(trafficSlot) : "") + "|" + blockAreaKey;
+    }
+
+    // The weights change with every update of the observed speeds
+    private String getObservedVersion(String slot) {
+        EdgeSpeedObservations observations = getObservedSpeeds(slot);
+        return observations == null ? "-" : String.valueOf(observations.getVersion());
+    }
+
+    /**
+     * Check the response of a request against the max distance and explain why the waypoints are not connected.
      * <p>
-     * This method reads a JSON file from the "typical_ttt" folder, named D_HH.json, where D is the day of the week (0 = Monday, 6 = Sunday) and HH is the hour of the day (00, 01, ..., 23).
-     * The JSON file contains a map of the road elements and their average and maximum traffic density.
-     * Format: { "roadElementId": { "ttt": float, "max": float }, ... }
+     * The paths longer than the max distance are removed. If the waypoints are not connected and an area is blocked,
+     * the route is searched again without the blocked area (with the same limits): if it is found, the error says that
+     * the destination is unreachable due to the block area.
      *
-     * @param startTimestamp the timestamp of the start of the routing, which is used to get the day and hour of the routing
+     * @param request the request
+     * @param response its response
+     * @return the checked response
      */
-    private void loadTrafficData(LocalDateTime startTimestamp) {
-        String day = String.valueOf(startTimestamp.getDayOfWeek().getValue() - 1); // Day of the week (0 = Monday, 6 = Sunday)
-        String hour = String.format("%02d", startTimestamp.getHour());  // Hour of the day (00, 01, ..., 23)
+    public GHResponse checkResponse(GHRequest request, GHResponse response) {
+        if (!response.hasErrors()) {
+            if (searchLimits == null || searchLimits.getMaxDistance() <= 0) {
+                return response;
+            }
+            GHResponse checked = new GHResponse();
+            checked.setHints(response.getHints());
+            for (ResponsePath path : response.getAll()) {
+                if (path.getDistance() <= searchLimits.getMaxDistance()) {
+                    checked.add(path);
+                }
+            }
+            if (checked.getAll().isEmpty()) {
+                Map<String, Object> details = new HashMap<>();
+                details.put("max_distance", searchLimits.getMaxDistance());
+                details.put("distance", response.getBest().getDistance());
+                checked.addError(new SearchLimitException("The route is longer than max_distance", details));
+            }
+            return checked;
+        }
 
-        // Read the JSON file
+        boolean notConnected = response.getErrors().stream().anyMatch(e -> e instanceof ConnectionNotFoundException);
+        if (!notConnected || blockArea == null) {
+            return response;
+        }
+        GraphEdgeIdFinder.BlockArea ba = blockArea;
+        String key = blockAreaKey;
         try {
-            String typicalTttPath = System.getenv("GH_TYPICAL_TTT_PATH");
-            if(typicalTttPath == null)
-                typicalTttPath = "typical_ttt";
-            String json = FileUtils.readFileToString(new File(typicalTttPath + "/" + day + "_" + hour + ".json"));
-            JSONObject jsonObject = new JSONObject(json);
-            jsonObject.keys().forEachRemaining(keyStr -> {
-                // For each road element, get the average and maximum traffic density
-                JSONObject roadElement = jsonObject.getJSONObject(keyStr);
-                float ttt = roadElement.getFloat("ttt");
-                float max = roadElement.getFloat("max");
-
-                // Add the road element and its traffic data to the traffic data map
-                trafficData.put(keyStr, new Pair<>(ttt, max));
-            });
-        } catch (IOException e) {
-            System.out.println("Error while reading the traffic data: " + e.getMessage());
+            setBlockArea(null, null);
+            GHRequest unblocked = new GHRequest(request.getPoints()).setProfile(request.getProfile()).setLocale(request.getLocale());
+            unblocked.getHints().putAll(request.getHints());
+            unblocked.getHints().putObject(Parameters.Routing.INSTRUCTIONS, false);
+            unblocked.getHints().putObject(Parameters.Routing.CALC_POINTS, false);
+            GHResponse unblockedResponse = route(unblocked);
+            if (!unblockedResponse.hasErrors()) {
+                Map<String, Object> details = new HashMap<>();
+                details.put("distance_without_block_area", unblockedResponse.getBest().getDistance());
+                return new GHResponse().addError(new ConnectionNotFoundException("Unreachable due to block area", details));
+            }
+        } finally {
+            setBlockArea(ba, key);
+        }
+        return response;
+    }
+
+    // Add the recorder of the edge to way mapping to the parsers used during the import
+    @Override
+    protected OSMParsers buildOSMParsers(Map<String, String> vehiclesByName, List<String> encodedValueStrings,
+                                         List<String> ignoredHighways, String dateRangeParserString) {
+        OSMParsers osmParsers = super.buildOSMParsers(vehiclesByName, encodedValueStrings, ignoredHighways, dateRangeParserString);
+        edgeToWayRecorder.setStore(EdgeToWayStore.create(getGraphHopperLocation()));
+        osmParsers.addWayTagParser(edgeToWayRecorder);
+        return osmParsers;
+    }
+
+    /**
+     * Set the profile used by the requests of this instance, needed when the graph has several profiles.
+     */
+    public void setRequestProfile(String profile) {
+        requestProfile = profile;
+    }
+
+    /**
+     * @return the profile to use in the requests, by default the first profile of the graph
+     */
+    public String getRequestProfile() {
+        return requestProfile != null ? requestProfile : getProfiles().get(0).getName();
+    }
+
+    /**
+     * @return the number of ways read during the last import
+     */
+    public long getImportedWayCount() {
+        return edgeToWayRecorder.getWayCount();
+    }
+
+    // Without a key the blocked area cannot be recognized, so the snap cache is not used
+    public void setBlockArea(GraphEdgeIdFinder.BlockArea ba) {
+        setBlockArea(ba, null);
+    }
+
+    /**
+     * Set the area to avoid, with a key that identifies it in the snap cache: requests with the same key share the
+     * snapped waypoints.
+     *
+     * @param ba the area to avoid
+     * @param key a key for the area, e.g. the avoid_area parameter it was built from
+     */
+    public void setBlockArea(GraphEdgeIdFinder.BlockArea ba, String key) {
+        blockArea = ba;
+        blockAreaKey = key;
+    }
+
+    /**
+     * @return the area to avoid, null if there is none
+     */
+    public GraphEdgeIdFinder.BlockArea getBlockArea() {
+        return blockArea;
+    }
+
+    // Wrap the location index so that the waypoints are snapped through the SnapCache
+    @Override
+    protected Router doCreateRouter(BaseGraph baseGraph, EncodingManager encodingManager, LocationIndex locationIndex, Map<String, Profile> profilesByName,
+                                    PathDetailsBuilderFactory pathBuilderFactory, TranslationMap trMap, RouterConfig routerConfig,
+                                    WeightingFactory weightingFactory, Map<String, RoutingCHGraph> chGraphs, Map<String, LandmarkStorage> landmarks) {
+        if (blockAreaKey != null) {
+            locationIndex = new CachingLocationIndex(locationIndex, baseGraph, getSnapCacheScenario());
         }
+        return super.doCreateRouter(baseGraph, encodingManager, locationIndex, profilesByName, pathBuilderFactory, trMap, routerConfig,
+                weightingFactory, chGraphs, landmarks);
     }
+
+    /**
+     * The snapped edge depends on the graph (profile and weighting), on the blocked area and, with the traffic
+     * weighting, on the traffic slot, because edges with an infinite weight cannot be snapped.
+     */
+    private String getSnapCacheScenario() {
+        Profile profile = getProfile(getRequestProfile());
+        boolean traffic = profile.getWeighting().equals("fastest_with_traffic");
+        return getGraphHopperLocation() + "|" + profile.getName() + "|" + (traffic ? trafficSlot : "") + "|" + blockAreaKey;
+    }
+
+    /**
+     * Imports provided data from disc and creates graph.
+     * Depending on the settings the resulting graph will be stored to disc so on a second call this method will only load the graph from disc which is usually a lot faster.
+     * This will also create and save the mappings between the way and the edges that belong to it (or load them if it isn't the first execution).
+     * The mappings are recorded by the EdgeToWayRecorder in the same pass that creates the graph.
+     */
+    @Override
+    public DynamicGraphHopper importOrLoad() {
+        EdgeToWayStore edgeToWay = null;
+        if (!load()) {
+            // If the graph cannot be loaded, then create it, forgetting the data derived from the previous graph (the
+            // road elements are matched again below)
+            RoadElementIndex.invalidate(getGraphHopperLocation());
+            EdgeTrafficTable.invalidate(getGraphHopperLocation());
+            TravelTimeTable.invalidate(getGraphHopperLocation());
+            ImportStats.resetFailedWays();
+            process(false);
+            if (ImportStats.getFailedWayCount() > 0) {
+                System.out.println("The custom tag parsers could not handle " + ImportStats.getFailedWayCount() + " ways, first error: " + ImportStats.getFirstFailure());
+            }
+
+            // Save the mappings between the way and the edges
+            edgeToWay = edgeToWayRecorder.getStore();
+            edgeToWay.flush();
+
+            // The partition of the customizable route planning does not depend on the weighting, so it is computed once
+            CrpPartition.get(getGraphHopperLocation(), getBaseGraph());
+        }
+        loadRoadElementIndex(edgeToWay);
+        if (edgeToWay != null) {
+            edgeToWay.close();
+        }
+        return this;
+    }
+
+    /**
+     * Load the road element of each edge, matching the road elements to the edges if it is the first execution or the
+     * files of the road elements have changed (see RoadElementIndex). The road elements are the ones with a geometry
+     * in GH_ROAD_ELEMENTS_PATH and the ones in any of the traffic data files.
+     *
+     * @param edgeToWay the mappings between the edges and the ways, just imported, or null to load them if needed
+     */
+    private void loadRoadElementIndex(EdgeToWayStore edgeToWay) {
+        String roadElementsPath = System.getenv("GH_ROAD_ELEMENTS_PATH");
+        if (roadElementsPath == null)
+            roadElementsPath = "road_elements.geojson";
+        String sources = RoadElementIndex.getSources(getTrafficFolder(), new File(roadElementsPath));
+        // After an import the files of the previous graph are not valid
+        boolean imported = edgeToWay != null;
+        RoadElementIndex index = imported ? null : RoadElementIndex.load(getGraphHopperLocation());
+        if (index != null && index.isBuiltFrom(sources)) {
+            roadElementIndex = index;
+            return;
+        }
+        // One build at a time, the requests waiting for it use its result. The field is set once, since a shared
+        // instance is read by other threads meanwhile
+        synchronized (RoadElementIndex.class) {
+            RoadElementIndex current = imported ? null : RoadElementIndex.load(getGraphHopperLocation());
+            if (current != null && current != index) {
+                roadElementIndex = current;
+                return;
+            }
+            boolean loaded = edgeToWay == null;
+            if (loaded) {
+                edgeToWay = EdgeToWayStore.load(getGraphHopperLocation());
+                if (edgeToWay == null) {
+                    roadElementIndex = index;
+                    return;
+                }
+            }
+            try {
+                Map<String, PointList> geometries = RoadElementIndex.loadGeometries(roadElementsPath);
+                Set<String> elementIds = new LinkedHashSet<>(geometries.keySet());
+                for (File file : RoadElementIndex.getTrafficFiles(getTrafficFolder())) {
+                    elementIds.addAll(EdgeTrafficTable.readElementIds(file));
+                }
+                if (!elementIds.isEmpty()) {
+                    index = RoadElementIndex.build(getGraphHopperLocation(), getBaseGraph(), edgeToWay, elementIds, geometries, sources);
+                    // The tables read with the previous index are not valid anymore
+                    EdgeTrafficTable.invalidate(getGraphHopperLocation());
+                    TravelTimeTable.invalidate(getGraphHopperLocation());
+                }
+            } catch (IOException e) {
+                System.out.println("Error while matching the road elements: " + e.getMessage());
+            } finally {
+                roadElementIndex = index;
+                if (loaded) {
+                    edgeToWay.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Match the road elements again if their files have changed since the graph was loaded, for the instances that
+     * live longer than a request (see SharedHoppers).
+     */
+    public void updateRoadElementIndex() {
+        loadRoadElementIndex(null);
+    }
+
 }
 
@@ -0,0 +1,232 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+import com.graphhopper.storage.GHDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Speeds of the edges observed in the GPS traces of the vehicles (see MapMatcher and TraceIngestion).
+ * <p>
+ * For every edge the meters and the seconds driven on it are summed, so its speed is the space mean speed of the
+ * vehicles that crossed it. There is a store for each typical traffic slot (D_HH, as the traffic data files), saved in
+ * the observed_speeds folder of the graph, and a live store kept in memory. The live observations of an edge expire
+ * after GH_LIVE_TRAFFIC_MAX_AGE minutes (default 15): a new observation of an expired edge replaces the old ones. The
+ * live store is saved in the RouterSnapshot, so a restart does not lose the traffic of the last minutes.
+ */
+public class EdgeSpeedObservations {
+    public static final String LIVE = "live";
+    public static final int LIVE_MAX_AGE = EnvConfig.getInt("GH_LIVE_TRAFFIC_MAX_AGE", 15);  // minutes
+    public static final String FOLDER = "observed_speeds";
+
+    private static final int BYTES = 12;  // meters (float), seconds (float), minute of the last observation (int)
+
+    // The stores by graph folder and slot
+    private static final Map<String, EdgeSpeedObservations> stores = new ConcurrentHashMap<>();
+
+    private final String slot;
+    private final DataAccess da;
+    private volatile int edgeCount;
+    private volatile int version;
+
+    private EdgeSpeedObservations(String slot, DataAccess da, int edgeCount, int version) {
+        this.slot = slot;
+        this.da = da;
+        this.edgeCount = edgeCount;
+        this.version = version;
+    }
+
+    /**
+     * @return the observations of a slot of a graph folder, null if there are none
+     */
+    public static EdgeSpeedObservations find(String location, String slot) {
+        String key = location + "|" + slot;
+        EdgeSpeedObservations store = stores.get(key);
+        if (store != null || slot.equals(LIVE) || !new File(location + "/" + FOLDER, slot).exists()) {
+            return store;
+        }
+        return get(location, slot);
+    }
+
+    /**
+     * Get the observations of a slot of a graph folder, loading them or creating an empty store.
+     *
+     * @param slot D_HH for a typical slot, LIVE for the live observations
+     */
+    public static EdgeSpeedObservations get(String location, String slot) {
+        return stores.computeIfAbsent(location + "|" + slot, key -> {
+            // The live observations are not saved
+            Directory dir = slot.equals(LIVE) ? new GHDirectory(location + "/" + FOLDER, DAType.RAM)
+                    : CustomDataAccess.createDirectory(location + "/" + FOLDER);
+            DataAccess da = dir.create(slot);
+            if (!slot.equals(LIVE) && da.loadExisting()) {
+                // The version is saved too, the cached weightings of a snapshot have the one they were calculated with
+                return new EdgeSpeedObservations(slot, da, da.getHeader(0), da.getHeader(4));
+            }
+            da.create(1 << 16);
+            return new EdgeSpeedObservations(slot, da, 0, 0);
+        });
+    }
+
+    /**
+     * Add the traversals of the edges, e.g. the ones of a batch of traces.
+     *
+     * @param edges the edge of each traversal
+     * @param meters the meters driven on the edge
+     * @param seconds the time taken
+     * @param minutes the minute (since the epoch) of each traversal
+     */
+    public synchronized void add(IntArrayList edges, DoubleArrayList meters, DoubleArrayList seconds, IntArrayList minutes) {
+        boolean live = slot.equals(LIVE);
+        for (int i = 0; i < edges.size(); i++) {
+            int edge = edges.get(i);
+            if (edge >= edgeCount) {
+                da.ensureCapacity((long) BYTES * (edge + 1));
+                // The new edges have no observations
+                for (int e = edgeCount; e <= edge; e++) {
+                    da.setInt((long) BYTES * e, 0);
+                    da.setInt((long) BYTES * e + 4, 0);
+                    da.setInt((long) BYTES * e + 8, 0);
+                }
+                edgeCount = edge + 1;
+            }
+            long pointer = (long) BYTES * edge;
+            int minute = minutes.get(i);
+            double oldMeters = Float.intBitsToFloat(da.getInt(pointer));
+            double oldSeconds = Float.intBitsToFloat(da.getInt(pointer + 4));
+            if (live && da.getInt(pointer + 8) < minute - LIVE_MAX_AGE) {
+                oldMeters = 0;
+                oldSeconds = 0;
+            }
+            da.setInt(pointer, Float.floatToRawIntBits((float) (oldMeters + meters.get(i))));
+            da.setInt(pointer + 4, Float.floatToRawIntBits((float) (oldSeconds + seconds.get(i))));
+            da.setInt(pointer + 8, Math.max(minute, da.getInt(pointer + 8)));
+        }
+        da.setHeader(0, edgeCount);
+        version++;
+        da.setHeader(4, version);
+    }
+
+    /**
+     * Write the live observations in a snapshot (see RouterSnapshot), saving the typical ones in the graph folders.
+     *
+     * @return the number of live stores written
+     */
+    public static int save(DataOutputStream out) throws IOException {
+        List<Map.Entry<String, EdgeSpeedObservations>> live = new ArrayList<>();
+        for (Map.Entry<String, EdgeSpeedObservations> entry : stores.entrySet()) {
+            if (entry.getValue().slot.equals(LIVE)) {
+                live.add(entry);
+            } else {
+                entry.getValue().flush();
+            }
+        }
+        out.writeInt(live.size());
+        for (Map.Entry<String, EdgeSpeedObservations> entry : live) {
+            EdgeSpeedObservations store = entry.getValue();
+            synchronized (store) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(store.version);
+                out.writeInt(store.edgeCount);
+                for (long pointer = 0; pointer < (long) BYTES * store.edgeCount; pointer += 4) {
+                    out.writeInt(store.da.getInt(pointer));
+                }
+            }
+        }
+        return live.size();
+    }
+
+    /**
+     * Restore the live observations of a snapshot, unless some have already been received.
+     *
+     * @param valid checks the key (graph folder and LIVE) of a store
+     * @return the number of live stores restored
+     */
+    public static int restore(DataInputStream in, Predicate<String> valid) throws IOException {
+        int count = in.readInt();
+        int restored = 0;
+        for (int s = 0; s < count; s++) {
+            String key = in.readUTF();
+            int version = in.readInt();
+            int edgeCount = in.readInt();
+            DataAccess da = new GHDirectory("", DAType.RAM).create(LIVE);
+            da.create(Math.max((long) BYTES * edgeCount, 1 << 16));
+            for (long pointer = 0; pointer < (long) BYTES * edgeCount; pointer += 4) {
+                da.setInt(pointer, in.readInt());
+            }
+            da.setHeader(0, edgeCount);
+            da.setHeader(4, version);
+            if (valid.test(key) && stores.putIfAbsent(key, new EdgeSpeedObservations(LIVE, da, edgeCount, version)) == null) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Save the typical observations in the graph folder.
+     */
+    public synchronized void flush() {
+        if (!slot.equals(LIVE)) {
+            da.flush();
+        }
+    }
+
+    /**
+     * @param minMinute the observations before this minute (since the epoch) are ignored
+     * @return the observed speed of the edge in m/s, NaN if it has not been observed
+     */
+    public double getSpeed(int edge, int minMinute) {
+        if (edge >= edgeCount) {
+            return Double.NaN;
+        }
+        long pointer = (long) BYTES * edge;
+        float seconds = Float.intBitsToFloat(da.getInt(pointer + 4));
+        if (seconds <= 0 || da.getInt(pointer + 8) < minMinute) {
+            return Double.NaN;
+        }
+        return Float.intBitsToFloat(da.getInt(pointer)) / seconds;
+    }
+
+    /**
+     * @return the minute (since the epoch) before which the live observations are expired
+     */
+    public static int getLiveMinMinute() {
+        return (int) (System.currentTimeMillis() / 60_000) - LIVE_MAX_AGE;
+    }
+
+    public String getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return the number of updates of the store, to recognize the weightings calculated with older observations
+     */
+    public int getVersion() {
+        return version;
+    }
+}
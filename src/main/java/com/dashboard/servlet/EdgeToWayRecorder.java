@@ -0,0 +1,64 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.dashboard.servlet;
+
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.routing.util.parsers.TagParser;
+import com.graphhopper.storage.IntsRef;
+
+/**
+ * Way tag parser that takes note of the mapping between the edges and the OSM ways they belong to, during the import.
+ * <p>
+ * The OSMReader calls the way tag parsers exactly once for every edge, right before adding it to the graph, so the
+ * n-th call is for the edge with id n. This replaces the second read of the OSM file that was needed to build the
+ * mapping, and works for all the vehicles of the import at once, since they share the same graph.
+ * The way ids are written in an EdgeToWayStore, outside of the heap.
+ */
+public class EdgeToWayRecorder implements TagParser {
+
+    // Save mapping between edge id and its way id
+    // NOTE: Edge ids are incremental, starting from 0. It means the way ids can be appended in the order of the calls.
+    private EdgeToWayStore store;
+
+    // Number of distinct ways (the edges of a way are added one after the other)
+    private long wayCount = 0;
+    private long lastWayId = Long.MIN_VALUE;
+
+    @Override
+    public void handleWayTags(IntsRef edgeFlags, ReaderWay way, IntsRef relationFlags) {
+        long wayId = way.getId();
+        store.add(wayId);
+        if (wayId != lastWayId) {
+            wayCount++;
+            lastWayId = wayId;
+        }
+    }
+
+    /**
+     * Set the store where the way ids are written, it must be set before the import.
+     */
+    public void setStore(EdgeToWayStore store) {
+        this.store = store;
+        wayCount = 0;
+        lastWayId = Long.MIN_VALUE;
+    }
+
+    public EdgeToWayStore getStore() {
+        return store;
+    }
+
+    public long getWayCount() {
+        return wayCount;
+    }
+}
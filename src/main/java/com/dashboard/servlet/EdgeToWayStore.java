@@ -0,0 +1,113 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Mapping between the edge ids and the ids of the OSM ways they belong to, stored in a DataAccess (see
+ * CustomDataAccess) in the graph folder: 8 bytes per edge, in the order of the edge ids.
+ */
+public class EdgeToWayStore implements Closeable {
+    public static final String NAME = "edge_to_way";
+    // The edgeToWayMap.json of the graphs imported by the older versions
+    private static final String LEGACY_FILE_NAME = "edgeToWayMap.json";
+
+    private final Directory dir;
+    private final DataAccess da;
+    private int edgeCount;
+
+    private EdgeToWayStore(Directory dir, DataAccess da, int edgeCount) {
+        this.dir = dir;
+        this.da = da;
+        this.edgeCount = edgeCount;
+    }
+
+    /**
+     * Create an empty store in the graph folder, replacing the existing one.
+     */
+    public static EdgeToWayStore create(String location) {
+        Directory dir = CustomDataAccess.createDirectory(location);
+        DataAccess da = dir.create(NAME);
+        da.create(1 << 20);
+        return new EdgeToWayStore(dir, da, 0);
+    }
+
+    /**
+     * Load the store of the graph folder, converting the edgeToWayMap.json of older graphs.
+     *
+     * @return the store or null if the graph has no mapping
+     */
+    public static EdgeToWayStore load(String location) {
+        Directory dir = CustomDataAccess.createDirectory(location);
+        DataAccess da = dir.create(NAME);
+        if (da.loadExisting()) {
+            return new EdgeToWayStore(dir, da, da.getHeader(0));
+        }
+        dir.close();
+
+        File legacy = new File(location, LEGACY_FILE_NAME);
+        if (!legacy.exists()) {
+            return null;
+        }
+        try {
+            JSONArray jsonArray = new JSONArray(FileUtils.readFileToString(legacy));
+            EdgeToWayStore store = create(location);
+            for (int i = 0; i < jsonArray.length(); i++) {
+                store.add(jsonArray.getLong(i));
+            }
+            store.flush();
+            return store;
+        } catch (IOException e) {
+            System.out.println("Error while converting the edgeToWayMap");
+            return null;
+        }
+    }
+
+    /**
+     * Add the way of the next edge.
+     */
+    public void add(long wayId) {
+        long pointer = (long) edgeCount * 8;
+        da.ensureCapacity(pointer + 8);
+        da.setInt(pointer, (int) (wayId >>> 32));
+        da.setInt(pointer + 4, (int) wayId);
+        edgeCount++;
+    }
+
+    public long getWayId(int edge) {
+        long pointer = (long) edge * 8;
+        return ((long) da.getInt(pointer) << 32) | (da.getInt(pointer + 4) & 0xFFFFFFFFL);
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public void flush() {
+        da.setHeader(0, edgeCount);
+        da.flush();
+    }
+
+    @Override
+    public void close() {
+        dir.close();
+    }
+}
@@ -0,0 +1,246 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Traffic data of a day and hour for the edges of the graph.
+ * <p>
+ * The average and maximum traffic density are kept in two arrays indexed by road element, and every edge gets the
+ * ones of its own road element (see RoadElementIndex). Edges without traffic data have NaN values. The tables read are
+ * cached by graph and traffic file, as many as the travel time tables (GH_TRAVEL_TIME_CACHE), and saved in the
+ * RouterSnapshot with the size and modification time of their file, so a restart does not parse the JSON again.
+ */
+public class EdgeTrafficTable {
+    private final RoadElementIndex index;
+    private final File file;
+    private final String stamp;  // size and modification time of the file when it was read
+    private final float[] density;
+    private final float[] max;
+
+    private static final int MAX_TABLES = EnvConfig.getInt("GH_TRAVEL_TIME_CACHE", 8);
+
+    // The tables read by graph folder and traffic file, shared by the travel time tables and the traffic tiles
+    private static final Map<String, EdgeTrafficTable> cache = new LinkedHashMap<String, EdgeTrafficTable>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EdgeTrafficTable> eldest) {
+            return size() > MAX_TABLES;
+        }
+    };
+
+    private EdgeTrafficTable(RoadElementIndex index, File file, String stamp, float[] density, float[] max) {
+        this.index = index;
+        this.file = file;
+        this.stamp = stamp;
+        this.density = density;
+        this.max = max;
+    }
+
+    /**
+     * Get the traffic data of a day and hour from the cache, reading it if it is missing.
+     *
+     * @param location graph folder of the index
+     * @param index road element of each edge
+     * @param file the D_HH.json file of the day and hour
+     */
+    public static EdgeTrafficTable get(String location, RoadElementIndex index, File file) {
+        String key = location + "|" + file.getPath();
+        synchronized (cache) {
+            EdgeTrafficTable table = cache.get(key);
+            if (table != null) {
+                return table;
+            }
+        }
+        EdgeTrafficTable table = load(index, file);
+        synchronized (cache) {
+            cache.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Remove the tables of a graph from the cache, e.g. because its road elements have been matched again.
+     *
+     * @param location graph folder
+     */
+    public static void invalidate(String location) {
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.startsWith(location + "|"));
+        }
+    }
+
+    /**
+     * Read the traffic data of a day and hour.
+     * <p>
+     * The JSON file contains a map of the road elements and their average and maximum traffic density.
+     * Format: { "roadElementId": { "ttt": float, "max": float }, ... }
+     * If the file cannot be read, no edge has traffic data.
+     *
+     * @param index road element of each edge
+     * @param file the D_HH.json file of the day and hour
+     */
+    public static EdgeTrafficTable load(RoadElementIndex index, File file) {
+        String stamp = getStamp(file);
+        int elements = index.getElementIds().length;
+        float[] density = new float[elements];
+        float[] max = new float[elements];
+        Arrays.fill(density, Float.NaN);
+        Arrays.fill(max, Float.NaN);
+        try {
+            JSONObject jsonObject = new JSONObject(FileUtils.readFileToString(file));
+            for (String roadElementId : jsonObject.keySet()) {
+                int element = index.getElement(roadElementId);
+                if (element == RoadElementIndex.NO_ELEMENT) {
+                    continue;
+                }
+                // For each road element, get the average and maximum traffic density
+                JSONObject roadElement = jsonObject.getJSONObject(roadElementId);
+                density[element] = roadElement.getFloat("ttt");
+                max[element] = roadElement.getFloat("max");
+            }
+        } catch (IOException e) {
+            System.out.println("Error while reading the traffic data: " + e.getMessage());
+        }
+        return new EdgeTrafficTable(index, file, stamp, density, max);
+    }
+
+    /**
+     * @return the size and modification time of a file, to recognize the data derived from an older version
+     */
+    public static String getStamp(File file) {
+        return file.length() + "@" + file.lastModified();
+    }
+
+    /**
+     * Write the cached tables in a snapshot (see RouterSnapshot).
+     *
+     * @return the number of tables written
+     */
+    public static int save(DataOutputStream out) throws IOException {
+        List<Map.Entry<String, EdgeTrafficTable>> entries;
+        synchronized (cache) {
+            entries = new ArrayList<>(cache.entrySet());
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<String, EdgeTrafficTable> entry : entries) {
+            EdgeTrafficTable table = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeUTF(table.file.getPath());
+            out.writeUTF(table.stamp);
+            out.writeInt(table.density.length);
+            for (int i = 0; i < table.density.length; i++) {
+                out.writeFloat(table.density[i]);
+                out.writeFloat(table.max[i]);
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * Put the tables of a snapshot in the cache. A table is skipped if its key is not valid, its traffic file has
+     * changed or the road elements of the graph are not the same.
+     *
+     * @param valid checks the key (graph folder and traffic file) of a table
+     * @return the number of tables restored
+     */
+    public static int restore(DataInputStream in, Predicate<String> valid) throws IOException {
+        int count = in.readInt();
+        int restored = 0;
+        for (int t = 0; t < count; t++) {
+            String key = in.readUTF();
+            File file = new File(in.readUTF());
+            String stamp = in.readUTF();
+            int elements = in.readInt();
+            float[] density = new float[elements];
+            float[] max = new float[elements];
+            for (int i = 0; i < elements; i++) {
+                density[i] = in.readFloat();
+                max[i] = in.readFloat();
+            }
+            if (!valid.test(key) || !stamp.equals(getStamp(file))) {
+                continue;
+            }
+            RoadElementIndex index = RoadElementIndex.load(key.substring(0, key.indexOf('|')));
+            if (index == null || index.getElementIds().length != elements) {
+                continue;
+            }
+            synchronized (cache) {
+                cache.putIfAbsent(key, new EdgeTrafficTable(index, file, stamp, density, max));
+            }
+            restored++;
+        }
+        return restored;
+    }
+
+    /**
+     * @return the ids of the road elements in a traffic data file, empty if it cannot be read
+     */
+    public static Set<String> readElementIds(File file) {
+        try {
+            return new JSONObject(FileUtils.readFileToString(file)).keySet();
+        } catch (IOException e) {
+            System.out.println("Error while reading the traffic data: " + e.getMessage());
+            return Collections.emptySet();
+        }
+    }
+
+    public boolean hasTraffic(int edge) {
+        int element = index.getElement(edge);
+        return element != RoadElementIndex.NO_ELEMENT && !Float.isNaN(density[element]);
+    }
+
+    /**
+     * @return the traffic data file of the table
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size and modification time of the traffic data file when it was read
+     */
+    public String getStamp() {
+        return stamp;
+    }
+
+    public float getDensity(int edge) {
+        return density[index.getElement(edge)];
+    }
+
+    public float getMaxDensity(int edge) {
+        return max[index.getElement(edge)];
+    }
+
+    /**
+     * @return the id of the road element of the edge, null if it has none
+     */
+    public String getElementId(int edge) {
+        int element = index.getElement(edge);
+        return element == RoadElementIndex.NO_ELEMENT ? null : index.getElementIds()[element];
+    }
+}
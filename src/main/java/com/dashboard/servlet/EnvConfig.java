@@ -0,0 +1,59 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import java.time.DateTimeException;
+import java.time.ZoneId;
+
+/**
+ * The settings read from the environment variables (GH_*), shared by the classes of the servlet.
+ */
+public final class EnvConfig {
+
+    /**
+     * Zone of the local times of the requests (e.g. startDatetime), of the traffic slots and of the times in the
+     * responses, from GH_TIME_ZONE (default Europe/Rome), whatever the zone of the server.
+     */
+    public static final ZoneId ZONE = getZone("GH_TIME_ZONE", "Europe/Rome");
+
+    private EnvConfig() {
+    }
+
+    /**
+     * @return the integer value of an environment variable, the default value if it is not set or not valid
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static ZoneId getZone(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if (value != null) {
+            try {
+                return ZoneId.of(value);
+            } catch (DateTimeException e) {
+                System.out.println("Invalid value for " + name + ": " + value);
+            }
+        }
+        return ZoneId.of(defaultValue);
+    }
+}
@@ -13,95 +13,83 @@
 
 package com.dashboard.servlet;
 
-import com.graphhopper.reader.osm.Pair;
 import com.graphhopper.routing.ev.BooleanEncodedValue;
 import com.graphhopper.routing.ev.DecimalEncodedValue;
 import com.graphhopper.routing.weighting.*;
 import com.graphhopper.util.EdgeIteratorState;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 /**
  * Extension of FastestWeighting that considers the traffic data to update the weight of the edges.
+ * <p>
+ * The travel times are precomputed with a SpeedModel (Greenshields' model by default) in a TravelTimeTable. The speeds
+ * observed in the GPS traces (see EdgeSpeedObservations) take precedence: the live ones first, then the typical ones
+ * of the traffic slot.
  *
  * @see com.graphhopper.routing.weighting.FastestWeighting
  */
 public class FastestWeightingWithTraffic extends FastestWeighting {
 
-    // Save mapping between edge id and its way id
-    // NOTE: Edge ids are incremental, starting from 0.
-    // It means I can use a simple list in order to store the mapping between edge (whose is is the position) way id (the value, representing the way id)
-    private final List<Long> edgeToWayMap;
-
-    // Traffic data of the day and hour of the start of the routing.
-    // RoadElement id => Pair of average traffic density and maximum traffic density for that road element
-    private final Map<String, Pair<Float, Float>> trafficData = new HashMap<>();
+    // Travel time of each edge with the traffic of the day and hour of the start of the routing, calculated with the chosen speed model
+    private final TravelTimeTable travelTimes;  // null if the road elements have not been matched to the edges
+    // Speeds observed in the GPS traces, null if there are none
+    private final EdgeSpeedObservations live;
+    private final EdgeSpeedObservations typical;
+    private final int liveMinMinute;  // the live observations before this minute are expired
+    private final double maxSpeedKmh;
 
-    private final double maxSpeed;  // Maximum speed of the considered road
+    public FastestWeightingWithTraffic(TravelTimeTable travelTimes, BooleanEncodedValue accessEnc, DecimalEncodedValue speedEnc) {
+        this(travelTimes, null, null, accessEnc, speedEnc);
+    }
 
-    public FastestWeightingWithTraffic(Map<String, Pair<Float, Float>> trafficData, BooleanEncodedValue accessEnc, DecimalEncodedValue speedEnc, List<Long> edgeToWayMap) {
-        this(trafficData, accessEnc, speedEnc, TurnCostProvider.NO_TURN_COST_PROVIDER, edgeToWayMap);
+    public FastestWeightingWithTraffic(TravelTimeTable travelTimes, EdgeSpeedObservations live, EdgeSpeedObservations typical,
+                                       BooleanEncodedValue accessEnc, DecimalEncodedValue speedEnc) {
+        this(travelTimes, live, typical, accessEnc, speedEnc, TurnCostProvider.NO_TURN_COST_PROVIDER);
     }
 
-    public FastestWeightingWithTraffic(Map<String, Pair<Float, Float>> trafficData, BooleanEncodedValue accessEnc, DecimalEncodedValue speedEnc, TurnCostProvider tcProvider, List<Long> edgeToWayMap) {
+    public FastestWeightingWithTraffic(TravelTimeTable travelTimes, EdgeSpeedObservations live, EdgeSpeedObservations typical,
+                                       BooleanEncodedValue accessEnc, DecimalEncodedValue speedEnc, TurnCostProvider tcProvider) {
         super(accessEnc, speedEnc, tcProvider);
-        this.edgeToWayMap = edgeToWayMap;
-        this.trafficData.putAll(trafficData);
-        maxSpeed = speedEnc.getMaxOrMaxStorableDecimal() / SPEED_CONV;
+        this.travelTimes = travelTimes;
+        this.live = live;
+        this.typical = typical;
+        liveMinMinute = EdgeSpeedObservations.getLiveMinMinute();
+        maxSpeedKmh = speedEnc.getMaxOrMaxStorableDecimal();
     }
 
     @Override
     public double calcEdgeWeight(EdgeIteratorState edgeState, boolean reverse) {
-        try {
-            return getEdgeTravelTime(edgeState);
-        } catch (IndexOutOfBoundsException e) { // If the edge is not in the map, it means that I can't get its traffic data
-            return super.calcEdgeWeight(edgeState, reverse);
-        }
+        if (edgeHasNoAccess(edgeState, reverse)) return Double.POSITIVE_INFINITY;
+        double seconds = getSeconds(edgeState, reverse);
+        // If the edge has no traffic data, return the travel time of the edge without considering the traffic
+        if (Double.isNaN(seconds)) return super.calcEdgeWeight(edgeState, reverse);
+        return seconds;
+    }
+
+    // The time of the edge is the one of the traffic data too, so the times of the paths match their weight
+    @Override
+    public long calcEdgeMillis(EdgeIteratorState edgeState, boolean reverse) {
+        double seconds = getSeconds(edgeState, reverse);
+        if (Double.isNaN(seconds)) return super.calcEdgeMillis(edgeState, reverse);
+        return Math.round(seconds * 1000);
     }
 
     /**
-     * Use the traffic data to calculate the travel time of the edge.
-     * If the edge is not in the map, it means that I can't get its traffic data, so I calculate the travel time at max speed.
-     *
-     * @param edgeState edge to calculate the travel time of
-     * @return the travel time of the edge
+     * @return the travel time of the observed speed, with the limits of the speed models, or the one of the traffic
+     * data, NaN if the edge has neither in the direction
      */
-    private double getEdgeTravelTime(EdgeIteratorState edgeState) {
-
-        // Get the traffic data for each road element that belongs to the way (the RoadElement id contains the Way id)
-        long wayId = edgeToWayMap.get(edgeState.getEdge());
-        List<Float> averageDensityList = new ArrayList<>();
-        float maxDensity = 0;
-
-        List<String> roadElementsOfWay = new ArrayList<>();
-        trafficData.keySet().forEach(roadElementId -> {
-            if (roadElementId.contains(Long.toString(wayId))) roadElementsOfWay.add(roadElementId);
-        });
-
-        for (String roadElementId : roadElementsOfWay) {
-            Pair<Float, Float> trafficData = this.trafficData.get(roadElementId);
-            averageDensityList.add(trafficData.first);
-            maxDensity = trafficData.second;
+    public double getSeconds(EdgeIteratorState edgeState, boolean reverse) {
+        int edge = edgeState.getEdge();
+        double speed = live != null ? live.getSpeed(edge, liveMinMinute) : Double.NaN;
+        if (Double.isNaN(speed) && typical != null) speed = typical.getSpeed(edge, 0);
+        if (!Double.isNaN(speed)) {
+            double kmh = Math.max(TravelTimeTable.MIN_SPEED, Math.min(maxSpeedKmh, speed * 3.6));
+            return edgeState.getDistance() / kmh * 3.6;
         }
-
-        // Calculate the average traffic density
-        float averageDensity = averageDensityList.stream().reduce(0f, Float::sum) / averageDensityList.size();
-
-        // If the way has no traffic data, return the travel time of the edge without considering the traffic
-        if (roadElementsOfWay.isEmpty()) return super.calcEdgeWeight(edgeState, false);
-        // If the average traffic density is greater than the maximum traffic density, return infinity (critical condition, the road is blocked from the traffic)
-        if (averageDensity > maxDensity) return Double.POSITIVE_INFINITY;
-
-        // Calculate the speed
-        double speed = maxSpeed * (1 - averageDensity / maxDensity);    // As the density increases, the speed decreases (Greenshield's model)
-        return edgeState.getDistance() / speed * SPEED_CONV;
+        return travelTimes != null ? travelTimes.getSeconds(edge, reverse) : Double.NaN;
     }
 
     @Override
     public String getName() {
         return "fastest_with_traffic";
     }
-}
\ No newline at end of file
+}
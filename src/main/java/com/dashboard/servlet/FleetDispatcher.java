@@ -0,0 +1,254 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.config.Profile;
+import com.graphhopper.routing.ev.Subnetwork;
+import com.graphhopper.routing.querygraph.QueryGraph;
+import com.graphhopper.routing.util.DefaultSnapFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.FetchMode;
+import com.graphhopper.util.PMap;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.exceptions.PointNotFoundException;
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The K vehicles that reach a target first, with a single search.
+ * <p>
+ * Instead of a route from every vehicle to the target, a Dijkstra runs backwards from the target, relaxing the edges in
+ * the direction that leads to the target, with the weighting of the request (so the blocked area and the traffic are
+ * considered). The vehicles are found in increasing time as their nodes are settled, and the search stops when K of
+ * them have been found. Turn costs are not considered. The state of the search is pooled (see SearchState).
+ * <p>
+ * A request has at most GH_DISPATCH_MAX_SOURCES vehicles (default 10000) and asks for at most GH_DISPATCH_MAX_K of
+ * them (default 100).
+ */
+public class FleetDispatcher {
+    public static final int MAX_SOURCES = EnvConfig.getInt("GH_DISPATCH_MAX_SOURCES", 10000);
+    public static final int MAX_K = EnvConfig.getInt("GH_DISPATCH_MAX_K", 100);
+
+    /**
+     * A vehicle that reaches the target.
+     */
+    public static class Dispatch {
+        private final int source;
+        private final double weight;
+        private final long time;
+        private final double distance;
+        private final PointList points;
+
+        Dispatch(int source, double weight, long time, double distance, PointList points) {
+            this.source = source;
+            this.weight = weight;
+            this.time = time;
+            this.distance = distance;
+            this.points = points;
+        }
+
+        /**
+         * @return the index of the vehicle in the sources
+         */
+        public int getSource() {
+            return source;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return the time to reach the target in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+
+        /**
+         * @return the points of the path from the vehicle to the target, null if they were not requested
+         */
+        public PointList getPoints() {
+            return points;
+        }
+    }
+
+    /**
+     * The vehicles found by the search.
+     */
+    public static class Result {
+        private final List<Dispatch> dispatches = new ArrayList<>();
+        private final List<Integer> notFound = new ArrayList<>();
+        private int visitedNodes;
+        private String limit;
+
+        /**
+         * @return the vehicles that reach the target first, in increasing time
+         */
+        public List<Dispatch> getDispatches() {
+            return dispatches;
+        }
+
+        /**
+         * @return the indexes of the vehicles that are too far from the roads of the vehicle
+         */
+        public List<Integer> getNotFound() {
+            return notFound;
+        }
+
+        public int getVisitedNodes() {
+            return visitedNodes;
+        }
+
+        /**
+         * @return the limit that stopped the search before K vehicles were found, null if it was not stopped
+         */
+        public String getLimit() {
+            return limit;
+        }
+    }
+
+    private FleetDispatcher() {
+    }
+
+    /**
+     * Find the K vehicles that reach the target first.
+     *
+     * @param hopper GraphHopper instance (could have a blockArea and search limits set)
+     * @param target the point to reach
+     * @param sources the positions of the vehicles
+     * @param k the number of vehicles to find
+     * @param paths if the points of the paths have to be returned
+     * @return the vehicles found, the search stops at the limits of the hopper returning the ones found so far
+     * @throws PointNotFoundException if the target is too far from the roads of the vehicle
+     */
+    public static Result dispatch(DynamicGraphHopper hopper, GHPoint target, List<GHPoint> sources, int k, boolean paths) {
+        Profile profile = hopper.getProfile(hopper.getRequestProfile());
+        Weighting weighting = hopper.createWeighting(profile, new PMap(), true);
+        String subnetwork = Subnetwork.key(profile.getName());
+        EdgeFilter snapFilter = hopper.getEncodingManager().hasEncodedValue(subnetwork)
+                ? new DefaultSnapFilter(weighting, hopper.getEncodingManager().getBooleanEncodedValue(subnetwork))
+                : EdgeFilter.ALL_EDGES;
+        return dispatch(hopper.getBaseGraph(), hopper.getLocationIndex(), weighting, snapFilter, hopper.getSearchLimits(),
+                target, sources, k, paths);
+    }
+
+    /**
+     * Find the K vehicles that reach the target first on a graph.
+     *
+     * @param limits the search limits, null if the search is not limited
+     */
+    static Result dispatch(BaseGraph graph, LocationIndex locationIndex, Weighting weighting, EdgeFilter snapFilter,
+                           SearchLimits limits, GHPoint target, List<GHPoint> sources, int k, boolean paths) {
+        Result result = new Result();
+        Snap targetSnap = locationIndex.findClosest(target.lat, target.lon, snapFilter);
+        if (!targetSnap.isValid()) {
+            throw new PointNotFoundException("Cannot find the target " + target, 0);
+        }
+        List<Snap> snaps = new ArrayList<>(sources.size() + 1);
+        snaps.add(targetSnap);
+        List<Snap> sourceSnaps = new ArrayList<>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            Snap snap = locationIndex.findClosest(sources.get(i).lat, sources.get(i).lon, snapFilter);
+            sourceSnaps.add(snap);
+            if (snap.isValid()) {
+                snaps.add(snap);
+            } else {
+                result.notFound.add(i);
+            }
+        }
+
+        // The snapped nodes are known once the query graph has been created
+        QueryGraph queryGraph = QueryGraph.create(graph, snaps);
+        Weighting queryWeighting = queryGraph.wrapWeighting(weighting);
+        Map<Integer, List<Integer>> sourcesByNode = new HashMap<>();
+        for (int i = 0; i < sourceSnaps.size(); i++) {
+            if (sourceSnaps.get(i).isValid()) {
+                sourcesByNode.computeIfAbsent(sourceSnaps.get(i).getClosestNode(), node -> new ArrayList<>()).add(i);
+            }
+        }
+
+        int maxVisitedNodes = limits != null ? limits.getMaxVisitedNodes() : 0;
+        int remaining = sources.size() - result.notFound.size();
+        try (SearchState state = SearchState.acquire(queryGraph.getNodes())) {
+            state.update(targetSnap.getClosestNode(), 0, EdgeIterator.NO_EDGE, -1);
+            EdgeExplorer explorer = queryGraph.createEdgeExplorer();
+            int node;
+            while (result.dispatches.size() < k && remaining > 0 && (node = state.poll()) >= 0) {
+                if (maxVisitedNodes > 0 && result.visitedNodes >= maxVisitedNodes) {
+                    result.limit = "max_visited_nodes";
+                    break;
+                }
+                result.visitedNodes++;
+
+                List<Integer> found = sourcesByNode.get(node);
+                if (found != null) {
+                    for (int source : found) {
+                        if (result.dispatches.size() < k) {
+                            result.dispatches.add(createDispatch(queryGraph, queryWeighting, state, node, source, sourceSnaps.get(source), paths));
+                        }
+                        remaining--;
+                    }
+                }
+
+                // The edges are relaxed in reverse: the vehicle goes from the adjacent node to the settled one
+                double weight = state.getWeight(node);
+                EdgeIterator iter = explorer.setBaseNode(node);
+                while (iter.next()) {
+                    double edgeWeight = queryWeighting.calcEdgeWeightWithAccess(iter, true);
+                    if (!Double.isInfinite(edgeWeight)) {
+                        state.update(iter.getAdjNode(), weight + edgeWeight, iter.getEdge(), node);
+                    }
+                }
+            }
+        } catch (SearchLimitException e) {
+            // Timeout, the vehicles found so far are returned
+            result.limit = "timeout";
+        }
+        return result;
+    }
+
+    // Follow the tree from the node of the vehicle to the target, in the direction of travel
+    private static Dispatch createDispatch(QueryGraph queryGraph, Weighting weighting, SearchState state, int node, int source, Snap snap, boolean paths) {
+        long time = 0;
+        double distance = 0;
+        PointList points = paths ? new PointList(20, false) : null;
+        if (paths) {
+            points.add(snap.getSnappedPoint().lat, snap.getSnappedPoint().lon);
+        }
+        for (int current = node; state.getParentEdge(current) != EdgeIterator.NO_EDGE; current = state.getParentNode(current)) {
+            EdgeIteratorState edge = queryGraph.getEdgeIteratorState(state.getParentEdge(current), state.getParentNode(current));
+            time += weighting.calcEdgeMillis(edge, false);
+            distance += edge.getDistance();
+            if (paths) {
+                points.add(edge.fetchWayGeometry(FetchMode.PILLAR_AND_ADJ));
+            }
+        }
+        return new Dispatch(source, state.getWeight(node), time, distance, points);
+    }
+}
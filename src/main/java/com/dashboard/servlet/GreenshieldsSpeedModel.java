@@ -0,0 +1,32 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.ev.RoadClass;
+
+/**
+ * Greenshields' model: the speed decreases linearly with the density, and it is 0 at the maximum density.
+ */
+public class GreenshieldsSpeedModel implements SpeedModel {
+    public static final String NAME = "greenshields";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public double getSpeed(double freeFlowSpeed, double density, double maxDensity, RoadClass roadClass) {
+        return freeFlowSpeed * (1 - density / maxDensity);    // As the density increases, the speed decreases
+    }
+}
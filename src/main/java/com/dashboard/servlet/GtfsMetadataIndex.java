@@ -0,0 +1,109 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Agency;
+import com.conveyal.gtfs.model.Route;
+import com.graphhopper.gtfs.GraphHopperGtfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The names of the routes and agencies of the GTFS feeds, indexed once when the GTFS graph is loaded.
+ * <p>
+ * Every route of every feed gets an index in the arrays of its agency id, agency name and short name, so a public
+ * transport leg is written with a single lookup of its route instead of reading the feed, the route and the agency
+ * for every field.
+ */
+public class GtfsMetadataIndex {
+    public static final int NO_ROUTE = -1;
+
+    private static volatile GtfsMetadataIndex index;
+
+    private final GraphHopperGtfs hopper;
+    private final Map<String, Map<String, Integer>> routesByFeed = new HashMap<>();
+    private final String[] agencyIds;
+    private final String[] agencyNames;
+    private final String[] routeShortNames;
+
+    private GtfsMetadataIndex(GraphHopperGtfs hopper) {
+        this.hopper = hopper;
+        List<String> agencyIdList = new ArrayList<>();
+        List<String> agencyNameList = new ArrayList<>();
+        List<String> shortNameList = new ArrayList<>();
+        for (Map.Entry<String, GTFSFeed> entry : hopper.getGtfsStorage().getGtfsFeeds().entrySet()) {
+            GTFSFeed feed = entry.getValue();
+            Map<String, Integer> routes = new HashMap<>();
+            for (Route route : feed.routes.values()) {
+                // Feeds with a single agency can omit the agency of the routes
+                Agency agency = route.agency_id != null ? feed.agency.get(route.agency_id)
+                        : feed.agency.size() == 1 ? feed.agency.values().iterator().next() : null;
+                routes.put(route.route_id, shortNameList.size());
+                agencyIdList.add(route.agency_id);
+                agencyNameList.add(agency != null ? agency.agency_name : null);
+                shortNameList.add(route.route_short_name);
+            }
+            routesByFeed.put(entry.getKey(), routes);
+        }
+        agencyIds = agencyIdList.toArray(new String[0]);
+        agencyNames = agencyNameList.toArray(new String[0]);
+        routeShortNames = shortNameList.toArray(new String[0]);
+    }
+
+    /**
+     * Get the index of the GTFS GraphHopper instance, building it at the first call.
+     */
+    public static GtfsMetadataIndex get(GraphHopperGtfs hopper) {
+        GtfsMetadataIndex current = index;
+        if (current != null && current.hopper == hopper) {
+            return current;
+        }
+        synchronized (GtfsMetadataIndex.class) {
+            if (index == null || index.hopper != hopper) {
+                index = new GtfsMetadataIndex(hopper);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @return the index of a route, NO_ROUTE if the feed or the route are unknown
+     */
+    public int getRoute(String feedId, String routeId) {
+        Map<String, Integer> routes = routesByFeed.get(feedId);
+        if (routes == null) {
+            return NO_ROUTE;
+        }
+        return routes.getOrDefault(routeId, NO_ROUTE);
+    }
+
+    public String getAgencyId(int route) {
+        return route == NO_ROUTE ? null : agencyIds[route];
+    }
+
+    public String getAgencyName(int route) {
+        return route == NO_ROUTE ? null : agencyNames[route];
+    }
+
+    public String getRouteShortName(int route) {
+        return route == NO_ROUTE ? null : routeShortNames[route];
+    }
+
+    public int getRouteCount() {
+        return routeShortNames.length;
+    }
+}
@@ -0,0 +1,49 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses with gzip the output of another StreamingOutput, used when the client sends "Accept-Encoding: gzip".
+ */
+public class GzipStreamingOutput implements StreamingOutput {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final StreamingOutput delegate;
+
+    public GzipStreamingOutput(StreamingOutput delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Check if the client accepts gzip encoded responses, i.e. gzip is listed without q=0.
+     *
+     * @param acceptEncoding the value of the Accept-Encoding header
+     */
+    public static boolean isAccepted(String acceptEncoding) {
+        return AcceptHeader.accepts(acceptEncoding, "gzip");
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(output, BUFFER_SIZE);
+        delegate.write(gzip);
+        // finish() writes the gzip trailer without closing the servlet output stream
+        gzip.finish();
+        gzip.flush();
+    }
+}
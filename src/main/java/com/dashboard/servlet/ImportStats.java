@@ -0,0 +1,59 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.reader.ReaderWay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ways that the custom tag parsers (TaxiTagParser, ConfigurableTagParser) could not handle during an import.
+ * <p>
+ * A failure is counted instead of being printed for each way, and the count is reported at the end of the import with
+ * the error of the first failed way.
+ */
+public final class ImportStats {
+    private static final AtomicLong failedWays = new AtomicLong();
+    private static volatile String firstFailure;
+
+    private ImportStats() {
+    }
+
+    /**
+     * @return the number of ways whose tags could not be handled since the last reset
+     */
+    public static long getFailedWayCount() {
+        return failedWays.get();
+    }
+
+    /**
+     * @return the error of the first way that could not be handled since the last reset, null if none
+     */
+    public static String getFirstFailure() {
+        return firstFailure;
+    }
+
+    public static void resetFailedWays() {
+        failedWays.set(0);
+        firstFailure = null;
+    }
+
+    /**
+     * Count a way that a tag parser could not handle.
+     */
+    public static void countFailure(ReaderWay way, Exception e) {
+        if (failedWays.getAndIncrement() == 0) {
+            firstFailure = "way " + way.getId() + ": " + e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.Parameters;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.ViaInstruction;
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Alternative routes for requests with more than 2 waypoints.
+ * <p>
+ * GraphHopper's alternative route algorithm only supports two points, so every leg (pair of consecutive waypoints) is
+ * routed on its own with ALT_ROUTE. The legs run in parallel, so the latency is close to the one of the slowest leg.
+ * The alternatives of the legs are then combined: the combinations are visited in increasing total weight and a
+ * combination is kept only if the distance it shares with each of the already kept ones (the legs where they use the
+ * same alternative) is at most max_share_factor of its distance.
+ */
+public class LegAlternativeRouter {
+    private static final int DEFAULT_MAX_PATHS = 2;
+    private static final double DEFAULT_MAX_SHARE = 0.6;
+    // Upper bound of the combinations visited while looking for diverse alternatives
+    private static final int MAX_VISITED_COMBINATIONS = 1000;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "leg-router");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LegAlternativeRouter() {
+    }
+
+    /**
+     * Stop the threads of the legs, when the application is stopped (see RouterLifecycle).
+     */
+    public static void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Route a request with more than 2 waypoints, returning up to alternative_route.max_paths combined alternatives.
+     *
+     * @param hopper GraphHopper instance (could have a blockArea set)
+     * @param request the request with all the waypoints, its profile, locale and hints are used for every leg
+     * @return the response with the combined alternatives, or the errors of the first leg that failed
+     */
+    public static GHResponse route(GraphHopper hopper, GHRequest request) {
+        List<GHPoint> points = request.getPoints();
+        int maxPaths = request.getHints().getInt(Parameters.Algorithms.AltRoute.MAX_PATHS, DEFAULT_MAX_PATHS);
+        double maxShare = request.getHints().getDouble(Parameters.Algorithms.AltRoute.MAX_SHARE, DEFAULT_MAX_SHARE);
+
+        // Route all the legs in parallel
+        List<Future<GHResponse>> futures = new ArrayList<>(points.size() - 1);
+        for (int i = 0; i < points.size() - 1; i++) {
+            GHRequest legRequest = new GHRequest(points.get(i), points.get(i + 1))
+                    .setProfile(request.getProfile())
+                    .setLocale(request.getLocale())
+                    .setAlgorithm(Parameters.Algorithms.ALT_ROUTE);
+            legRequest.getHints().putAll(request.getHints());
+            legRequest.getHints().putObject(Parameters.Algorithms.AltRoute.MAX_PATHS, maxPaths);
+            futures.add(executor.submit(() -> hopper.route(legRequest)));
+        }
+
+        List<List<ResponsePath>> legs = new ArrayList<>(futures.size());
+        for (Future<GHResponse> future : futures) {
+            GHResponse legResponse;
+            try {
+                legResponse = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new GHResponse().addError(e);
+            } catch (ExecutionException e) {
+                return new GHResponse().addError(e.getCause());
+            }
+            if (legResponse.hasErrors()) {
+                return new GHResponse().addErrors(legResponse.getErrors());
+            }
+            List<ResponsePath> alternatives = new ArrayList<>(legResponse.getAll());
+            alternatives.sort(Comparator.comparingDouble(ResponsePath::getRouteWeight));
+            legs.add(alternatives);
+        }
+
+        boolean instructions = request.getHints().getBool(Parameters.Routing.INSTRUCTIONS, true);
+        GHResponse response = new GHResponse();
+        for (int[] combination : selectCombinations(legs, maxPaths, maxShare)) {
+            response.add(merge(legs, combination, instructions));
+        }
+        return response;
+    }
+
+    /**
+     * Visit the combinations of leg alternatives in increasing total weight, keeping the ones that are diverse enough.
+     */
+    private static List<int[]> selectCombinations(List<List<ResponsePath>> legs, int maxPaths, double maxShare) {
+        List<int[]> selected = new ArrayList<>(maxPaths);
+        PriorityQueue<int[]> queue = new PriorityQueue<>(Comparator.comparingDouble(combination -> weight(legs, combination)));
+        Set<String> visited = new HashSet<>();
+
+        int[] best = new int[legs.size()];
+        queue.add(best);
+        visited.add(Arrays.toString(best));
+        int visitedCount = 0;
+        while (!queue.isEmpty() && selected.size() < maxPaths && visitedCount++ < MAX_VISITED_COMBINATIONS) {
+            int[] combination = queue.poll();
+            if (isDiverse(legs, combination, selected, maxShare)) {
+                selected.add(combination);
+            }
+            // The next candidates use the following alternative for one of the legs
+            for (int leg = 0; leg < combination.length; leg++) {
+                if (combination[leg] + 1 < legs.get(leg).size()) {
+                    int[] next = combination.clone();
+                    next[leg]++;
+                    if (visited.add(Arrays.toString(next))) {
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+
+    private static boolean isDiverse(List<List<ResponsePath>> legs, int[] combination, List<int[]> selected, double maxShare) {
+        double distance = 0;
+        for (int leg = 0; leg < combination.length; leg++) {
+            distance += legs.get(leg).get(combination[leg]).getDistance();
+        }
+        for (int[] other : selected) {
+            double shared = 0;
+            for (int leg = 0; leg < combination.length; leg++) {
+                if (combination[leg] == other[leg]) {
+                    shared += legs.get(leg).get(combination[leg]).getDistance();
+                }
+            }
+            if (shared > maxShare * distance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double weight(List<List<ResponsePath>> legs, int[] combination) {
+        double weight = 0;
+        for (int leg = 0; leg < combination.length; leg++) {
+            weight += legs.get(leg).get(combination[leg]).getRouteWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * Merge the chosen alternative of every leg in a single path, as GraphHopper does for via points: the last point of
+     * every leg but the last is removed (it is the first of the next leg) and its finish instruction becomes a via
+     * instruction.
+     */
+    private static ResponsePath merge(List<List<ResponsePath>> legs, int[] combination, boolean instructions) {
+        ResponsePath merged = new ResponsePath();
+        PointList points = null;
+        PointList waypoints = null;
+        InstructionList instructionList = null;
+        double distance = 0;
+        double weight = 0;
+        double ascend = 0;
+        double descend = 0;
+        long time = 0;
+
+        for (int leg = 0; leg < combination.length; leg++) {
+            ResponsePath path = legs.get(leg).get(combination[leg]);
+            boolean last = leg == combination.length - 1;
+
+            PointList legPoints = path.getPoints();
+            if (points == null) {
+                points = new PointList(legPoints.size() * combination.length, legPoints.is3D());
+                waypoints = new PointList(combination.length + 1, legPoints.is3D());
+                if (!path.getWaypoints().isEmpty()) {
+                    waypoints.add(path.getWaypoints(), 0);
+                }
+            }
+            points.add(legPoints);
+            if (!last && !points.isEmpty()) {
+                points.removeLastPoint();
+            }
+            PointList legWaypoints = path.getWaypoints();
+            if (!legWaypoints.isEmpty()) {
+                waypoints.add(legWaypoints, legWaypoints.size() - 1);
+            }
+
+            if (instructions) {
+                InstructionList legInstructions = path.getInstructions();
+                if (instructionList == null) {
+                    instructionList = new InstructionList(legInstructions.getTr());
+                }
+                instructionList.addAll(legInstructions);
+                if (!last && !legInstructions.isEmpty()) {
+                    ViaInstruction via = new ViaInstruction(instructionList.get(instructionList.size() - 1));
+                    via.setViaCount(leg + 1);
+                    instructionList.set(instructionList.size() - 1, via);
+                }
+            }
+
+            distance += path.getDistance();
+            weight += path.getRouteWeight();
+            ascend += path.getAscend();
+            descend += path.getDescend();
+            time += path.getTime();
+        }
+
+        merged.setPoints(points);
+        merged.setWaypoints(waypoints);
+        if (instructionList != null) {
+            merged.setInstructions(instructionList);
+        }
+        merged.setDistance(distance);
+        merged.setRouteWeight(weight);
+        merged.setAscend(ascend);
+        merged.setDescend(descend);
+        merged.setTime(time);
+        return merged;
+    }
+}
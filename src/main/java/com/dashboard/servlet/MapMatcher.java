@@ -0,0 +1,429 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.cursors.IntCursor;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.DistanceCalc;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.FetchMode;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hidden Markov model map matching of a GPS trace on the graph of a vehicle (Newson and Krumm).
+ * <p>
+ * The candidates of a GPS point are the positions on the edges within GH_MATCH_RADIUS meters (default 50), found with
+ * the location index, in each direction the vehicle can drive the edge; their emission probability is a Gaussian of
+ * the distance from the point (GH_MATCH_SIGMA meters, default 10). The transition probability between the candidates
+ * of two consecutive points decreases exponentially with the difference between their route distance on the graph and
+ * the distance between the points (GH_MATCH_BETA meters, default 30), and the best sequence of candidates is found
+ * with the Viterbi algorithm. When no candidate can be reached from the previous ones the trace is broken and the
+ * matching starts again.
+ * <p>
+ * The result is the sequence of traversals of the edges, with the meters driven on each edge and the time taken at the
+ * speed of the vehicle between the two GPS points.
+ */
+public class MapMatcher {
+    private static final double SIGMA = EnvConfig.getInt("GH_MATCH_SIGMA", 10);
+    private static final double RADIUS = EnvConfig.getInt("GH_MATCH_RADIUS", 50);
+    private static final double BETA = EnvConfig.getInt("GH_MATCH_BETA", 30);
+    private static final int MAX_CANDIDATES = EnvConfig.getInt("GH_MATCH_CANDIDATES", 8);
+    private static final double MAX_SPEED = EnvConfig.getInt("GH_MATCH_MAX_SPEED", 200) / 3.6;  // m/s
+
+    /**
+     * A GPS point of a trace.
+     */
+    public static class Observation {
+        private final double lat;
+        private final double lon;
+        private final long time;
+
+        /**
+         * @param time the time of the point in milliseconds since the epoch
+         */
+        public Observation(double lat, double lon, long time) {
+            this.lat = lat;
+            this.lon = lon;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The traversals of the edges of a matched trace.
+     */
+    public static class Result {
+        private final IntArrayList edges = new IntArrayList();
+        private final DoubleArrayList meters = new DoubleArrayList();
+        private final DoubleArrayList seconds = new DoubleArrayList();
+        private final LongArrayList times = new LongArrayList();
+        private int matchedPoints;
+        private int breaks;
+
+        private void add(int edge, double edgeMeters, double speed, long time) {
+            if (edgeMeters > 0) {
+                edges.add(edge);
+                meters.add(edgeMeters);
+                seconds.add(edgeMeters / speed);
+                times.add(time);
+            }
+        }
+
+        public IntArrayList getEdges() {
+            return edges;
+        }
+
+        public DoubleArrayList getMeters() {
+            return meters;
+        }
+
+        public DoubleArrayList getSeconds() {
+            return seconds;
+        }
+
+        /**
+         * @return the time of each traversal in milliseconds since the epoch (the one of the previous GPS point)
+         */
+        public LongArrayList getTimes() {
+            return times;
+        }
+
+        /**
+         * @return the number of GPS points matched to an edge
+         */
+        public int getMatchedPoints() {
+            return matchedPoints;
+        }
+
+        /**
+         * @return the number of times the matching was restarted because the candidates were not connected
+         */
+        public int getBreaks() {
+            return breaks;
+        }
+    }
+
+    // A position on an edge in a direction of travel
+    private static class Candidate {
+        int edge;
+        boolean reverse;
+        double length;
+        double position;  // meters from the start of the edge in the direction of travel
+        int entry;
+        int exit;
+        double emission;
+    }
+
+    private final BaseGraph graph;
+    private final LocationIndex locationIndex;
+    private final Weighting weighting;
+    private final EdgeFilter snapFilter;
+    private final DistanceCalc calc = DistanceCalcEarth.DIST_EARTH;
+    private final EdgeExplorer explorer;
+
+    /**
+     * @param weighting the weighting of the vehicle, only the access of the edges is used
+     * @param snapFilter the edges that can be matched
+     */
+    public MapMatcher(BaseGraph graph, LocationIndex locationIndex, Weighting weighting, EdgeFilter snapFilter) {
+        this.graph = graph;
+        this.locationIndex = locationIndex;
+        this.weighting = weighting;
+        this.snapFilter = snapFilter;
+        explorer = graph.createEdgeExplorer();
+    }
+
+    /**
+     * Match a trace.
+     *
+     * @param trace the GPS points in increasing time
+     */
+    public Result match(List<Observation> trace) {
+        Result result = new Result();
+        List<Observation> points = new ArrayList<>();
+        List<List<Candidate>> candidates = new ArrayList<>();
+        List<double[]> scores = new ArrayList<>();
+        List<int[]> parents = new ArrayList<>();
+        int segmentStart = 0;
+        for (Observation observation : trace) {
+            // The points too close to the previous one are mostly noise of a vehicle standing still
+            if (!points.isEmpty()) {
+                Observation last = points.get(points.size() - 1);
+                if (observation.time <= last.time || calc.calcDist(last.lat, last.lon, observation.lat, observation.lon) < 2 * SIGMA) {
+                    continue;
+                }
+            }
+            List<Candidate> current = findCandidates(observation);
+            if (current.isEmpty()) {
+                continue;
+            }
+            double[] score = new double[current.size()];
+            int[] parent = new int[current.size()];
+            Arrays.fill(parent, -1);
+            boolean connected = false;
+            if (points.size() > segmentStart) {
+                Observation previous = points.get(points.size() - 1);
+                List<Candidate> previousCandidates = candidates.get(candidates.size() - 1);
+                double[] previousScore = scores.get(scores.size() - 1);
+                double distance = calc.calcDist(previous.lat, previous.lon, observation.lat, observation.lon);
+                double[][] routeDistances = routeDistances(previousCandidates, current, 2 * distance + 2 * RADIUS);
+                for (int j = 0; j < current.size(); j++) {
+                    score[j] = Double.NEGATIVE_INFINITY;
+                    for (int i = 0; i < previousCandidates.size(); i++) {
+                        double s = previousScore[i] - Math.abs(routeDistances[i][j] - distance) / BETA;
+                        if (s > score[j]) {
+                            score[j] = s;
+                            parent[j] = i;
+                        }
+                    }
+                    score[j] += current.get(j).emission;
+                    connected |= parent[j] >= 0;
+                }
+                if (!connected) {
+                    // Start a new segment of the trace from this point
+                    addTraversals(points, candidates, scores, parents, segmentStart, result);
+                    result.breaks++;
+                    segmentStart = points.size();
+                }
+            }
+            if (!connected) {
+                for (int j = 0; j < current.size(); j++) {
+                    score[j] = current.get(j).emission;
+                    parent[j] = -1;
+                }
+            }
+            points.add(observation);
+            candidates.add(current);
+            scores.add(score);
+            parents.add(parent);
+        }
+        addTraversals(points, candidates, scores, parents, segmentStart, result);
+        return result;
+    }
+
+    // The positions on the edges close to the point, the best MAX_CANDIDATES edges
+    private List<Candidate> findCandidates(Observation observation) {
+        IntHashSet edges = new IntHashSet();
+        locationIndex.query(calc.createBBox(observation.lat, observation.lon, RADIUS), edges::add);
+        List<Candidate> candidates = new ArrayList<>();
+        for (IntCursor cursor : edges) {
+            EdgeIteratorState edge = graph.getEdgeIteratorState(cursor.value, Integer.MIN_VALUE);
+            if (!snapFilter.accept(edge)) {
+                continue;
+            }
+            double[] projection = project(edge, observation);
+            if (projection[0] > RADIUS) {
+                continue;
+            }
+            double emission = -0.5 * (projection[0] / SIGMA) * (projection[0] / SIGMA);
+            double length = edge.getDistance();
+            if (!Double.isInfinite(weighting.calcEdgeWeightWithAccess(edge, false))) {
+                candidates.add(createCandidate(edge.getEdge(), false, length, projection[1], edge.getBaseNode(), edge.getAdjNode(), emission));
+            }
+            if (!Double.isInfinite(weighting.calcEdgeWeightWithAccess(edge, true))) {
+                candidates.add(createCandidate(edge.getEdge(), true, length, length - projection[1], edge.getAdjNode(), edge.getBaseNode(), emission));
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(b.emission, a.emission));
+        return candidates.size() > 2 * MAX_CANDIDATES ? new ArrayList<>(candidates.subList(0, 2 * MAX_CANDIDATES)) : candidates;
+    }
+
+    private static Candidate createCandidate(int edge, boolean reverse, double length, double position, int entry, int exit, double emission) {
+        Candidate candidate = new Candidate();
+        candidate.edge = edge;
+        candidate.reverse = reverse;
+        candidate.length = length;
+        candidate.position = Math.max(0, Math.min(length, position));
+        candidate.entry = entry;
+        candidate.exit = exit;
+        candidate.emission = emission;
+        return candidate;
+    }
+
+    // The distance of the point from the edge and the position of its projection, in meters from the base node
+    private double[] project(EdgeIteratorState edge, Observation observation) {
+        PointList points = edge.fetchWayGeometry(FetchMode.ALL);
+        double best = Double.MAX_VALUE;
+        double bestPosition = 0;
+        double total = 0;
+        for (int i = 1; i < points.size(); i++) {
+            double lat0 = points.getLat(i - 1), lon0 = points.getLon(i - 1), lat1 = points.getLat(i), lon1 = points.getLon(i);
+            double segment = calc.calcDist(lat0, lon0, lat1, lon1);
+            double distance;
+            double offset;
+            if (calc.validEdgeDistance(observation.lat, observation.lon, lat0, lon0, lat1, lon1)) {
+                GHPoint crossing = calc.calcCrossingPointToEdge(observation.lat, observation.lon, lat0, lon0, lat1, lon1);
+                distance = calc.calcDist(observation.lat, observation.lon, crossing.lat, crossing.lon);
+                offset = calc.calcDist(lat0, lon0, crossing.lat, crossing.lon);
+            } else {
+                double start = calc.calcDist(observation.lat, observation.lon, lat0, lon0);
+                double end = calc.calcDist(observation.lat, observation.lon, lat1, lon1);
+                distance = Math.min(start, end);
+                offset = start <= end ? 0 : segment;
+            }
+            if (distance < best) {
+                best = distance;
+                bestPosition = total + offset;
+            }
+            total += segment;
+        }
+        // The geometry and the distance of the edge can differ slightly
+        return new double[]{best, total > 0 ? bestPosition / total * edge.getDistance() : 0};
+    }
+
+    // The route distances between the candidates of two consecutive points, infinite if they are further than the limit
+    private double[][] routeDistances(List<Candidate> from, List<Candidate> to, double limit) {
+        double[][] distances = new double[from.size()][to.size()];
+        IntHashSet entries = new IntHashSet();
+        for (Candidate candidate : to) {
+            entries.add(candidate.entry);
+        }
+        Map<Integer, Map<Integer, Double>> byExit = new HashMap<>();
+        for (int i = 0; i < from.size(); i++) {
+            Candidate a = from.get(i);
+            Map<Integer, Double> nodeDistances = byExit.computeIfAbsent(a.exit, exit -> nodeDistances(exit, entries, limit));
+            for (int j = 0; j < to.size(); j++) {
+                Candidate b = to.get(j);
+                double distance = Double.POSITIVE_INFINITY;
+                // Forward on the same edge, the small steps back are noise
+                if (a.edge == b.edge && a.reverse == b.reverse && b.position >= a.position - SIGMA) {
+                    distance = Math.max(0, b.position - a.position);
+                }
+                Double between = nodeDistances.get(b.entry);
+                if (between != null) {
+                    distance = Math.min(distance, a.length - a.position + between + b.position);
+                }
+                distances[i][j] = distance;
+            }
+        }
+        return distances;
+    }
+
+    // The shortest distances from a node to the target nodes within the limit
+    private Map<Integer, Double> nodeDistances(int from, IntHashSet targets, double limit) {
+        Map<Integer, Double> distances = new HashMap<>();
+        try (SearchState state = SearchState.acquire(graph.getNodes())) {
+            state.update(from, 0, EdgeIterator.NO_EDGE, -1);
+            int node;
+            while (distances.size() < targets.size() && (node = state.poll()) >= 0 && state.getWeight(node) <= limit) {
+                if (targets.contains(node)) {
+                    distances.put(node, state.getWeight(node));
+                }
+                relax(state, node);
+            }
+        }
+        return distances;
+    }
+
+    // The edges of the shortest path between two nodes, found by nodeDistances before
+    private IntArrayList path(int from, int to) {
+        IntArrayList edges = new IntArrayList();
+        try (SearchState state = SearchState.acquire(graph.getNodes())) {
+            state.update(from, 0, EdgeIterator.NO_EDGE, -1);
+            int node;
+            while ((node = state.poll()) != to) {
+                if (node < 0) {
+                    return new IntArrayList();
+                }
+                relax(state, node);
+            }
+            for (int current = to; state.getParentEdge(current) != EdgeIterator.NO_EDGE; current = state.getParentNode(current)) {
+                edges.add(state.getParentEdge(current));
+            }
+        }
+        return edges;
+    }
+
+    // The searches minimize the distance on the edges the vehicle can drive
+    private void relax(SearchState state, int node) {
+        double distance = state.getWeight(node);
+        EdgeIterator iter = explorer.setBaseNode(node);
+        while (iter.next()) {
+            if (!Double.isInfinite(weighting.calcEdgeWeightWithAccess(iter, false))) {
+                state.update(iter.getAdjNode(), distance + iter.getDistance(), iter.getEdge(), node);
+            }
+        }
+    }
+
+    // Follow the best candidates of a segment of the trace backwards, and add the edges driven between its points
+    private void addTraversals(List<Observation> points, List<List<Candidate>> candidates, List<double[]> scores,
+                               List<int[]> parents, int segmentStart, Result result) {
+        int last = points.size() - 1;
+        if (last < segmentStart) {
+            return;
+        }
+        double[] lastScore = scores.get(last);
+        int best = 0;
+        for (int j = 1; j < lastScore.length; j++) {
+            if (lastScore[j] > lastScore[best]) {
+                best = j;
+            }
+        }
+        int[] chosen = new int[last - segmentStart + 1];
+        chosen[chosen.length - 1] = best;
+        for (int step = last; step > segmentStart; step--) {
+            chosen[step - 1 - segmentStart] = parents.get(step)[chosen[step - segmentStart]];
+        }
+        result.matchedPoints += chosen.length;
+
+        for (int step = segmentStart + 1; step <= last; step++) {
+            Observation previous = points.get(step - 1);
+            Observation observation = points.get(step);
+            Candidate a = candidates.get(step - 1).get(chosen[step - 1 - segmentStart]);
+            Candidate b = candidates.get(step).get(chosen[step - segmentStart]);
+            double seconds = (observation.time - previous.time) / 1000.0;
+
+            // The same choice of the route distances: forward on the same edge or through the nodes
+            IntArrayList between = null;
+            double distance;
+            if (a.edge == b.edge && a.reverse == b.reverse && b.position >= a.position - SIGMA) {
+                distance = Math.max(0, b.position - a.position);
+            } else {
+                between = path(a.exit, b.entry);
+                distance = a.length - a.position + b.position;
+                for (int i = 0; i < between.size(); i++) {
+                    distance += graph.getEdgeIteratorState(between.get(i), Integer.MIN_VALUE).getDistance();
+                }
+            }
+            double speed = distance / seconds;
+            if (distance <= 0 || speed > MAX_SPEED) {
+                continue;
+            }
+            if (between == null) {
+                result.add(a.edge, distance, speed, previous.time);
+                continue;
+            }
+            result.add(a.edge, a.length - a.position, speed, previous.time);
+            for (int i = between.size() - 1; i >= 0; i--) {
+                result.add(between.get(i), graph.getEdgeIteratorState(between.get(i), Integer.MIN_VALUE).getDistance(), speed, previous.time);
+            }
+            result.add(b.edge, b.position, speed, previous.time);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.graphhopper.Trip;
+import com.graphhopper.config.Profile;
+import com.graphhopper.routing.ev.BooleanEncodedValue;
+import com.graphhopper.routing.ev.Subnetwork;
+import com.graphhopper.routing.querygraph.QueryGraph;
+import com.graphhopper.routing.util.DefaultSnapFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.FetchMode;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.PMap;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Park-and-ride and bike-and-ride: journeys that reach a stop by car (or another vehicle), park it and continue by
+ * public transport.
+ * <p>
+ * The access is a single one-to-many Dijkstra on the graph of the vehicle from the origin, with the weighting of the
+ * request (so the blocked area and the traffic are considered), that reaches every stop within GH_PARK_AND_RIDE_MAX_TIME
+ * seconds (default 1800). A stop is reached from the node of the vehicle graph closest to it, if it is within
+ * GH_PARK_AND_RIDE_MAX_WALK meters (default 300), adding the time to park (GH_CAR_PARK_TIME, default 300 s, or
+ * GH_BIKE_PARK_TIME, default 60 s, for bikes) and to walk to the stop. The arrival times at all the stops seed the
+ * rounds of RaptorRouter, that finds the best combined journeys in one search. The paths of the access search to the
+ * reached stops are copied before its SearchState is given back to the pool, so the route of the vehicle to the chosen
+ * stop is not searched again.
+ * Turn costs are not considered.
+ */
+public class ParkAndRideRouter extends RaptorRouter {
+    private static final int MAX_TIME = EnvConfig.getInt("GH_PARK_AND_RIDE_MAX_TIME", 1800);
+    private static final int MAX_WALK = EnvConfig.getInt("GH_PARK_AND_RIDE_MAX_WALK", 300);
+    private static final int CAR_PARK_TIME = EnvConfig.getInt("GH_CAR_PARK_TIME", 300);
+    private static final int BIKE_PARK_TIME = EnvConfig.getInt("GH_BIKE_PARK_TIME", 60);
+
+    // The node of the vehicle graph closest to each stop, by graph folder and profile
+    private static final Map<String, StopNodes> stopNodesByProfile = new ConcurrentHashMap<>();
+
+    private final DynamicGraphHopper hopper;
+    private final String vehicle;
+    private final int parkTime;
+
+    // The access search, kept until the paths are built
+    private Snap originSnap;
+    private QueryGraph queryGraph;
+    private Weighting queryWeighting;
+    // Parent edge and node of the nodes on the paths to the reached stops
+    private final IntIntHashMap parentEdges = new IntIntHashMap();
+    private final IntIntHashMap parentNodes = new IntIntHashMap();
+    private StopNodes stopNodes;
+    private String limit;
+
+    /**
+     * @param hopper GraphHopper instance of the vehicle (could have a blockArea and search limits set)
+     */
+    public ParkAndRideRouter(RaptorNetwork network, DynamicGraphHopper hopper, String vehicle) {
+        super(network);
+        this.hopper = hopper;
+        this.vehicle = vehicle;
+        parkTime = vehicle.contains("bike") ? BIKE_PARK_TIME : CAR_PARK_TIME;
+    }
+
+    // The closest node of the vehicle graph to the stops
+    private static class StopNodes {
+        final RaptorNetwork network;
+        final int[] nodes;
+        final double[] distances;
+        final IntObjectHashMap<IntArrayList> stopsByNode = new IntObjectHashMap<>();
+
+        StopNodes(RaptorNetwork network, DynamicGraphHopper hopper, EdgeFilter snapFilter) {
+            this.network = network;
+            nodes = new int[network.getStopCount()];
+            distances = new double[network.getStopCount()];
+            NodeAccess nodeAccess = hopper.getBaseGraph().getNodeAccess();
+            for (int stop = 0; stop < nodes.length; stop++) {
+                double lat = network.getStopLat(stop);
+                double lon = network.getStopLon(stop);
+                Snap snap = hopper.getLocationIndex().findClosest(lat, lon, snapFilter);
+                nodes[stop] = -1;
+                if (!snap.isValid()) {
+                    continue;
+                }
+                int node = snap.getClosestNode();
+                distances[stop] = DistanceCalcEarth.DIST_EARTH.calcDist(lat, lon, nodeAccess.getLat(node), nodeAccess.getLon(node));
+                if (distances[stop] <= MAX_WALK) {
+                    nodes[stop] = node;
+                    IntArrayList atNode = stopsByNode.get(node);
+                    if (atNode == null) {
+                        atNode = new IntArrayList(1);
+                        stopsByNode.put(node, atNode);
+                    }
+                    atNode.add(stop);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected IntIntHashMap findAccess(GHPoint from) {
+        IntIntHashMap access = new IntIntHashMap();
+        parentEdges.clear();
+        parentNodes.clear();
+        Profile profile = hopper.getProfile(hopper.getRequestProfile());
+        Weighting weighting = hopper.createWeighting(profile, new PMap(), true);
+        String subnetwork = Subnetwork.key(profile.getName());
+        EdgeFilter snapFilter = hopper.getEncodingManager().hasEncodedValue(subnetwork)
+                ? new DefaultSnapFilter(weighting, hopper.getEncodingManager().getBooleanEncodedValue(subnetwork))
+                : EdgeFilter.ALL_EDGES;
+        originSnap = hopper.getLocationIndex().findClosest(from.lat, from.lon, snapFilter);
+        if (!originSnap.isValid()) {
+            return access;
+        }
+        stopNodes = getStopNodes(profile);
+        queryGraph = QueryGraph.create(hopper.getBaseGraph(), originSnap);
+        queryWeighting = queryGraph.wrapWeighting(weighting);
+
+        SearchLimits limits = hopper.getSearchLimits();
+        int maxVisitedNodes = limits != null ? limits.getMaxVisitedNodes() : 0;
+        int visitedNodes = 0;
+        EdgeExplorer explorer = queryGraph.createEdgeExplorer();
+        try (SearchState state = SearchState.acquire(queryGraph.getNodes())) {
+            state.update(originSnap.getClosestNode(), 0, EdgeIterator.NO_EDGE, -1);
+            int node;
+            while ((node = state.poll()) >= 0) {
+                // The weights of the fastest weightings are times in seconds, at least the travel time
+                double weight = state.getWeight(node);
+                if (weight > MAX_TIME) {
+                    break;
+                }
+                if (maxVisitedNodes > 0 && visitedNodes >= maxVisitedNodes) {
+                    limit = "max_visited_nodes";
+                    break;
+                }
+                visitedNodes++;
+
+                IntArrayList atNode = stopNodes.stopsByNode.get(node);
+                if (atNode != null) {
+                    copyPath(state, node);
+                    int driveSeconds = (int) Math.ceil(getDriveMillis(node) / 1000.0);
+                    for (int i = 0; i < atNode.size(); i++) {
+                        int stop = atNode.get(i);
+                        if (driveSeconds <= MAX_TIME) {
+                            access.put(stop, driveSeconds + getWalkSeconds(stop));
+                        }
+                    }
+                }
+
+                EdgeIterator iter = explorer.setBaseNode(node);
+                while (iter.next()) {
+                    double edgeWeight = queryWeighting.calcEdgeWeightWithAccess(iter, false);
+                    if (!Double.isInfinite(edgeWeight)) {
+                        state.update(iter.getAdjNode(), weight + edgeWeight, iter.getEdge(), node);
+                    }
+                }
+            }
+        } catch (SearchLimitException e) {
+            // Timeout, the stops found so far are used
+            limit = "timeout";
+        }
+        return access;
+    }
+
+    @Override
+    protected double addAccess(List<Trip.Leg> legs, InstructionList instructions, PointList points, ZonedDateTime midnight,
+                               GHPoint from, int stop, int departure, int seconds) {
+        int node = stopNodes.nodes[stop];
+        List<EdgeIteratorState> edges = getEdges(node);
+        PointList drivePoints = new PointList(20, false);
+        drivePoints.add(originSnap.getSnappedPoint().lat, originSnap.getSnappedPoint().lon);
+        double driveDistance = 0;
+        for (EdgeIteratorState edge : edges) {
+            drivePoints.add(edge.fetchWayGeometry(FetchMode.PILLAR_AND_ADJ));
+            driveDistance += edge.getDistance();
+        }
+        int start = departure - seconds;
+        int parked = departure - getWalkSeconds(stop);
+        double distance = addStreetLeg(legs, instructions, points, midnight, drivePoints, driveDistance, start, parked, vehicle);
+
+        // Park and walk to the stop
+        PointList walkPoints = new PointList(2, false);
+        walkPoints.add(queryGraph.getNodeAccess().getLat(node), queryGraph.getNodeAccess().getLon(node));
+        walkPoints.add(network.getStopLat(stop), network.getStopLon(stop));
+        distance += addStreetLeg(legs, instructions, points, midnight, walkPoints, stopNodes.distances[stop], parked, departure, "walk");
+        return distance;
+    }
+
+    /**
+     * @return the limit that stopped the access search, null if it was not stopped
+     */
+    public String getLimit() {
+        return limit;
+    }
+
+    // The stops are snapped without the blocked area of the request, since they are shared with the other requests
+    private StopNodes getStopNodes(Profile profile) {
+        String key = hopper.getGraphHopperLocation() + "|" + profile.getName();
+        StopNodes nodes = stopNodesByProfile.get(key);
+        if (nodes == null || nodes.network != network) {
+            String subnetwork = Subnetwork.key(profile.getName());
+            BooleanEncodedValue subnetworkEnc = hopper.getEncodingManager().hasEncodedValue(subnetwork)
+                    ? hopper.getEncodingManager().getBooleanEncodedValue(subnetwork) : null;
+            EdgeFilter snapFilter = subnetworkEnc != null ? edge -> !edge.get(subnetworkEnc) : EdgeFilter.ALL_EDGES;
+            nodes = new StopNodes(network, hopper, snapFilter);
+            stopNodesByProfile.put(key, nodes);
+        }
+        return nodes;
+    }
+
+    // Copy the path from the origin to a settled node, up to the part already copied
+    private void copyPath(SearchState state, int node) {
+        for (int current = node; state.getParentEdge(current) != EdgeIterator.NO_EDGE && !parentEdges.containsKey(current);
+             current = state.getParentNode(current)) {
+            parentEdges.put(current, state.getParentEdge(current));
+            parentNodes.put(current, state.getParentNode(current));
+        }
+    }
+
+    // The edges from the origin to a node with a copied path, in the direction of travel
+    private List<EdgeIteratorState> getEdges(int node) {
+        List<EdgeIteratorState> edges = new ArrayList<>();
+        for (int current = node; parentEdges.containsKey(current); current = parentNodes.get(current)) {
+            edges.add(queryGraph.getEdgeIteratorState(parentEdges.get(current), current));
+        }
+        Collections.reverse(edges);
+        return edges;
+    }
+
+    private long getDriveMillis(int node) {
+        long millis = 0;
+        for (int current = node; parentEdges.containsKey(current); current = parentNodes.get(current)) {
+            millis += queryWeighting.calcEdgeMillis(queryGraph.getEdgeIteratorState(parentEdges.get(current), current), false);
+        }
+        return millis;
+    }
+
+    // Park the vehicle and walk from its node to the stop
+    private int getWalkSeconds(int stop) {
+        return parkTime + (int) Math.ceil(stopNodes.distances[stop] / RaptorNetwork.WALK_SPEED);
+    }
+}
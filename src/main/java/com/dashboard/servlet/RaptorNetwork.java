@@ -0,0 +1,320 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Stop;
+import com.graphhopper.config.Profile;
+import com.graphhopper.gtfs.GraphHopperGtfs;
+import com.graphhopper.routing.ev.Subnetwork;
+import com.graphhopper.routing.util.DefaultSnapFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.PMap;
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The stops of all the GTFS feeds and the walks between them, used by the RaptorRouter.
+ * <p>
+ * The stops are numbered once, with their coordinates and closest node of the foot graph of the GTFS GraphHopper
+ * instance. The foot transfers are the stops within GH_RAPTOR_TRANSFER_DISTANCE meters (default 400) on the foot
+ * graph, stored as arrays indexed by stop. The timetables are compiled per service date (see RaptorTimetable) and the
+ * last ones are cached.
+ */
+public class RaptorNetwork {
+    public static final double WALK_SPEED = 5 / 3.6;  // m/s, the walking speed of the PT router
+    private static final double TRANSFER_DISTANCE = EnvConfig.getInt("GH_RAPTOR_TRANSFER_DISTANCE", 400);
+    private static final int MAX_TIMETABLES = 3;
+
+    private static RaptorNetwork network;
+
+    private final GraphHopperGtfs hopper;
+    private final Weighting footWeighting;
+    private final EdgeFilter snapFilter;
+
+    // Stops, by index
+    private final String[] stopFeeds;
+    private final String[] stopIds;
+    private final String[] stopNames;
+    private final double[] stopLats;
+    private final double[] stopLons;
+    private final int[] stopNodes;  // closest node of the foot graph, -1 if the stop is too far from the roads
+    private final double[] stopNodeDistances;
+    private final Map<String, Integer> stopIndexes = new HashMap<>();  // by feed id and stop id
+    private final IntObjectHashMap<IntArrayList> stopsByNode = new IntObjectHashMap<>();
+
+    // Foot transfers of each stop: transferStops and transferSeconds from transferOffsets[stop] to transferOffsets[stop + 1]
+    private final int[] transferOffsets;
+    private final int[] transferStops;
+    private final int[] transferSeconds;
+
+    private final Map<LocalDate, RaptorTimetable> timetables = new LinkedHashMap<LocalDate, RaptorTimetable>(4, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LocalDate, RaptorTimetable> eldest) {
+            return size() > MAX_TIMETABLES;
+        }
+    };
+
+    private RaptorNetwork(GraphHopperGtfs hopper) {
+        this.hopper = hopper;
+        Profile foot = hopper.getProfile("foot");
+        footWeighting = hopper.createWeighting(foot, new PMap());
+        String subnetwork = Subnetwork.key(foot.getName());
+        snapFilter = hopper.getEncodingManager().hasEncodedValue(subnetwork)
+                ? new DefaultSnapFilter(footWeighting, hopper.getEncodingManager().getBooleanEncodedValue(subnetwork))
+                : EdgeFilter.ALL_EDGES;
+
+        List<String> feeds = new ArrayList<>();
+        List<Stop> stops = new ArrayList<>();
+        for (Map.Entry<String, GTFSFeed> feed : hopper.getGtfsStorage().getGtfsFeeds().entrySet()) {
+            for (Stop stop : feed.getValue().stops.values()) {
+                feeds.add(feed.getKey());
+                stops.add(stop);
+            }
+        }
+        int count = stops.size();
+        stopFeeds = feeds.toArray(new String[0]);
+        stopIds = new String[count];
+        stopNames = new String[count];
+        stopLats = new double[count];
+        stopLons = new double[count];
+        stopNodes = new int[count];
+        stopNodeDistances = new double[count];
+        NodeAccess nodeAccess = hopper.getBaseGraph().getNodeAccess();
+        for (int i = 0; i < count; i++) {
+            Stop stop = stops.get(i);
+            stopIds[i] = stop.stop_id;
+            stopNames[i] = stop.stop_name;
+            stopLats[i] = stop.stop_lat;
+            stopLons[i] = stop.stop_lon;
+            stopIndexes.put(stopFeeds[i] + ":" + stop.stop_id, i);
+            Snap snap = hopper.getLocationIndex().findClosest(stop.stop_lat, stop.stop_lon, snapFilter);
+            stopNodes[i] = snap.isValid() ? snap.getClosestNode() : -1;
+            if (snap.isValid()) {
+                stopNodeDistances[i] = DistanceCalcEarth.DIST_EARTH.calcDist(stop.stop_lat, stop.stop_lon,
+                        nodeAccess.getLat(stopNodes[i]), nodeAccess.getLon(stopNodes[i]));
+                IntArrayList atNode = stopsByNode.get(stopNodes[i]);
+                if (atNode == null) {
+                    atNode = new IntArrayList(1);
+                    stopsByNode.put(stopNodes[i], atNode);
+                }
+                atNode.add(i);
+            }
+        }
+
+        // The transfers, with a walk search from every stop
+        transferOffsets = new int[count + 1];
+        IntArrayList toStops = new IntArrayList();
+        IntArrayList seconds = new IntArrayList();
+        for (int i = 0; i < count; i++) {
+            transferOffsets[i] = toStops.size();
+            if (stopNodes[i] < 0) {
+                continue;
+            }
+            IntIntHashMap walks = walkToStops(new int[]{stopNodes[i]}, new double[]{stopNodeDistances[i]}, TRANSFER_DISTANCE);
+            for (IntIntCursor walk : walks) {
+                if (walk.key != i) {
+                    toStops.add(walk.key);
+                    seconds.add(walk.value);
+                }
+            }
+        }
+        transferOffsets[count] = toStops.size();
+        transferStops = toStops.toArray();
+        transferSeconds = seconds.toArray();
+    }
+
+    /**
+     * Network of stops with the given transfers and no foot graph, so walkToStops and getTimetable cannot be used
+     * (for the tests).
+     */
+    RaptorNetwork(String[] stopIds, double[] stopLats, double[] stopLons, int[] transferOffsets, int[] transferStops,
+                  int[] transferSeconds) {
+        hopper = null;
+        footWeighting = null;
+        snapFilter = null;
+        int count = stopIds.length;
+        stopFeeds = new String[count];
+        Arrays.fill(stopFeeds, "");
+        this.stopIds = stopIds;
+        stopNames = stopIds;
+        this.stopLats = stopLats;
+        this.stopLons = stopLons;
+        stopNodes = new int[count];
+        Arrays.fill(stopNodes, -1);
+        stopNodeDistances = new double[count];
+        for (int i = 0; i < count; i++) {
+            stopIndexes.put(":" + stopIds[i], i);
+        }
+        this.transferOffsets = transferOffsets;
+        this.transferStops = transferStops;
+        this.transferSeconds = transferSeconds;
+    }
+
+    /**
+     * Get the network of the GTFS GraphHopper instance, building it at the first call.
+     */
+    public static synchronized RaptorNetwork get(GraphHopperGtfs hopper) {
+        if (network == null || network.hopper != hopper) {
+            long start = System.nanoTime();
+            network = new RaptorNetwork(hopper);
+            System.out.printf("RAPTOR network: %d stops, %d transfers in %d ms%n", network.getStopCount(),
+                    network.transferStops.length, (System.nanoTime() - start) / 1_000_000);
+        }
+        return network;
+    }
+
+    /**
+     * @return if the network has been built
+     */
+    public static synchronized boolean isBuilt() {
+        return network != null;
+    }
+
+    /**
+     * Get the timetable of a service date, compiling it if it is not cached.
+     */
+    public RaptorTimetable getTimetable(LocalDate date) {
+        synchronized (timetables) {
+            RaptorTimetable timetable = timetables.get(date);
+            if (timetable == null) {
+                timetable = RaptorTimetable.compile(this, hopper.getGtfsStorage().getGtfsFeeds(), date);
+                timetables.put(date, timetable);
+            }
+            return timetable;
+        }
+    }
+
+    /**
+     * Find the stops within a walking distance of a point.
+     *
+     * @param maxDistance maximum walking distance in meters
+     * @return the walking time in seconds by stop, empty if the point is too far from the roads
+     */
+    public IntIntHashMap walkToStops(GHPoint point, double maxDistance) {
+        Snap snap = hopper.getLocationIndex().findClosest(point.lat, point.lon, snapFilter);
+        if (!snap.isValid()) {
+            return new IntIntHashMap();
+        }
+        // The walk starts from both the nodes of the closest edge
+        NodeAccess nodeAccess = hopper.getBaseGraph().getNodeAccess();
+        int base = snap.getClosestEdge().getBaseNode();
+        int adj = snap.getClosestEdge().getAdjNode();
+        GHPoint snapped = snap.getSnappedPoint();
+        return walkToStops(new int[]{base, adj}, new double[]{
+                snap.getQueryDistance() + DistanceCalcEarth.DIST_EARTH.calcDist(snapped.lat, snapped.lon, nodeAccess.getLat(base), nodeAccess.getLon(base)),
+                snap.getQueryDistance() + DistanceCalcEarth.DIST_EARTH.calcDist(snapped.lat, snapped.lon, nodeAccess.getLat(adj), nodeAccess.getLon(adj))
+        }, maxDistance);
+    }
+
+    // Dijkstra by distance on the foot graph from the given nodes, the state is pooled (see SearchState)
+    private IntIntHashMap walkToStops(int[] startNodes, double[] startDistances, double maxDistance) {
+        BaseGraph graph = hopper.getBaseGraph();
+        IntIntHashMap walks = new IntIntHashMap();
+        try (SearchState state = SearchState.acquire(graph.getNodes())) {
+            for (int i = 0; i < startNodes.length; i++) {
+                state.update(startNodes[i], startDistances[i], EdgeIterator.NO_EDGE, -1);
+            }
+            EdgeExplorer explorer = graph.createEdgeExplorer();
+            int node;
+            while ((node = state.poll()) >= 0) {
+                double distance = state.getWeight(node);
+                if (distance > maxDistance) {
+                    break;
+                }
+                IntArrayList atNode = stopsByNode.get(node);
+                if (atNode != null) {
+                    for (int i = 0; i < atNode.size(); i++) {
+                        int stop = atNode.get(i);
+                        double total = distance + stopNodeDistances[stop];
+                        if (total <= maxDistance && !walks.containsKey(stop)) {
+                            walks.put(stop, (int) Math.ceil(total / WALK_SPEED));
+                        }
+                    }
+                }
+                EdgeIterator iter = explorer.setBaseNode(node);
+                while (iter.next()) {
+                    if (!footWeighting.edgeHasNoAccess(iter, false)) {
+                        state.update(iter.getAdjNode(), distance + iter.getDistance(), iter.getEdge(), node);
+                    }
+                }
+            }
+        }
+        return walks;
+    }
+
+    public int getStopCount() {
+        return stopIds.length;
+    }
+
+    /**
+     * @return the index of a stop, -1 if it does not exist
+     */
+    public int getStop(String feedId, String stopId) {
+        return stopIndexes.getOrDefault(feedId + ":" + stopId, -1);
+    }
+
+    public String getStopFeed(int stop) {
+        return stopFeeds[stop];
+    }
+
+    public String getStopId(int stop) {
+        return stopIds[stop];
+    }
+
+    public String getStopName(int stop) {
+        return stopNames[stop];
+    }
+
+    public double getStopLat(int stop) {
+        return stopLats[stop];
+    }
+
+    public double getStopLon(int stop) {
+        return stopLons[stop];
+    }
+
+    public int getTransferStart(int stop) {
+        return transferOffsets[stop];
+    }
+
+    public int getTransferEnd(int stop) {
+        return transferOffsets[stop + 1];
+    }
+
+    public int getTransferStop(int transfer) {
+        return transferStops[transfer];
+    }
+
+    public int getTransferSeconds(int transfer) {
+        return transferSeconds[transfer];
+    }
+}
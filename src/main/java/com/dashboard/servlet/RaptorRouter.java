@@ -0,0 +1,471 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.Trip;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.FinishInstruction;
+import com.graphhopper.util.Instruction;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.Translation;
+import com.graphhopper.util.TranslationMap;
+import com.graphhopper.util.exceptions.PointNotFoundException;
+import com.graphhopper.util.shapes.GHPoint;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Public transport router with RAPTOR (Round-bAsed Public Transit Optimized Router) on a RaptorTimetable.
+ * <p>
+ * Round k finds the earliest arrival at every stop with k trips: the patterns serving the stops improved in the
+ * previous round are scanned once, boarding the earliest trip that can be caught at each stop, then the foot
+ * transfers of the stops improved by a trip are relaxed. The stops within GH_RAPTOR_MAX_WALK meters (default 1000)
+ * of the origin and of the destination are reached walking on the foot graph. The search stops after
+ * GH_RAPTOR_MAX_ROUNDS trips (default 5) or when no stop is improved, and every round that improves the arrival at
+ * the destination gives a journey, so the result is the Pareto set by arrival time and transfers, earliest arrival
+ * first. The access from the origin can be replaced by a subclass (see ParkAndRideRouter).
+ * <p>
+ * The realtime updates of RealtimePtRouter are not applied, the journeys follow the static timetable. A router keeps
+ * the state of its last search, so a new one is created for every query.
+ */
+public class RaptorRouter {
+    static final int MAX_ROUNDS = EnvConfig.getInt("GH_RAPTOR_MAX_ROUNDS", 5);
+    private static final int MAX_WALK = EnvConfig.getInt("GH_RAPTOR_MAX_WALK", 1000);
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    private static final Translation translation = new TranslationMap().doImport().getWithFallBack(Locale.ENGLISH);
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    protected final RaptorNetwork network;
+
+    // Per round: arrival at each stop with at most k trips, and the arrival by the trip of round k
+    private int[][] arrivals;
+    private int[][] tripArrivals;
+    // Per round: the trip reaching each stop, its pattern, the boarding and alighting positions in the pattern
+    private int[][] trips;
+    private int[][] patterns;
+    private int[][] boardPositions;
+    private int[][] alightPositions;
+    // Per round: the stop a transfer starts from, -1 if the stop is not reached by a transfer
+    private int[][] transfers;
+
+    public RaptorRouter(RaptorNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Find the journeys between two points.
+     *
+     * @param departure the earliest departure time from the origin
+     * @return the Pareto set of journeys, or an error if a point is too far from the stops or no journey is found
+     */
+    public GHResponse route(GHPoint from, GHPoint to, ZonedDateTime departure) {
+        GHResponse response = new GHResponse();
+        // The access is found last, so a subclass can keep the state of its search until the paths are built
+        IntIntHashMap egress = network.walkToStops(to, MAX_WALK);
+        if (egress.isEmpty()) {
+            response.addError(new PointNotFoundException("No stop within " + MAX_WALK + " m of point 1: " + to, 1));
+            return response;
+        }
+        IntIntHashMap access = findAccess(from);
+        if (access.isEmpty()) {
+            response.addError(new PointNotFoundException("No stop can be reached from point 0: " + from, 0));
+            return response;
+        }
+        return route(network.getTimetable(departure.toLocalDate()), from, to, departure, access, egress);
+    }
+
+    /**
+     * Find the journeys on a timetable, from the stops reached by the access to the stops of the egress.
+     */
+    GHResponse route(RaptorTimetable timetable, GHPoint from, GHPoint to, ZonedDateTime departure, IntIntHashMap access,
+                     IntIntHashMap egress) {
+        GHResponse response = new GHResponse();
+        ZonedDateTime midnight = departure.toLocalDate().atStartOfDay(departure.getZone());
+        int start = departure.toLocalTime().toSecondOfDay();
+        int[] targetStops = search(timetable, access, egress, start);
+
+        List<ResponsePath> paths = new ArrayList<>();
+        for (int round = 1; round <= MAX_ROUNDS; round++) {
+            if (targetStops[round] >= 0) {
+                paths.add(createPath(timetable, midnight, from, to, access, egress, round, targetStops[round]));
+            }
+        }
+        if (paths.isEmpty()) {
+            response.addError(new IllegalArgumentException("No public transport journey found with at most " + MAX_ROUNDS + " trips"));
+            return response;
+        }
+        // The later rounds arrive earlier
+        Collections.reverse(paths);
+        for (ResponsePath path : paths) {
+            response.add(path);
+        }
+        return response;
+    }
+
+    /**
+     * Find the stops that can be reached from the origin, walking.
+     *
+     * @return the time in seconds to reach each stop
+     */
+    protected IntIntHashMap findAccess(GHPoint from) {
+        return network.walkToStops(from, MAX_WALK);
+    }
+
+    /**
+     * Add the legs from the origin to the first stop of a journey.
+     *
+     * @param departure the departure of the first trip from the stop, in seconds from midnight
+     * @param seconds the time to reach the stop found by findAccess
+     * @return the distance of the legs
+     */
+    protected double addAccess(List<Trip.Leg> legs, InstructionList instructions, PointList points, ZonedDateTime midnight,
+                               GHPoint from, int stop, int departure, int seconds) {
+        return addWalk(legs, instructions, points, midnight, from.lat, from.lon, network.getStopLat(stop), network.getStopLon(stop),
+                departure - seconds, departure);
+    }
+
+    /**
+     * Run the rounds.
+     *
+     * @return the stop where the journey of each round leaves the public transport, -1 if the round does not improve
+     * the arrival at the destination
+     */
+    private int[] search(RaptorTimetable timetable, IntIntHashMap access, IntIntHashMap egress, int start) {
+        int stopCount = network.getStopCount();
+        arrivals = new int[MAX_ROUNDS + 1][];
+        tripArrivals = new int[MAX_ROUNDS + 1][];
+        trips = new int[MAX_ROUNDS + 1][];
+        patterns = new int[MAX_ROUNDS + 1][];
+        boardPositions = new int[MAX_ROUNDS + 1][];
+        alightPositions = new int[MAX_ROUNDS + 1][];
+        transfers = new int[MAX_ROUNDS + 1][];
+        int[] targetStops = new int[MAX_ROUNDS + 1];
+        Arrays.fill(targetStops, -1);
+
+        int[] best = new int[stopCount];
+        Arrays.fill(best, UNREACHED);
+        boolean[] marked = new boolean[stopCount];
+        arrivals[0] = new int[stopCount];
+        Arrays.fill(arrivals[0], UNREACHED);
+        for (IntIntCursor walk : access) {
+            arrivals[0][walk.key] = start + walk.value;
+            best[walk.key] = start + walk.value;
+            marked[walk.key] = true;
+        }
+
+        int bestTarget = UNREACHED;
+        int[] patternStarts = new int[timetable.getPatternCount()];
+        Arrays.fill(patternStarts, -1);
+        int[] queue = new int[timetable.getPatternCount()];
+        for (int round = 1; round <= MAX_ROUNDS; round++) {
+            // Collect the patterns serving the marked stops, from the first marked position
+            int queued = 0;
+            for (int stop = 0; stop < stopCount; stop++) {
+                if (!marked[stop]) {
+                    continue;
+                }
+                marked[stop] = false;
+                for (int i = timetable.getStopPatternStart(stop); i < timetable.getStopPatternEnd(stop); i++) {
+                    int pattern = timetable.getStopPattern(i);
+                    int position = timetable.getStopPatternPosition(i);
+                    if (patternStarts[pattern] < 0) {
+                        queue[queued++] = pattern;
+                        patternStarts[pattern] = position;
+                    } else if (position < patternStarts[pattern]) {
+                        patternStarts[pattern] = position;
+                    }
+                }
+            }
+            if (queued == 0) {
+                break;
+            }
+
+            int[] previous = arrivals[round - 1];
+            int[] arrival = previous.clone();
+            int[] tripArrival = new int[stopCount];
+            Arrays.fill(tripArrival, UNREACHED);
+            int[] trip = new int[stopCount];
+            int[] pattern = new int[stopCount];
+            int[] boardPosition = new int[stopCount];
+            int[] alightPosition = new int[stopCount];
+            int[] transfer = new int[stopCount];
+            Arrays.fill(transfer, -1);
+            arrivals[round] = arrival;
+            tripArrivals[round] = tripArrival;
+            trips[round] = trip;
+            patterns[round] = pattern;
+            boardPositions[round] = boardPosition;
+            alightPositions[round] = alightPosition;
+            transfers[round] = transfer;
+
+            // Scan the patterns
+            for (int q = 0; q < queued; q++) {
+                int p = queue[q];
+                int first = patternStarts[p];
+                patternStarts[p] = -1;
+                int current = -1;
+                int boardedAt = -1;
+                for (int position = first; position < timetable.getPatternStopCount(p); position++) {
+                    int stop = timetable.getPatternStop(p, position);
+                    if (current >= 0) {
+                        int time = timetable.getArrival(current, position);
+                        if (time < best[stop] && time < bestTarget) {
+                            arrival[stop] = time;
+                            tripArrival[stop] = time;
+                            best[stop] = time;
+                            trip[stop] = current;
+                            pattern[stop] = p;
+                            boardPosition[stop] = boardedAt;
+                            alightPosition[stop] = position;
+                            marked[stop] = true;
+                        }
+                    }
+                    // Board an earlier trip if the stop was reached in time in the previous round
+                    if (previous[stop] != UNREACHED && (current < 0 || previous[stop] <= timetable.getDeparture(current, position))) {
+                        int earlier = timetable.findTrip(p, position, previous[stop]);
+                        if (earlier >= 0 && (current < 0 || timetable.getDeparture(earlier, position) < timetable.getDeparture(current, position))) {
+                            current = earlier;
+                            boardedAt = position;
+                        }
+                    }
+                }
+            }
+
+            // Relax the foot transfers of the stops reached by a trip
+            for (int stop = 0; stop < stopCount; stop++) {
+                if (!marked[stop] || tripArrival[stop] == UNREACHED) {
+                    continue;
+                }
+                for (int t = network.getTransferStart(stop); t < network.getTransferEnd(stop); t++) {
+                    int to = network.getTransferStop(t);
+                    int time = tripArrival[stop] + network.getTransferSeconds(t);
+                    if (time < best[to] && time < bestTarget) {
+                        arrival[to] = time;
+                        best[to] = time;
+                        transfer[to] = stop;
+                        marked[to] = true;
+                    }
+                }
+            }
+
+            // Walk to the destination from the stops reached by a trip
+            for (IntIntCursor walk : egress) {
+                if (tripArrival[walk.key] != UNREACHED && tripArrival[walk.key] + walk.value < bestTarget) {
+                    bestTarget = tripArrival[walk.key] + walk.value;
+                    targetStops[round] = walk.key;
+                }
+            }
+        }
+        return targetStops;
+    }
+
+    // A leg found while walking back the rounds
+    private static class RaptorLeg {
+        final int fromStop;
+        final int toStop;
+        final int departure;
+        final int arrival;
+        final int trip;        // -1 for a transfer
+        final int pattern;
+        final int boardPosition;
+        final int alightPosition;
+
+        RaptorLeg(int fromStop, int toStop, int departure, int arrival, int trip, int pattern, int boardPosition, int alightPosition) {
+            this.fromStop = fromStop;
+            this.toStop = toStop;
+            this.departure = departure;
+            this.arrival = arrival;
+            this.trip = trip;
+            this.pattern = pattern;
+            this.boardPosition = boardPosition;
+            this.alightPosition = alightPosition;
+        }
+    }
+
+    private ResponsePath createPath(RaptorTimetable timetable, ZonedDateTime midnight, GHPoint from, GHPoint to,
+                                    IntIntHashMap access, IntIntHashMap egress, int targetRound, int targetStop) {
+        // Walk back the rounds from the stop where the journey leaves the public transport
+        List<RaptorLeg> legs = new ArrayList<>();
+        int stop = targetStop;
+        int round = targetRound;
+        boolean needTrip = true;
+        while (round > 0) {
+            if (!needTrip) {
+                // The round where the arrival at the stop was set
+                while (round > 0 && arrivals[round][stop] == arrivals[round - 1][stop]) {
+                    round--;
+                }
+                if (round == 0) {
+                    break;
+                }
+                int transferFrom = transfers[round][stop];
+                if (transferFrom >= 0 && arrivals[round][stop] < tripArrivals[round][stop]) {
+                    legs.add(new RaptorLeg(transferFrom, stop, tripArrivals[round][transferFrom], arrivals[round][stop], -1, -1, -1, -1));
+                    stop = transferFrom;
+                    needTrip = true;
+                    continue;
+                }
+            }
+            int trip = trips[round][stop];
+            int pattern = patterns[round][stop];
+            int board = boardPositions[round][stop];
+            int alight = alightPositions[round][stop];
+            int boardStop = timetable.getPatternStop(pattern, board);
+            legs.add(new RaptorLeg(boardStop, stop, timetable.getDeparture(trip, board), timetable.getArrival(trip, alight), trip, pattern, board, alight));
+            stop = boardStop;
+            round--;
+            needTrip = false;
+        }
+        Collections.reverse(legs);
+
+        List<Trip.Leg> tripLegs = new ArrayList<>();
+        InstructionList instructions = new InstructionList(translation);
+        PointList points = new PointList(20, false);
+        double distance = 0;
+        int tripCount = 0;
+
+        // Walk from the origin, arriving at the first stop at the departure of the first trip
+        RaptorLeg first = legs.get(0);
+        int accessSeconds = access.get(first.fromStop);
+        distance += addAccess(tripLegs, instructions, points, midnight, from, first.fromStop, first.departure, accessSeconds);
+        for (RaptorLeg leg : legs) {
+            if (leg.trip < 0) {
+                distance += addWalk(tripLegs, instructions, points, midnight, network.getStopLat(leg.fromStop), network.getStopLon(leg.fromStop),
+                        network.getStopLat(leg.toStop), network.getStopLon(leg.toStop), leg.departure, leg.arrival);
+            } else {
+                distance += addTrip(timetable, tripLegs, instructions, points, midnight, leg);
+                tripCount++;
+            }
+        }
+        RaptorLeg last = legs.get(legs.size() - 1);
+        int egressSeconds = egress.get(targetStop);
+        distance += addWalk(tripLegs, instructions, points, midnight, network.getStopLat(targetStop), network.getStopLon(targetStop),
+                to.lat, to.lon, last.arrival, last.arrival + egressSeconds);
+        instructions.add(new FinishInstruction(to.lat, to.lon, 0));
+        points.add(to.lat, to.lon);
+
+        ResponsePath path = new ResponsePath();
+        path.getLegs().addAll(tripLegs);
+        path.setInstructions(instructions);
+        path.setPoints(points);
+        path.setDistance(distance);
+        path.setTime(1000L * (last.arrival + egressSeconds - first.departure + accessSeconds));
+        path.setNumChanges(tripCount - 1);
+        path.addDebugInfo("raptor");
+        return path;
+    }
+
+    // Straight walk between two points at the walking speed
+    private static double addWalk(List<Trip.Leg> legs, InstructionList instructions, PointList points, ZonedDateTime midnight,
+                                  double fromLat, double fromLon, double toLat, double toLon, int departure, int arrival) {
+        PointList walkPoints = new PointList(2, false);
+        walkPoints.add(fromLat, fromLon);
+        walkPoints.add(toLat, toLon);
+        return addStreetLeg(legs, instructions, points, midnight, walkPoints, (arrival - departure) * RaptorNetwork.WALK_SPEED,
+                departure, arrival, "walk");
+    }
+
+    /**
+     * Add a leg on the streets, with a single instruction that has the mode (e.g. walk, car) in its extra info.
+     *
+     * @param legPoints the points of the leg, the points of the path do not include the last one
+     * @param departure the departure in seconds from midnight
+     * @param arrival the arrival in seconds from midnight
+     * @return the distance of the leg
+     */
+    protected static double addStreetLeg(List<Trip.Leg> legs, InstructionList instructions, PointList points, ZonedDateTime midnight,
+                                         PointList legPoints, double distance, int departure, int arrival, String mode) {
+        PointList instructionPoints = new PointList(legPoints.size(), false);
+        Coordinate[] coordinates = new Coordinate[Math.max(legPoints.size(), 2)];
+        for (int i = 0; i < legPoints.size(); i++) {
+            if (i < legPoints.size() - 1 || legPoints.size() == 1) {
+                instructionPoints.add(legPoints.getLat(i), legPoints.getLon(i));
+                points.add(legPoints.getLat(i), legPoints.getLon(i));
+            }
+            coordinates[i] = new Coordinate(legPoints.getLon(i), legPoints.getLat(i));
+        }
+        if (legPoints.size() == 1) {
+            // The leg starts and ends at the same point
+            coordinates[1] = coordinates[0];
+        }
+        Instruction instruction = new Instruction(Instruction.CONTINUE_ON_STREET, "", instructionPoints);
+        instruction.setDistance(distance);
+        instruction.setTime(1000L * (arrival - departure));
+        instruction.setExtraInfo("mode", mode);
+        instructions.add(instruction);
+
+        InstructionList legInstructions = new InstructionList(translation);
+        legInstructions.add(instruction);
+        legs.add(new Trip.WalkLeg("", toDate(midnight, departure), geometryFactory.createLineString(coordinates), distance,
+                legInstructions, Collections.emptyMap(), toDate(midnight, arrival)));
+        return distance;
+    }
+
+    // Trip between two stops, the points of the path include all its stops
+    private double addTrip(RaptorTimetable timetable, List<Trip.Leg> legs, InstructionList instructions, PointList points,
+                           ZonedDateTime midnight, RaptorLeg leg) {
+        List<Trip.Stop> stops = new ArrayList<>();
+        Coordinate[] coordinates = new Coordinate[leg.alightPosition - leg.boardPosition + 1];
+        PointList tripPoints = new PointList(coordinates.length - 1, false);
+        double distance = 0;
+        for (int position = leg.boardPosition; position <= leg.alightPosition; position++) {
+            int stop = timetable.getPatternStop(leg.pattern, position);
+            double lat = network.getStopLat(stop);
+            double lon = network.getStopLon(stop);
+            if (position > leg.boardPosition) {
+                int previous = timetable.getPatternStop(leg.pattern, position - 1);
+                distance += DistanceCalcEarth.DIST_EARTH.calcDist(network.getStopLat(previous), network.getStopLon(previous), lat, lon);
+            }
+            if (position < leg.alightPosition) {
+                tripPoints.add(lat, lon);
+            }
+            points.add(lat, lon);
+            coordinates[position - leg.boardPosition] = new Coordinate(lon, lat);
+            Date arrival = position == leg.boardPosition ? null : toDate(midnight, timetable.getArrival(leg.trip, position));
+            Date departure = position == leg.alightPosition ? null : toDate(midnight, timetable.getDeparture(leg.trip, position));
+            stops.add(new Trip.Stop(network.getStopId(stop), network.getStopName(stop), geometryFactory.createPoint(coordinates[position - leg.boardPosition]),
+                    arrival, arrival, null, false, departure, departure, null, false));
+        }
+
+        Instruction start = new Instruction(Instruction.PT_START_TRIP, timetable.getHeadsign(leg.trip), tripPoints);
+        start.setDistance(distance);
+        start.setTime(1000L * (leg.arrival - leg.departure));
+        instructions.add(start);
+        PointList endPoints = new PointList(1, false);
+        endPoints.add(network.getStopLat(leg.toStop), network.getStopLon(leg.toStop));
+        instructions.add(new Instruction(Instruction.PT_END_TRIP, timetable.getHeadsign(leg.trip), endPoints));
+
+        legs.add(new Trip.PtLeg(timetable.getTripFeed(leg.trip), false, timetable.getTripId(leg.trip), timetable.getRouteId(leg.trip),
+                timetable.getHeadsign(leg.trip), stops, distance, 1000L * (leg.arrival - leg.departure),
+                geometryFactory.createLineString(coordinates)));
+        return distance;
+    }
+
+    private static Date toDate(ZonedDateTime midnight, int seconds) {
+        return Date.from(midnight.plusSeconds(seconds).toInstant());
+    }
+}
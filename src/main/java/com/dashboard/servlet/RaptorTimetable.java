@@ -0,0 +1,320 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Service;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The trips of a service date compiled in primitive arrays for the RaptorRouter.
+ * <p>
+ * The trips with the same feed and sequence of stops form a pattern (the "route" of RAPTOR), with the trips sorted by
+ * departure. The arrival and departure times of a trip are stored consecutively, in seconds from the midnight of the
+ * date; the trips of the previous day that end after midnight are included with their times shifted by one day.
+ * Frequency based trips are not supported, and the trips of a pattern are assumed not to overtake each other.
+ */
+public class RaptorTimetable {
+    private static final int DAY = 24 * 3600;
+
+    // Stops of each pattern: patternStops from patternStopOffsets[p] to patternStopOffsets[p + 1]
+    private final int[] patternStopOffsets;
+    private final int[] patternStops;
+    // Trips of each pattern: from patternTripOffsets[p] to patternTripOffsets[p + 1]
+    private final int[] patternTripOffsets;
+    // Times of each trip: arrivals and departures from tripTimeOffsets[t], one per stop of its pattern
+    private final int[] tripTimeOffsets;
+    private final int[] arrivals;
+    private final int[] departures;
+    private final String[] tripIds;
+    private final String[] routeIds;
+    private final String[] headsigns;
+    private final String[] tripFeeds;
+    // Patterns of each stop, with the position of the stop: from stopPatternOffsets[s] to stopPatternOffsets[s + 1]
+    private final int[] stopPatternOffsets;
+    private final int[] stopPatterns;
+    private final int[] stopPatternPositions;
+
+    /**
+     * Timetable of the arrays as built by compile, also used by the tests.
+     */
+    RaptorTimetable(int[] patternStopOffsets, int[] patternStops, int[] patternTripOffsets, int[] tripTimeOffsets,
+                    int[] arrivals, int[] departures, String[] tripIds, String[] routeIds, String[] headsigns,
+                    String[] tripFeeds, int stopCount) {
+        this.patternStopOffsets = patternStopOffsets;
+        this.patternStops = patternStops;
+        this.patternTripOffsets = patternTripOffsets;
+        this.tripTimeOffsets = tripTimeOffsets;
+        this.arrivals = arrivals;
+        this.departures = departures;
+        this.tripIds = tripIds;
+        this.routeIds = routeIds;
+        this.headsigns = headsigns;
+        this.tripFeeds = tripFeeds;
+
+        // Invert the patterns
+        stopPatternOffsets = new int[stopCount + 1];
+        for (int stop : patternStops) {
+            stopPatternOffsets[stop + 1]++;
+        }
+        for (int s = 0; s < stopCount; s++) {
+            stopPatternOffsets[s + 1] += stopPatternOffsets[s];
+        }
+        stopPatterns = new int[patternStops.length];
+        stopPatternPositions = new int[patternStops.length];
+        int[] next = Arrays.copyOf(stopPatternOffsets, stopCount);
+        for (int p = 0; p < getPatternCount(); p++) {
+            for (int i = patternStopOffsets[p]; i < patternStopOffsets[p + 1]; i++) {
+                int slot = next[patternStops[i]]++;
+                stopPatterns[slot] = p;
+                stopPatternPositions[slot] = i - patternStopOffsets[p];
+            }
+        }
+    }
+
+    // A trip while compiling
+    private static class TripTimes {
+        final String feedId;
+        final Trip trip;
+        final int[] arrivals;
+        final int[] departures;
+
+        TripTimes(String feedId, Trip trip, int[] arrivals, int[] departures) {
+            this.feedId = feedId;
+            this.trip = trip;
+            this.arrivals = arrivals;
+            this.departures = departures;
+        }
+    }
+
+    /**
+     * Compile the trips of the feeds running on a date.
+     */
+    public static RaptorTimetable compile(RaptorNetwork network, Map<String, GTFSFeed> feeds, LocalDate date) {
+        long start = System.nanoTime();
+        Map<String, List<TripTimes>> patterns = new LinkedHashMap<>();
+        Map<String, int[]> patternStopsByKey = new HashMap<>();
+        for (Map.Entry<String, GTFSFeed> entry : feeds.entrySet()) {
+            String feedId = entry.getKey();
+            GTFSFeed feed = entry.getValue();
+            for (Trip trip : feed.trips.values()) {
+                Service service = feed.services.get(trip.service_id);
+                if (service == null) {
+                    continue;
+                }
+                boolean today = service.activeOn(date);
+                boolean yesterday = service.activeOn(date.minusDays(1));
+                if (!today && !yesterday) {
+                    continue;
+                }
+                List<StopTime> stopTimes = new ArrayList<>();
+                try {
+                    for (StopTime stopTime : feed.getInterpolatedStopTimesForTrip(trip.trip_id)) {
+                        stopTimes.add(stopTime);
+                    }
+                } catch (Exception e) {
+                    // The trip has no times at its first or last stop
+                    continue;
+                }
+                if (stopTimes.size() < 2) {
+                    continue;
+                }
+                int[] stops = new int[stopTimes.size()];
+                int[] arrivals = new int[stops.length];
+                int[] departures = new int[stops.length];
+                StringBuilder key = new StringBuilder(feedId);
+                for (int i = 0; i < stops.length; i++) {
+                    StopTime stopTime = stopTimes.get(i);
+                    stops[i] = network.getStop(feedId, stopTime.stop_id);
+                    arrivals[i] = stopTime.arrival_time;
+                    departures[i] = stopTime.departure_time;
+                    key.append(',').append(stops[i]);
+                }
+                if (today) {
+                    addTrip(patterns, patternStopsByKey, key.toString(), stops, new TripTimes(feedId, trip, arrivals, departures));
+                }
+                // The part of the trip of the previous day after midnight
+                if (yesterday && arrivals[arrivals.length - 1] >= DAY) {
+                    addTrip(patterns, patternStopsByKey, key.toString(), stops, new TripTimes(feedId, trip,
+                            shift(arrivals), shift(departures)));
+                }
+            }
+        }
+
+        int patternCount = patterns.size();
+        int tripCount = 0;
+        int stopEntries = 0;
+        int timeEntries = 0;
+        for (Map.Entry<String, List<TripTimes>> pattern : patterns.entrySet()) {
+            int stops = patternStopsByKey.get(pattern.getKey()).length;
+            tripCount += pattern.getValue().size();
+            stopEntries += stops;
+            timeEntries += stops * pattern.getValue().size();
+        }
+        int[] patternStopOffsets = new int[patternCount + 1];
+        int[] patternStops = new int[stopEntries];
+        int[] patternTripOffsets = new int[patternCount + 1];
+        int[] tripTimeOffsets = new int[tripCount];
+        int[] arrivals = new int[timeEntries];
+        int[] departures = new int[timeEntries];
+        String[] tripIds = new String[tripCount];
+        String[] routeIds = new String[tripCount];
+        String[] headsigns = new String[tripCount];
+        String[] tripFeeds = new String[tripCount];
+        int p = 0;
+        int t = 0;
+        int stopOffset = 0;
+        int timeOffset = 0;
+        for (Map.Entry<String, List<TripTimes>> pattern : patterns.entrySet()) {
+            int[] stops = patternStopsByKey.get(pattern.getKey());
+            patternStopOffsets[p] = stopOffset;
+            System.arraycopy(stops, 0, patternStops, stopOffset, stops.length);
+            stopOffset += stops.length;
+
+            List<TripTimes> trips = pattern.getValue();
+            trips.sort((a, b) -> Integer.compare(a.departures[0], b.departures[0]));
+            patternTripOffsets[p] = t;
+            for (TripTimes trip : trips) {
+                tripTimeOffsets[t] = timeOffset;
+                System.arraycopy(trip.arrivals, 0, arrivals, timeOffset, stops.length);
+                System.arraycopy(trip.departures, 0, departures, timeOffset, stops.length);
+                timeOffset += stops.length;
+                tripIds[t] = trip.trip.trip_id;
+                routeIds[t] = trip.trip.route_id;
+                headsigns[t] = trip.trip.trip_headsign;
+                tripFeeds[t] = trip.feedId;
+                t++;
+            }
+            p++;
+        }
+        patternStopOffsets[patternCount] = stopOffset;
+        patternTripOffsets[patternCount] = t;
+
+        RaptorTimetable timetable = new RaptorTimetable(patternStopOffsets, patternStops, patternTripOffsets, tripTimeOffsets,
+                arrivals, departures, tripIds, routeIds, headsigns, tripFeeds, network.getStopCount());
+        System.out.printf("RAPTOR timetable of %s: %d patterns, %d trips in %d ms%n", date, patternCount, tripCount,
+                (System.nanoTime() - start) / 1_000_000);
+        return timetable;
+    }
+
+    private static void addTrip(Map<String, List<TripTimes>> patterns, Map<String, int[]> patternStopsByKey, String key, int[] stops,
+                                TripTimes trip) {
+        for (int stop : stops) {
+            if (stop < 0) {
+                return;
+            }
+        }
+        patternStopsByKey.putIfAbsent(key, stops);
+        patterns.computeIfAbsent(key, k -> new ArrayList<>()).add(trip);
+    }
+
+    private static int[] shift(int[] times) {
+        int[] shifted = new int[times.length];
+        for (int i = 0; i < times.length; i++) {
+            shifted[i] = times[i] - DAY;
+        }
+        return shifted;
+    }
+
+    public int getPatternCount() {
+        return patternTripOffsets.length - 1;
+    }
+
+    public int getPatternStopCount(int pattern) {
+        return patternStopOffsets[pattern + 1] - patternStopOffsets[pattern];
+    }
+
+    public int getPatternStop(int pattern, int position) {
+        return patternStops[patternStopOffsets[pattern] + position];
+    }
+
+    public int getFirstTrip(int pattern) {
+        return patternTripOffsets[pattern];
+    }
+
+    /**
+     * @return the trip after the last one of the pattern
+     */
+    public int getEndTrip(int pattern) {
+        return patternTripOffsets[pattern + 1];
+    }
+
+    public int getArrival(int trip, int position) {
+        return arrivals[tripTimeOffsets[trip] + position];
+    }
+
+    public int getDeparture(int trip, int position) {
+        return departures[tripTimeOffsets[trip] + position];
+    }
+
+    /**
+     * @return the first trip of the pattern departing from the position at or after the time, -1 if there is none
+     */
+    public int findTrip(int pattern, int position, int time) {
+        // Binary search, the trips do not overtake each other
+        int low = patternTripOffsets[pattern];
+        int high = patternTripOffsets[pattern + 1] - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getDeparture(middle, position) >= time) {
+                found = middle;
+                high = middle - 1;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return found;
+    }
+
+    public String getTripId(int trip) {
+        return tripIds[trip];
+    }
+
+    public String getRouteId(int trip) {
+        return routeIds[trip];
+    }
+
+    public String getHeadsign(int trip) {
+        return headsigns[trip];
+    }
+
+    public String getTripFeed(int trip) {
+        return tripFeeds[trip];
+    }
+
+    public int getStopPatternStart(int stop) {
+        return stopPatternOffsets[stop];
+    }
+
+    public int getStopPatternEnd(int stop) {
+        return stopPatternOffsets[stop + 1];
+    }
+
+    public int getStopPattern(int index) {
+        return stopPatterns[index];
+    }
+
+    public int getStopPatternPosition(int index) {
+        return stopPatternPositions[index];
+    }
+}
@@ -0,0 +1,253 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.graphhopper.GraphHopperConfig;
+import com.graphhopper.gtfs.GraphHopperGtfs;
+import com.graphhopper.gtfs.PtRouter;
+import com.graphhopper.gtfs.PtRouterImpl;
+import com.graphhopper.gtfs.RealtimeFeed;
+import com.graphhopper.gtfs.Transfers;
+import com.graphhopper.util.TranslationMap;
+import com.graphhopper.util.details.PathDetailsBuilderFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The public transport router shared by the requests, with the GTFS-realtime updates applied.
+ * <p>
+ * The GTFS graph is loaded once and the PtRouter is replaced at every update: a request uses the router it got, so an
+ * update never blocks the routing. The updates are FeedMessage files read from GH_GTFS_RT_PATH every
+ * GH_GTFS_RT_INTERVAL seconds (default 30), or posted to /route/pt/realtime. The files in the folder are for the first
+ * GTFS feed (gtfs_0), the ones in a subfolder named as a feed id (e.g. gtfs_1) for that feed.
+ * <p>
+ * The entities of the updates are merged by id: a FULL_DATASET message replaces the entities of its feed, a
+ * DIFFERENTIAL one adds, replaces or (with is_deleted) removes only the entities it contains. The realtime overlay is
+ * then built from the merged entities, so its cost depends on the trips with updates, not on the size of the GTFS.
+ */
+public class RealtimePtRouter {
+    private static final String REALTIME_PATH = System.getenv("GH_GTFS_RT_PATH");
+    private static final int INTERVAL_SECONDS = EnvConfig.getInt("GH_GTFS_RT_INTERVAL", 30);
+    public static final String DEFAULT_FEED = "gtfs_0";
+
+    private static GraphHopperConfig config;
+    private static volatile GraphHopperGtfs hopper;
+    private static TranslationMap translationMap;
+    private static Map<String, Transfers> transfers;
+    private static volatile PtRouter router;
+
+    // Merged entities of every feed, guarded by the class lock
+    private static final Map<String, Map<String, GtfsRealtime.FeedEntity>> entitiesByFeed = new HashMap<>();
+    private static final Map<String, GtfsRealtime.FeedMessage> mergedFeeds = new HashMap<>();
+    // Last modified time of the files already read
+    private static final Map<String, Long> readFiles = new HashMap<>();
+    private static ScheduledExecutorService poller;
+
+    private RealtimePtRouter() {
+    }
+
+    /**
+     * @return the GTFS GraphHopper instance, loaded at the first call
+     */
+    public static GraphHopperGtfs getHopper() {
+        if (router == null) {
+            init();
+        }
+        return hopper;
+    }
+
+    /**
+     * @return if the GTFS graph has been loaded
+     */
+    public static boolean isLoaded() {
+        return router != null;
+    }
+
+    /**
+     * @return the router with the latest realtime updates
+     */
+    public static PtRouter getRouter() {
+        // Once loaded the router is read without locks, the updates replace it
+        if (router == null) {
+            init();
+        }
+        return router;
+    }
+
+    private static synchronized void init() {
+        if (router != null) {
+            return;
+        }
+        config = Servlet.createConfig();
+        GraphHopperGtfs gtfs = Servlet.initGHGtfs(config);
+        translationMap = new TranslationMap().doImport();
+        // As PtRouterImpl.Factory, the transfers are calculated once per feed
+        transfers = new HashMap<>();
+        gtfs.getGtfsStorage().getGtfsFeeds().forEach((id, feed) -> transfers.put(id, new Transfers(feed)));
+        // The names of the routes written in the responses are indexed with the graph
+        GtfsMetadataIndex.get(gtfs);
+        hopper = gtfs;
+        router = new PtRouterImpl.Factory(config, translationMap, gtfs.getBaseGraph(), gtfs.getEncodingManager(),
+                gtfs.getLocationIndex(), gtfs.getGtfsStorage()).createWithoutRealtimeFeed();
+
+        if (REALTIME_PATH != null) {
+            poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "gtfs-realtime");
+                thread.setDaemon(true);
+                return thread;
+            });
+            poller.scheduleWithFixedDelay(RealtimePtRouter::readFolder, 0, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop reading the realtime folder and close the GTFS graph, when the application is stopped (see RouterLifecycle).
+     */
+    public static synchronized void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+        if (hopper != null) {
+            router = null;
+            hopper.close();
+            hopper = null;
+        }
+    }
+
+    /**
+     * @return the ids of the GTFS feeds
+     */
+    public static Set<String> getFeedIds() {
+        return getHopper().getGtfsStorage().getGtfsFeeds().keySet();
+    }
+
+    /**
+     * Apply a FeedMessage to a feed and replace the router.
+     *
+     * @param feedId the GTFS feed of the message, e.g. gtfs_0
+     * @param in the FeedMessage
+     * @return the number of entities of the feed after the update
+     * @throws IllegalArgumentException if the feed does not exist
+     * @throws IOException if the message cannot be read
+     */
+    public static int apply(String feedId, InputStream in) throws IOException {
+        if (!getFeedIds().contains(feedId)) {
+            throw new IllegalArgumentException("unknown GTFS feed: " + feedId);
+        }
+        return apply(feedId, GtfsRealtime.FeedMessage.parseFrom(in));
+    }
+
+    private static synchronized int apply(String feedId, GtfsRealtime.FeedMessage message) {
+        Map<String, GtfsRealtime.FeedEntity> entities = entitiesByFeed.computeIfAbsent(feedId, id -> new LinkedHashMap<>());
+        Map<String, GtfsRealtime.FeedEntity> previous = new LinkedHashMap<>(entities);
+        if (message.getHeader().getIncrementality() == GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET) {
+            entities.clear();
+        }
+        for (GtfsRealtime.FeedEntity entity : message.getEntityList()) {
+            if (entity.getIsDeleted()) {
+                entities.remove(entity.getId());
+            } else {
+                entities.put(entity.getId(), entity);
+            }
+        }
+        GtfsRealtime.FeedMessage merged = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(message.getHeader().toBuilder().setIncrementality(GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET))
+                .addAllEntity(entities.values())
+                .build();
+        GtfsRealtime.FeedMessage previousMerged = mergedFeeds.put(feedId, merged);
+
+        try {
+            RealtimeFeed realtimeFeed = RealtimeFeed.fromProtobuf(hopper.getGtfsStorage(), transfers, new HashMap<>(mergedFeeds));
+            router = new PtRouterImpl(config, translationMap, hopper.getBaseGraph(), hopper.getEncodingManager(),
+                    hopper.getLocationIndex(), hopper.getGtfsStorage(), realtimeFeed, new PathDetailsBuilderFactory());
+        } catch (RuntimeException e) {
+            // The router keeps the previous updates
+            entities.clear();
+            entities.putAll(previous);
+            if (previousMerged != null) {
+                mergedFeeds.put(feedId, previousMerged);
+            } else {
+                mergedFeeds.remove(feedId);
+            }
+            throw e;
+        }
+        return entities.size();
+    }
+
+    // Read the new files of the realtime folder, in the order they were written
+    private static void readFolder() {
+        try {
+            File folder = new File(REALTIME_PATH);
+            readFolder(folder, DEFAULT_FEED);
+            File[] feedFolders = folder.listFiles(File::isDirectory);
+            if (feedFolders != null) {
+                for (File feedFolder : feedFolders) {
+                    readFolder(feedFolder, feedFolder.getName());
+                }
+            }
+        } catch (RuntimeException e) {
+            // An exception would stop the scheduled updates
+            System.out.println("Error while reading the GTFS-realtime updates: " + e.getMessage());
+        }
+    }
+
+    private static void readFolder(File folder, String feedId) {
+        File[] files = folder.listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        if (!getFeedIds().contains(feedId)) {
+            System.out.println("Skipping the GTFS-realtime updates in " + folder + ": unknown GTFS feed " + feedId);
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        // Forget the files that have been removed, the folder can receive a new file for every update
+        Set<String> paths = new HashSet<>();
+        for (File file : files) {
+            paths.add(file.getPath());
+        }
+        String prefix = folder.getPath() + File.separator;
+        readFiles.keySet().removeIf(path -> path.startsWith(prefix) && path.indexOf(File.separatorChar, prefix.length()) < 0
+                && !paths.contains(path));
+        for (File file : files) {
+            Long read = readFiles.get(file.getPath());
+            if (read != null && read == file.lastModified()) {
+                continue;
+            }
+            readFiles.put(file.getPath(), file.lastModified());
+            long start = System.nanoTime();
+            try (InputStream in = new FileInputStream(file)) {
+                int entities = apply(feedId, GtfsRealtime.FeedMessage.parseFrom(in));
+                System.out.printf("GTFS-realtime update %s applied to %s (%d entities) in %d ms%n", file.getName(), feedId, entities,
+                        (System.nanoTime() - start) / 1_000_000);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error while applying the GTFS-realtime update " + file + ": " + e.getMessage());
+            }
+        }
+    }
+}
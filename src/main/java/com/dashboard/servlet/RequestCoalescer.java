@@ -0,0 +1,240 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight coalescing of identical requests.
+ * <p>
+ * The first request with a key computes the response, while the requests with the same key that arrive before it
+ * ends wait for it and share its body instead of computing it again. The body is serialized in memory only when
+ * another request is waiting, otherwise it is streamed as usual. A waiting request computes the response on its own
+ * if the computation takes longer than GH_COALESCING_WAIT seconds (default 60). Nothing is kept after the computation
+ * ends, so this is not a cache: only concurrent duplicates are coalesced (e.g. the dashboards that request the same
+ * route when a scenario is published). The number of computations and of coalesced requests is counted for the
+ * /route/coalescing endpoint.
+ */
+public class RequestCoalescer {
+
+    /**
+     * A response with its body serialized, that can be written to many clients.
+     */
+    public static class BufferedResponse implements StreamingOutput {
+        private final int status;
+        private final String contentType;
+        private final byte[] body;
+
+        public BufferedResponse(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            output.write(body);
+        }
+
+        /**
+         * @return a response with this body, for one of the requests that share it
+         */
+        public Response toResponse() {
+            return Response.status(status).header("Content-Type", contentType).entity(this).build();
+        }
+    }
+
+    // A computation in progress, with the number of requests waiting for it
+    private static class Flight {
+        final CompletableFuture<BufferedResponse> future = new CompletableFuture<>();
+        private int waiters;
+        private boolean landed;
+
+        // Wait for the response, false if the computation has already ended
+        synchronized boolean attach() {
+            if (landed) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        // No other request can wait for the response after this
+        synchronized int land() {
+            landed = true;
+            return waiters;
+        }
+
+        synchronized int getWaiters() {
+            return waiters;
+        }
+    }
+
+    private static final int WAIT_SECONDS = EnvConfig.getInt("GH_COALESCING_WAIT", 60);
+
+    private static final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+    private static final AtomicLong computations = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+
+    private RequestCoalescer() {
+    }
+
+    /**
+     * Compute the response of a request, or wait for the computation of an identical request in progress.
+     *
+     * @param key the normalized request (see key)
+     * @param computation computes the response, it is called only if no identical request is in progress or it
+     * takes too long
+     * @return the response of the computation, or a response with its serialized body if other requests share it
+     * @throws Exception the exception of the computation, also for the requests that waited for it
+     */
+    public static Response execute(String key, Callable<Response> computation) throws Exception {
+        Flight flight = new Flight();
+        Flight existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            if (existing.attach()) {
+                try {
+                    BufferedResponse response = existing.future.get(WAIT_SECONDS, TimeUnit.SECONDS);
+                    coalesced.incrementAndGet();
+                    return response.toResponse();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                } catch (TimeoutException e) {
+                    // Computed again below, e.g. while the first request is loading the graph
+                }
+            }
+            computations.incrementAndGet();
+            return computation.call();
+        }
+
+        computations.incrementAndGet();
+        try {
+            Response response = computation.call();
+            inFlight.remove(key, flight);
+            if (flight.land() == 0) {
+                // Nobody is waiting, the body is streamed without serializing it in memory
+                return response;
+            }
+            BufferedResponse buffered = buffer(response);
+            flight.future.complete(buffered);
+            return buffered.toResponse();
+        } catch (Exception | Error e) {
+            inFlight.remove(key, flight);
+            flight.land();
+            flight.future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Serialize the body of a response built by the servlet (a String, a byte array or a StreamingOutput).
+     */
+    public static BufferedResponse buffer(Response response) throws IOException {
+        Object contentType = response.getMetadata().getFirst("Content-Type");
+        Object entity = response.getEntity();
+        byte[] body;
+        if (entity instanceof StreamingOutput) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ((StreamingOutput) entity).write(output);
+            body = output.toByteArray();
+        } else if (entity instanceof byte[]) {
+            body = (byte[]) entity;
+        } else {
+            body = entity == null ? new byte[0] : entity.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return new BufferedResponse(response.getStatus(), contentType == null ? null : contentType.toString(), body);
+    }
+
+    /**
+     * Build the key of a request from its normalized parts.
+     */
+    public static String key(Object... parts) {
+        StringBuilder key = new StringBuilder();
+        for (Object part : parts) {
+            key.append(part).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the SHA-256 of a value, to keep long parameters (e.g. avoid_area) out of the keys
+     */
+    public static String hash(String value) {
+        if (value.isEmpty()) {
+            return "";
+        }
+        try {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of responses computed
+     */
+    public static long getComputations() {
+        return computations.get();
+    }
+
+    /**
+     * @return the number of requests that shared the response of an identical request, i.e. the computations saved
+     */
+    public static long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public static int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the number of requests waiting for the computation of a key
+     */
+    static int getWaiters(String key) {
+        Flight flight = inFlight.get(key);
+        return flight == null ? 0 : flight.getWaiters();
+    }
+}
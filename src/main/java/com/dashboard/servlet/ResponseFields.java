@@ -0,0 +1,68 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selection of the path fields to put in the response, from the "fields" parameter (e.g. fields=points,time,distance).
+ * An empty selection means that all the fields are returned, as before the parameter was introduced.
+ */
+public class ResponseFields {
+    public static final String WKT = "wkt";
+    public static final String BBOX = "bbox";
+    public static final String POINTS = "points";
+    public static final String TIME = "time";
+    public static final String DISTANCE = "distance";
+    public static final String INSTRUCTIONS = "instructions";
+
+    private static final List<String> KNOWN_FIELDS = Arrays.asList(WKT, BBOX, POINTS, TIME, DISTANCE, INSTRUCTIONS);
+
+    public static final ResponseFields ALL = new ResponseFields(Collections.emptySet());
+
+    private final Set<String> fields;
+
+    private ResponseFields(Set<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Parse the comma separated list of fields.
+     *
+     * @param fields the value of the "fields" parameter
+     * @return the selection, ALL if the parameter is empty
+     * @throws IllegalArgumentException if a field is not one of wkt, bbox, points, time, distance, instructions
+     */
+    public static ResponseFields parse(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return ALL;
+        }
+        Set<String> selected = new HashSet<>();
+        for (String field : fields.split(",")) {
+            field = field.trim();
+            if (!KNOWN_FIELDS.contains(field)) {
+                throw new IllegalArgumentException("unknown field " + field + ", possible values: " + KNOWN_FIELDS);
+            }
+            selected.add(field);
+        }
+        return new ResponseFields(selected);
+    }
+
+    public boolean has(String field) {
+        return fields.isEmpty() || fields.contains(field);
+    }
+}
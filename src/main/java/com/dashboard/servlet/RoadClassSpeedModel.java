@@ -0,0 +1,64 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.ev.RoadClass;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Speed from a table for each road class: the fraction of the free flow speed is interpolated between the points
+ * (density / max density, speed fraction) of the table of the class.
+ * <p>
+ * Roads with more lanes and no intersections keep their speed longer, while urban roads slow down early.
+ */
+public class RoadClassSpeedModel implements SpeedModel {
+    public static final String NAME = "road_class";
+
+    // density / max density
+    private static final double[] RATIOS = {0, 0.25, 0.5, 0.75, 1, 1.5};
+    // speed fraction at each ratio
+    private static final double[] FAST_ROADS = {1, 0.98, 0.9, 0.65, 0.3, 0.1};
+    private static final double[] MAIN_ROADS = {1, 0.9, 0.75, 0.5, 0.25, 0.1};
+    private static final double[] LOCAL_ROADS = {1, 0.8, 0.55, 0.35, 0.2, 0.1};
+
+    private final Map<RoadClass, double[]> tables = new EnumMap<>(RoadClass.class);
+
+    public RoadClassSpeedModel() {
+        tables.put(RoadClass.MOTORWAY, FAST_ROADS);
+        tables.put(RoadClass.TRUNK, FAST_ROADS);
+        tables.put(RoadClass.PRIMARY, MAIN_ROADS);
+        tables.put(RoadClass.SECONDARY, MAIN_ROADS);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public double getSpeed(double freeFlowSpeed, double density, double maxDensity, RoadClass roadClass) {
+        double[] table = tables.getOrDefault(roadClass, LOCAL_ROADS);
+        double ratio = density / maxDensity;
+        if (ratio >= RATIOS[RATIOS.length - 1]) {
+            return freeFlowSpeed * table[table.length - 1];
+        }
+        int i = 1;
+        while (RATIOS[i] < ratio) {
+            i++;
+        }
+        double t = (ratio - RATIOS[i - 1]) / (RATIOS[i] - RATIOS[i - 1]);
+        return freeFlowSpeed * (table[i - 1] + t * (table[i] - table[i - 1]));
+    }
+}
@@ -0,0 +1,421 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.FetchMode;
+import com.graphhopper.util.PointList;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Mapping between the edges of the graph and the road elements of the traffic data, built once after the import.
+ * <p>
+ * A road element is a piece of an OSM way, and its id contains the id of the way (e.g. OS00037024979RE/2). Every edge
+ * is assigned to the road element of its way that covers it:
+ * <ul>
+ *     <li>if the way has a single road element, it covers all the edges of the way;</li>
+ *     <li>if the geometries of the road elements are available (GeoJSON in GH_ROAD_ELEMENTS_PATH), the edge is
+ *     assigned to the road element closest to its middle point;</li>
+ *     <li>otherwise the road elements are sorted by their number (the one after the last '/') and split the length
+ *     of the way in equal parts, in the order of its edges.</li>
+ * </ul>
+ * The result is indexed by edge id, so the traffic of an edge is found with a single read at query time. It is stored
+ * in a DataAccess of the graph folder (see CustomDataAccess), with the ids of the road elements in a JSON file, and
+ * shared by all the requests on the same graph.
+ * <p>
+ * The index remembers the files it was built from (see getSources). When they change it is built again in new files,
+ * and the road_element_index.json file of the graph folder is switched to them. The old files are deleted, but they
+ * stay mapped until the requests still reading the old index release it.
+ */
+public class RoadElementIndex {
+    public static final String NAME = "edge_road_element";
+    public static final String IDS_FILE_NAME = "road_element_ids.json";
+    public static final String INDEX_FILE_NAME = "road_element_index.json";
+    public static final int NO_ELEMENT = -1;
+
+    // e.g. OS00037024979RE/2: the way id is the number between the prefix and "RE", the ordinal follows the '/'
+    private static final Pattern ELEMENT_ID = Pattern.compile("^[A-Za-z]*(\\d+)RE(/\\d+)?$");
+    private static final Pattern DIGITS = Pattern.compile("\\d+");
+    private static final int MIN_WAY_ID_DIGITS = 6;
+
+    private static final long SOURCES_CHECK_INTERVAL = EnvConfig.getInt("GH_ROAD_ELEMENTS_CHECK_SECONDS", 60) * 1000L;
+
+    // The indexes loaded by graph folder
+    private static final Map<String, RoadElementIndex> indexes = new ConcurrentHashMap<>();
+    // The last sources found by folders, with the time they were listed
+    private static final Map<String, String> sources = new ConcurrentHashMap<>();
+    private static final Map<String, Long> sourcesChecked = new ConcurrentHashMap<>();
+
+    private final String[] elementIds;
+    private final Map<String, Integer> elementsById = new HashMap<>();
+    private final DataAccess edgeToElement;  // 4 bytes per edge
+    private final int edgeCount;
+    private final String builtFrom;  // see getSources
+    private final String name;
+    private final String idsFileName;
+
+    private RoadElementIndex(String[] elementIds, DataAccess edgeToElement, int edgeCount, String builtFrom, String name,
+                             String idsFileName) {
+        this.elementIds = elementIds;
+        this.edgeToElement = edgeToElement;
+        this.edgeCount = edgeCount;
+        this.builtFrom = builtFrom;
+        this.name = name;
+        this.idsFileName = idsFileName;
+        for (int i = 0; i < elementIds.length; i++) {
+            elementsById.put(elementIds[i], i);
+        }
+    }
+
+    /**
+     * Get the index of a graph folder.
+     *
+     * @return the index or null if the road elements have not been matched yet
+     */
+    public static RoadElementIndex load(String location) {
+        return indexes.computeIfAbsent(location, RoadElementIndex::loadExisting);
+    }
+
+    private static RoadElementIndex loadExisting(String location) {
+        // The files of the current version are named in the index file, the first version has no index file
+        String name = NAME;
+        String idsFileName = IDS_FILE_NAME;
+        String builtFrom = "";
+        try {
+            File indexFile = new File(location, INDEX_FILE_NAME);
+            if (indexFile.exists()) {
+                JSONObject index = new JSONObject(FileUtils.readFileToString(indexFile));
+                name = index.getString("name");
+                idsFileName = index.getString("ids");
+                builtFrom = index.getString("sources");
+            }
+            File idsFile = new File(location, idsFileName);
+            if (!idsFile.exists()) {
+                return null;
+            }
+            DataAccess da = CustomDataAccess.createDirectory(location).create(name);
+            if (!da.loadExisting()) {
+                return null;
+            }
+            JSONArray elements = new JSONArray(FileUtils.readFileToString(idsFile));
+            String[] elementIds = new String[elements.length()];
+            for (int i = 0; i < elementIds.length; i++) {
+                elementIds[i] = elements.getString(i);
+            }
+            return new RoadElementIndex(elementIds, da, da.getHeader(0), builtFrom, name, idsFileName);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error while reading the road element ids: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Forget the index of a graph folder, e.g. because the graph is imported again. The index stays open for the
+     * requests still using it.
+     */
+    public static void invalidate(String location) {
+        indexes.remove(location);
+    }
+
+    /**
+     * Describe the files the road elements are read from: the name, size and modification time of the traffic data
+     * files (*.json) in a folder and of the geometry file. The folder is listed at most once a minute (or every
+     * GH_ROAD_ELEMENTS_CHECK_SECONDS), in between the last result is returned.
+     *
+     * @param trafficFolder the folder of the traffic data (GH_TYPICAL_TTT_PATH)
+     * @param geometries the GeoJSON file of the geometries (GH_ROAD_ELEMENTS_PATH)
+     */
+    public static String getSources(File trafficFolder, File geometries) {
+        String key = trafficFolder.getPath() + "|" + geometries.getPath();
+        long now = System.currentTimeMillis();
+        Long checked = sourcesChecked.get(key);
+        String found = sources.get(key);
+        if (found != null && checked != null && now - checked < SOURCES_CHECK_INTERVAL) {
+            return found;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (File file : getTrafficFiles(trafficFolder)) {
+            sb.append(file.getName()).append(':').append(EdgeTrafficTable.getStamp(file)).append(';');
+        }
+        if (geometries.exists()) {
+            sb.append(geometries.getName()).append(':').append(EdgeTrafficTable.getStamp(geometries));
+        }
+        found = sb.toString();
+        sources.put(key, found);
+        sourcesChecked.put(key, now);
+        return found;
+    }
+
+    /**
+     * @return the traffic data files (*.json) of a folder sorted by name, empty if the folder does not exist
+     */
+    public static List<File> getTrafficFiles(File trafficFolder) {
+        File[] files = trafficFolder.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> sorted = new ArrayList<>(Arrays.asList(files));
+        sorted.sort(Comparator.comparing(File::getName));
+        return sorted;
+    }
+
+    /**
+     * Match the road elements to the edges of the graph.
+     *
+     * @param location graph folder, where the index is saved
+     * @param graph the imported graph
+     * @param edgeToWay the way id of each edge
+     * @param elementIds ids of the road elements, e.g. the keys of the traffic data
+     * @param geometries geometries of the road elements (can be empty or miss some of them)
+     * @param builtFrom the files of the road elements (see getSources)
+     */
+    public static RoadElementIndex build(String location, BaseGraph graph, EdgeToWayStore edgeToWay, Collection<String> elementIds,
+                                         Map<String, PointList> geometries, String builtFrom) throws IOException {
+        String[] ids = elementIds.toArray(new String[0]);
+        Map<Long, List<Integer>> elementsByWay = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            for (long wayId : getWayIdCandidates(ids[i])) {
+                elementsByWay.computeIfAbsent(wayId, k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        // New files for every version, the previous one could still be mapped by the requests using it
+        String version = Long.toString(System.currentTimeMillis());
+        String name = NAME + "_" + version;
+        String idsFileName = "road_element_ids_" + version + ".json";
+        int edgeCount = edgeToWay.getEdgeCount();
+        DataAccess edgeToElement = CustomDataAccess.createDirectory(location).create(name);
+        edgeToElement.create(Math.max(4L * edgeCount, 1 << 10));
+        edgeToElement.ensureCapacity(4L * edgeCount);
+        int edge = 0;
+        // The edges of a way are consecutive (see EdgeToWayRecorder), so the ways are visited one after the other
+        while (edge < edgeCount) {
+            long wayId = edgeToWay.getWayId(edge);
+            int end = edge;
+            while (end < edgeCount && edgeToWay.getWayId(end) == wayId) {
+                end++;
+            }
+            List<Integer> elements = elementsByWay.getOrDefault(wayId, Collections.emptyList());
+            if (elements.isEmpty()) {
+                for (int e = edge; e < end; e++) edgeToElement.setInt(4L * e, NO_ELEMENT);
+            } else if (elements.size() == 1) {
+                for (int e = edge; e < end; e++) edgeToElement.setInt(4L * e, elements.get(0));
+            } else if (hasGeometries(ids, elements, geometries)) {
+                for (int e = edge; e < end; e++) {
+                    edgeToElement.setInt(4L * e, closestElement(graph.getEdgeIteratorState(e, Integer.MIN_VALUE), ids, elements, geometries));
+                }
+            } else {
+                splitByLength(graph, edge, end, ids, elements, edgeToElement);
+            }
+            edge = end;
+        }
+        edgeToElement.setHeader(0, edgeCount);
+        edgeToElement.flush();
+        FileUtils.writeStringToFile(new File(location, idsFileName), new JSONArray(ids).toString());
+
+        // Switch to the new files, renaming the index file so it is never read half written
+        JSONObject indexJson = new JSONObject();
+        indexJson.put("name", name);
+        indexJson.put("ids", idsFileName);
+        indexJson.put("sources", builtFrom);
+        File indexFile = new File(location, INDEX_FILE_NAME);
+        File tmpFile = new File(location, INDEX_FILE_NAME + ".tmp");
+        FileUtils.writeStringToFile(tmpFile, indexJson.toString());
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        RoadElementIndex index = new RoadElementIndex(ids, edgeToElement, edgeCount, builtFrom, name, idsFileName);
+        RoadElementIndex previous = indexes.put(location, index);
+        if (previous != null) {
+            new File(location, previous.name).delete();
+            new File(location, previous.idsFileName).delete();
+        }
+        return index;
+    }
+
+    /**
+     * @return true if the index was built from the given files (see getSources)
+     */
+    public boolean isBuiltFrom(String sources) {
+        return builtFrom.equals(sources);
+    }
+
+    /**
+     * @return the index of the road element of the edge in getElementIds(), or NO_ELEMENT
+     */
+    public int getElement(int edge) {
+        return edge < edgeCount ? edgeToElement.getInt(4L * edge) : NO_ELEMENT;
+    }
+
+    /**
+     * @return the index of the road element with the given id in getElementIds(), or NO_ELEMENT
+     */
+    public int getElement(String elementId) {
+        return elementsById.getOrDefault(elementId, NO_ELEMENT);
+    }
+
+    public String[] getElementIds() {
+        return elementIds;
+    }
+
+    /**
+     * @return the name of the file of the index, a new one for every build
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Read the geometries of the road elements from a GeoJSON FeatureCollection of LineStrings with an "id" property.
+     *
+     * @return the geometries by road element id, empty if the file does not exist
+     */
+    public static Map<String, PointList> loadGeometries(String path) {
+        Map<String, PointList> geometries = new HashMap<>();
+        File file = new File(path);
+        if (!file.exists()) {
+            return geometries;
+        }
+        try {
+            JSONArray features = new JSONObject(FileUtils.readFileToString(file)).getJSONArray("features");
+            for (int i = 0; i < features.length(); i++) {
+                JSONObject feature = features.getJSONObject(i);
+                JSONArray coordinates = feature.getJSONObject("geometry").getJSONArray("coordinates");
+                PointList points = new PointList(coordinates.length(), false);
+                for (int j = 0; j < coordinates.length(); j++) {
+                    JSONArray coordinate = coordinates.getJSONArray(j);
+                    points.add(coordinate.getDouble(1), coordinate.getDouble(0));
+                }
+                geometries.put(feature.getJSONObject("properties").get("id").toString(), points);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error while reading the road element geometries: " + e.getMessage());
+        }
+        return geometries;
+    }
+
+    /**
+     * Find the way of a road element. In the known format (e.g. OS00037024979RE/2) the way id is the number before
+     * "RE", without the leading zeros. In any other format every number of at least MIN_WAY_ID_DIGITS digits before
+     * the last '/' is a candidate, so the ordinal of the road element is never taken for a way.
+     *
+     * @return the possible way ids, empty if there are none
+     */
+    static List<Long> getWayIdCandidates(String elementId) {
+        Matcher known = ELEMENT_ID.matcher(elementId);
+        if (known.matches()) {
+            return known.group(1).length() <= 18 ? Collections.singletonList(Long.parseLong(known.group(1))) : Collections.emptyList();
+        }
+        int slash = elementId.lastIndexOf('/');
+        List<Long> candidates = new ArrayList<>(1);
+        Matcher matcher = DIGITS.matcher(slash < 0 ? elementId : elementId.substring(0, slash));
+        while (matcher.find()) {
+            int digits = matcher.end() - matcher.start();
+            if (digits >= MIN_WAY_ID_DIGITS && digits <= 18) {
+                candidates.add(Long.parseLong(matcher.group()));
+            }
+        }
+        return candidates;
+    }
+
+    // The number after the last '/' gives the order of the road elements of a way
+    private static long getOrdinal(String elementId) {
+        int slash = elementId.lastIndexOf('/');
+        try {
+            return slash < 0 ? 0 : Long.parseLong(elementId.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean hasGeometries(String[] ids, List<Integer> elements, Map<String, PointList> geometries) {
+        for (int element : elements) {
+            if (!geometries.containsKey(ids[element])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int closestElement(EdgeIteratorState edge, String[] ids, List<Integer> elements, Map<String, PointList> geometries) {
+        PointList points = edge.fetchWayGeometry(FetchMode.ALL);
+        int middle = points.size() / 2;
+        double lat = points.size() % 2 == 1 ? points.getLat(middle) : (points.getLat(middle - 1) + points.getLat(middle)) / 2;
+        double lon = points.size() % 2 == 1 ? points.getLon(middle) : (points.getLon(middle - 1) + points.getLon(middle)) / 2;
+
+        int closest = elements.get(0);
+        double closestDistance = Double.MAX_VALUE;
+        for (int element : elements) {
+            double distance = distance(geometries.get(ids[element]), lat, lon);
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closest = element;
+            }
+        }
+        return closest;
+    }
+
+    // Normalized distance between a point and a line
+    private static double distance(PointList line, double lat, double lon) {
+        DistanceCalcEarth calc = DistanceCalcEarth.DIST_EARTH;
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < line.size(); i++) {
+            min = Math.min(min, calc.calcNormalizedDist(lat, lon, line.getLat(i), line.getLon(i)));
+            if (i > 0 && calc.validEdgeDistance(lat, lon, line.getLat(i - 1), line.getLon(i - 1), line.getLat(i), line.getLon(i))) {
+                min = Math.min(min, calc.calcNormalizedEdgeDistance(lat, lon, line.getLat(i - 1), line.getLon(i - 1), line.getLat(i), line.getLon(i)));
+            }
+        }
+        return min;
+    }
+
+    private static void splitByLength(BaseGraph graph, int start, int end, String[] ids, List<Integer> elements, DataAccess edgeToElement) {
+        List<Integer> sorted = new ArrayList<>(elements);
+        sorted.sort(Comparator.comparingLong(element -> getOrdinal(ids[element])));
+        double length = 0;
+        for (int e = start; e < end; e++) {
+            length += graph.getEdgeIteratorState(e, Integer.MIN_VALUE).getDistance();
+        }
+        double covered = 0;
+        for (int e = start; e < end; e++) {
+            double distance = graph.getEdgeIteratorState(e, Integer.MIN_VALUE).getDistance();
+            // The road element that contains the middle of the edge
+            int part = length > 0 ? (int) ((covered + distance / 2) / length * sorted.size()) : 0;
+            edgeToElement.setInt(4L * e, sorted.get(Math.min(part, sorted.size() - 1)));
+            covered += distance;
+        }
+    }
+}
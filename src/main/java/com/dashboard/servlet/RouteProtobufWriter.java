@@ -0,0 +1,159 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Instruction;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.PointList;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams the routing response as a protobuf RouteResponse message (see route.proto in the resources).
+ * <p>
+ * It is meant for the backend services that only need time, distance, points and the main instruction fields.
+ * The message is encoded with CodedOutputStream from protobuf-java (already on the classpath through the GraphHopper
+ * dependencies), so no generated classes are needed.
+ */
+public class RouteProtobufWriter implements StreamingOutput {
+    public static final String MEDIA_TYPE = "application/x-protobuf";
+
+    private static final double PRECISION = 1e5;
+
+    // RouteResponse fields
+    private static final int RESPONSE_PATHS = 1;
+    private static final int RESPONSE_LIMIT = 2;
+    // RoutePath fields
+    private static final int PATH_DISTANCE = 1;
+    private static final int PATH_TIME = 2;
+    private static final int PATH_POINTS = 3;
+    private static final int PATH_INSTRUCTIONS = 4;
+    // RouteInstruction fields
+    private static final int INSTRUCTION_TEXT = 1;
+    private static final int INSTRUCTION_STREET_NAME = 2;
+    private static final int INSTRUCTION_TIME = 3;
+    private static final int INSTRUCTION_DISTANCE = 4;
+    private static final int INSTRUCTION_SIGN = 5;
+    private static final int INSTRUCTION_INTERVAL_START = 6;
+    private static final int INSTRUCTION_INTERVAL_END = 7;
+
+    private final GHResponse response;
+    private final ResponseFields fields;
+
+    // Buffer reused for the length-delimited nested messages
+    private final ByteArrayOutputStream nested = new ByteArrayOutputStream(4096);
+
+    public RouteProtobufWriter(GHResponse response, ResponseFields fields) {
+        this.response = response;
+        this.fields = fields;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        CodedOutputStream out = CodedOutputStream.newInstance(output);
+        for (ResponsePath path : response.getAll()) {
+            out.writeByteArray(RESPONSE_PATHS, encodePath(path));
+        }
+        String limit = response.getHints().getString(SearchLimits.RESPONSE_HINT, "");
+        if (!limit.isEmpty()) {
+            out.writeString(RESPONSE_LIMIT, limit);
+        }
+        out.flush();
+    }
+
+    private byte[] encodePath(ResponsePath path) throws IOException {
+        // The instructions are encoded first, because they use the same nested buffer
+        byte[][] encodedInstructions = new byte[0][];
+        if (fields.has(ResponseFields.INSTRUCTIONS)) {
+            InstructionList instructions = path.getInstructions();
+            encodedInstructions = new byte[instructions.size()][];
+            int pointsIndex = 0;
+            for (int i = 0; i < instructions.size(); i++) {
+                Instruction instruction = instructions.get(i);
+                encodedInstructions[i] = encodeInstruction(instructions, instruction, pointsIndex);
+                pointsIndex += instruction.getLength();
+            }
+        }
+
+        nested.reset();
+        CodedOutputStream out = CodedOutputStream.newInstance(nested);
+        if (fields.has(ResponseFields.DISTANCE)) {
+            out.writeDouble(PATH_DISTANCE, path.getDistance());
+        }
+        if (fields.has(ResponseFields.TIME)) {
+            out.writeInt64(PATH_TIME, path.getTime());
+        }
+        if (fields.has(ResponseFields.POINTS)) {
+            writeDeltaPoints(out, path.getPoints());
+        }
+        for (byte[] encodedInstruction : encodedInstructions) {
+            out.writeByteArray(PATH_INSTRUCTIONS, encodedInstruction);
+        }
+        out.flush();
+        return nested.toByteArray();
+    }
+
+    /**
+     * Writes the points as a packed sequence of lat,lon deltas, rounded as in the encoded polyline.
+     */
+    private static void writeDeltaPoints(CodedOutputStream out, PointList points) throws IOException {
+        int size = points.size();
+        int[] deltas = new int[size * 2];
+        int prevLat = 0;
+        int prevLon = 0;
+        int packedSize = 0;
+        for (int i = 0; i < size; i++) {
+            int lat = (int) Math.floor(points.getLat(i) * PRECISION);
+            int lon = (int) Math.floor(points.getLon(i) * PRECISION);
+            deltas[2 * i] = lat - prevLat;
+            deltas[2 * i + 1] = lon - prevLon;
+            packedSize += CodedOutputStream.computeSInt32SizeNoTag(deltas[2 * i]);
+            packedSize += CodedOutputStream.computeSInt32SizeNoTag(deltas[2 * i + 1]);
+            prevLat = lat;
+            prevLon = lon;
+        }
+        if (size == 0) {
+            return;
+        }
+        out.writeTag(PATH_POINTS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeUInt32NoTag(packedSize);
+        for (int delta : deltas) {
+            out.writeSInt32NoTag(delta);
+        }
+    }
+
+    private byte[] encodeInstruction(InstructionList instructions, Instruction instruction, int pointsIndex) throws IOException {
+        nested.reset();
+        CodedOutputStream out = CodedOutputStream.newInstance(nested);
+        out.writeString(INSTRUCTION_TEXT, Helper.firstBig(instruction.getTurnDescription(instructions.getTr())));
+        // An empty string is the default value of proto3, it is not written
+        if (instruction.getName() != null && !instruction.getName().isEmpty()) {
+            out.writeString(INSTRUCTION_STREET_NAME, instruction.getName());
+        }
+        out.writeInt64(INSTRUCTION_TIME, instruction.getTime());
+        out.writeDouble(INSTRUCTION_DISTANCE, Helper.round(instruction.getDistance(), 3));
+        out.writeSInt32(INSTRUCTION_SIGN, instruction.getSign());
+        out.writeUInt32(INSTRUCTION_INTERVAL_START, pointsIndex);
+        out.writeUInt32(INSTRUCTION_INTERVAL_END, pointsIndex + instruction.getLength());
+        out.flush();
+        return nested.toByteArray();
+    }
+}
@@ -0,0 +1,327 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.google.gson.stream.JsonWriter;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.Trip;
+import com.graphhopper.gtfs.GraphHopperGtfs;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Instruction;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.shapes.BBox;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the routing response in the format expected by the GraphHopper Leaflet Routing Machine.
+ * <p>
+ * The JSON is written token by token to the HTTP output stream, so no intermediate JSONObject/Gson tree is built.
+ * Numbers are formatted like org.json does and the PT leg objects keep the "map"/"myArrayList" wrappers that the
+ * previous Gson serialization of JSONObject/JSONArray produced, so the output is the same the dashboard already reads.
+ */
+public class RouteResponseWriter implements StreamingOutput {
+
+    private final String routingType;
+    private final boolean wkt;
+    private final GraphHopper hopper;
+    private final BBox bounds;  // read now, the GraphHopper instance of the request is closed before the response is written
+    private final GHResponse response;
+    private final ResponseFields fields;
+
+    public RouteResponseWriter(String routingType, String wkt, GraphHopper hopper, GHResponse response, ResponseFields fields) {
+        this.routingType = routingType;
+        this.wkt = wkt.equals("true") && fields.has(ResponseFields.WKT);
+        this.hopper = hopper;
+        this.bounds = hopper.getBaseGraph().getBounds();
+        this.response = response;
+        this.fields = fields;
+    }
+
+    private boolean isPt() {
+        return routingType.equals("pt") || routingType.equals("public_transport");
+    }
+
+    /**
+     * Write the response. The status and the headers are already committed, so an error cannot become an error
+     * response: the partial JSON is not flushed and the exception is rethrown, so the container aborts the connection
+     * without the last chunk and the client sees an incomplete response instead of a truncated route.
+     */
+    @Override
+    public void write(OutputStream output) throws IOException {
+        JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+        try {
+            writeResponse(json);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Aborting the route response: " + e);
+            throw new IOException("Route response aborted", e);
+        }
+        json.flush();
+    }
+
+    // build response json as required by leaflet routing machine
+    private void writeResponse(JsonWriter json) throws IOException {
+        json.beginObject();
+
+        // paths
+        json.name("paths").beginArray();
+        for (ResponsePath path : response.getAll()) {
+            writePath(json, path, bounds);
+        }
+        json.endArray();
+
+        String limit = response.getHints().getString(SearchLimits.RESPONSE_HINT, "");
+        if (!limit.isEmpty()) {
+            json.name("limit").value(limit);
+        }
+
+        // --info
+        json.name("info").beginObject();
+        json.name("copyrights").beginArray().value("GraphHopper").value("OpenStreetMap contributors").endArray();
+        json.endObject();
+
+        json.endObject();
+    }
+
+    private void writePath(JsonWriter json, ResponsePath path, BBox box) throws IOException {
+        json.beginObject();
+
+        if (wkt) {
+            json.name("wkt").value(path.getPoints().toLineString(false).toString());
+        }
+
+        // bbox
+        if (fields.has(ResponseFields.BBOX)) {
+            json.name("bbox").beginArray();
+            writeNumber(json, box.minLon);
+            writeNumber(json, box.minLat);
+            writeNumber(json, box.maxLon);
+            writeNumber(json, box.maxLat);
+            json.endArray();
+        }
+
+        // points
+        if (fields.has(ResponseFields.POINTS)) {
+            json.name("points").value(Servlet.encodePolyline(path.getPoints(), false));
+            json.name("points_encoded").value(true);
+        }
+
+        // time(milliseconds) and distance(meters) of the path
+        if (fields.has(ResponseFields.DISTANCE)) {
+            json.name("distance");
+            writeNumber(json, path.getDistance());
+        }
+        if (fields.has(ResponseFields.TIME)) {
+            json.name("time").value(path.getTime());
+            // Departure, arrival and transfers compare the journeys of a departure window
+            if (isPt() && !path.getLegs().isEmpty()) {
+                json.name("departure_time").value(TimestampFormatter.format(DepartureWindow.getDeparture(path)));
+                json.name("arrival_time").value(TimestampFormatter.format(DepartureWindow.getArrival(path)));
+                json.name("transfers").value(path.getNumChanges());
+            }
+        }
+
+        // instructions
+        if (fields.has(ResponseFields.INSTRUCTIONS)) {
+            json.name("instructions");
+            if (isPt()) {
+                writeLegInstructions(json, (GraphHopperGtfs) hopper, path.getInstructions(), path.getLegs());
+            } else {
+                writeInstructions(json, path.getInstructions());
+            }
+        }
+
+        json.endObject();
+    }
+
+    /**
+     * Writes the turn instructions of a path.
+     *
+     * @param json the writer to use
+     * @param instructions the instructions of the path
+     */
+    public static void writeInstructions(JsonWriter json, InstructionList instructions) throws IOException {
+        json.beginArray();
+        int pointsIndex = 0;
+        for (Instruction instruction : instructions) {
+            json.beginObject();
+            writeInstructionFields(json, instructions, instruction);
+            pointsIndex = writeInterval(json, pointsIndex, instruction);
+            json.endObject();
+        }
+        json.endArray();
+    }
+
+    /**
+     * Writes the instructions of a public transport path, replacing every "Pt_start_trip" instruction with the
+     * corresponding leg.
+     *
+     * @param json the writer to use
+     * @param graphHopperGtfs An instance from which retrieve generic informations.
+     * @param instructions the instructions of the path
+     * @param legs A list of Trip.Leg objects. The method currently processes only instances of Trip.PtLeg.
+     */
+    public static void writeLegInstructions(JsonWriter json, GraphHopperGtfs graphHopperGtfs, InstructionList instructions, List<Trip.Leg> legs) throws IOException {
+        json.beginArray();
+        int pointsIndex = 0;
+        Iterator<Trip.Leg> legIterator = legs.iterator();
+        GtfsMetadataIndex index = GtfsMetadataIndex.get(graphHopperGtfs);
+        for (Instruction instruction : instructions) {
+            json.beginObject();
+            String text = Helper.firstBig(instruction.getTurnDescription(instructions.getTr()));
+            if (text.equals("Pt_start_trip")) {
+                json.name("text").value("Pt_start_trip");
+                json.name("leg");
+                writeLeg(json, index, nextPtLeg(legIterator));
+            } else {
+                writeInstructionFields(json, instructions, instruction, text);
+            }
+            pointsIndex = writeInterval(json, pointsIndex, instruction);
+            json.endObject();
+        }
+        json.endArray();
+    }
+
+    private static Trip.PtLeg nextPtLeg(Iterator<Trip.Leg> legIterator) {
+        while (legIterator.hasNext()) {
+            Trip.Leg leg = legIterator.next();
+            if (leg instanceof Trip.PtLeg) {
+                return (Trip.PtLeg) leg;
+            }
+        }
+        throw new IllegalStateException("No public transport leg left for a Pt_start_trip instruction");
+    }
+
+    /**
+     * Writes a public transport leg: trip, route, agency (from the GtfsMetadataIndex) and the stops with their arrival
+     * times.
+     */
+    private static void writeLeg(JsonWriter json, GtfsMetadataIndex index, Trip.PtLeg ptLeg) throws IOException {
+        int route = index.getRoute(ptLeg.feed_id, ptLeg.route_id);
+        String agencyId = index.getAgencyId(route);
+        String agencyName = index.getAgencyName(route);
+        String routeShortName = index.getRouteShortName(route);
+
+        json.beginObject().name("map").beginObject();
+        writeNullableString(json, "trip_id", ptLeg.trip_id);
+        writeNullableString(json, "route_id", ptLeg.route_id);
+        writeNullableString(json, "feed_id", ptLeg.feed_id);
+        json.name("travelTime").value(ptLeg.travelTime);
+        writeNullableString(json, "type", ptLeg.type);
+        writeNullableString(json, "trip_headsign", ptLeg.trip_headsign);
+        writeNullableString(json, "agency_id", agencyId);
+        writeNullableString(json, "agency_name", agencyName);
+        writeNullableString(json, "route_name", routeShortName);
+
+        json.name("stop").beginObject().name("myArrayList").beginArray();
+        for (Trip.Stop stop : ptLeg.stops) {
+            json.beginObject().name("map").beginObject();
+            writeNullableString(json, "stop_id", stop.stop_id);
+            writeNullableString(json, "stop_name", stop.stop_name);
+            Date time = stop.arrivalTime != null ? stop.arrivalTime : stop.departureTime;
+            json.name("stop_arrivalTime").value(TimestampFormatter.format(time.getTime()));
+            json.endObject().endObject();
+        }
+        json.endArray().endObject();
+
+        json.endObject().endObject();
+    }
+
+    private static void writeInstructionFields(JsonWriter json, InstructionList instructions, Instruction instruction) throws IOException {
+        writeInstructionFields(json, instructions, instruction, Helper.firstBig(instruction.getTurnDescription(instructions.getTr())));
+    }
+
+    private static void writeInstructionFields(JsonWriter json, InstructionList instructions, Instruction instruction, String text) throws IOException {
+        json.name("text").value(text);
+        writeNullableString(json, "street_name", instruction.getName());
+        json.name("time").value(instruction.getTime());
+        json.name("distance");
+        writeNumber(json, Helper.round(instruction.getDistance(), 3));
+        json.name("sign").value(instruction.getSign());
+        for (Map.Entry<String, Object> extra : instruction.getExtraInfoJSON().entrySet()) {
+            if (extra.getValue() != null) {
+                json.name(extra.getKey());
+                writeValue(json, extra.getValue());
+            }
+        }
+    }
+
+    private static int writeInterval(JsonWriter json, int pointsIndex, Instruction instruction) throws IOException {
+        int nextIndex = pointsIndex + instruction.getLength();
+        json.name("interval").beginArray().value(pointsIndex).value(nextIndex).endArray();
+        return nextIndex;
+    }
+
+    // Null values were dropped by both Gson and JSONObject, so they are skipped here too
+    private static void writeNullableString(JsonWriter json, String name, String value) throws IOException {
+        if (value != null) {
+            json.name(name).value(value);
+        }
+    }
+
+    private static void writeValue(JsonWriter json, Object value) throws IOException {
+        if (value == null) {
+            json.nullValue();
+        } else if (value instanceof Double || value instanceof Float) {
+            writeNumber(json, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            json.value((Number) value);
+        } else if (value instanceof Boolean) {
+            json.value((Boolean) value);
+        } else if (value instanceof Map) {
+            json.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getValue() != null) {
+                    json.name(String.valueOf(entry.getKey()));
+                    writeValue(json, entry.getValue());
+                }
+            }
+            json.endObject();
+        } else if (value instanceof Collection) {
+            json.beginArray();
+            for (Object item : (Collection<?>) value) {
+                writeValue(json, item);
+            }
+            json.endArray();
+        } else {
+            json.value(value.toString());
+        }
+    }
+
+    /**
+     * Writes a double the way org.json does: integral values lose the trailing ".0", non finite values become null.
+     */
+    static void writeNumber(JsonWriter json, double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            json.nullValue();
+            return;
+        }
+        String number = Double.toString(value);
+        if (number.endsWith(".0")) {
+            number = number.substring(0, number.length() - 2);
+        }
+        json.jsonValue(number);
+    }
+}
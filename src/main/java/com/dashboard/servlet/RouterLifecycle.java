@@ -0,0 +1,43 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.dashboard.servlet;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Start and stop of the router with the web application (registered in web.xml).
+ * <p>
+ * At the start the router snapshot is restored and the warm-up begins, before the first request. At the stop the
+ * background threads and the thread pools are stopped, a last snapshot is saved and the shared graphs (also the GTFS
+ * one) are closed, so that a redeploy in the same JVM does not keep the previous application loaded.
+ */
+public class RouterLifecycle implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        RouterSnapshot.start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        RouterSnapshot.stop();
+        RealtimePtRouter.stop();
+        LegAlternativeRouter.shutdown();
+        ScenarioPortfolio.shutdown();
+        CrpMetric.shutdown();
+        TraceIngestion.shutdown();
+        SharedHoppers.closeAll();
+    }
+}
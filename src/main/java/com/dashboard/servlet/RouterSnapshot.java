@@ -0,0 +1,421 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.util.shapes.BBox;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot of the state derived from the graphs at runtime, so that a restart is ready in a few seconds.
+ * <p>
+ * The graph folders already contain what is computed once per graph (edge to way mapping, road element index, CRP
+ * partition, typical observed speeds). The snapshot adds what is kept in memory: the snap cache, the traffic data read
+ * from the JSON files, the keys of the travel time tables (mapped again from the graph folders), the CRP
+ * customizations and the live observed speeds. It also lists the graphs and the public transport routers in use, which
+ * are loaded and warmed up in the background after a restart.
+ * <p>
+ * The snapshot is written in the v{VERSION} subfolder of GH_SNAPSHOT_PATH (default: GH_LOCATION_PFX + "_snapshot")
+ * when the application is stopped (see RouterLifecycle) or the JVM shuts down, every GH_SNAPSHOT_INTERVAL minutes (default 15, 0 only at the shutdown, a negative value
+ * disables the snapshots) and on POST /route/snapshot. It is written in a temporary folder that replaces the previous
+ * one, so a crash never leaves half a snapshot. The manifest has a checksum of every graph folder: at the restore, the
+ * entries of a graph that was imported again are skipped, as well as the traffic data whose file has changed.
+ */
+public class RouterSnapshot {
+    public static final int VERSION = 1;
+    private static final String MANIFEST = "manifest.json";
+    private static final int INTERVAL = EnvConfig.getInt("GH_SNAPSHOT_INTERVAL", 15);  // minutes
+
+    // The sections of the snapshot, each in its own file
+    private static final Map<String, Writer> writers = new LinkedHashMap<>();
+    private static final Map<String, Reader> readers = new LinkedHashMap<>();
+
+    static {
+        writers.put("snaps", SnapCache::save);
+        writers.put("traffic", EdgeTrafficTable::save);
+        writers.put("travel_times", TravelTimeTable::save);
+        writers.put("crp_metrics", CrpMetric::save);
+        writers.put("live_speeds", EdgeSpeedObservations::save);
+        readers.put("snaps", SnapCache::restore);
+        readers.put("traffic", EdgeTrafficTable::restore);
+        readers.put("travel_times", TravelTimeTable::restore);
+        readers.put("crp_metrics", CrpMetric::restore);
+        readers.put("live_speeds", EdgeSpeedObservations::restore);
+    }
+
+    // The vehicles and weightings requested since the start or in use in the restored snapshot, as vehicle|weighting
+    private static final Set<String> graphsInUse = ConcurrentHashMap.newKeySet();
+    private static boolean ptInUse;
+    private static boolean raptorInUse;
+
+    private static volatile boolean started;
+    private static ScheduledExecutorService executor;
+    private static Thread shutdownHook;
+    private static JSONObject lastSave;
+    private static JSONObject lastRestore;
+
+    private interface Writer {
+        int save(DataOutputStream out) throws IOException;
+    }
+
+    private interface Reader {
+        int restore(DataInputStream in, Predicate<String> valid) throws IOException;
+    }
+
+    private RouterSnapshot() {
+    }
+
+    /**
+     * Restore the last snapshot and schedule the next ones, at the first call. The graphs and the public transport
+     * routers of the snapshot are then warmed up in the background. The travel time tables of the previous runs that
+     * have not been restored are deleted, also when the snapshots are disabled.
+     */
+    public static void start() {
+        if (started) {
+            return;
+        }
+        synchronized (RouterSnapshot.class) {
+            if (started) {
+                return;
+            }
+            JSONObject manifest = INTERVAL < 0 ? null : restore();
+            deleteUnusedTravelTimes();
+            if (INTERVAL < 0) {
+                started = true;
+                return;
+            }
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "router-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (manifest != null) {
+                executor.execute(() -> warmUp(manifest));
+            }
+            if (INTERVAL > 0) {
+                executor.scheduleWithFixedDelay(RouterSnapshot::trySave, INTERVAL, INTERVAL, TimeUnit.MINUTES);
+            }
+            // When the JVM stops without stopping the application first
+            shutdownHook = new Thread(RouterSnapshot::trySave, "router-snapshot-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            started = true;
+        }
+    }
+
+    /**
+     * Stop the scheduled snapshots and the warm-up, and save a last snapshot. Called when the application is
+     * undeployed (see RouterLifecycle), so that a redeploy does not leave the threads and the shutdown hook of the
+     * previous one behind.
+     */
+    public static void stop() {
+        synchronized (RouterSnapshot.class) {
+            if (!started) {
+                return;
+            }
+            started = false;
+            if (executor == null) {
+                return;
+            }
+            executor.shutdownNow();
+            try {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    System.out.println("The router snapshot thread did not stop");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down, the hook saves the snapshot
+                return;
+            }
+            shutdownHook = null;
+        }
+        trySave();
+    }
+
+    /**
+     * The travel time tables of the previous runs that have not been restored are never used again, delete their files
+     * (see TravelTimeTable.deleteUnused).
+     */
+    private static void deleteUnusedTravelTimes() {
+        int deleted = 0;
+        for (String location : findGraphLocations()) {
+            deleted += TravelTimeTable.deleteUnused(location);
+        }
+        if (deleted > 0) {
+            System.out.println("Deleted " + deleted + " unused travel time tables");
+        }
+    }
+
+    /**
+     * Record that a graph is used, to load it at the next restart.
+     */
+    public static void recordGraph(String vehicle, String weighting) {
+        graphsInUse.add(vehicle + "|" + weighting);
+    }
+
+    /**
+     * @return the folder of the snapshots of this version
+     */
+    public static File getDirectory() {
+        String path = System.getenv("GH_SNAPSHOT_PATH");
+        if (path == null) {
+            path = Servlet.getGraphLocationPrefix() + "_snapshot";
+        }
+        return new File(path, "v" + VERSION);
+    }
+
+    /**
+     * Write a snapshot, replacing the previous one.
+     *
+     * @return the number of entries of each section, the size and the time taken
+     */
+    public static synchronized JSONObject save() throws IOException {
+        long start = System.nanoTime();
+        File directory = getDirectory();
+        File temporary = new File(directory.getPath() + ".tmp");
+        FileUtils.deleteDirectory(temporary);
+        if (!temporary.mkdirs()) {
+            throw new IOException("Cannot create " + temporary);
+        }
+
+        JSONObject sections = new JSONObject();
+        for (Map.Entry<String, Writer> section : writers.entrySet()) {
+            File file = new File(temporary, section.getKey() + ".bin");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+                sections.put(section.getKey(), section.getValue().save(out));
+            }
+        }
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("version", VERSION);
+        manifest.put("created", LocalDateTime.now().toString());
+        JSONObject graphs = new JSONObject();
+        for (String location : findGraphLocations()) {
+            graphs.put(location, getGraphChecksum(location));
+        }
+        manifest.put("graphs", graphs);
+        manifest.put("graphs_in_use", new JSONArray(graphsInUse));
+        manifest.put("pt", ptInUse || RealtimePtRouter.isLoaded());
+        manifest.put("raptor", raptorInUse || RaptorNetwork.isBuilt());
+        manifest.put("sections", sections);
+        FileUtils.writeStringToFile(new File(temporary, MANIFEST), manifest.toString(2));
+
+        FileUtils.deleteDirectory(directory);
+        if (!temporary.renameTo(directory)) {
+            throw new IOException("Cannot rename " + temporary + " to " + directory);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("path", directory.getPath());
+        result.put("created", manifest.getString("created"));
+        result.put("sections", sections);
+        result.put("bytes", FileUtils.sizeOfDirectory(directory));
+        result.put("elapsed_ms", (System.nanoTime() - start) / 1_000_000);
+        lastSave = result;
+        System.out.println("Router snapshot saved in " + directory + ": " + sections);
+        return result;
+    }
+
+    // The periodic and the shutdown snapshots only log their errors
+    private static void trySave() {
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error while saving the router snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Restore the sections of the last snapshot, skipping the entries of the graphs that have changed.
+     *
+     * @return the manifest of the snapshot, null if there is none or it cannot be read
+     */
+    private static synchronized JSONObject restore() {
+        long start = System.nanoTime();
+        File directory = getDirectory();
+        File manifestFile = new File(directory, MANIFEST);
+        if (!manifestFile.exists()) {
+            return null;
+        }
+        JSONObject manifest;
+        try {
+            manifest = new JSONObject(FileUtils.readFileToString(manifestFile));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error while reading the router snapshot: " + e.getMessage());
+            return null;
+        }
+        if (manifest.optInt("version") != VERSION) {
+            return null;
+        }
+
+        // Only the graphs with the same checksum are valid
+        Set<String> validGraphs = new HashSet<>();
+        JSONArray changedGraphs = new JSONArray();
+        JSONObject graphs = manifest.getJSONObject("graphs");
+        for (String location : graphs.keySet()) {
+            if (graphs.getString(location).equals(getGraphChecksum(location))) {
+                validGraphs.add(location);
+            } else {
+                changedGraphs.put(location);
+            }
+        }
+        Predicate<String> valid = key -> {
+            int separator = key.indexOf('|');
+            return separator > 0 && validGraphs.contains(key.substring(0, separator));
+        };
+
+        JSONObject sections = new JSONObject();
+        for (Map.Entry<String, Reader> section : readers.entrySet()) {
+            File file = new File(directory, section.getKey() + ".bin");
+            if (!file.exists()) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                sections.put(section.getKey(), section.getValue().restore(in, valid));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error while restoring the " + section.getKey() + " of the router snapshot: " + e.getMessage());
+            }
+        }
+
+        // What was in use is still in use, even if the next snapshot is saved before the first requests
+        JSONArray inUse = manifest.optJSONArray("graphs_in_use");
+        for (int i = 0; inUse != null && i < inUse.length(); i++) {
+            graphsInUse.add(inUse.getString(i));
+        }
+        ptInUse = manifest.optBoolean("pt");
+        raptorInUse = manifest.optBoolean("raptor");
+
+        JSONObject result = new JSONObject();
+        result.put("path", directory.getPath());
+        result.put("created", manifest.optString("created"));
+        result.put("sections", sections);
+        result.put("changed_graphs", changedGraphs);
+        result.put("elapsed_ms", (System.nanoTime() - start) / 1_000_000);
+        lastRestore = result;
+        System.out.println("Router snapshot of " + manifest.optString("created") + " restored in " + result.getLong("elapsed_ms")
+                + " ms: " + sections + (changedGraphs.length() > 0 ? ", changed graphs: " + changedGraphs : ""));
+        return manifest;
+    }
+
+    /**
+     * Load the graphs in use when the snapshot was saved and route once on each of them. The instances stay loaded
+     * in SharedHoppers for the uses that share them (traffic tiles, GPS traces); the routing requests still load their
+     * own instance, but find the files of the graph in the page cache and the routing code compiled. Then load the
+     * public transport routers, with the GTFS metadata and RAPTOR indexes, that are shared by the requests.
+     */
+    private static void warmUp(JSONObject manifest) {
+        long start = System.nanoTime();
+        JSONArray graphs = manifest.optJSONArray("graphs_in_use");
+        for (int i = 0; graphs != null && i < graphs.length(); i++) {
+            String[] graph = graphs.getString(i).split("\\|");
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                DynamicGraphHopper hopper = SharedHoppers.get(graph[0], graph[1]);
+                BBox bounds = hopper.getBaseGraph().getBounds();
+                double lat = (bounds.minLat + bounds.maxLat) / 2;
+                double lon = (bounds.minLon + bounds.maxLon) / 2;
+                double offset = Math.min(bounds.maxLat - bounds.minLat, bounds.maxLon - bounds.minLon) / 4;
+                hopper.route(new GHRequest(lat - offset, lon - offset, lat + offset, lon + offset).setProfile(hopper.getRequestProfile()));
+            } catch (RuntimeException e) {
+                System.out.println("Error while warming up the graph " + graphs.getString(i) + ": " + e.getMessage());
+            }
+        }
+        try {
+            if (manifest.optBoolean("pt") || manifest.optBoolean("raptor")) {
+                RealtimePtRouter.getRouter();
+            }
+            if (manifest.optBoolean("raptor")) {
+                RaptorNetwork.get(RealtimePtRouter.getHopper());
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Error while warming up the public transport router: " + e.getMessage());
+        }
+        System.out.println("Router warmed up in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * @return the last snapshot saved and the one restored at the start, if any
+     */
+    public static synchronized JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("path", getDirectory().getPath());
+        status.put("interval_minutes", INTERVAL);
+        status.put("last_save", lastSave != null ? lastSave : JSONObject.NULL);
+        status.put("last_restore", lastRestore != null ? lastRestore : JSONObject.NULL);
+        return status;
+    }
+
+    // The graph folders next to GH_LOCATION_PFX, named as the location prefix followed by the profile
+    private static Set<String> findGraphLocations() {
+        Set<String> locations = new HashSet<>();
+        File prefix = new File(Servlet.getGraphLocationPrefix());
+        File parent = prefix.getAbsoluteFile().getParentFile();
+        File[] folders = parent == null ? null : parent.listFiles();
+        for (int i = 0; folders != null && i < folders.length; i++) {
+            String name = folders[i].getName();
+            if (name.startsWith(prefix.getName()) && new File(folders[i], "properties").exists()) {
+                locations.add(Servlet.getGraphLocationPrefix() + name.substring(prefix.getName().length()));
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * The checksum changes when the graph is imported again: it covers the properties of the graph (with the import
+     * date and the versions of the storage) and the size of its nodes and edges.
+     *
+     * @return the checksum of a graph folder, "" if there is no graph
+     */
+    public static String getGraphChecksum(String location) {
+        File properties = new File(location, "properties");
+        if (!properties.exists()) {
+            return "";
+        }
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(FileUtils.readFileToByteArray(properties));
+            return Long.toHexString(crc.getValue()) + "-" + new File(location, "nodes").length() + "-" + new File(location, "edges").length();
+        } catch (IOException e) {
+            System.out.println("Error while reading the graph properties: " + e.getMessage());
+            return "";
+        }
+    }
+}
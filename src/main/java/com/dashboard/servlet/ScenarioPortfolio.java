@@ -0,0 +1,295 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntObjectCursor;
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.GraphEdgeIdFinder;
+import com.graphhopper.util.Parameters;
+import com.graphhopper.util.details.PathDetail;
+import com.graphhopper.util.shapes.GHPoint;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluation of a portfolio of closure scenarios on a fixed set of origin-destination pairs.
+ * <p>
+ * The baseline routes of all the pairs are computed once, recording the edges of each path in an index from edge to
+ * pairs. Closing roads can only make the routes slower, so a pair whose baseline path does not cross the blocked
+ * area of a scenario keeps its route: for each scenario only the pairs using an edge intersected by the blocked area
+ * are routed again, in parallel on GH_PORTFOLIO_THREADS threads (default: the number of cores). The result of a
+ * scenario is the statistics of the delays of its affected pairs.
+ * <p>
+ * The evaluation is available as POST /route/portfolio and offline:
+ * java -cp "WEB-INF/classes:WEB-INF/lib/*" com.dashboard.servlet.ScenarioPortfolio input.json [output.json]
+ */
+public class ScenarioPortfolio {
+    // Maximum number of pairs of a request of POST /route/portfolio
+    public static final int MAX_PAIRS = EnvConfig.getInt("GH_PORTFOLIO_MAX_PAIRS", 10000);
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            EnvConfig.getInt("GH_PORTFOLIO_THREADS", Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "portfolio-router");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final DynamicGraphHopper hopper;
+    private final List<GHPoint> origins;
+    private final List<GHPoint> destinations;
+
+    // Baseline routes, a negative time if the pair has no route
+    private final long[] baselineTimes;
+    private final double[] baselineDistances;
+    private final IntObjectHashMap<IntArrayList> pairsByEdge = new IntObjectHashMap<>();
+
+    /**
+     * @param hopper GraphHopper instance of the vehicle, weighting and traffic slot of the evaluation, without a blocked
+     * area
+     */
+    public ScenarioPortfolio(DynamicGraphHopper hopper, List<GHPoint> origins, List<GHPoint> destinations) {
+        this.hopper = hopper;
+        this.origins = origins;
+        this.destinations = destinations;
+        baselineTimes = new long[origins.size()];
+        baselineDistances = new double[origins.size()];
+    }
+
+    /**
+     * Stop the threads of the evaluations, when the application is stopped (see RouterLifecycle).
+     */
+    public static void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Evaluate the scenarios described by a JSON document (see the README for the format).
+     *
+     * @param maxPairs the maximum number of pairs, 0 for no limit
+     * @return the baseline and the statistics of every scenario
+     * @throws IllegalArgumentException if the document is not valid or has more than maxPairs pairs
+     */
+    public static JSONObject run(JSONObject input, int maxPairs) throws InterruptedException {
+        List<GHPoint> origins = new ArrayList<>();
+        List<GHPoint> destinations = new ArrayList<>();
+        JSONArray pairs = input.getJSONArray("pairs");
+        if (maxPairs > 0 && pairs.length() > maxPairs) {
+            throw new IllegalArgumentException("too many pairs: " + pairs.length() + " (at most " + maxPairs + ")");
+        }
+        for (int i = 0; i < pairs.length(); i++) {
+            List<GHPoint> pair = WaypointParser.parse(pairs.getString(i), "pairs[" + i + "]", 2);
+            if (pair.size() != 2) {
+                throw new IllegalArgumentException("invalid pairs[" + i + "] (an origin and a destination are required)");
+            }
+            origins.add(pair.get(0));
+            destinations.add(pair.get(1));
+        }
+        String startDatetime = input.optString("startDatetime", "");
+        DynamicGraphHopper hopper = Servlet.initGH(input.optString("vehicle", "car"), input.optString("weighting", "fastest"),
+                startDatetime.isEmpty() ? LocalDateTime.now(EnvConfig.ZONE) : LocalDateTime.parse(startDatetime));
+        try {
+            hopper.setSpeedModel(SpeedModels.get(input.optString("speed_model", SpeedModels.DEFAULT)));
+            ScenarioPortfolio portfolio = new ScenarioPortfolio(hopper, origins, destinations);
+            JSONObject result = new JSONObject();
+            result.put("pairs", origins.size());
+            result.put("baseline", portfolio.computeBaseline());
+            JSONArray scenarios = input.getJSONArray("scenarios");
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < scenarios.length(); i++) {
+                JSONObject scenario = scenarios.getJSONObject(i);
+                String avoidArea = scenario.getJSONObject("avoid_area").toString();
+                Servlet.blockAreaSetup(hopper, avoidArea);
+                results.put(portfolio.evaluate(scenario.optString("id", String.valueOf(i)), hopper.getBlockArea()));
+            }
+            result.put("scenarios", results);
+            return result;
+        } finally {
+            hopper.close();
+        }
+    }
+
+    /**
+     * Route all the pairs without a blocked area and index the edges of their paths.
+     *
+     * @return the number of pairs with and without a route and the time taken
+     */
+    public JSONObject computeBaseline() throws InterruptedException {
+        long start = System.nanoTime();
+        GraphEdgeIdFinder.BlockArea blockArea = hopper.getBlockArea();
+        hopper.setBlockArea(null, "");
+        int notFound = 0;
+        List<Future<GHResponse>> futures = routeAll(allPairs());
+        for (int pair = 0; pair < futures.size(); pair++) {
+            GHResponse response = get(futures.get(pair));
+            if (response.hasErrors()) {
+                baselineTimes[pair] = -1;
+                notFound++;
+                continue;
+            }
+            ResponsePath path = response.getBest();
+            baselineTimes[pair] = path.getTime();
+            baselineDistances[pair] = path.getDistance();
+            List<PathDetail> edges = path.getPathDetails().getOrDefault(Parameters.Details.EDGE_ID, Collections.emptyList());
+            for (PathDetail edge : edges) {
+                int edgeId = ((Number) edge.getValue()).intValue();
+                IntArrayList edgePairs = pairsByEdge.get(edgeId);
+                if (edgePairs == null) {
+                    edgePairs = new IntArrayList(2);
+                    pairsByEdge.put(edgeId, edgePairs);
+                }
+                // The same edge can be crossed twice by a path
+                if (edgePairs.isEmpty() || edgePairs.get(edgePairs.size() - 1) != pair) {
+                    edgePairs.add(pair);
+                }
+            }
+        }
+        hopper.setBlockArea(blockArea, "");
+
+        JSONObject baseline = new JSONObject();
+        baseline.put("found", baselineTimes.length - notFound);
+        baseline.put("not_found", notFound);
+        baseline.put("edges", pairsByEdge.size());
+        baseline.put("elapsed_ms", (System.nanoTime() - start) / 1_000_000);
+        return baseline;
+    }
+
+    /**
+     * Route again the pairs whose baseline path crosses the blocked area of a scenario, which must be set in the
+     * GraphHopper instance.
+     *
+     * @return the statistics of the delays of the affected pairs
+     */
+    public JSONObject evaluate(String id, GraphEdgeIdFinder.BlockArea blockArea) throws InterruptedException {
+        long start = System.nanoTime();
+        BaseGraph graph = hopper.getBaseGraph();
+        boolean[] affected = new boolean[baselineTimes.length];
+        for (IntObjectCursor<IntArrayList> edge : pairsByEdge) {
+            if (blockArea.intersects(graph.getEdgeIteratorState(edge.key, Integer.MIN_VALUE))) {
+                for (int i = 0; i < edge.value.size(); i++) {
+                    affected[edge.value.get(i)] = true;
+                }
+            }
+        }
+        IntArrayList affectedPairs = new IntArrayList();
+        for (int pair = 0; pair < affected.length; pair++) {
+            if (affected[pair]) {
+                affectedPairs.add(pair);
+            }
+        }
+
+        List<Future<GHResponse>> futures = routeAll(affectedPairs);
+        long[] delays = new long[affectedPairs.size()];
+        int reachable = 0;
+        int unreachable = 0;
+        double extraDistance = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            int pair = affectedPairs.get(i);
+            GHResponse response = get(futures.get(i));
+            if (response.hasErrors()) {
+                unreachable++;
+                continue;
+            }
+            delays[reachable++] = Math.max(0, response.getBest().getTime() - baselineTimes[pair]);
+            extraDistance += response.getBest().getDistance() - baselineDistances[pair];
+        }
+        long[] sorted = Arrays.copyOf(delays, reachable);
+        Arrays.sort(sorted);
+        long totalDelay = 0;
+        for (long delay : sorted) {
+            totalDelay += delay;
+        }
+
+        JSONObject stats = new JSONObject();
+        stats.put("id", id);
+        stats.put("affected", affectedPairs.size());
+        stats.put("unreachable", unreachable);
+        stats.put("total_delay", totalDelay / 1000.0);
+        stats.put("mean_delay", reachable > 0 ? totalDelay / 1000.0 / reachable : 0);
+        stats.put("median_delay", percentile(sorted, 0.5) / 1000.0);
+        stats.put("p95_delay", percentile(sorted, 0.95) / 1000.0);
+        stats.put("max_delay", reachable > 0 ? sorted[reachable - 1] / 1000.0 : 0);
+        stats.put("extra_distance", extraDistance);
+        stats.put("elapsed_ms", (System.nanoTime() - start) / 1_000_000);
+        return stats;
+    }
+
+    private IntArrayList allPairs() {
+        IntArrayList pairs = new IntArrayList(baselineTimes.length);
+        for (int pair = 0; pair < baselineTimes.length; pair++) {
+            pairs.add(pair);
+        }
+        return pairs;
+    }
+
+    // Route the pairs on the executor, without instructions and with the edges of the paths
+    private List<Future<GHResponse>> routeAll(IntArrayList pairs) {
+        List<Future<GHResponse>> futures = new ArrayList<>(pairs.size());
+        for (int i = 0; i < pairs.size(); i++) {
+            GHRequest request = new GHRequest(origins.get(pairs.get(i)), destinations.get(pairs.get(i)))
+                    .setProfile(hopper.getRequestProfile())
+                    .setLocale(Locale.ENGLISH)
+                    .setPathDetails(Collections.singletonList(Parameters.Details.EDGE_ID));
+            request.getHints().putObject(Parameters.Routing.INSTRUCTIONS, false);
+            futures.add(executor.submit(() -> hopper.route(request)));
+        }
+        return futures;
+    }
+
+    private static GHResponse get(Future<GHResponse> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return new GHResponse().addError(e.getCause());
+        }
+    }
+
+    // Nearest rank percentile of sorted values
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: ScenarioPortfolio input.json [output.json]");
+            return;
+        }
+        JSONObject result = run(new JSONObject(FileUtils.readFileToString(new File(args[0]))), 0);
+        if (args.length > 1) {
+            FileUtils.writeStringToFile(new File(args[1]), result.toString(2));
+        } else {
+            System.out.println(result.toString(2));
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.util.exceptions.DetailedIllegalArgumentException;
+
+import java.util.Map;
+
+/**
+ * Thrown inside the route search when it exceeds one of the SearchLimits. It is an IllegalArgumentException, so the
+ * GraphHopper router reports it as an error of the response.
+ */
+public class SearchLimitException extends DetailedIllegalArgumentException {
+
+    public SearchLimitException(String message, Map<String, Object> details) {
+        super(message, details);
+    }
+}
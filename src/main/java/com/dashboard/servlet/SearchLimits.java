@@ -0,0 +1,113 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+/**
+ * Limits of the route search of a request: maximum visited nodes, maximum route distance and timeout.
+ * <p>
+ * The limits of the request parameters override the defaults of the environment variables GH_MAX_VISITED_NODES,
+ * GH_MAX_DISTANCE (meters) and GH_ROUTE_TIMEOUT_MS. A value of 0 disables the limit, and all of them are disabled by
+ * default. The timeout starts with the first search of the request (see BoundedSearchWeighting), so the loading of the
+ * graph is not counted, and covers all the searches of the request.
+ */
+public class SearchLimits {
+    // Hint of a GHResponse with the limit that stopped a search, its routes may be worse than the optimal ones
+    public static final String RESPONSE_HINT = "limit";
+
+    private static final int DEFAULT_MAX_VISITED_NODES = EnvConfig.getInt("GH_MAX_VISITED_NODES", 0);
+    private static final int DEFAULT_MAX_DISTANCE = EnvConfig.getInt("GH_MAX_DISTANCE", 0);
+    private static final int DEFAULT_TIMEOUT_MILLIS = EnvConfig.getInt("GH_ROUTE_TIMEOUT_MS", 0);
+
+    private final int maxVisitedNodes;
+    private final double maxDistance;
+    private final long timeoutMillis;
+    private volatile long start = 0;  // System.nanoTime() of the first search, 0 before it
+
+    public SearchLimits(int maxVisitedNodes, double maxDistance, long timeoutMillis) {
+        this.maxVisitedNodes = maxVisitedNodes;
+        this.maxDistance = maxDistance;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Parse the limits of a request, the empty values use the defaults.
+     *
+     * @throws IllegalArgumentException if a value is not a non negative number
+     */
+    public static SearchLimits parse(String maxVisitedNodes, String maxDistance, String timeoutMillis) {
+        return new SearchLimits(
+                (int) parseValue("max_visited_nodes", maxVisitedNodes, DEFAULT_MAX_VISITED_NODES),
+                parseValue("max_distance", maxDistance, DEFAULT_MAX_DISTANCE),
+                (long) parseValue("timeout", timeoutMillis, DEFAULT_TIMEOUT_MILLIS));
+    }
+
+    private static double parseValue(String name, String value, double defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        double parsed;
+        try {
+            parsed = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + name + " parameter: " + value);
+        }
+        if (parsed < 0 || Double.isNaN(parsed) || Double.isInfinite(parsed)) {
+            throw new IllegalArgumentException("invalid " + name + " parameter: " + value);
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the maximum number of nodes visited by a search, 0 for no limit
+     */
+    public int getMaxVisitedNodes() {
+        return maxVisitedNodes;
+    }
+
+    /**
+     * @return the maximum distance of the route in meters, 0 for no limit
+     */
+    public double getMaxDistance() {
+        return maxDistance;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Start the timeout, if not already started by a previous search of the request.
+     */
+    public void start() {
+        if (start == 0) {
+            synchronized (this) {
+                if (start == 0) {
+                    long now = System.nanoTime();
+                    start = now != 0 ? now : 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the milliseconds since the first search, 0 before it
+     */
+    public long getElapsedMillis() {
+        long started = start;
+        return started == 0 ? 0 : (System.nanoTime() - started) / 1_000_000;
+    }
+
+    public boolean isExpired() {
+        return timeoutMillis > 0 && getElapsedMillis() > timeoutMillis;
+    }
+}
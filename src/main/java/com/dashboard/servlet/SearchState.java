@@ -0,0 +1,215 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * State of a Dijkstra search (weights, parents, settled nodes and the heap), taken from a bounded pool.
+ * <p>
+ * The arrays are indexed by node and kept in the pool between the searches, so a search does not allocate anything
+ * once they are large enough. Instead of clearing them, every search has a new version: a node has been reached in the
+ * current search only if its version is the current one, so the reset costs nothing and the arrays are cleared only
+ * when the version overflows. The heap allows duplicates, the stale entries are skipped when polled.
+ * <p>
+ * A state is used by one search at a time and given back with close(), e.g. in a try-with-resources. The pool keeps at
+ * most GH_SEARCH_STATE_POOL states (default: the number of processors), the others are left to the garbage collector,
+ * so the memory retained is bounded (about 24 bytes per graph node per pooled state) whatever the number of threads.
+ * The pool is used by the searches implemented in this project (fleet dispatch, customizable route planning, map
+ * matching, park-and-ride and the walks of the RAPTOR network); the algorithms of GraphHopper allocate their own state.
+ */
+public class SearchState implements AutoCloseable {
+    private static final int MAX_POOLED = EnvConfig.getInt("GH_SEARCH_STATE_POOL", Runtime.getRuntime().availableProcessors());
+
+    // The most recently released state first, its arrays are the most likely to be in the cache and large enough
+    private static final Deque<SearchState> pool = new ArrayDeque<>();
+
+    private int version = 0;
+    private int[] reachedVersion = new int[0];
+    private int[] settledVersion = new int[0];
+    private double[] weights = new double[0];
+    private int[] parentEdges = new int[0];
+    private int[] parentNodes = new int[0];
+
+    // Binary heap of nodes by weight
+    private int[] heapNodes = new int[1024];
+    private double[] heapWeights = new double[1024];
+    private int heapSize = 0;
+    private boolean pooled = false;
+
+    private SearchState() {
+    }
+
+    /**
+     * Take a state from the pool, or create one if the pool is empty, reset for a new search. It has to be closed
+     * when the search and the reading of its results are done.
+     *
+     * @param nodes number of nodes of the graph (including the virtual ones)
+     */
+    public static SearchState acquire(int nodes) {
+        SearchState state;
+        synchronized (pool) {
+            state = pool.pollFirst();
+        }
+        if (state == null) {
+            state = new SearchState();
+        }
+        state.pooled = false;
+        state.reset(nodes);
+        return state;
+    }
+
+    /**
+     * Give the state back to the pool, if it is not full. The state must not be used anymore.
+     */
+    @Override
+    public void close() {
+        synchronized (pool) {
+            if (!pooled && pool.size() < MAX_POOLED) {
+                pooled = true;
+                pool.addFirst(this);
+            }
+        }
+    }
+
+    /**
+     * @return the number of states in the pool
+     */
+    public static int getPooledCount() {
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+
+    /**
+     * Reset the state for a new search, e.g. to run several searches with the same state.
+     *
+     * @param nodes number of nodes of the graph (including the virtual ones)
+     */
+    public void reset(int nodes) {
+        if (nodes > reachedVersion.length) {
+            // Some room for the virtual nodes of the next searches
+            int capacity = Math.max(nodes, nodes + nodes / 100 + 16);
+            reachedVersion = Arrays.copyOf(reachedVersion, capacity);
+            settledVersion = Arrays.copyOf(settledVersion, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+            parentEdges = Arrays.copyOf(parentEdges, capacity);
+            parentNodes = Arrays.copyOf(parentNodes, capacity);
+        }
+        if (version == Integer.MAX_VALUE) {
+            Arrays.fill(reachedVersion, 0);
+            Arrays.fill(settledVersion, 0);
+            version = 0;
+        }
+        version++;
+        heapSize = 0;
+    }
+
+    /**
+     * Reach a node with the given weight, if it has not been reached yet or the weight is lower.
+     *
+     * @return true if the node has been updated
+     */
+    public boolean update(int node, double weight, int parentEdge, int parentNode) {
+        if (settledVersion[node] == version || (reachedVersion[node] == version && weights[node] <= weight)) {
+            return false;
+        }
+        reachedVersion[node] = version;
+        weights[node] = weight;
+        parentEdges[node] = parentEdge;
+        parentNodes[node] = parentNode;
+        push(node, weight);
+        return true;
+    }
+
+    /**
+     * Settle the reached node with the lowest weight.
+     *
+     * @return the node, or -1 if there are no more nodes to settle
+     */
+    public int poll() {
+        while (heapSize > 0) {
+            int node = heapNodes[0];
+            double weight = heapWeights[0];
+            pop();
+            if (settledVersion[node] != version && weights[node] == weight) {
+                settledVersion[node] = version;
+                return node;
+            }
+        }
+        return -1;
+    }
+
+    public double getWeight(int node) {
+        return weights[node];
+    }
+
+    /**
+     * @return the edge from the parent to the node, -1 for the start of the search
+     */
+    public int getParentEdge(int node) {
+        return parentEdges[node];
+    }
+
+    public int getParentNode(int node) {
+        return parentNodes[node];
+    }
+
+    private void push(int node, double weight) {
+        if (heapSize == heapNodes.length) {
+            heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+            heapWeights = Arrays.copyOf(heapWeights, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapWeights[parent] <= weight) {
+                break;
+            }
+            heapNodes[i] = heapNodes[parent];
+            heapWeights[i] = heapWeights[parent];
+            i = parent;
+        }
+        heapNodes[i] = node;
+        heapWeights[i] = weight;
+    }
+
+    private void pop() {
+        heapSize--;
+        if (heapSize == 0) {
+            return;
+        }
+        int node = heapNodes[heapSize];
+        double weight = heapWeights[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapWeights[child + 1] < heapWeights[child]) {
+                child++;
+            }
+            if (weight <= heapWeights[child]) {
+                break;
+            }
+            heapNodes[i] = heapNodes[child];
+            heapWeights[i] = heapWeights[child];
+            i = child;
+        }
+        heapNodes[i] = node;
+        heapWeights[i] = weight;
+    }
+}
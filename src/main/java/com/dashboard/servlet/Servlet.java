@@ -19,24 +19,24 @@ import com.graphhopper.storage.GraphEdgeIdFinder;
 import com.graphhopper.storage.index.LocationIndex;
 import com.graphhopper.storage.index.Snap;
 import com.graphhopper.util.*;
-import com.graphhopper.util.shapes.BBox;
+import com.graphhopper.util.exceptions.DetailedIllegalArgumentException;
 import com.graphhopper.util.shapes.Circle;
 import com.graphhopper.util.shapes.GHPoint;
 import com.graphhopper.util.shapes.Polygon;
 import com.graphhopper.gtfs.*;
 
+import java.time.Duration;
 import java.time.ZoneId;
 import com.graphhopper.config.Profile;
-import com.google.gson.Gson;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.InputStream;
 import java.time.LocalDateTime;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
 
 @Path("/route")
@@ -46,7 +46,8 @@ public class Servlet {
     private static final String _graphLocation = "graph-cache";
     private static String _gtfsFile = "at.gtfs,gest.gtfs";
     private static String _datareaderFile = "centro-latest.osm.pbf";
-    private static final ZoneId _zoneId = ZoneId.of("Europe/Rome");
+    private static final ZoneId _zoneId = EnvConfig.ZONE;
+    private static final String _ptEngine = System.getenv("GH_PT_ENGINE") != null ? System.getenv("GH_PT_ENGINE") : "graph";
 
     /**
      * API interface method called by Dashboard
@@ -54,18 +55,48 @@ public class Servlet {
      * @param avoidArea FeatureCollection object (in GeoJSON format) containing
      * the areas to avoid in routing calculation
      * @param waypoints Routing lat/lng waypoints separated by ';'
+     * @param fields comma separated list of the path fields to return (wkt,
+     * bbox, points, time, distance, instructions), all of them if empty
+     * @param speedModelName speed model of the fastest_with_traffic weighting
+     * (greenshields, bpr, road_class)
+     * @param maxVisitedNodes maximum number of nodes visited by each search
+     * @param maxDistance maximum distance of the route in meters
+     * @param timeout maximum time of the searches in milliseconds
+     * @param departureWindow with public transport, length in minutes of the
+     * departure window: the Pareto-optimal journeys departing in the window are
+     * returned
+     * @param ptEngine with public transport, the router: graph (the
+     * GraphHopper time-expanded graph, with the realtime updates) or raptor
+     * (RaptorRouter on the static timetable)
+     * @param accessVehicle with public transport, the vehicle (e.g. car, bike)
+     * driven from the origin to a stop, for park-and-ride journeys with the
+     * raptor engine
+     * @param accept Accept header, with application/x-protobuf the route is
+     * returned as a compact binary message instead of JSON
+     * @param acceptEncoding Accept-Encoding header, with gzip the response is
+     * compressed
      * @return the Response object expected from GraphHopper Leaflet Routing
      * Machine
      */
     @GET
-    @Produces(MediaType.TEXT_PLAIN)
+    @Produces({MediaType.TEXT_PLAIN, MediaType.APPLICATION_JSON, RouteProtobufWriter.MEDIA_TYPE})
     public static Response getRoute(@QueryParam("waypoints") String waypoints,
             @DefaultValue("car") @QueryParam("vehicle") String vehicle,
             @DefaultValue("") @QueryParam("avoid_area") String avoidArea,
             @DefaultValue("") @QueryParam("startDatetime") String startTimestamp,
             @DefaultValue("fastest") @QueryParam("weighting") String weighting,
             @DefaultValue("") @QueryParam("routing") String routing,
-            @DefaultValue("false") @QueryParam("wkt") String wkt) {
+            @DefaultValue("false") @QueryParam("wkt") String wkt,
+            @DefaultValue("") @QueryParam("fields") String fields,
+            @DefaultValue(SpeedModels.DEFAULT) @QueryParam("speed_model") String speedModelName,
+            @DefaultValue("") @QueryParam("max_visited_nodes") String maxVisitedNodes,
+            @DefaultValue("") @QueryParam("max_distance") String maxDistance,
+            @DefaultValue("") @QueryParam("timeout") String timeout,
+            @DefaultValue("") @QueryParam("departureWindow") String departureWindow,
+            @DefaultValue("") @QueryParam("pt_engine") String ptEngine,
+            @DefaultValue("") @QueryParam("access_vehicle") String accessVehicle,
+            @DefaultValue("") @HeaderParam("Accept") String accept,
+            @DefaultValue("") @HeaderParam("Accept-Encoding") String acceptEncoding) {
 
         if(waypoints == null) {
             return Response.status(400).entity("{\"error\":\"missing waypoints=lon,lat;...;lon,lat parameter\"}")
@@ -73,26 +104,38 @@ public class Servlet {
                     .header("Access-Control-Allow-Origin", "*").build();
         }
 
-        String[] waypointsArray = waypoints.split(";");
-        if(waypointsArray.length<2) {
-            return Response.status(400).entity("{\"error\":\"invalid waypoints=lon,lat;...;lon,lat parameter (#points<2)\"}")
+        List<GHPoint> points;
+        try {
+            points = WaypointParser.parse(waypoints);
+        } catch(IllegalArgumentException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
                     .header("Content-Type", "application/json")
                     .header("Access-Control-Allow-Origin", "*").build();
         }
-        
+
+        ResponseFields responseFields;
         try {
-            for(String s: waypointsArray) {
-                String[] p = s.split(",");
-                if(p.length!=2) {
-                    return Response.status(400).entity("{\"error\":\"invalid waypoints parameter (no lon,lat) \"}")
-                            .header("Content-Type", "application/json")
-                            .header("Access-Control-Allow-Origin", "*").build();
-                }
-                double lon = Double.parseDouble(p[0]);
-                double lat = Double.parseDouble(p[1]);
-            }
-        } catch(NumberFormatException e) {
-            return Response.status(400).entity("{\"error\":\"invalid waypoints parameter (wrong numeric format) \"}")
+            responseFields = ResponseFields.parse(fields);
+        } catch(IllegalArgumentException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString("invalid fields parameter (" + e.getMessage() + ")") + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+        SpeedModel speedModel;
+        try {
+            speedModel = SpeedModels.get(speedModelName);
+        } catch(IllegalArgumentException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+        SearchLimits searchLimits;
+        Duration window;
+        try {
+            searchLimits = SearchLimits.parse(maxVisitedNodes, maxDistance, timeout);
+            window = DepartureWindow.parse(departureWindow);
+        } catch(IllegalArgumentException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
                     .header("Content-Type", "application/json")
                     .header("Access-Control-Allow-Origin", "*").build();
         }
@@ -100,36 +143,526 @@ public class Servlet {
             // If the startDatetime is not specified, use the current datetime
             LocalDateTime startDatetime;
             if (startTimestamp.isEmpty()) {
-                startDatetime = LocalDateTime.now();
+                startDatetime = LocalDateTime.now(_zoneId);
             } else {
                 startDatetime = LocalDateTime.parse(startTimestamp);
             }
 
-            GraphHopper hopper;
-            GHResponse response;
+            // Identical requests in progress share the same computation (see RequestCoalescer)
+            boolean pt = isPtRouting(routing, vehicle);
+            boolean protobuf = AcceptHeader.prefers(accept, RouteProtobufWriter.MEDIA_TYPE, MediaType.APPLICATION_JSON);
+            StringBuilder normalizedPoints = new StringBuilder();
+            for (GHPoint point : points) {
+                normalizedPoints.append(String.format(Locale.ROOT, "%.6f,%.6f;", point.lat, point.lon));
+            }
+            String key = RequestCoalescer.key(normalizedPoints, pt ? "pt" : vehicle + "|" + routing, weighting, RequestCoalescer.hash(avoidArea),
+                    pt ? startTimestamp : DynamicGraphHopper.getTrafficSlot(startDatetime), speedModel.getName(), maxVisitedNodes,
+                    maxDistance, timeout, departureWindow, ptEngine, accessVehicle, fields, wkt, protobuf);
+            Response computed = RequestCoalescer.execute(key, () -> computeRoute(points, vehicle, avoidArea, startDatetime,
+                    weighting, routing, wkt, responseFields, speedModel, searchLimits, window, ptEngine, accessVehicle, protobuf));
+
+            Response.ResponseBuilder builder = Response.status(computed.getStatus())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .header("Content-Type", computed.getMetadata().getFirst("Content-Type"));
+            Object output = computed.getEntity();
+            if (computed.getStatus() == 200) {
+                builder.header("Vary", "Accept, Accept-Encoding");
+                if (output instanceof StreamingOutput && GzipStreamingOutput.isAccepted(acceptEncoding)) {
+                    output = new GzipStreamingOutput((StreamingOutput) output);
+                    builder.header("Content-Encoding", "gzip");
+                }
+            }
+            return builder.entity(output).build();
+        } catch(Exception e) {
+            e.printStackTrace();
+
+            return Response.status(500).entity("{\"exception\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+    }
+
+    private static boolean isPtRouting(String routing, String vehicle) {
+        return routing.equals("pt") || routing.equals("public_transport") || vehicle.equals("bus");
+    }
 
-            if (routing.equals("pt") || routing.equals("public_transport") || vehicle.equals("bus")) {
+    /**
+     * Calculates the route of a request, with the parameters already parsed
+     * by getRoute.
+     *
+     * @return the response, with the route or the error
+     */
+    private static Response computeRoute(List<GHPoint> points, String vehicle, String avoidArea, LocalDateTime startDatetime,
+            String weighting, String routing, String wkt, ResponseFields responseFields, SpeedModel speedModel,
+            SearchLimits searchLimits, Duration window, String ptEngine, String accessVehicle, boolean protobuf) throws Exception {
+        GraphHopper hopper;
+        GHResponse response;
+        // The GraphHopper instance loaded for the request, closed when the response is ready
+        DynamicGraphHopper requestHopper = null;
+        try {
+            if (isPtRouting(routing, vehicle)) {
                 routing = "pt";
-                GraphHopperConfig config = createConfig();
-                hopper = initGHGtfs(config);
-                PtRouter ptRouter = initPtRouter(config, (GraphHopperGtfs) hopper);
-                response = getGtfsRoute(ptRouter, waypointsArray, startDatetime);
+                // The GTFS graph and the router (with the realtime updates) are shared by the requests
+                hopper = RealtimePtRouter.getHopper();
+                if (ptEngine.isEmpty()) {
+                    ptEngine = accessVehicle.isEmpty() ? _ptEngine : "raptor";
+                }
+                if (ptEngine.equals("raptor")) {
+                    if (points.size() != 2 || window != null) {
+                        return Response.status(400).entity("{\"error\":\"the raptor engine supports two waypoints and no departureWindow\"}")
+                                .header("Content-Type", "application/json")
+                                .header("Access-Control-Allow-Origin", "*").build();
+                    }
+                    RaptorNetwork network = RaptorNetwork.get(RealtimePtRouter.getHopper());
+                    RaptorRouter raptorRouter;
+                    if (accessVehicle.isEmpty()) {
+                        raptorRouter = new RaptorRouter(network);
+                    } else {
+                        // Park-and-ride: the vehicle is routed with the scenario of the request (blocked area and traffic)
+                        DynamicGraphHopper accessHopper = initGH(accessVehicle, weighting.equals("fastest_with_traffic") ? weighting : "fastest", startDatetime);
+                        requestHopper = accessHopper;
+                        accessHopper.setSpeedModel(speedModel);
+                        accessHopper.setSearchLimits(searchLimits, points.subList(0, 1));
+                        if (!avoidArea.isEmpty()) {
+                            blockAreaSetup(accessHopper, avoidArea);
+                        }
+                        raptorRouter = new ParkAndRideRouter(network, accessHopper, accessVehicle);
+                    }
+                    response = raptorRouter.route(points.get(0), points.get(1), startDatetime.atZone(_zoneId));
+                    if (response.hasErrors()) {
+                        return routeErrorResponse(response);
+                    }
+                    // A limit stopped the access search, the journeys only use the stops reached before it
+                    if (raptorRouter instanceof ParkAndRideRouter && ((ParkAndRideRouter) raptorRouter).getLimit() != null) {
+                        response.getHints().putObject(SearchLimits.RESPONSE_HINT, ((ParkAndRideRouter) raptorRouter).getLimit());
+                    }
+                } else if (ptEngine.equals("graph")) {
+                    if (!accessVehicle.isEmpty()) {
+                        return Response.status(400).entity("{\"error\":\"access_vehicle requires pt_engine=raptor\"}")
+                                .header("Content-Type", "application/json")
+                                .header("Access-Control-Allow-Origin", "*").build();
+                    }
+                    response = getGtfsRoute(RealtimePtRouter.getRouter(), points, startDatetime, window);
+                } else {
+                    return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString("invalid pt_engine parameter: " + ptEngine) + "}")
+                            .header("Content-Type", "application/json")
+                            .header("Access-Control-Allow-Origin", "*").build();
+                }
             } else {
-                hopper = initGH(vehicle, weighting, startDatetime);
+                DynamicGraphHopper dynamicHopper = initGH(vehicle, weighting, startDatetime);
+                hopper = dynamicHopper;
+                requestHopper = dynamicHopper;
+                dynamicHopper.setSpeedModel(speedModel);
+                dynamicHopper.setSearchLimits(searchLimits, points);
                 if (!avoidArea.isEmpty()) {
-                    blockAreaSetup((DynamicGraphHopper) hopper, avoidArea);  // extract barriers and apply them
+                    blockAreaSetup(dynamicHopper, avoidArea);  // extract barriers and apply them
+                }
+                response = blockedRoute(dynamicHopper.getRequestProfile(), hopper, points, responseFields, routing.equals("crp"));
+                if (response.hasErrors()) {
+                    return routeErrorResponse(response);
                 }
-                response = blockedRoute(vehicle, hopper, waypointsArray);
             }
 
-            JSONObject jsonResponse = buildFormattedResponse(routing, wkt, hopper, response);
-            if (routing.equals("pt")) {
+            // The response is serialized only if it is shared with identical requests (see RequestCoalescer)
+            StreamingOutput output;
+            String contentType;
+            if (protobuf) {
+                output = new RouteProtobufWriter(response, responseFields);
+                contentType = RouteProtobufWriter.MEDIA_TYPE;
+            } else {
+                output = new RouteResponseWriter(routing, wkt, hopper, response, responseFields);
+                contentType = "application/json";
+            }
+            return Response.ok()
+                    .header("Content-Type", contentType)
+                    .entity(output).build();
+        } finally {
+            if (requestHopper != null) {
+                requestHopper.close();
+            }
+        }
+    }
+
+    /**
+     * Counters of the coalescing of identical route requests (see
+     * RequestCoalescer).
+     *
+     * @return the number of routes computed, of the requests that shared the
+     * route of an identical one and of the computations in progress
+     */
+    @GET
+    @Path("coalescing")
+    @Produces(MediaType.APPLICATION_JSON)
+    public static Response getCoalescingStats() {
+        JSONObject json = new JSONObject();
+        json.put("computations", RequestCoalescer.getComputations());
+        json.put("coalesced", RequestCoalescer.getCoalesced());
+        json.put("in_flight", RequestCoalescer.getInFlight());
+        return Response.ok(json.toString())
+                .header("Content-Type", "application/json")
+                .header("Access-Control-Allow-Origin", "*").build();
+    }
+
+    /**
+     * Fleet dispatch: the K vehicles that reach a target first under the
+     * current scenario (blocked area and traffic), with a single search from
+     * the target (see FleetDispatcher).
+     *
+     * @param target the lon,lat of the target
+     * @param sources the lon,lat of the vehicles separated by ';'
+     * @param ids comma separated ids of the vehicles, in the order of the
+     * sources (by default their index)
+     * @param kParam number of vehicles to return, at most GH_DISPATCH_MAX_K
+     * @param paths if the points of the paths of the vehicles are returned
+     * @param avoidArea FeatureCollection object (in GeoJSON format) containing
+     * the areas to avoid
+     * @return the vehicles in increasing time, with their time and distance
+     */
+    @GET
+    @Path("dispatch")
+    @Produces(MediaType.APPLICATION_JSON)
+    public static Response getDispatch(@QueryParam("target") String target,
+            @QueryParam("sources") String sources,
+            @DefaultValue("") @QueryParam("ids") String ids,
+            @DefaultValue("5") @QueryParam("k") String kParam,
+            @DefaultValue("false") @QueryParam("paths") boolean paths,
+            @DefaultValue("taxi") @QueryParam("vehicle") String vehicle,
+            @DefaultValue("fastest_with_traffic") @QueryParam("weighting") String weighting,
+            @DefaultValue("") @QueryParam("avoid_area") String avoidArea,
+            @DefaultValue("") @QueryParam("startDatetime") String startTimestamp,
+            @DefaultValue(SpeedModels.DEFAULT) @QueryParam("speed_model") String speedModelName,
+            @DefaultValue("") @QueryParam("max_visited_nodes") String maxVisitedNodes,
+            @DefaultValue("") @QueryParam("max_distance") String maxDistance,
+            @DefaultValue("") @QueryParam("timeout") String timeout) {
+
+        GHPoint targetPoint;
+        List<GHPoint> sourcePoints;
+        String[] sourceIds;
+        SpeedModel speedModel;
+        SearchLimits searchLimits;
+        int k;
+        try {
+            if (target == null || sources == null) {
+                throw new IllegalArgumentException("missing target=lon,lat or sources=lon,lat;...;lon,lat parameter");
+            }
+            targetPoint = WaypointParser.parse(target, "target", 1).get(0);
+            sourcePoints = WaypointParser.parse(sources, "sources", 1);
+            if (sourcePoints.size() > FleetDispatcher.MAX_SOURCES) {
+                throw new IllegalArgumentException("too many sources: " + sourcePoints.size() + " (at most " + FleetDispatcher.MAX_SOURCES + ")");
+            }
+            sourceIds = ids.isEmpty() ? null : ids.split(",");
+            if (sourceIds != null && sourceIds.length != sourcePoints.size()) {
+                throw new IllegalArgumentException("invalid ids parameter (" + sourceIds.length + " ids for " + sourcePoints.size() + " sources)");
+            }
+            try {
+                k = Integer.parseInt(kParam);
+            } catch (NumberFormatException e) {
+                k = 0;
+            }
+            if (k < 1 || k > FleetDispatcher.MAX_K) {
+                throw new IllegalArgumentException("invalid k parameter: " + kParam + " (1-" + FleetDispatcher.MAX_K + ")");
+            }
+            speedModel = SpeedModels.get(speedModelName);
+            searchLimits = SearchLimits.parse(maxVisitedNodes, maxDistance, timeout);
+        } catch(IllegalArgumentException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+        try {
+            LocalDateTime startDatetime = startTimestamp.isEmpty() ? LocalDateTime.now(_zoneId) : LocalDateTime.parse(startTimestamp);
+            DynamicGraphHopper hopper = initGH(vehicle, weighting, startDatetime);
+            FleetDispatcher.Result result;
+            try {
+                hopper.setSpeedModel(speedModel);
+                hopper.setSearchLimits(searchLimits, Collections.singletonList(targetPoint));
+                if (!avoidArea.isEmpty()) {
+                    blockAreaSetup(hopper, avoidArea);
+                }
+                result = FleetDispatcher.dispatch(hopper, targetPoint, sourcePoints, k, paths);
+            } catch(IllegalArgumentException e) {
+                return routeErrorResponse(new GHResponse().addError(e));
+            } finally {
                 hopper.close();
             }
-            return Response.ok(jsonResponse.toString())
+
+            JSONArray vehicles = new JSONArray();
+            for (FleetDispatcher.Dispatch dispatch : result.getDispatches()) {
+                JSONObject json = new JSONObject();
+                json.put("id", sourceIds != null ? sourceIds[dispatch.getSource()] : String.valueOf(dispatch.getSource()));
+                json.put("time", dispatch.getTime());
+                json.put("distance", dispatch.getDistance());
+                if (paths) {
+                    json.put("points", encodePolyline(dispatch.getPoints(), false));
+                    json.put("points_encoded", true);
+                }
+                vehicles.put(json);
+            }
+            JSONArray notFound = new JSONArray();
+            for (int source : result.getNotFound()) {
+                notFound.put(sourceIds != null ? sourceIds[source] : String.valueOf(source));
+            }
+            JSONObject json = new JSONObject();
+            json.put("vehicles", vehicles);
+            json.put("not_found", notFound);
+            json.put("visited_nodes", result.getVisitedNodes());
+            if (result.getLimit() != null) {
+                json.put("limit", result.getLimit());
+            }
+            return Response.ok(json.toString())
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(Exception e) {
+            e.printStackTrace();
+
+            return Response.status(500).entity("{\"exception\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+    }
+
+    /**
+     * Traffic of the edges used by the fastest_with_traffic weighting, as a
+     * Mapbox Vector Tile (see TrafficTiles).
+     *
+     * @param day day of the week of the traffic data (0 = Monday), by default
+     * the current one
+     * @param hour hour of the traffic data (0-23), by default the current one
+     * @param speedModelName speed model of the speeds of the edges
+     * @return the tile, with a "traffic" layer
+     */
+    @GET
+    @Path("traffic/{z}/{x}/{y}.mvt")
+    @Produces(TrafficTiles.MEDIA_TYPE)
+    public static Response getTrafficTile(@PathParam("z") int z, @PathParam("x") int x, @PathParam("y") int y,
+            @DefaultValue("car") @QueryParam("vehicle") String vehicle,
+            @DefaultValue("") @QueryParam("day") String day,
+            @DefaultValue("") @QueryParam("hour") String hour,
+            @DefaultValue(SpeedModels.DEFAULT) @QueryParam("speed_model") String speedModelName,
+            @DefaultValue("") @HeaderParam("Accept-Encoding") String acceptEncoding) {
+
+        SpeedModel speedModel;
+        LocalDateTime slot;
+        try {
+            TrafficTiles.checkTile(z, x, y);
+            speedModel = SpeedModels.get(speedModelName);
+            LocalDateTime now = LocalDateTime.now(_zoneId);
+            int dayOfWeek = day.isEmpty() ? now.getDayOfWeek().getValue() - 1 : Integer.parseInt(day);
+            int hourOfDay = hour.isEmpty() ? now.getHour() : Integer.parseInt(hour);
+            if (dayOfWeek < 0 || dayOfWeek > 6 || hourOfDay < 0 || hourOfDay > 23) {
+                throw new IllegalArgumentException("invalid day or hour parameter: " + day + " " + hour);
+            }
+            // 2024-01-01 is a Monday
+            slot = LocalDateTime.of(2024, 1, 1, hourOfDay, 0).plusDays(dayOfWeek);
+        } catch(IllegalArgumentException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+        try {
+            // The graph is shared by the tiles, the key has the version of its traffic data so the tiles are
+            // rendered again when it changes
+            DynamicGraphHopper hopper = SharedHoppers.get(vehicle, "fastest_with_traffic");
+            String trafficSlot = DynamicGraphHopper.getTrafficSlot(slot);
+            // The live observed speeds are used for the current hour, as in the routes that start now
+            boolean live = day.isEmpty() && hour.isEmpty();
+            String key = hopper.getGraphHopperLocation() + "|" + vehicle + "|" + trafficSlot + "|" + speedModel.getName()
+                    + "|" + hopper.getTrafficDataKey(trafficSlot, live) + "|" + z + "/" + x + "/" + y;
+            byte[] tile = TrafficTiles.get(key, () -> TrafficTiles.render(hopper, vehicle, trafficSlot, speedModel, live, z, x, y));
+
+            StreamingOutput output = out -> out.write(tile);
+            Response.ResponseBuilder builder = Response.ok()
                     .header("Access-Control-Allow-Origin", "*")
+                    .header("Content-Type", TrafficTiles.MEDIA_TYPE)
+                    .header("Vary", "Accept-Encoding");
+            if (GzipStreamingOutput.isAccepted(acceptEncoding)) {
+                output = new GzipStreamingOutput(output);
+                builder.header("Content-Encoding", "gzip");
+            }
+            return builder.entity(output).build();
+        } catch(Exception e) {
+            e.printStackTrace();
+
+            return Response.status(500).entity("{\"exception\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+    }
+
+    /**
+     * Apply a GTFS-realtime update (a FeedMessage) to the public transport
+     * router (see RealtimePtRouter).
+     *
+     * @param feed the GTFS feed of the update, gtfs_0 for the first file of
+     * GH_GTFS_FILES, gtfs_1 for the second one, ...
+     * @param authorization the token of the updates (see UpdateAccess)
+     * @param body the FeedMessage
+     * @return the number of entities of the feed after the update and the
+     * time taken
+     */
+    @POST
+    @Path("pt/realtime")
+    @Consumes({RouteProtobufWriter.MEDIA_TYPE, MediaType.APPLICATION_OCTET_STREAM})
+    @Produces(MediaType.APPLICATION_JSON)
+    public static Response postRealtimeUpdate(@DefaultValue(RealtimePtRouter.DEFAULT_FEED) @QueryParam("feed") String feed,
+            @DefaultValue("") @HeaderParam("Authorization") String authorization, InputStream body) {
+        if (!UpdateAccess.isAllowed(authorization)) {
+            return Response.status(403).entity("{\"error\":\"the updates are not allowed\"}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+        try {
+            long start = System.nanoTime();
+            int entities = RealtimePtRouter.apply(feed, new java.io.ByteArrayInputStream(UpdateAccess.readBody(body)));
+            JSONObject json = new JSONObject();
+            json.put("feed", feed);
+            json.put("entities", entities);
+            json.put("millis", (System.nanoTime() - start) / 1_000_000);
+            return Response.ok(json.toString())
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(UpdateAccess.TooLargeException e) {
+            return Response.status(413).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(IllegalArgumentException | java.io.IOException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(Exception e) {
+            e.printStackTrace();
+
+            return Response.status(500).entity("{\"exception\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+    }
+
+    /**
+     * Ingest a batch of GPS traces: they are map matched and the speeds of
+     * the edges are added to the observed speeds used by the
+     * fastest_with_traffic weighting (see TraceIngestion).
+     *
+     * @param vehicle the vehicle of the traces
+     * @param profile live for the current traffic, typical for the traffic
+     * of the day and hour of the traces
+     * @param authorization the token of the updates (see UpdateAccess)
+     * @param body the traces as JSON
+     * @return the number of traces, points and edges matched and the time
+     * taken
+     */
+    @POST
+    @Path("traces")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public static Response postTraces(@DefaultValue("car") @QueryParam("vehicle") String vehicle,
+            @DefaultValue(TraceIngestion.LIVE) @QueryParam("profile") String profile,
+            @DefaultValue("") @HeaderParam("Authorization") String authorization, InputStream body) {
+        if (!UpdateAccess.isAllowed(authorization)) {
+            return Response.status(403).entity("{\"error\":\"the updates are not allowed\"}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+        try {
+            JSONObject result = TraceIngestion.ingest(vehicle, profile,
+                    new JSONObject(new String(UpdateAccess.readBody(body), java.nio.charset.StandardCharsets.UTF_8)));
+            return Response.ok(result.toString())
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(UpdateAccess.TooLargeException e) {
+            return Response.status(413).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(IllegalArgumentException | org.json.JSONException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(Exception e) {
+            e.printStackTrace();
+
+            return Response.status(500).entity("{\"exception\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+    }
+
+    /**
+     * Evaluate a portfolio of closure scenarios on a set of origin-destination
+     * pairs (see ScenarioPortfolio).
+     *
+     * @param authorization the token of the updates (see UpdateAccess)
+     * @param body the pairs, the scenarios and the routing settings as JSON
+     * @return the baseline and the delay statistics of every scenario
+     */
+    @POST
+    @Path("portfolio")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public static Response postPortfolio(@DefaultValue("") @HeaderParam("Authorization") String authorization, InputStream body) {
+        if (!UpdateAccess.isAllowed(authorization)) {
+            return Response.status(403).entity("{\"error\":\"the updates are not allowed\"}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+        try {
+            JSONObject result = ScenarioPortfolio.run(
+                    new JSONObject(new String(UpdateAccess.readBody(body), java.nio.charset.StandardCharsets.UTF_8)), ScenarioPortfolio.MAX_PAIRS);
+            return Response.ok(result.toString())
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(UpdateAccess.TooLargeException e) {
+            return Response.status(413).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(IllegalArgumentException | org.json.JSONException | java.time.format.DateTimeParseException e) {
+            return Response.status(400).entity("{\"error\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        } catch(Exception e) {
+            e.printStackTrace();
+
+            return Response.status(500).entity("{\"exception\":" + org.json.JSONObject.valueToString(e.getMessage()) + "}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+    }
+
+    /**
+     * State of the router snapshot (see RouterSnapshot).
+     *
+     * @return the last snapshot saved and the one restored at the start
+     */
+    @GET
+    @Path("snapshot")
+    @Produces(MediaType.APPLICATION_JSON)
+    public static Response getSnapshot() {
+        return Response.ok(RouterSnapshot.getStatus().toString())
+                .header("Content-Type", "application/json")
+                .header("Access-Control-Allow-Origin", "*").build();
+    }
+
+    /**
+     * Save a router snapshot now, e.g. before a redeploy that does not stop
+     * the JVM (see RouterSnapshot).
+     *
+     * @param authorization the token of the updates (see UpdateAccess)
+     * @return the number of entries of each section, the size and the time
+     * taken
+     */
+    @POST
+    @Path("snapshot")
+    @Produces(MediaType.APPLICATION_JSON)
+    public static Response postSnapshot(@DefaultValue("") @HeaderParam("Authorization") String authorization) {
+        if (!UpdateAccess.isAllowed(authorization)) {
+            return Response.status(403).entity("{\"error\":\"the updates are not allowed\"}")
+                    .header("Content-Type", "application/json")
+                    .header("Access-Control-Allow-Origin", "*").build();
+        }
+        try {
+            JSONObject result = RouterSnapshot.save();
+            return Response.ok(result.toString())
                     .header("Content-Type", "application/json")
-                    .build();
+                    .header("Access-Control-Allow-Origin", "*").build();
         } catch(Exception e) {
             e.printStackTrace();
 
@@ -162,14 +695,8 @@ public class Servlet {
      */
     public static GraphHopperConfig createConfig() {
         GraphHopperConfig ghConfig = new GraphHopperConfig();
-        String mapPbf = System.getenv("GH_MAP_PBF");
-        if (mapPbf == null) {
-            mapPbf = _datareaderFile;
-        }
-        String ghLocationPfx = System.getenv("GH_LOCATION_PFX");
-        if (ghLocationPfx == null) {
-            ghLocationPfx = _graphLocation;
-        }
+        String mapPbf = getOSMFile();
+        String ghLocationPfx = getGraphLocationPrefix();
         String ghGtfsFiles = System.getenv("GH_GTFS_FILES");
         if (ghGtfsFiles == null) {
             ghGtfsFiles = _gtfsFile;
@@ -228,7 +755,43 @@ public class Servlet {
         return graphHopperGtfs;
     }
 
+    /**
+     * @return the OSM file to import, from the GH_MAP_PBF environment variable
+     */
+    public static String getOSMFile() {
+        String mapPbf = System.getenv("GH_MAP_PBF");
+        if (mapPbf == null) {
+            mapPbf = _datareaderFile;
+        }
+        return mapPbf;
+    }
+
+    /**
+     * @return the base path of the graph directories, from the GH_LOCATION_PFX environment variable
+     */
+    public static String getGraphLocationPrefix() {
+        String ghLocationPfx = System.getenv("GH_LOCATION_PFX");
+        if (ghLocationPfx == null) {
+            ghLocationPfx = _graphLocation;
+        }
+        return ghLocationPfx;
+    }
+
     public static DynamicGraphHopper initGH(String _vehicle, String weighting, LocalDateTime startDatetime) {
+        String mapPbf = getOSMFile();
+        String ghLocationPfx = getGraphLocationPrefix();
+        RouterSnapshot.recordGraph(_vehicle, weighting);
+
+        // Use the graph shared by all the profiles, if it has been imported with SharedGraphImport
+        if (SharedGraphImport.exists(ghLocationPfx) && SharedGraphImport.supports(_vehicle, weighting)) {
+            DynamicGraphHopper hopper = SharedGraphImport.create(startDatetime);
+            hopper.setOSMFile(mapPbf);
+            hopper.setProfiles(SharedGraphImport.createProfiles());
+            hopper.setRequestProfile(SharedGraphImport.getProfileName(_vehicle, weighting));
+            hopper.importOrLoad();
+            return hopper;
+        }
+
         // Create EncodingManager for the selected vehicle (car, foot, bike)
         //final EncodingManager vehicleManager = EncodingManager.create(_vehicle);
 
@@ -237,14 +800,6 @@ public class Servlet {
         //Naldi 14/05/2025 -> add factories to use custom vehicles
         hopper.setVehicleTagParserFactory(new CustomVehicleTagParserFactory());
         hopper.setVehicleEncodedValuesFactory(new CustomVehicleEncodedValuesFactory());
-        String mapPbf = System.getenv("GH_MAP_PBF");
-        if (mapPbf == null) {
-            mapPbf = _datareaderFile;
-        }
-        String ghLocationPfx = System.getenv("GH_LOCATION_PFX");
-        if (ghLocationPfx == null) {
-            ghLocationPfx = _graphLocation;
-        }
         hopper.setOSMFile(mapPbf);
         hopper.setGraphHopperLocation(ghLocationPfx + "_" + _vehicle + "_" + weighting + "_map-gh"); // The location should be different for each Profile (vehicle + weighting)
         hopper.setProfiles(new Profile(_vehicle).setVehicle(_vehicle).setWeighting(weighting));
@@ -264,25 +819,42 @@ public class Servlet {
      * the response.
      *
      * @param ptRouter The PtRouter instance to be used for routing.
-     * @param waypointsArray An array of strings representing waypoints, where
-     * each string contains a longitude and latitude in the format
-     * "longitude,latitude".
+     * @param waypoints The waypoints, as parsed by WaypointParser.
      * @param startDatetime The LocalDateTime that specifies the date in which
      * we want to calculate the trip.
      *
      * @return GHResponse The response containing the routing information,
      * including the calculated route and other related data.
      */
-    public static GHResponse getGtfsRoute(PtRouter ptRouter, String[] waypointsArray, LocalDateTime startDatetime) {
-        List<GHLocation> points = new ArrayList<>();
-        for (String s : waypointsArray) {
-            double curLat = Double.parseDouble(s.split(",")[1]);
-            double curLon = Double.parseDouble(s.split(",")[0]);
+    public static GHResponse getGtfsRoute(PtRouter ptRouter, List<GHPoint> waypoints, LocalDateTime startDatetime) {
+        return getGtfsRoute(ptRouter, waypoints, startDatetime, null);
+    }
 
-            points.add(new GHPointLocation(new GHPoint(curLat, curLon)));
+    /**
+     * Calculates the public transport journeys departing in a window with a
+     * single profile query (see DepartureWindow).
+     *
+     * @param ptRouter The PtRouter instance to be used for routing.
+     * @param waypoints The waypoints, as parsed by WaypointParser.
+     * @param startDatetime The start of the departure window.
+     * @param departureWindow The length of the window, null to calculate the
+     * best journey departing at startDatetime.
+     *
+     * @return GHResponse The Pareto-optimal journeys by departure time,
+     * arrival time and transfers.
+     */
+    public static GHResponse getGtfsRoute(PtRouter ptRouter, List<GHPoint> waypoints, LocalDateTime startDatetime, Duration departureWindow) {
+        List<GHLocation> points = new ArrayList<>(waypoints.size());
+        for (GHPoint point : waypoints) {
+            points.add(new GHPointLocation(point));
         }
         Request ghRequest = new Request(points, startDatetime.atZone(_zoneId).toInstant());
-        return ptRouter.route(ghRequest);
+        if (departureWindow == null) {
+            return ptRouter.route(ghRequest);
+        }
+        ghRequest.setProfileQuery(true);
+        ghRequest.setMaxProfileDuration(departureWindow);
+        return DepartureWindow.paretoSet(ptRouter.route(ghRequest));
     }
 
     public static void blockAreaSetup(DynamicGraphHopper hopper, String avoidArea) {
@@ -314,189 +886,7 @@ public class Servlet {
                 blockArea.add(new Polygon(lats, lons));
             }
         }
-        hopper.setBlockArea(blockArea);
-    }
-
-    // build response json as required by leaflet routing machine
-    public static JSONObject buildFormattedResponse(String _routingType, String _wkt, GraphHopper hopper, GHResponse response) {
-        JSONObject jsonRsp = new JSONObject();
-
-        // Use all paths
-        List<ResponsePath> allPathsList = response.getAll();
-
-        // paths
-        JSONArray pathArray = new JSONArray();
-        for (ResponsePath path : allPathsList) {
-            // get path geometry information (latitude, longitude and optionally elevation)
-            PointList pointList = path.getPoints();
-            // get information per turn instruction
-            InstructionList instructions = path.getInstructions();
-
-            // get time(milliseconds) and distance(meters) of the path
-            double distance = path.getDistance();
-            long millis = path.getTime();
-
-            JSONObject jsonPath = new JSONObject();
-
-            if(_wkt.equals("true"))
-                jsonPath.put("wkt", pointList.toLineString(false));
-
-            // bbox
-            BBox box = hopper.getBaseGraph().getBounds();
-            String bboxString = "[" + box.minLon + "," + box.minLat + "," + box.maxLon + "," + box.maxLat + "]";
-            JSONArray bbox = new JSONArray(bboxString);
-            jsonPath.put("bbox", bbox);
-
-            // points
-            String encPoints = encodePolyline(pointList, false);
-            jsonPath.put("points", encPoints);
-
-            // points_encoded
-            jsonPath.put("points_encoded", true);
-
-            // time, distance
-            jsonPath.put("distance", distance);
-            jsonPath.put("time", millis);
-
-            // instructions
-            if (_routingType.equals("pt") || _routingType.equals("public_transport")) {
-                List<Trip.Leg> legs = path.getLegs();
-                jsonPath.put("instructions", new JSONArray(serializeLegInstructions((GraphHopperGtfs) hopper, instructions, legs)));
-            } else {
-                jsonPath.put("instructions", new JSONArray(serializeInstructions(instructions)));
-            }
-
-            pathArray.put(jsonPath);   // Add the path to the array of paths
-        }
-
-        jsonRsp.put("paths", pathArray);
-
-        // --info
-        JSONObject info = new JSONObject();
-        JSONArray copyrights = new JSONArray();
-        copyrights.put("GraphHopper");
-        copyrights.put("OpenStreetMap contributors");
-        info.put("copyrights", copyrights);
-
-        jsonRsp.put("info", info);
-
-        return jsonRsp;
-    }
-
-    /**
-     * Serializes a list of Trip legs into a JSON object representation.
-     *
-     * This method takes a list of legs from a Trip and converts them into a
-     * JSON object. It specifically handles legs of type Trip.PtLeg, extracting
-     * relevant information such as trip ID, route ID, feed ID, travel time,
-     * type, trip headsign, and associated stops.
-     *
-     * @param graphHopperGtfs An instance from which retrieve generic
-     * informations.
-     * @param legs A list of Trip.Leg objects to be serialized. The method
-     * currently processes only instances of Trip.PtLeg.
-     *
-     * @return JSONObject A JSON object containing serialized information about
-     * the legs, including trip and stop details.
-     */
-    public static JSONArray serializeLegs(GraphHopperGtfs graphHopperGtfs, List<Trip.Leg> legs) {
-        JSONArray legObjectList = new JSONArray();
-
-        for (Trip.Leg leg : legs) {
-            JSONObject legObject = new JSONObject();
-            if (leg instanceof Trip.PtLeg) {
-                Trip.PtLeg ptLeg = (Trip.PtLeg) leg;
-                JSONArray stopList = new JSONArray();
-                legObject.put("trip_id", ptLeg.trip_id);
-                String route_id = ptLeg.route_id;
-                legObject.put("route_id", ptLeg.route_id);
-                String feed_id = ptLeg.feed_id;
-                legObject.put("feed_id", ptLeg.feed_id);
-                legObject.put("travelTime", ptLeg.travelTime);
-                legObject.put("type", ptLeg.type);
-                legObject.put("trip_headsign", ptLeg.trip_headsign);
-                legObject.put("trip_id", ptLeg.trip_id);
-                List<Trip.Stop> stops = ptLeg.stops;
-
-                String agencyId = graphHopperGtfs.getGtfsStorage().getGtfsFeeds().get(feed_id).routes.get(route_id).agency_id;
-                String agencyName = graphHopperGtfs.getGtfsStorage().getGtfsFeeds().get(feed_id).agency.get(agencyId).agency_name;
-                String routeShortName = graphHopperGtfs.getGtfsStorage().getGtfsFeeds().get(feed_id).routes.get(route_id).route_short_name;
-                legObject.put("agency_id", agencyId);
-                legObject.put("agency_name", agencyName);
-                legObject.put("route_name", routeShortName);
-
-                for (Iterator<Trip.Stop> stop_iterator = stops.iterator(); stop_iterator.hasNext();) {
-                    JSONObject stopJson = new JSONObject();
-                    Trip.Stop stop = stop_iterator.next();
-                    stopList.put(stopJson);
-                    stopJson.put("stop_id", stop.stop_id);
-                    stopJson.put("stop_name", stop.stop_name);
-                    if (stop.arrivalTime != null) {
-                        ZonedDateTime zat = stop.arrivalTime.toInstant().atZone(ZoneId.systemDefault());
-                        stopJson.put("stop_arrivalTime", zat.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
-                    } else {
-                        ZonedDateTime zdt = stop.departureTime.toInstant().atZone(ZoneId.systemDefault());
-                        stopJson.put("stop_arrivalTime", zdt.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
-                    }
-                }
-                legObject.put("stop", stopList);
-                legObjectList.put(legObject);
-            }
-
-        }
-
-        return legObjectList;
-    }
-
-    /**
-     * Serializes a list of instructions containing legs into a JSON object
-     * representation.
-     *
-     * This method takes a list of instruction and legs converting them into a
-     * JSON object.
-     *
-     * @param graphHopperGtfs An instance from which retrieve generic
-     * informations.
-     * @param legs A list of Trip.Leg objects to be serialized. The method
-     * currently processes only instances of Trip.PtLeg.
-     *
-     * @return String A string containing all the information about the response
-     * returned from the GraphHopperGtfs routing to insert them into a
-     * JSONObject
-     */
-    public static String serializeLegInstructions(GraphHopperGtfs graphHopperGtfs, InstructionList instructions, List<Trip.Leg> legs) {
-
-        List<Map<String, Object>> instrList = new ArrayList<>(instructions.size());
-        int pointsIndex = 0;
-        JSONObject leg;
-
-        int tmpIndex;
-        int legsCounter = 0;
-        JSONArray jsonLegs = serializeLegs(graphHopperGtfs, legs);
-        for (Iterator<Instruction> iterator = instructions.iterator(); iterator.hasNext(); pointsIndex = tmpIndex) {
-            Instruction instruction = iterator.next();
-            Map<String, Object> instrJson = new HashMap<>();
-            instrList.add(instrJson);
-
-            if (Helper.firstBig(instruction.getTurnDescription(instructions.getTr())).equals("Pt_start_trip")) {
-                instrJson.put("text", "Pt_start_trip");
-                leg = jsonLegs.getJSONObject(legsCounter);
-                instrJson.put("leg", leg);
-                legsCounter++;
-            } else {
-                instrJson.put("text", Helper.firstBig(instruction.getTurnDescription(instructions.getTr())));
-                instrJson.put("street_name", instruction.getName());
-                instrJson.put("time", instruction.getTime());
-                instrJson.put("distance", Helper.round(instruction.getDistance(), 3));
-                instrJson.put("sign", instruction.getSign());
-                instrJson.putAll(instruction.getExtraInfoJSON());
-            }
-
-            tmpIndex = pointsIndex + instruction.getLength();
-            instrJson.put("interval", Arrays.asList(pointsIndex, tmpIndex));
-        }
-
-        return new Gson().toJson(instrList.toArray());
+        hopper.setBlockArea(blockArea, avoidArea);
     }
 
     /**
@@ -545,29 +935,72 @@ public class Servlet {
      * Perform a route calculation and print the best path details
      *
      * @param hopper GraphHopper instance (could have a blockArea set)
-     * @param waypointsArray Array of waypoints (lat, lon)
+     * @param waypoints The waypoints, as parsed by WaypointParser
+     * @param fields the fields of the response, instructions and points are
+     * not calculated if they are not requested
      */
-    public static GHResponse blockedRoute(String _vehicle,GraphHopper hopper, String[] waypointsArray) {
+    public static GHResponse blockedRoute(String _vehicle,GraphHopper hopper, List<GHPoint> waypoints, ResponseFields fields) throws InterruptedException {
+        return blockedRoute(_vehicle, hopper, waypoints, fields, false);
+    }
+
+    /**
+     * Perform a route calculation, with the customizable route planning if
+     * requested (see CrpRouter)
+     *
+     * @param crp if the route is calculated on the customized overlay, without
+     * alternatives
+     */
+    public static GHResponse blockedRoute(String _vehicle,GraphHopper hopper, List<GHPoint> waypoints, ResponseFields fields, boolean crp) throws InterruptedException {
         System.out.println("Blocked route...");
 
-        GHRequest req = new GHRequest();
-        for (String s : waypointsArray) {
-            double curLat = Double.parseDouble(s.split(",")[1]);
-            double curLon = Double.parseDouble(s.split(",")[0]);
+        GHRequest req = new GHRequest(waypoints);
 
-            req.addPoint(new GHPoint(curLat, curLon));
+        req.setProfile(_vehicle).setLocale(Locale.ENGLISH);
+
+        // Skip the instructions (and the points, if nothing needs them) when they are not part of the response
+        boolean instructions = fields.has(ResponseFields.INSTRUCTIONS);
+        req.getHints().putObject(Parameters.Routing.INSTRUCTIONS, instructions);
+        if (!instructions && !fields.has(ResponseFields.POINTS) && !fields.has(ResponseFields.WKT)) {
+            req.getHints().putObject(Parameters.Routing.CALC_POINTS, false);
         }
 
-        req.setProfile(_vehicle).setLocale(Locale.ENGLISH);
+        // The max visited nodes are enforced by GraphHopper, the other limits by the weighting (see BoundedSearchWeighting)
+        SearchLimits limits = hopper instanceof DynamicGraphHopper ? ((DynamicGraphHopper) hopper).getSearchLimits() : null;
+        if (limits != null && limits.getMaxVisitedNodes() > 0) {
+            req.getHints().putObject(Parameters.Routing.MAX_VISITED_NODES, limits.getMaxVisitedNodes());
+        }
 
-        // GH does not allow alt routes with > 2 waypoints, so we manage this case disabling alt route for >2 waypoints
-        if (waypointsArray.length > 2) {
-            req.setAlgorithm(_algorithm);
+        GHResponse response;
+        if (crp && hopper instanceof DynamicGraphHopper) {
+            return CrpRouter.route((DynamicGraphHopper) hopper, req);
+        }
+        // GH does not allow alt routes with > 2 waypoints, so in this case the alternatives are calculated per leg and combined
+        if (waypoints.size() > 2) {
+            response = LegAlternativeRouter.route(hopper, req);
         } else {
             req.setAlgorithm(Parameters.Algorithms.ALT_ROUTE);
+            response = hopper.route(req);
         }
+        if (hopper instanceof DynamicGraphHopper) {
+            response = ((DynamicGraphHopper) hopper).checkResponse(req, response);
+        }
+        return response;
+    }
 
-        return hopper.route(req);
+    /**
+     * Build the 400 response for a route that could not be calculated, with the message and the details (e.g. the
+     * visited nodes or the limit that was exceeded) of the first error.
+     */
+    private static Response routeErrorResponse(GHResponse response) {
+        Throwable error = response.getErrors().get(0);
+        org.json.JSONObject json = new org.json.JSONObject();
+        json.put("error", error.getMessage());
+        if (error instanceof DetailedIllegalArgumentException) {
+            json.put("details", new org.json.JSONObject(((DetailedIllegalArgumentException) error).getDetails()));
+        }
+        return Response.status(400).entity(json.toString())
+                .header("Content-Type", "application/json")
+                .header("Access-Control-Allow-Origin", "*").build();
     }
 
     public static void printResponseDetails(GHResponse rsp) {
@@ -631,29 +1064,6 @@ public class Servlet {
         }
     }
 
-    public static String serializeInstructions(InstructionList instructions) {
-
-        List<Map<String, Object>> instrList = new ArrayList<>(instructions.size());
-        int pointsIndex = 0;
-
-        int tmpIndex;
-        for (Iterator<Instruction> iterator = instructions.iterator(); iterator.hasNext(); pointsIndex = tmpIndex) {
-            Instruction instruction = iterator.next();
-            Map<String, Object> instrJson = new HashMap<>();
-            instrList.add(instrJson);
-            instrJson.put("text", Helper.firstBig(instruction.getTurnDescription(instructions.getTr())));
-            instrJson.put("street_name", instruction.getName());
-            instrJson.put("time", instruction.getTime());
-            instrJson.put("distance", Helper.round(instruction.getDistance(), 3));
-            instrJson.put("sign", instruction.getSign());
-            instrJson.putAll(instruction.getExtraInfoJSON());
-            tmpIndex = pointsIndex + instruction.getLength();
-            instrJson.put("interval", Arrays.asList(pointsIndex, tmpIndex));
-        }
-
-        return new Gson().toJson(instrList.toArray());
-    }
-
     // --------------------------------------
     // Other utility methods (for developing)
     // --------------------------------------
@@ -0,0 +1,122 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.config.Profile;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Offline import of a single graph shared by all the vehicles and weightings.
+ * <p>
+ * The OSM file is read once: every way is passed to the tag parsers of all the configured vehicles (including the
+ * custom ones like taxi), the edge to way mapping is recorded in the same pass and the PBF blocks are decoded by one
+ * worker thread per core. The profiles are named vehicle_weighting. When the shared graph exists, the servlet loads
+ * it instead of importing a graph for each vehicle and weighting.
+ * <p>
+ * Usage: java -cp "WEB-INF/classes:WEB-INF/lib/*" com.dashboard.servlet.SharedGraphImport
+ * with the same GH_MAP_PBF and GH_LOCATION_PFX environment variables of the servlet. The vehicles can be chosen with
+ * GH_SHARED_VEHICLES (comma separated).
+ */
+public class SharedGraphImport {
+    private static final String DEFAULT_VEHICLES = "car,bike,foot,wheelchair,taxi";
+    private static final List<String> WEIGHTINGS = Arrays.asList("fastest", "shortest", "short_fastest", "fastest_with_traffic");
+
+    public static void main(String[] args) {
+        String location = getLocation(Servlet.getGraphLocationPrefix());
+        if (exists(Servlet.getGraphLocationPrefix())) {
+            System.out.println("The shared graph already exists in " + location + ", remove it to import it again");
+            return;
+        }
+
+        DynamicGraphHopper hopper = create(LocalDateTime.now());
+        hopper.setOSMFile(Servlet.getOSMFile());
+        int threads = Runtime.getRuntime().availableProcessors();
+        hopper.getReaderConfig().setWorkerThreads(threads);
+        hopper.setProfiles(createProfiles());
+
+        System.out.println("Importing " + hopper.getOSMFile() + " in " + location + " for " + getVehicles() + " using " + threads + " threads");
+        long start = System.nanoTime();
+        hopper.importOrLoad();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long ways = hopper.getImportedWayCount();
+        System.out.printf("Imported %d ways and %d edges in %.1f s (%.0f ways/s), %d ways failed in the custom tag parsers%n",
+                ways, hopper.getBaseGraph().getEdges(), seconds, ways / seconds, ImportStats.getFailedWayCount());
+        hopper.close();
+    }
+
+    /**
+     * Create a DynamicGraphHopper configured for the shared graph, without profiles.
+     *
+     * @param startDatetime the start of the routing, used to load the traffic data
+     */
+    public static DynamicGraphHopper create(LocalDateTime startDatetime) {
+        DynamicGraphHopper hopper = new DynamicGraphHopper(startDatetime);
+        hopper.setVehicleTagParserFactory(new CustomVehicleTagParserFactory());
+        hopper.setVehicleEncodedValuesFactory(new CustomVehicleEncodedValuesFactory());
+        hopper.setGraphHopperLocation(getLocation(Servlet.getGraphLocationPrefix()));
+        return hopper;
+    }
+
+    /**
+     * @return a profile for each vehicle and weighting. The list must be the same used for the import in order to load the graph.
+     */
+    public static List<Profile> createProfiles() {
+        List<Profile> profiles = new ArrayList<>();
+        for (String vehicle : getVehicles()) {
+            for (String weighting : WEIGHTINGS) {
+                profiles.add(new Profile(getProfileName(vehicle, weighting)).setVehicle(vehicle).setWeighting(weighting));
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Check if the shared graph can serve a vehicle and a weighting.
+     */
+    public static boolean supports(String vehicle, String weighting) {
+        return getVehicles().contains(vehicle) && WEIGHTINGS.contains(weighting);
+    }
+
+    public static String getProfileName(String vehicle, String weighting) {
+        return vehicle + "_" + weighting;
+    }
+
+    public static List<String> getVehicles() {
+        String vehicles = System.getenv("GH_SHARED_VEHICLES");
+        if (vehicles == null) {
+            vehicles = DEFAULT_VEHICLES;
+        }
+        List<String> result = new ArrayList<>(Arrays.asList(vehicles.replace(" ", "").split(",")));
+        // The custom vehicles of the configuration share the same import
+        for (String name : CustomVehicleConfig.getNames()) {
+            if (!result.contains(name)) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    public static String getLocation(String ghLocationPfx) {
+        return ghLocationPfx + "_shared_map-gh";
+    }
+
+    public static boolean exists(String ghLocationPfx) {
+        return new File(getLocation(ghLocationPfx), "properties").exists();
+    }
+}
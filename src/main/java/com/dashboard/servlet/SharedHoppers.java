@@ -0,0 +1,66 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.dashboard.servlet;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Graphs loaded once and shared by the read only uses (traffic tiles, trace ingestion), one per vehicle and weighting.
+ * <p>
+ * The routing requests still create their own instance with Servlet.initGH, since they set their state on it (blocked
+ * area, traffic slot, speed model, search limits). The shared instances are never changed after loading: their users
+ * pass the traffic slot and the speed model explicitly (e.g. DynamicGraphHopper.acquireTravelTimeTable). They are
+ * closed by closeAll when the application stops.
+ */
+public class SharedHoppers {
+    private static final Map<String, DynamicGraphHopper> hoppers = new LinkedHashMap<>();
+
+    private SharedHoppers() {
+    }
+
+    /**
+     * Get the shared instance of a vehicle and weighting, loading (or importing) the graph the first time.
+     * The road elements are matched again if their files have changed.
+     */
+    public static DynamicGraphHopper get(String vehicle, String weighting) {
+        String key = vehicle + "|" + weighting;
+        DynamicGraphHopper hopper;
+        // Loaded under the lock, so that a graph is loaded once
+        synchronized (hoppers) {
+            hopper = hoppers.get(key);
+            if (hopper == null) {
+                hopper = Servlet.initGH(vehicle, weighting, LocalDateTime.now());
+                hoppers.put(key, hopper);
+            }
+        }
+        hopper.updateRoadElementIndex();
+        return hopper;
+    }
+
+    /**
+     * Close the shared instances, the ones in use must not be used afterwards.
+     */
+    public static void closeAll() {
+        List<DynamicGraphHopper> closed;
+        synchronized (hoppers) {
+            closed = new ArrayList<>(hoppers.values());
+            hoppers.clear();
+        }
+        closed.forEach(DynamicGraphHopper::close);
+    }
+}
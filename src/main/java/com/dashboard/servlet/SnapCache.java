@@ -0,0 +1,263 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.shapes.GHPoint3D;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Bounded cache of the snap results, shared by all the requests.
+ * <p>
+ * The results are grouped by scenario (graph location, traffic slot and blocked area, i.e. everything that changes
+ * which edges can be snapped) and, inside a scenario, keyed by the coordinates quantized to 1e-6 degrees.
+ * Both levels are LRU maps. Only graph independent values are stored (edge key, node, position...), so a new Snap
+ * bound to the graph of the current request is rebuilt for every hit. For the same reason the cache can be saved in
+ * the RouterSnapshot and restored after a restart.
+ */
+public class SnapCache {
+    private static final double QUANTIZATION = 1e6;
+
+    private static final int MAX_SCENARIOS = EnvConfig.getInt("GH_SNAP_CACHE_SCENARIOS", 64);
+    private static final int MAX_POINTS = EnvConfig.getInt("GH_SNAP_CACHE_SIZE", 4096);
+
+    private static final Map<String, Map<Long, CachedSnap>> cache = new LinkedHashMap<String, Map<Long, CachedSnap>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<Long, CachedSnap>> eldest) {
+            return size() > MAX_SCENARIOS;
+        }
+    };
+
+    private static long hits;
+    private static long misses;
+
+    private SnapCache() {
+    }
+
+    /**
+     * Get a cached snap, rebuilt on the given graph.
+     *
+     * @param scenario key of the scenario
+     * @param graph the graph of the current request
+     * @param lat latitude of the query point
+     * @param lon longitude of the query point
+     * @return the snap or null if the point is not in the cache
+     */
+    public static Snap get(String scenario, BaseGraph graph, double lat, double lon) {
+        CachedSnap cached;
+        synchronized (cache) {
+            Map<Long, CachedSnap> points = cache.get(scenario);
+            cached = points == null ? null : points.get(key(lat, lon));
+            if (cached == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return cached.toSnap(graph, lat, lon);
+    }
+
+    public static void put(String scenario, double lat, double lon, Snap snap) {
+        CachedSnap cached = new CachedSnap(snap);
+        synchronized (cache) {
+            getPoints(scenario).put(key(lat, lon), cached);
+        }
+    }
+
+    /**
+     * Write the cached snaps in a snapshot (see RouterSnapshot), from the least to the most recently used.
+     *
+     * @return the number of snaps written
+     */
+    public static int save(DataOutputStream out) throws IOException {
+        List<String> scenarios = new ArrayList<>();
+        List<List<Map.Entry<Long, CachedSnap>>> entries = new ArrayList<>();
+        synchronized (cache) {
+            for (Map.Entry<String, Map<Long, CachedSnap>> scenario : cache.entrySet()) {
+                scenarios.add(scenario.getKey());
+                entries.add(new ArrayList<>(scenario.getValue().entrySet()));
+            }
+        }
+        int count = 0;
+        out.writeInt(scenarios.size());
+        for (int i = 0; i < scenarios.size(); i++) {
+            out.writeUTF(scenarios.get(i));
+            out.writeInt(entries.get(i).size());
+            for (Map.Entry<Long, CachedSnap> entry : entries.get(i)) {
+                out.writeLong(entry.getKey());
+                entry.getValue().write(out);
+            }
+            count += entries.get(i).size();
+        }
+        return count;
+    }
+
+    /**
+     * Put the snaps of a snapshot in the cache, in the order of use they were saved.
+     *
+     * @param valid checks the scenario (starting with the graph folder) of the snaps
+     * @return the number of snaps restored
+     */
+    public static int restore(DataInputStream in, Predicate<String> valid) throws IOException {
+        int scenarios = in.readInt();
+        int restored = 0;
+        for (int s = 0; s < scenarios; s++) {
+            String scenario = in.readUTF();
+            int count = in.readInt();
+            boolean validScenario = valid.test(scenario);
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                CachedSnap cached = CachedSnap.read(in);
+                if (validScenario) {
+                    synchronized (cache) {
+                        getPoints(scenario).putIfAbsent(key, cached);
+                    }
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+
+    // The points of a scenario, must be called holding the lock of the cache
+    private static Map<Long, CachedSnap> getPoints(String scenario) {
+        Map<Long, CachedSnap> points = cache.get(scenario);
+        if (points == null) {
+            points = new LinkedHashMap<Long, CachedSnap>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, CachedSnap> eldest) {
+                    return size() > MAX_POINTS;
+                }
+            };
+            cache.put(scenario, points);
+        }
+        return points;
+    }
+
+    public static long getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    public static long getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    // lat and lon quantized to 1e-6 degrees fit in 32 bits each
+    private static long key(double lat, double lon) {
+        long qLat = Math.round(lat * QUANTIZATION);
+        long qLon = Math.round(lon * QUANTIZATION);
+        return (qLat << 32) | (qLon & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Graph independent copy of a Snap.
+     */
+    private static class CachedSnap {
+        private final boolean valid;
+        private final int edgeKey;
+        private final int closestNode;
+        private final int wayIndex;
+        private final Snap.Position position;
+        private final double queryDistance;
+        private final double snappedLat;
+        private final double snappedLon;
+        private final double snappedEle;
+
+        private CachedSnap(boolean valid, int edgeKey, int closestNode, int wayIndex, Snap.Position position, double queryDistance,
+                           double snappedLat, double snappedLon, double snappedEle) {
+            this.valid = valid;
+            this.edgeKey = edgeKey;
+            this.closestNode = closestNode;
+            this.wayIndex = wayIndex;
+            this.position = position;
+            this.queryDistance = queryDistance;
+            this.snappedLat = snappedLat;
+            this.snappedLon = snappedLon;
+            this.snappedEle = snappedEle;
+        }
+
+        CachedSnap(Snap snap) {
+            valid = snap.isValid();
+            closestNode = snap.getClosestNode();
+            if (valid) {
+                edgeKey = snap.getClosestEdge().getEdgeKey();
+                wayIndex = snap.getWayIndex();
+                position = snap.getSnappedPosition();
+                queryDistance = snap.getQueryDistance();
+                GHPoint3D snapped = snap.getSnappedPoint();
+                snappedLat = snapped.lat;
+                snappedLon = snapped.lon;
+                snappedEle = snapped.ele;
+            } else {
+                edgeKey = -1;
+                wayIndex = -1;
+                position = null;
+                queryDistance = Double.MAX_VALUE;
+                snappedLat = snappedLon = snappedEle = Double.NaN;
+            }
+        }
+
+        static CachedSnap read(DataInputStream in) throws IOException {
+            boolean valid = in.readBoolean();
+            int closestNode = in.readInt();
+            if (!valid) {
+                return new CachedSnap(false, -1, closestNode, -1, null, Double.MAX_VALUE, Double.NaN, Double.NaN, Double.NaN);
+            }
+            return new CachedSnap(true, in.readInt(), closestNode, in.readInt(), Snap.Position.values()[in.readByte()],
+                    in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeBoolean(valid);
+            out.writeInt(closestNode);
+            if (valid) {
+                out.writeInt(edgeKey);
+                out.writeInt(wayIndex);
+                out.writeByte(position.ordinal());
+                out.writeDouble(queryDistance);
+                out.writeDouble(snappedLat);
+                out.writeDouble(snappedLon);
+                out.writeDouble(snappedEle);
+            }
+        }
+
+        Snap toSnap(BaseGraph graph, double lat, double lon) {
+            Snap snap = new Snap(lat, lon);
+            if (!valid) {
+                return snap;
+            }
+            EdgeIteratorState edge = graph.getEdgeIteratorStateForKey(edgeKey);
+            snap.setClosestEdge(edge);
+            snap.setClosestNode(closestNode);
+            snap.setWayIndex(wayIndex);
+            snap.setSnappedPosition(position);
+            snap.setQueryDistance(queryDistance);
+            snap.setSnappedPoint(new GHPoint3D(snappedLat, snappedLon, snappedEle));
+            return snap;
+        }
+    }
+}
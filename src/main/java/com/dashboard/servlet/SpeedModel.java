@@ -0,0 +1,42 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.ev.RoadClass;
+
+/**
+ * Function that gives the speed on a road from its traffic density, used by FastestWeightingWithTraffic.
+ * <p>
+ * The speed models are not evaluated during the search: for every day and hour the travel time of each edge is
+ * calculated once with the chosen model (see TravelTimeTable).
+ *
+ * @see SpeedModels
+ */
+public interface SpeedModel {
+
+    /**
+     * @return the name used to select the model in the requests
+     */
+    String getName();
+
+    /**
+     * Calculate the speed on a road.
+     *
+     * @param freeFlowSpeed speed without traffic (km/h)
+     * @param density average traffic density
+     * @param maxDensity maximum traffic density of the road
+     * @param roadClass class of the road
+     * @return the speed in km/h, it can be 0 or negative for a jammed road (the minimum speed is applied)
+     */
+    double getSpeed(double freeFlowSpeed, double density, double maxDensity, RoadClass roadClass);
+}
@@ -0,0 +1,49 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The speed models that can be selected with the speed_model parameter.
+ */
+public class SpeedModels {
+    public static final String DEFAULT = GreenshieldsSpeedModel.NAME;
+
+    private static final Map<String, SpeedModel> models = new LinkedHashMap<>();
+
+    static {
+        register(new GreenshieldsSpeedModel());
+        register(new BprSpeedModel());
+        register(new RoadClassSpeedModel());
+    }
+
+    private SpeedModels() {
+    }
+
+    public static void register(SpeedModel model) {
+        models.put(model.getName(), model);
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no model with the given name
+     */
+    public static SpeedModel get(String name) {
+        SpeedModel model = models.get(name);
+        if (model == null) {
+            throw new IllegalArgumentException("unknown speed_model " + name + ", possible values: " + String.join(", ", models.keySet()));
+        }
+        return model;
+    }
+}
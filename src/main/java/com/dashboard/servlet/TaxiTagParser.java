@@ -31,6 +31,9 @@ public class TaxiTagParser extends CarTagParser{
     private static final int MAX_SPEED = 100;
     private static final int PEDESTRIAN_SPEED = 30;
 
+    private ReaderWay lastWay;
+    private TaxiWayTags lastTags;
+
     public TaxiTagParser(EncodedValueLookup lookup, PMap properties) {
         this(
             lookup.getBooleanEncodedValue(VehicleAccess.key(PREFIX)),
@@ -71,31 +74,27 @@ public class TaxiTagParser extends CarTagParser{
                 return edgeFlags;
 
             //pedestrian emergency & psv has to set allow directions and speed
-            String highway = way.getTag("highway");
-            boolean existence = vehicleTagExistence(way);
-            if(highway != null){
-                if("pedestrian".equals(highway) && existence){
-                    //direct
-                    accessEnc.setBool(false, edgeFlags, true);
-                    avgSpeedEnc.setDecimal(false, edgeFlags, PEDESTRIAN_SPEED);
-                    //reverse
-                    accessEnc.setBool(true, edgeFlags, true);
-                    avgSpeedEnc.setDecimal(true, edgeFlags, PEDESTRIAN_SPEED);
-                    return edgeFlags;
-                }
+            TaxiWayTags tags = getTags(way);
+            if(tags.pedestrianWithVehicleAccess){
+                //direct
+                accessEnc.setBool(false, edgeFlags, true);
+                avgSpeedEnc.setDecimal(false, edgeFlags, PEDESTRIAN_SPEED);
+                //reverse
+                accessEnc.setBool(true, edgeFlags, true);
+                avgSpeedEnc.setDecimal(true, edgeFlags, PEDESTRIAN_SPEED);
+                return edgeFlags;
             }
 
             //go to super class
             edgeFlags = super.handleWayTags(edgeFlags, way);
 
             //in osm the road data can be monodirectional car lane marked with lanes:psv:backward so i need to allow go backwards
-            String psvBackward = way.getTag("lanes:psv:backward");
-            if(psvBackward != null)
+            if(tags.psvBackward)
                 accessEnc.setBool(true, edgeFlags, true);            
             return edgeFlags;
         }catch(Exception e){
-            System.err.println("Catching super handleWayTags");
-            System.err.println(e.getMessage());
+            //the failure is counted and reported at the end of the import instead of being printed for each way
+            ImportStats.countFailure(way, e);
             return edgeFlags;
         }
     }
@@ -103,35 +102,45 @@ public class TaxiTagParser extends CarTagParser{
     @Override
     public WayAccess getAccess(ReaderWay way) {
         WayAccess access = super.getAccess(way);
+        TaxiWayTags tags = getTags(way);
         //emergency basic
-        String emergency = way.getTag("emergency");
-        String service = way.getTag("service");
-        if ("yes".equals(emergency) && "emergency_access".equals(service)) {
+        if (tags.emergencyAccess) {
             return WayAccess.WAY;
         }
         //pedestrian emergency
-        String highway = way.getTag("highway");
-        boolean existence = vehicleTagExistence(way);
-        if ("pedestrian".equals(highway) && existence)
+        if (tags.pedestrianWithVehicleAccess)
             return WayAccess.WAY;
         return access;
     }
 
-    //check the existence of vehicle tag psv, emergency, taxi
-    private boolean vehicleTagExistence(ReaderWay way){
-        String psv = way.getTag("psv");
-        String emergency = way.getTag("emergency");
-        String taxi = way.getTag("taxi");
-
-        boolean result = false;
-
-        if(psv != null)
-            result |= "yes".equals(psv);
-        if(emergency != null)
-            result |= "yes".equals(emergency);
-        if(taxi != null)
-            result |= "yes".equals(taxi);
-        
-        return result;
+    //getAccess is called by the OSM reader and again by handleWayTags (directly and through the super class),
+    //so the tags of the last way are kept and read only once
+    private TaxiWayTags getTags(ReaderWay way) {
+        if (lastWay != way) {
+            lastTags = new TaxiWayTags(way);
+            lastWay = way;
+        }
+        return lastTags;
+    }
+
+    /**
+     * The tags used by the taxi parser, read in a single pass over the way.
+     */
+    private static final class TaxiWayTags {
+        //highway=pedestrian with psv, emergency or taxi = yes
+        final boolean pedestrianWithVehicleAccess;
+        //emergency=yes and service=emergency_access
+        final boolean emergencyAccess;
+        //lanes:psv:backward is present
+        final boolean psvBackward;
+
+        TaxiWayTags(ReaderWay way) {
+            boolean emergency = way.hasTag("emergency", "yes");
+            //check the existence of vehicle tag psv, emergency, taxi
+            boolean vehicleTagExistence = emergency || way.hasTag("psv", "yes") || way.hasTag("taxi", "yes");
+            pedestrianWithVehicleAccess = vehicleTagExistence && way.hasTag("highway", "pedestrian");
+            emergencyAccess = emergency && way.hasTag("service", "emergency_access");
+            psvBackward = way.getTag("lanes:psv:backward") != null;
+        }
     }
 }
@@ -0,0 +1,107 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Formats the times of the public transport responses as ISO_OFFSET_DATE_TIME (e.g. 2024-03-12T08:05:00+01:00).
+ * <p>
+ * The zone is resolved once. The date and the offset of the last formatted time are cached with the interval where
+ * they do not change (until the next midnight or offset transition), so the times of a journey, that are close to
+ * each other, are formatted writing the hour, minutes and seconds in a char array. Times with a fraction of a second
+ * are formatted with the DateTimeFormatter.
+ */
+public class TimestampFormatter {
+    private static final ZoneId ZONE = EnvConfig.ZONE;
+    private static final ZoneRules RULES = ZONE.getRules();
+    private static final int DAY = 24 * 3600;
+
+    // The date and offset of an interval of epoch seconds
+    private static class Interval {
+        final long start;
+        final long end;
+        final int offsetSeconds;
+        final String prefix;  // the date and 'T'
+        final String offset;
+
+        Interval(long start, long end, int offsetSeconds, String prefix, String offset) {
+            this.start = start;
+            this.end = end;
+            this.offsetSeconds = offsetSeconds;
+            this.prefix = prefix;
+            this.offset = offset;
+        }
+    }
+
+    private static volatile Interval last;
+
+    private TimestampFormatter() {
+    }
+
+    /**
+     * Format a time in the zone of the requests (see EnvConfig.ZONE).
+     *
+     * @param millis epoch milliseconds
+     */
+    public static String format(long millis) {
+        if (millis % 1000 != 0) {
+            return Instant.ofEpochMilli(millis).atZone(ZONE).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+        }
+        long second = millis / 1000;
+        Interval interval = last;
+        if (interval == null || second < interval.start || second >= interval.end) {
+            interval = createInterval(second);
+            last = interval;
+        }
+        int secondOfDay = (int) Math.floorMod(second + interval.offsetSeconds, (long) DAY);
+        char[] time = new char[8];
+        writeTwoDigits(time, 0, secondOfDay / 3600);
+        time[2] = ':';
+        writeTwoDigits(time, 3, secondOfDay / 60 % 60);
+        time[5] = ':';
+        writeTwoDigits(time, 6, secondOfDay % 60);
+        return new StringBuilder(interval.prefix.length() + 8 + interval.offset.length())
+                .append(interval.prefix).append(time).append(interval.offset).toString();
+    }
+
+    private static Interval createInterval(long second) {
+        Instant instant = Instant.ofEpochSecond(second);
+        ZoneOffset offset = RULES.getOffset(instant);
+        int offsetSeconds = offset.getTotalSeconds();
+        long local = second + offsetSeconds;
+        long start = local - Math.floorMod(local, (long) DAY) - offsetSeconds;
+        long end = start + DAY;
+        ZoneOffsetTransition previous = RULES.previousTransition(Instant.ofEpochSecond(second + 1));
+        if (previous != null && previous.toEpochSecond() > start) {
+            start = previous.toEpochSecond();
+        }
+        ZoneOffsetTransition next = RULES.nextTransition(instant);
+        if (next != null && next.toEpochSecond() < end) {
+            end = next.toEpochSecond();
+        }
+        String prefix = LocalDate.ofEpochDay(Math.floorDiv(local, (long) DAY)) + "T";
+        return new Interval(start, end, offsetSeconds, prefix, offset.getId());
+    }
+
+    private static void writeTwoDigits(char[] chars, int position, int value) {
+        chars[position] = (char) ('0' + value / 10);
+        chars[position + 1] = (char) ('0' + value % 10);
+    }
+}
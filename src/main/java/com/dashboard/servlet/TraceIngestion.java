@@ -0,0 +1,178 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
+import com.graphhopper.config.Profile;
+import com.graphhopper.routing.ev.Subnetwork;
+import com.graphhopper.routing.ev.VehicleAccess;
+import com.graphhopper.routing.ev.VehicleSpeed;
+import com.graphhopper.routing.util.DefaultSnapFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.weighting.FastestWeighting;
+import com.graphhopper.routing.weighting.Weighting;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Ingestion of batches of GPS traces as observed speeds of the edges (POST /route/traces).
+ * <p>
+ * The traces are matched in parallel on GH_MATCH_THREADS threads (default: the number of cores) on the graph used by
+ * the fastest_with_traffic weighting of the vehicle (see MapMatcher), loaded once and shared (see SharedHoppers), with
+ * the free flow speeds of the vehicle. The traversals of the edges are then added to the EdgeSpeedObservations: to the
+ * live store, or to the typical store of the day and hour of each traversal.
+ */
+public class TraceIngestion {
+    public static final String LIVE = "live";
+    public static final String TYPICAL = "typical";
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            EnvConfig.getInt("GH_MATCH_THREADS", Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "map-matcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // The traversals to add to a store
+    private static class Batch {
+        final IntArrayList edges = new IntArrayList();
+        final DoubleArrayList meters = new DoubleArrayList();
+        final DoubleArrayList seconds = new DoubleArrayList();
+        final IntArrayList minutes = new IntArrayList();
+    }
+
+    private TraceIngestion() {
+    }
+
+    /**
+     * Stop the threads of the map matching, when the application is stopped (see RouterLifecycle).
+     */
+    public static void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Match a batch of traces and add the observed speeds to the stores of the profile.
+     *
+     * @param vehicle the vehicle of the traces
+     * @param profile LIVE or TYPICAL
+     * @param body the traces: {"traces": [{"points": [[lon, lat, time in ms], ...]}, ...]}
+     * @return the number of traces, points, matched points, breaks, traversals and edges observed, and the time taken
+     * @throws IllegalArgumentException if the profile or the traces are not valid
+     */
+    public static JSONObject ingest(String vehicle, String profile, JSONObject body) throws InterruptedException {
+        if (!profile.equals(LIVE) && !profile.equals(TYPICAL)) {
+            throw new IllegalArgumentException("invalid profile " + profile + ", possible values: " + LIVE + ", " + TYPICAL);
+        }
+        long start = System.nanoTime();
+        List<List<MapMatcher.Observation>> traces = parse(body);
+        DynamicGraphHopper hopper = SharedHoppers.get(vehicle, "fastest_with_traffic");
+        Profile ghProfile = hopper.getProfile(hopper.getRequestProfile());
+        // Not the traffic weighting, that depends on the traffic slot of the shared instance
+        EncodingManager em = hopper.getEncodingManager();
+        Weighting weighting = new FastestWeighting(em.getBooleanEncodedValue(VehicleAccess.key(ghProfile.getVehicle())),
+                em.getDecimalEncodedValue(VehicleSpeed.key(ghProfile.getVehicle())));
+        String subnetwork = Subnetwork.key(ghProfile.getName());
+        EdgeFilter snapFilter = hopper.getEncodingManager().hasEncodedValue(subnetwork)
+                ? new DefaultSnapFilter(weighting, hopper.getEncodingManager().getBooleanEncodedValue(subnetwork))
+                : EdgeFilter.ALL_EDGES;
+
+        List<Future<MapMatcher.Result>> futures = new ArrayList<>(traces.size());
+        int points = 0;
+        for (List<MapMatcher.Observation> trace : traces) {
+            points += trace.size();
+            futures.add(executor.submit(() -> new MapMatcher(hopper.getBaseGraph(), hopper.getLocationIndex(), weighting, snapFilter).match(trace)));
+        }
+
+        // The traversals by store, the typical ones by day and hour
+        Map<String, Batch> batches = new TreeMap<>();
+        IntHashSet observedEdges = new IntHashSet();
+        int matchedPoints = 0;
+        int breaks = 0;
+        int traversals = 0;
+        for (Future<MapMatcher.Result> future : futures) {
+            MapMatcher.Result result;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                System.out.println("Error while matching a trace: " + e.getCause().getMessage());
+                continue;
+            }
+            matchedPoints += result.getMatchedPoints();
+            breaks += result.getBreaks();
+            for (int i = 0; i < result.getEdges().size(); i++) {
+                long time = result.getTimes().get(i);
+                String slot = profile.equals(LIVE) ? EdgeSpeedObservations.LIVE
+                        : DynamicGraphHopper.getTrafficSlot(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), EnvConfig.ZONE));
+                Batch batch = batches.computeIfAbsent(slot, s -> new Batch());
+                batch.edges.add(result.getEdges().get(i));
+                batch.meters.add(result.getMeters().get(i));
+                batch.seconds.add(result.getSeconds().get(i));
+                batch.minutes.add((int) (time / 60_000));
+                observedEdges.add(result.getEdges().get(i));
+                traversals++;
+            }
+        }
+        for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+            EdgeSpeedObservations store = EdgeSpeedObservations.get(hopper.getGraphHopperLocation(), entry.getKey());
+            Batch batch = entry.getValue();
+            store.add(batch.edges, batch.meters, batch.seconds, batch.minutes);
+            store.flush();
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("traces", traces.size());
+        json.put("points", points);
+        json.put("matched_points", matchedPoints);
+        json.put("breaks", breaks);
+        json.put("traversals", traversals);
+        json.put("edges", observedEdges.size());
+        json.put("slots", new JSONArray(batches.keySet()));
+        json.put("elapsed_ms", (System.nanoTime() - start) / 1_000_000);
+        return json;
+    }
+
+    private static List<List<MapMatcher.Observation>> parse(JSONObject body) {
+        JSONArray traces = body.getJSONArray("traces");
+        List<List<MapMatcher.Observation>> result = new ArrayList<>(traces.length());
+        for (int i = 0; i < traces.length(); i++) {
+            JSONArray points = traces.getJSONObject(i).getJSONArray("points");
+            List<MapMatcher.Observation> trace = new ArrayList<>(points.length());
+            for (int j = 0; j < points.length(); j++) {
+                JSONArray point = points.getJSONArray(j);
+                double lon = point.getDouble(0);
+                double lat = point.getDouble(1);
+                if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+                    throw new IllegalArgumentException("invalid point " + j + " of trace " + i + ": " + point);
+                }
+                trace.add(new MapMatcher.Observation(lat, lon, point.getLong(2)));
+            }
+            result.add(trace);
+        }
+        return result;
+    }
+}
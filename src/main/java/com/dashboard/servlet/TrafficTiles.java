@@ -0,0 +1,347 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.cursors.IntCursor;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.graphhopper.routing.ev.VehicleAccess;
+import com.graphhopper.routing.ev.VehicleSpeed;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.FetchMode;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.shapes.BBox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Mapbox Vector Tiles of the traffic used by the fastest_with_traffic weighting.
+ * <p>
+ * A tile has a "traffic" layer with a LineString for every edge with traffic data in the tile, with the properties
+ * speed (km/h, as in FastestWeightingWithTraffic: the observed speed or the one of the TravelTimeTable of the vehicle
+ * and speed model), density, max_density and road_element. The edges are found with the location index of the graph
+ * and the tile is encoded with CodedOutputStream, as the route in RouteProtobufWriter. The rendered tiles are cached
+ * by graph, vehicle, traffic slot, speed model and version of the traffic data (see
+ * DynamicGraphHopper.getTrafficDataKey), so a new traffic file, road element index or observed speeds render them
+ * again. The number of tiles in the cache can be set with GH_TRAFFIC_TILE_CACHE (default 2048). Below
+ * GH_TRAFFIC_TILE_MIN_ZOOM (default 12) the tiles are empty, since they would contain most of the graph.
+ */
+public class TrafficTiles {
+    public static final String MEDIA_TYPE = "application/vnd.mapbox-vector-tile";
+    public static final int MIN_ZOOM = EnvConfig.getInt("GH_TRAFFIC_TILE_MIN_ZOOM", 12);
+    public static final int MAX_ZOOM = 22;
+
+    private static final String LAYER_NAME = "traffic";
+    private static final int EXTENT = 4096;
+    private static final int MAX_TILES = EnvConfig.getInt("GH_TRAFFIC_TILE_CACHE", 2048);
+
+    // Tile fields
+    private static final int TILE_LAYERS = 3;
+    // Layer fields
+    private static final int LAYER_NAME_FIELD = 1;
+    private static final int LAYER_FEATURES = 2;
+    private static final int LAYER_KEYS = 3;
+    private static final int LAYER_VALUES = 4;
+    private static final int LAYER_EXTENT = 5;
+    private static final int LAYER_VERSION = 15;
+    // Feature fields
+    private static final int FEATURE_ID = 1;
+    private static final int FEATURE_TAGS = 2;
+    private static final int FEATURE_TYPE = 3;
+    private static final int FEATURE_GEOMETRY = 4;
+    private static final int GEOM_TYPE_LINESTRING = 2;
+    // Value fields
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_DOUBLE = 3;
+    // Geometry commands
+    private static final int MOVE_TO = 1;
+    private static final int LINE_TO = 2;
+
+    private static final String[] KEYS = {"speed", "density", "max_density", "road_element"};
+
+    private static final Map<String, byte[]> cache = new LinkedHashMap<String, byte[]>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+
+    private TrafficTiles() {
+    }
+
+    /**
+     * Get a tile from the cache, rendering it if it is missing.
+     *
+     * @param key graph, vehicle, traffic slot, speed model, version of the traffic data and z/x/y of the tile
+     * @param renderer renders the tile on a cache miss
+     */
+    public static byte[] get(String key, Supplier<byte[]> renderer) {
+        synchronized (cache) {
+            byte[] tile = cache.get(key);
+            if (tile != null) {
+                return tile;
+            }
+        }
+        byte[] tile = renderer.get();
+        synchronized (cache) {
+            cache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the tile coordinates are not valid
+     */
+    public static void checkTile(int z, int x, int y) {
+        if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            throw new IllegalArgumentException("invalid tile " + z + "/" + x + "/" + y);
+        }
+    }
+
+    /**
+     * Render a tile.
+     *
+     * @param hopper GraphHopper instance of the vehicle, it is not changed
+     * @param vehicle the vehicle of the travel times
+     * @param slot the traffic slot (D_HH)
+     * @param speedModel the speed model of the travel times
+     * @param live if the live observed speeds are used, i.e. the slot is the current one
+     * @return the encoded tile, empty if the zoom is lower than MIN_ZOOM or the graph has no traffic data
+     */
+    public static byte[] render(DynamicGraphHopper hopper, String vehicle, String slot, SpeedModel speedModel, boolean live,
+                                int z, int x, int y) {
+        if (z < MIN_ZOOM) {
+            return new byte[0];
+        }
+        EdgeTrafficTable traffic = hopper.getTrafficTable(slot);
+        TravelTimeTable travelTimes = traffic == null ? null : hopper.acquireTravelTimeTable(vehicle, slot, speedModel);
+        if (travelTimes == null) {
+            return new byte[0];
+        }
+        try {
+            EncodingManager em = hopper.getEncodingManager();
+            String location = hopper.getGraphHopperLocation();
+            FastestWeightingWithTraffic weighting = new FastestWeightingWithTraffic(travelTimes,
+                    live ? EdgeSpeedObservations.find(location, EdgeSpeedObservations.LIVE) : null, EdgeSpeedObservations.find(location, slot),
+                    em.getBooleanEncodedValue(VehicleAccess.key(vehicle)), em.getDecimalEncodedValue(VehicleSpeed.key(vehicle)));
+            return render(hopper.getBaseGraph(), hopper.getLocationIndex(), traffic, weighting, z, x, y);
+        } finally {
+            travelTimes.release();
+        }
+    }
+
+    static byte[] render(BaseGraph graph, LocationIndex locationIndex, EdgeTrafficTable traffic, FastestWeightingWithTraffic weighting,
+                         int z, int x, int y) {
+        double tiles = 1 << z;
+        BBox bbox = new BBox(tileToLon(x, tiles), tileToLon(x + 1, tiles), tileToLat(y + 1, tiles), tileToLat(y, tiles));
+
+        // The index can report an edge once per cell it crosses
+        IntHashSet edges = new IntHashSet();
+        locationIndex.query(bbox, edge -> {
+            if (traffic.hasTraffic(edge)) {
+                edges.add(edge);
+            }
+        });
+        if (edges.isEmpty()) {
+            return new byte[0];
+        }
+
+        try {
+            List<Object> values = new ArrayList<>();
+            Map<Object, Integer> valueIndexes = new HashMap<>();
+            ByteArrayOutputStream features = new ByteArrayOutputStream(edges.size() * 32);
+            CodedOutputStream featuresOut = CodedOutputStream.newInstance(features);
+            int[] geometry = new int[64];
+            int[] tags = new int[KEYS.length * 2];
+            for (int i = 0; i < KEYS.length; i++) {
+                tags[2 * i] = i;
+            }
+            for (IntCursor cursor : edges) {
+                int edge = cursor.value;
+                EdgeIteratorState state = graph.getEdgeIteratorState(edge, Integer.MIN_VALUE);
+                // The direction of the geometry, or the other one for the edges with access only against it
+                double seconds = weighting.getSeconds(state, false);
+                if (!(seconds > 0)) {
+                    seconds = weighting.getSeconds(state, true);
+                }
+                if (!(seconds > 0)) {
+                    continue;
+                }
+                PointList points = state.fetchWayGeometry(FetchMode.ALL);
+                geometry = encodeGeometry(points, tiles, x, y, geometry);
+                if (geometry[0] == 0) {
+                    continue;
+                }
+                // The values are rounded, so that they are shared by many edges in the value table
+                tags[1] = valueIndex(Math.round(state.getDistance() / seconds * 36) / 10.0, values, valueIndexes);
+                tags[3] = valueIndex(Math.round(traffic.getDensity(edge) * 100) / 100.0, values, valueIndexes);
+                tags[5] = valueIndex(Math.round(traffic.getMaxDensity(edge) * 100) / 100.0, values, valueIndexes);
+                tags[7] = valueIndex(traffic.getElementId(edge), values, valueIndexes);
+
+                int tagsSize = packedSize(tags, 0, tags.length);
+                int geometrySize = packedSize(geometry, 1, geometry[0]);
+                int featureSize = CodedOutputStream.computeUInt64Size(FEATURE_ID, edge)
+                        + CodedOutputStream.computeTagSize(FEATURE_TAGS) + CodedOutputStream.computeUInt32SizeNoTag(tagsSize) + tagsSize
+                        + CodedOutputStream.computeEnumSize(FEATURE_TYPE, GEOM_TYPE_LINESTRING)
+                        + CodedOutputStream.computeTagSize(FEATURE_GEOMETRY) + CodedOutputStream.computeUInt32SizeNoTag(geometrySize) + geometrySize;
+                featuresOut.writeTag(LAYER_FEATURES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                featuresOut.writeUInt32NoTag(featureSize);
+                featuresOut.writeUInt64(FEATURE_ID, edge);
+                writePacked(featuresOut, FEATURE_TAGS, tags, 0, tags.length, tagsSize);
+                featuresOut.writeEnum(FEATURE_TYPE, GEOM_TYPE_LINESTRING);
+                writePacked(featuresOut, FEATURE_GEOMETRY, geometry, 1, geometry[0], geometrySize);
+            }
+            featuresOut.flush();
+            if (features.size() == 0) {
+                return new byte[0];
+            }
+
+            ByteArrayOutputStream layer = new ByteArrayOutputStream(features.size() + values.size() * 16 + 64);
+            CodedOutputStream layerOut = CodedOutputStream.newInstance(layer);
+            layerOut.writeUInt32(LAYER_VERSION, 2);
+            layerOut.writeString(LAYER_NAME_FIELD, LAYER_NAME);
+            layerOut.flush();
+            features.writeTo(layer);
+            for (String key : KEYS) {
+                layerOut.writeString(LAYER_KEYS, key);
+            }
+            for (Object value : values) {
+                int size = value instanceof String ? CodedOutputStream.computeStringSize(VALUE_STRING, (String) value)
+                        : CodedOutputStream.computeDoubleSize(VALUE_DOUBLE, (Double) value);
+                layerOut.writeTag(LAYER_VALUES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                layerOut.writeUInt32NoTag(size);
+                if (value instanceof String) {
+                    layerOut.writeString(VALUE_STRING, (String) value);
+                } else {
+                    layerOut.writeDouble(VALUE_DOUBLE, (Double) value);
+                }
+            }
+            layerOut.writeUInt32(LAYER_EXTENT, EXTENT);
+            layerOut.flush();
+
+            ByteArrayOutputStream tile = new ByteArrayOutputStream(layer.size() + 8);
+            CodedOutputStream tileOut = CodedOutputStream.newInstance(tile);
+            tileOut.writeTag(TILE_LAYERS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            tileOut.writeUInt32NoTag(layer.size());
+            tileOut.flush();
+            layer.writeTo(tile);
+            return tile.toByteArray();
+        } catch (IOException e) {
+            // Only written to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encode the points as a MoveTo and a LineTo in tile coordinates, skipping the repeated points.
+     *
+     * @return the buffer (grown if needed) with the number of commands and parameters in the first element, which is
+     * 0 if the line has less than 2 distinct points in tile coordinates
+     */
+    private static int[] encodeGeometry(PointList points, double tiles, int x, int y, int[] buffer) {
+        if (buffer.length < 2 * points.size() + 3) {
+            buffer = new int[2 * points.size() + 3];
+        }
+        int length = 1;
+        int count = 0;
+        int cursorX = 0;
+        int cursorY = 0;
+        for (int i = 0; i < points.size(); i++) {
+            int tileX = (int) Math.round((lonToTile(points.getLon(i), tiles) - x) * EXTENT);
+            int tileY = (int) Math.round((latToTile(points.getLat(i), tiles) - y) * EXTENT);
+            if (count > 0 && tileX == cursorX && tileY == cursorY) {
+                continue;
+            }
+            if (count == 0) {
+                buffer[length++] = command(MOVE_TO, 1);
+            } else if (count == 1) {
+                length++;  // The LineTo command, written when its count is known
+            }
+            buffer[length++] = zigZag(tileX - cursorX);
+            buffer[length++] = zigZag(tileY - cursorY);
+            cursorX = tileX;
+            cursorY = tileY;
+            count++;
+        }
+        if (count < 2) {
+            buffer[0] = 0;
+            return buffer;
+        }
+        buffer[4] = command(LINE_TO, count - 1);
+        buffer[0] = length - 1;
+        return buffer;
+    }
+
+    private static int valueIndex(Object value, List<Object> values, Map<Object, Integer> valueIndexes) {
+        Integer index = valueIndexes.get(value);
+        if (index == null) {
+            index = values.size();
+            values.add(value);
+            valueIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    private static int packedSize(int[] array, int from, int count) {
+        int size = 0;
+        for (int i = from; i < from + count; i++) {
+            size += CodedOutputStream.computeUInt32SizeNoTag(array[i]);
+        }
+        return size;
+    }
+
+    private static void writePacked(CodedOutputStream out, int field, int[] array, int from, int count, int size) throws IOException {
+        out.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeUInt32NoTag(size);
+        for (int i = from; i < from + count; i++) {
+            out.writeUInt32NoTag(array[i]);
+        }
+    }
+
+    private static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    // Web Mercator tile coordinates
+    private static double lonToTile(double lon, double tiles) {
+        return (lon + 180) / 360 * tiles;
+    }
+
+    private static double latToTile(double lat, double tiles) {
+        double radians = Math.toRadians(lat);
+        return (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2 * tiles;
+    }
+
+    private static double tileToLon(int x, double tiles) {
+        return x / tiles * 360 - 180;
+    }
+
+    private static double tileToLat(int y, double tiles) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y / tiles))));
+    }
+}
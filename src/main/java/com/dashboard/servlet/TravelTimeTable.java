@@ -0,0 +1,323 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.ev.DecimalEncodedValue;
+import com.graphhopper.routing.ev.EnumEncodedValue;
+import com.graphhopper.routing.ev.RoadClass;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.util.EdgeIteratorState;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Travel time with traffic of each edge, calculated once with a speed model for a day and hour.
+ * <p>
+ * The tables are shared by the requests through a bounded LRU cache, keyed by graph, vehicle, traffic slot and speed
+ * model, so the speed model is evaluated once per edge and the weighting only reads an array. The free flow speed of an
+ * edge is its own speed in each direction, so there is a travel time per direction. Edges without traffic data, and
+ * the directions without access, have NaN. The speed is never lower than MIN_SPEED (unless the free flow speed is), so
+ * a jammed road is very slow but not blocked.
+ * <p>
+ * The travel times are stored in a DataAccess (see CustomDataAccess) in the travel_times subfolder of the graph, in a
+ * new file for every table built, so a table is never written while it is mapped. The tables are reference counted:
+ * the cache holds a reference and every DynamicGraphHopper that uses a table holds one until it is closed. A table
+ * removed from the cache is closed, and its file deleted, when the last request using it releases it. The
+ * RouterSnapshot lists the cached tables, so after a restart they are mapped from the graph folder instead of being
+ * calculated again. The files of the previous runs that are not restored are deleted at the start (see deleteUnused).
+ */
+public class TravelTimeTable {
+    public static final double MIN_SPEED = 5;  // km/h
+    private static final double SPEED_CONV = 3.6;  // m/s => km/h, as in FastestWeighting
+
+    // Stored in the header, the tables of the older versions had one value per edge
+    private static final int VALUES_PER_EDGE = 2;
+
+    private static final int MAX_TABLES = EnvConfig.getInt("GH_TRAVEL_TIME_CACHE", 8);
+
+    private static final Map<String, TravelTimeTable> cache = new LinkedHashMap<String, TravelTimeTable>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TravelTimeTable> eldest) {
+            if (size() > MAX_TABLES) {
+                eldest.getValue().release();
+                return true;
+            }
+            return false;
+        }
+    };
+    // Makes the file names of the tables unique, also after a restart: the tables built by this run have a greater one
+    private static final long FIRST_VERSION = System.currentTimeMillis();
+    private static final AtomicLong versions = new AtomicLong(FIRST_VERSION);
+
+    private final String location;
+    private final String name;  // of the file
+    private final File trafficFile;
+    private final String trafficStamp;  // see EdgeTrafficTable.getStamp
+    private final DataAccess seconds;  // 8 bytes per edge, the float of each direction
+    private final int edgeCount;
+    private final AtomicInteger references = new AtomicInteger(1);  // the one of the cache
+
+    private TravelTimeTable(String location, String name, File trafficFile, String trafficStamp, DataAccess seconds, int edgeCount) {
+        this.location = location;
+        this.name = name;
+        this.trafficFile = trafficFile;
+        this.trafficStamp = trafficStamp;
+        this.seconds = seconds;
+        this.edgeCount = edgeCount;
+    }
+
+    /**
+     * Get a table from the cache, building it if it is missing. The table is acquired for the caller, who has to
+     * release it when it is not used anymore.
+     *
+     * @param key graph, vehicle, traffic slot and speed model of the table
+     * @param builder builds the table on a cache miss
+     */
+    public static TravelTimeTable get(String key, Supplier<TravelTimeTable> builder) {
+        synchronized (cache) {
+            TravelTimeTable table = cache.get(key);
+            if (table != null && table.acquire()) {
+                return table;
+            }
+        }
+        // Built outside the lock, concurrent misses of the same key build the same table in different files
+        TravelTimeTable table = builder.get();
+        table.acquire();
+        synchronized (cache) {
+            TravelTimeTable previous = cache.put(key, table);
+            if (previous != null) {
+                previous.release();
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Remove the tables of a graph from the cache, e.g. because its road elements have been matched again or it has
+     * been imported again.
+     *
+     * @param location graph folder
+     */
+    public static void invalidate(String location) {
+        synchronized (cache) {
+            Iterator<Map.Entry<String, TravelTimeTable>> entries = cache.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, TravelTimeTable> entry = entries.next();
+                if (entry.getKey().startsWith(location + "|")) {
+                    entries.remove();
+                    entry.getValue().release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Take a reference to the table, so it is not closed until it is released.
+     *
+     * @return false if the table is already closed
+     */
+    public boolean acquire() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a reference to the table. The last one closes the table and deletes its file, since only the tables in
+     * the cache are reused.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            seconds.close();
+            new File(location + "/travel_times", name).delete();
+        }
+    }
+
+    /**
+     * Delete the files of the tables built by the previous runs that are not in the cache, i.e. were not restored from
+     * the snapshot (or the snapshot is disabled or was rejected): they would never be used again.
+     *
+     * @param location graph folder
+     * @return the number of files deleted
+     */
+    public static int deleteUnused(String location) {
+        File[] files = new File(location, "travel_times").listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Set<String> used = new HashSet<>();
+        synchronized (cache) {
+            cache.values().forEach(table -> used.add(table.location + "|" + table.name));
+        }
+        int deleted = 0;
+        for (File file : files) {
+            String name = file.getName();
+            int separator = name.lastIndexOf('_');
+            long version;
+            try {
+                version = Long.parseLong(name.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            // The files of this run are released when the last request using them ends
+            if (separator > 0 && version <= FIRST_VERSION && !used.contains(location + "|" + name) && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Calculate the travel time of the edges with traffic data.
+     *
+     * @param location graph folder
+     * @param name name of the table, unique in the graph folder, a version is added to the name of its file
+     * @param graph the graph, for the length and the road class of the edges
+     * @param traffic traffic density of the edges
+     * @param model speed model
+     * @param speedEnc speed of the vehicle without traffic (km/h), the free flow speed of each edge
+     * @param roadClassEnc road class of the edges, null if the graph does not have it
+     */
+    public static TravelTimeTable build(String location, String name, BaseGraph graph, EdgeTrafficTable traffic, SpeedModel model,
+                                        DecimalEncodedValue speedEnc, EnumEncodedValue<RoadClass> roadClassEnc) {
+        int edgeCount = graph.getEdges();
+        String fileName = name + "_" + versions.incrementAndGet();
+        DataAccess seconds = CustomDataAccess.createDirectory(location + "/travel_times").create(fileName);
+        seconds.create(Math.max(8L * edgeCount, 1 << 10));
+        seconds.ensureCapacity(8L * edgeCount);
+        for (int edge = 0; edge < edgeCount; edge++) {
+            if (!traffic.hasTraffic(edge)) {
+                seconds.setInt(8L * edge, Float.floatToRawIntBits(Float.NaN));
+                seconds.setInt(8L * edge + 4, Float.floatToRawIntBits(Float.NaN));
+                continue;
+            }
+            EdgeIteratorState state = graph.getEdgeIteratorState(edge, Integer.MIN_VALUE);
+            RoadClass roadClass = roadClassEnc == null ? RoadClass.OTHER : state.get(roadClassEnc);
+            seconds.setInt(8L * edge, Float.floatToRawIntBits(calcSeconds(state, state.get(speedEnc), traffic, model, roadClass)));
+            seconds.setInt(8L * edge + 4, Float.floatToRawIntBits(calcSeconds(state, state.getReverse(speedEnc), traffic, model, roadClass)));
+        }
+        seconds.setHeader(0, edgeCount);
+        seconds.setHeader(4, VALUES_PER_EDGE);
+        return new TravelTimeTable(location, fileName, traffic.getFile(), traffic.getStamp(), seconds, edgeCount);
+    }
+
+    private static float calcSeconds(EdgeIteratorState state, double freeFlowSpeed, EdgeTrafficTable traffic, SpeedModel model,
+                                     RoadClass roadClass) {
+        if (freeFlowSpeed <= 0) {
+            return Float.NaN;
+        }
+        int edge = state.getEdge();
+        double speed = model.getSpeed(freeFlowSpeed, traffic.getDensity(edge), traffic.getMaxDensity(edge), roadClass);
+        speed = Math.min(freeFlowSpeed, Math.max(MIN_SPEED, speed));
+        return (float) (state.getDistance() / speed * SPEED_CONV);
+    }
+
+    /**
+     * Write the keys of the cached tables in a snapshot (see RouterSnapshot), saving the tables in the graph folder.
+     *
+     * @return the number of tables written
+     */
+    public static int save(DataOutputStream out) throws IOException {
+        List<Map.Entry<String, TravelTimeTable>> entries;
+        synchronized (cache) {
+            entries = new ArrayList<>(cache.entrySet());
+            // Not closed while they are saved, even if they leave the cache
+            entries.forEach(entry -> entry.getValue().acquire());
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<String, TravelTimeTable> entry : entries) {
+            TravelTimeTable table = entry.getValue();
+            try {
+                table.seconds.flush();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(table.location);
+                out.writeUTF(table.name);
+                out.writeUTF(table.trafficFile.getPath());
+                out.writeUTF(table.trafficStamp);
+                out.writeInt(table.edgeCount);
+            } finally {
+                table.release();
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * Load the tables of a snapshot from the graph folders and put them in the cache. A table is skipped if its key is
+     * not valid, its traffic file has changed or it was not saved for the same edges.
+     *
+     * @param valid checks the key (graph folder, vehicle, traffic slot and speed model) of a table
+     * @return the number of tables restored
+     */
+    public static int restore(DataInputStream in, Predicate<String> valid) throws IOException {
+        int count = in.readInt();
+        int restored = 0;
+        for (int t = 0; t < count; t++) {
+            String key = in.readUTF();
+            String location = in.readUTF();
+            String name = in.readUTF();
+            File trafficFile = new File(in.readUTF());
+            String trafficStamp = in.readUTF();
+            int edgeCount = in.readInt();
+            if (!valid.test(key) || !trafficStamp.equals(EdgeTrafficTable.getStamp(trafficFile))) {
+                continue;
+            }
+            DataAccess seconds = CustomDataAccess.createDirectory(location + "/travel_times").create(name);
+            if (!seconds.loadExisting()) {
+                continue;
+            }
+            if (seconds.getHeader(0) != edgeCount || seconds.getHeader(4) != VALUES_PER_EDGE) {
+                seconds.close();
+                continue;
+            }
+            synchronized (cache) {
+                if (cache.containsKey(key)) {
+                    seconds.close();
+                    continue;
+                }
+                cache.put(key, new TravelTimeTable(location, name, trafficFile, trafficStamp, seconds, edgeCount));
+            }
+            restored++;
+        }
+        return restored;
+    }
+
+    /**
+     * @param reverse true for the direction from the adjacent node to the base node of the edge
+     * @return the travel time of the edge in seconds, NaN if it has no traffic data or no access in the direction
+     */
+    public double getSeconds(int edge, boolean reverse) {
+        return edge < edgeCount ? Float.intBitsToFloat(seconds.getInt(8L * edge + (reverse ? 4 : 0))) : Float.NaN;
+    }
+}
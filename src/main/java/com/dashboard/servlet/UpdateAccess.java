@@ -0,0 +1,75 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.dashboard.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Access to the endpoints that change the state shared by the requests (the GTFS-realtime updates, the GPS traces) or
+ * that use its resources (the router snapshot, the scenario portfolios).
+ * <p>
+ * They are disabled unless a token is set in GH_UPDATE_TOKEN, and the requests must send it in the header
+ * "Authorization: Bearer &lt;token&gt;". Their bodies are read up to GH_UPDATE_MAX_BYTES bytes (default 16 MB).
+ */
+public class UpdateAccess {
+    private static final String TOKEN = System.getenv("GH_UPDATE_TOKEN");
+    public static final int MAX_BYTES = EnvConfig.getInt("GH_UPDATE_MAX_BYTES", 16 * 1024 * 1024);
+
+    private UpdateAccess() {
+    }
+
+    /**
+     * @param authorization the Authorization header of the request
+     * @return if the updates are enabled and the header has the token
+     */
+    public static boolean isAllowed(String authorization) {
+        if (TOKEN == null || TOKEN.isEmpty() || authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
+        }
+        // Compared in constant time
+        return MessageDigest.isEqual(TOKEN.getBytes(StandardCharsets.UTF_8),
+                authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the body of a request.
+     *
+     * @throws TooLargeException if it is longer than MAX_BYTES
+     */
+    public static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (body.size() + read > MAX_BYTES) {
+                throw new TooLargeException("the body is longer than " + MAX_BYTES + " bytes");
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * The body of a request is longer than MAX_BYTES.
+     */
+    public static class TooLargeException extends IOException {
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser of the waypoints parameter (lon1,lat1;lon2,lat2;...).
+ * <p>
+ * The string is scanned once: the separators are located with indexOf and only the numbers are extracted, so the
+ * waypoints are validated and converted to GHPoint in the same pass.
+ */
+public class WaypointParser {
+
+    private WaypointParser() {
+    }
+
+    /**
+     * Parse the waypoints.
+     *
+     * @param waypoints waypoints separated by ';', each one in the format "longitude,latitude"
+     * @return the list of points (lat, lon)
+     * @throws IllegalArgumentException with the error to report to the client if the parameter is not valid
+     */
+    public static List<GHPoint> parse(String waypoints) {
+        return parse(waypoints, "waypoints", 2);
+    }
+
+    /**
+     * Parse a list of points in the format of the waypoints.
+     *
+     * @param waypoints points separated by ';', each one in the format "longitude,latitude"
+     * @param parameter name of the parameter, used in the errors
+     * @param minPoints minimum number of points
+     * @return the list of points (lat, lon)
+     * @throws IllegalArgumentException with the error to report to the client if the parameter is not valid
+     */
+    public static List<GHPoint> parse(String waypoints, String parameter, int minPoints) {
+        int length = waypoints.length();
+        // As String.split, trailing separators do not produce empty waypoints
+        while (length > 0 && waypoints.charAt(length - 1) == ';') {
+            length--;
+        }
+
+        // The number of points is checked before their format, as the previous validation did
+        int count = length > 0 ? 1 : 0;
+        for (int i = 0; i < length; i++) {
+            if (waypoints.charAt(i) == ';') {
+                count++;
+            }
+        }
+        if (count < minPoints) {
+            throw new IllegalArgumentException("invalid " + parameter + "=lon,lat;...;lon,lat parameter (#points<" + minPoints + ")");
+        }
+
+        List<GHPoint> points = new ArrayList<>(count);
+        int start = 0;
+        while (start <= length) {
+            int end = waypoints.indexOf(';', start);
+            if (end < 0 || end > length) {
+                end = length;
+            }
+            int comma = waypoints.indexOf(',', start);
+            int nextComma = comma < 0 ? -1 : waypoints.indexOf(',', comma + 1);
+            if (comma < 0 || comma >= end || (nextComma >= 0 && nextComma < end)) {
+                throw new IllegalArgumentException("invalid " + parameter + " parameter (no lon,lat) ");
+            }
+            try {
+                double lon = Double.parseDouble(waypoints.substring(start, comma));
+                double lat = Double.parseDouble(waypoints.substring(comma + 1, end));
+                points.add(new GHPoint(lat, lon));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid " + parameter + " parameter (wrong numeric format) ");
+            }
+            start = end + 1;
+        }
+        return points;
+    }
+}
@@ -0,0 +1,47 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AcceptHeaderTest {
+    private static final String PROTOBUF = "application/x-protobuf";
+    private static final String JSON = "application/json";
+
+    @Test
+    public void testQuality() {
+        assertEquals(0.5, AcceptHeader.getQuality("br, gzip;q=0.5", "gzip"), 0);
+        assertEquals(1, AcceptHeader.getQuality("br, GZIP", "gzip"), 0);
+        assertEquals(0, AcceptHeader.getQuality("gzip;q=0", "gzip"), 0);
+        assertEquals(0, AcceptHeader.getQuality(null, "gzip"), 0);
+    }
+
+    @Test
+    public void testProtobufPreferredOnlyOverJson() {
+        assertTrue(AcceptHeader.prefers(PROTOBUF, PROTOBUF, JSON));
+        assertTrue(AcceptHeader.prefers("application/x-protobuf, application/json;q=0.5", PROTOBUF, JSON));
+        assertTrue(AcceptHeader.prefers("application/x-protobuf;q=0.9, */*;q=0.1", PROTOBUF, JSON));
+        // The client prefers JSON, or has no preference
+        assertFalse(AcceptHeader.prefers("application/json, application/x-protobuf;q=0.1", PROTOBUF, JSON));
+        assertFalse(AcceptHeader.prefers("application/x-protobuf, application/json", PROTOBUF, JSON));
+        assertFalse(AcceptHeader.prefers("application/x-protobuf, */*", PROTOBUF, JSON));
+        assertFalse(AcceptHeader.prefers("application/*, application/x-protobuf", PROTOBUF, JSON));
+        assertFalse(AcceptHeader.prefers("application/x-protobuf;q=0", PROTOBUF, JSON));
+        assertFalse(AcceptHeader.prefers("", PROTOBUF, JSON));
+        assertFalse(AcceptHeader.prefers(null, PROTOBUF, JSON));
+    }
+}
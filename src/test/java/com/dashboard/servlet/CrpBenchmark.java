@@ -0,0 +1,98 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.Dijkstra;
+import com.graphhopper.routing.Path;
+import com.graphhopper.routing.util.TraversalMode;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
+
+import java.time.LocalDateTime;
+import java.util.Random;
+
+/**
+ * Benchmark of the routing=crp queries: the time and the settled nodes of CrpRouter are compared with a Dijkstra
+ * search on the graph, on random pairs of nodes, and the weights of the paths are checked.
+ * <p>
+ * Usage, from the project folder (it is in the test sources, so it is not deployed): mvn test-compile exec:java
+ * -Dexec.classpathScope=test -Dexec.mainClass=com.dashboard.servlet.CrpBenchmark -Dexec.args="[vehicle] [weighting] [queries]"
+ * with the same environment variables of the servlet, e.g. car fastest_with_traffic 200. The customization is timed
+ * once, then both searches run once on every pair before the measures.
+ */
+public class CrpBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String vehicle = args.length > 0 ? args[0] : "car";
+        String weightingName = args.length > 1 ? args[1] : "fastest";
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        DynamicGraphHopper hopper = Servlet.initGH(vehicle, weightingName, LocalDateTime.now(EnvConfig.ZONE));
+        try {
+            BaseGraph graph = hopper.getBaseGraph();
+            Weighting weighting = hopper.createMetricWeighting();
+            CrpPartition partition = CrpPartition.get(hopper.getGraphHopperLocation(), graph);
+            CrpMetric metric = CrpMetric.customize(partition, graph, weighting);
+            CrpRouter router = new CrpRouter(graph, partition, metric, weighting);
+
+            Random random = new Random(42);
+            int[] from = new int[queries];
+            int[] to = new int[queries];
+            for (int q = 0; q < queries; q++) {
+                from[q] = random.nextInt(graph.getNodes());
+                to[q] = random.nextInt(graph.getNodes());
+            }
+
+            // Warm up both searches
+            for (int q = 0; q < queries; q++) {
+                new Dijkstra(graph, weighting, TraversalMode.NODE_BASED).calcPath(from[q], to[q]);
+                router.calcPath(from[q], to[q]);
+            }
+
+            long dijkstraNanos = 0, crpNanos = 0, dijkstraNodes = 0, crpNodes = 0;
+            int found = 0, different = 0;
+            for (int q = 0; q < queries; q++) {
+                long start = System.nanoTime();
+                Dijkstra dijkstra = new Dijkstra(graph, weighting, TraversalMode.NODE_BASED);
+                Path expected = dijkstra.calcPath(from[q], to[q]);
+                dijkstraNanos += System.nanoTime() - start;
+                dijkstraNodes += dijkstra.getVisitedNodes();
+
+                start = System.nanoTime();
+                Path path = router.calcPath(from[q], to[q]);
+                crpNanos += System.nanoTime() - start;
+                crpNodes += router.getVisitedNodes();
+
+                if (expected.isFound()) {
+                    found++;
+                    // The overlay weights are floats
+                    if (path == null || Math.abs(path.getWeight() - expected.getWeight()) > 1e-4 * Math.max(1, expected.getWeight())) {
+                        different++;
+                    }
+                } else if (path != null) {
+                    different++;
+                }
+            }
+
+            System.out.printf("%d queries on %d nodes, %d cells, customization %d ms%n", queries, graph.getNodes(),
+                    partition.getCellCount(), metric.getMillis());
+            System.out.printf("dijkstra: %.3f ms, %d settled nodes per query%n", dijkstraNanos / 1e6 / queries, dijkstraNodes / queries);
+            System.out.printf("crp:      %.3f ms, %d settled nodes per query%n", crpNanos / 1e6 / queries, crpNodes / queries);
+            System.out.printf("speedup: %.1fx, %d paths found, %d different weights%n", (double) dijkstraNanos / Math.max(1, crpNanos),
+                    found, different);
+        } finally {
+            hopper.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntIndexedContainer;
+import com.graphhopper.routing.Dijkstra;
+import com.graphhopper.routing.Path;
+import com.graphhopper.routing.ev.BooleanEncodedValue;
+import com.graphhopper.routing.ev.DecimalEncodedValue;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.TraversalMode;
+import com.graphhopper.routing.util.VehicleEncodedValues;
+import com.graphhopper.routing.weighting.FastestWeighting;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.PMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CrpRouterTest {
+    private static final int SIZE = 100;
+
+    private File folder;
+    private BaseGraph graph;
+    private Weighting weighting;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("crp").toFile();
+        VehicleEncodedValues car = VehicleEncodedValues.car(new PMap());
+        EncodingManager em = EncodingManager.start().add(car).build();
+        graph = new BaseGraph.Builder(em).create();
+        BooleanEncodedValue accessEnc = car.getAccessEnc();
+        DecimalEncodedValue speedEnc = car.getAverageSpeedEnc();
+
+        // A grid with random lengths and speeds, some missing edges and some one-way edges
+        Random random = new Random(1);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                graph.getNodeAccess().setNode(y * SIZE + x, 43 + y * 0.001 + random.nextDouble() * 0.0004, 11 + x * 0.0013);
+            }
+        }
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                for (int direction = 0; direction < 2; direction++) {
+                    int nextX = direction == 0 ? x + 1 : x;
+                    int nextY = direction == 1 ? y + 1 : y;
+                    if (nextX >= SIZE || nextY >= SIZE || random.nextDouble() < 0.1) {
+                        continue;
+                    }
+                    EdgeIteratorState edge = graph.edge(y * SIZE + x, nextY * SIZE + nextX).setDistance(100 + random.nextInt(100));
+                    edge.set(accessEnc, true);
+                    edge.setReverse(accessEnc, random.nextDouble() > 0.2);
+                    edge.set(speedEnc, 10 + random.nextInt(10) * 10);
+                    edge.setReverse(speedEnc, 10 + random.nextInt(10) * 10);
+                }
+            }
+        }
+        weighting = new FastestWeighting(accessEnc, speedEnc);
+    }
+
+    @After
+    public void tearDown() {
+        graph.close();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void testSameWeightAsDijkstra() {
+        CrpPartition partition = CrpPartition.build(folder.getPath(), graph);
+        assertTrue(partition.getCellCount() > 1);
+        CrpMetric metric = CrpMetric.customize(partition, graph, weighting);
+        CrpRouter router = new CrpRouter(graph, partition, metric, weighting);
+
+        Random random = new Random(2);
+        int found = 0;
+        for (int query = 0; query < 200; query++) {
+            int from = random.nextInt(graph.getNodes());
+            int to = random.nextInt(graph.getNodes());
+            Path expected = new Dijkstra(graph, weighting, TraversalMode.NODE_BASED).calcPath(from, to);
+            Path path = router.calcPath(from, to);
+            if (!expected.isFound()) {
+                assertNull(path);
+                continue;
+            }
+            found++;
+            assertNotNull(path);
+            // The overlay weights are floats
+            double tolerance = 1e-4 * Math.max(1, expected.getWeight());
+            assertEquals(expected.getWeight(), path.getWeight(), tolerance);
+
+            // The unpacked path is connected and has the same weight
+            IntIndexedContainer nodes = path.calcNodes();
+            assertEquals(from, nodes.get(0));
+            assertEquals(to, nodes.get(nodes.size() - 1));
+            double weight = 0;
+            int node = from;
+            for (EdgeIteratorState edge : path.calcEdges()) {
+                assertEquals(node, edge.getBaseNode());
+                weight += weighting.calcEdgeWeight(edge, false);
+                node = edge.getAdjNode();
+            }
+            assertEquals(to, node);
+            assertEquals(expected.getWeight(), weight, tolerance);
+        }
+        assertTrue(found > 100);
+    }
+
+    @Test
+    public void testFailedCustomizationIsShared() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch fail = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> owner = executor.submit(() -> CrpMetric.get("failed", () -> {
+                started.countDown();
+                try {
+                    fail.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                throw new OutOfMemoryError("test");
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<?> waiter = executor.submit(() -> CrpMetric.get("failed", () -> {
+                throw new IllegalStateException("customized twice");
+            }));
+            Thread.sleep(100);
+            fail.countDown();
+            // Both fail with the error of the customization instead of waiting forever
+            for (Future<?> future : new Future<?>[]{owner, waiter}) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    assertTrue(false);
+                } catch (java.util.concurrent.ExecutionException e) {
+                    assertTrue(e.getCause() instanceof Error || e.getCause() instanceof IllegalStateException);
+                }
+            }
+        } finally {
+            fail.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.Trip;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.TranslationMap;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DepartureWindowTest {
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+    private static final long MINUTE = 60_000;
+
+    // A journey of a single leg, departing and arriving at the given minutes
+    private static ResponsePath journey(int departure, int arrival, int changes) {
+        InstructionList instructions = new InstructionList(new TranslationMap().doImport().getWithFallBack(Locale.ENGLISH));
+        ResponsePath path = new ResponsePath();
+        path.getLegs().add(new Trip.WalkLeg("", new Date(departure * MINUTE), geometryFactory.createLineString(new Coordinate[]{
+                new Coordinate(11, 43), new Coordinate(11.01, 43)}), 800, instructions, Collections.emptyMap(), new Date(arrival * MINUTE)));
+        path.setNumChanges(changes);
+        return path;
+    }
+
+    private static GHResponse response(ResponsePath... paths) {
+        GHResponse response = new GHResponse();
+        for (ResponsePath path : paths) {
+            response.add(path);
+        }
+        return response;
+    }
+
+    @Test
+    public void testDominatedJourneysAreRemoved() {
+        ResponsePath early = journey(0, 40, 0);
+        ResponsePath late = journey(10, 45, 0);
+        ResponsePath fast = journey(20, 40, 2);
+        ResponsePath earlierSameArrival = journey(15, 40, 2);
+        ResponsePath moreChanges = journey(10, 45, 1);
+        ResponsePath laterArrival = journey(20, 50, 2);
+        List<ResponsePath> pareto = DepartureWindow.paretoSet(response(fast, moreChanges, early, laterArrival, late, earlierSameArrival)).getAll();
+        // Sorted by departure
+        assertEquals(3, pareto.size());
+        assertSame(early, pareto.get(0));
+        assertSame(late, pareto.get(1));
+        assertSame(fast, pareto.get(2));
+    }
+
+    @Test
+    public void testEqualJourneysAreKeptOnce() {
+        ResponsePath first = journey(10, 40, 1);
+        ResponsePath second = journey(10, 40, 1);
+        ResponsePath other = journey(5, 35, 1);
+        List<ResponsePath> pareto = DepartureWindow.paretoSet(response(first, other, second)).getAll();
+        assertEquals(2, pareto.size());
+        assertSame(other, pareto.get(0));
+        assertSame(first, pareto.get(1));
+    }
+
+    @Test
+    public void testErrorsAndEmptyJourneys() {
+        GHResponse error = new GHResponse();
+        error.addError(new IllegalArgumentException("no journey"));
+        assertSame(error, DepartureWindow.paretoSet(error));
+
+        ResponsePath journey = journey(0, 30, 0);
+        List<ResponsePath> pareto = DepartureWindow.paretoSet(response(new ResponsePath(), journey)).getAll();
+        assertEquals(1, pareto.size());
+        assertSame(journey, pareto.get(0));
+    }
+
+    @Test
+    public void testParse() {
+        assertNull(DepartureWindow.parse(null));
+        assertNull(DepartureWindow.parse(""));
+        assertEquals(Duration.ofMinutes(60), DepartureWindow.parse("60"));
+        for (String invalid : new String[]{"0", "-5", "abc", "100000"}) {
+            try {
+                DepartureWindow.parse(invalid);
+                assertTrue(invalid, false);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(invalid));
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.Dijkstra;
+import com.graphhopper.routing.Path;
+import com.graphhopper.routing.ev.BooleanEncodedValue;
+import com.graphhopper.routing.ev.DecimalEncodedValue;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.TraversalMode;
+import com.graphhopper.routing.util.VehicleEncodedValues;
+import com.graphhopper.routing.weighting.FastestWeighting;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.storage.RAMDirectory;
+import com.graphhopper.storage.index.LocationIndexTree;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.PMap;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.shapes.GHPoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FleetDispatcherTest {
+    private static final int SIZE = 30;
+
+    private BaseGraph graph;
+    private Weighting weighting;
+    private LocationIndexTree index;
+
+    @Before
+    public void setUp() {
+        VehicleEncodedValues car = VehicleEncodedValues.car(new PMap());
+        EncodingManager em = EncodingManager.start().add(car).build();
+        graph = new BaseGraph.Builder(em).create();
+        BooleanEncodedValue accessEnc = car.getAccessEnc();
+        DecimalEncodedValue speedEnc = car.getAverageSpeedEnc();
+
+        // A grid with random lengths and speeds, some missing edges and some one-way edges
+        Random random = new Random(1);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                graph.getNodeAccess().setNode(y * SIZE + x, 43 + y * 0.001 + random.nextDouble() * 0.0004, 11 + x * 0.0013);
+            }
+        }
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                for (int direction = 0; direction < 2; direction++) {
+                    int nextX = direction == 0 ? x + 1 : x;
+                    int nextY = direction == 1 ? y + 1 : y;
+                    if (nextX >= SIZE || nextY >= SIZE || random.nextDouble() < 0.1) {
+                        continue;
+                    }
+                    EdgeIteratorState edge = graph.edge(y * SIZE + x, nextY * SIZE + nextX).setDistance(100 + random.nextDouble() * 100);
+                    edge.set(accessEnc, true);
+                    edge.setReverse(accessEnc, random.nextDouble() > 0.2);
+                    edge.set(speedEnc, 10 + random.nextInt(10) * 10);
+                    edge.setReverse(speedEnc, 10 + random.nextInt(10) * 10);
+                }
+            }
+        }
+        weighting = new FastestWeighting(accessEnc, speedEnc);
+        index = new LocationIndexTree(graph, new RAMDirectory());
+        index.prepareIndex();
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+        graph.close();
+    }
+
+    private GHPoint point(int node) {
+        NodeAccess nodeAccess = graph.getNodeAccess();
+        return new GHPoint(nodeAccess.getLat(node), nodeAccess.getLon(node));
+    }
+
+    @Test
+    public void testSameTimesAsForwardDijkstra() {
+        Random random = new Random(2);
+        int dispatched = 0;
+        for (int query = 0; query < 50; query++) {
+            // Vehicles on the nodes of the grid, some on the same node
+            int target = random.nextInt(graph.getNodes());
+            List<GHPoint> sources = new ArrayList<>();
+            List<Path> expected = new ArrayList<>();
+            int source = -1;
+            for (int i = 0; i < 20; i++) {
+                if (source < 0 || random.nextInt(10) > 0) {
+                    source = random.nextInt(graph.getNodes());
+                }
+                sources.add(point(source));
+                expected.add(new Dijkstra(graph, weighting, TraversalMode.NODE_BASED).calcPath(source, target));
+            }
+            int k = 1 + random.nextInt(8);
+            FleetDispatcher.Result result = FleetDispatcher.dispatch(graph, index, weighting, EdgeFilter.ALL_EDGES, null,
+                    point(target), sources, k, true);
+            assertTrue(result.getNotFound().isEmpty());
+            assertEquals(null, result.getLimit());
+
+            // The K vehicles with the lowest weight of a forward route, in increasing weight
+            List<Path> reachable = new ArrayList<>();
+            for (Path path : expected) {
+                if (path.isFound()) {
+                    reachable.add(path);
+                }
+            }
+            reachable.sort(Comparator.comparingDouble(Path::getWeight));
+            List<FleetDispatcher.Dispatch> dispatches = result.getDispatches();
+            assertEquals(Math.min(k, reachable.size()), dispatches.size());
+            for (int i = 0; i < dispatches.size(); i++) {
+                FleetDispatcher.Dispatch dispatch = dispatches.get(i);
+                Path path = expected.get(dispatch.getSource());
+                assertTrue(path.isFound());
+                assertEquals(reachable.get(i).getWeight(), dispatch.getWeight(), 1e-6);
+                assertEquals(path.getWeight(), dispatch.getWeight(), 1e-6);
+                assertEquals(path.getTime(), dispatch.getTime());
+                assertEquals(path.getDistance(), dispatch.getDistance(), 1e-6);
+
+                // The points go from the vehicle to the target
+                PointList points = dispatch.getPoints();
+                GHPoint vehicle = sources.get(dispatch.getSource());
+                assertEquals(vehicle.lat, points.getLat(0), 1e-6);
+                assertEquals(vehicle.lon, points.getLon(0), 1e-6);
+                assertEquals(point(target).lat, points.getLat(points.size() - 1), 1e-6);
+                assertEquals(point(target).lon, points.getLon(points.size() - 1), 1e-6);
+                dispatched++;
+            }
+        }
+        assertTrue(dispatched > 100);
+    }
+
+    @Test
+    public void testMaxVisitedNodes() {
+        List<GHPoint> sources = new ArrayList<>();
+        sources.add(point(graph.getNodes() - 1));
+        SearchLimits limits = new SearchLimits(10, 0, 0);
+        FleetDispatcher.Result result = FleetDispatcher.dispatch(graph, index, weighting, EdgeFilter.ALL_EDGES, limits,
+                point(0), sources, 1, false);
+        assertTrue(result.getDispatches().isEmpty());
+        assertEquals("max_visited_nodes", result.getLimit());
+        assertEquals(10, result.getVisitedNodes());
+    }
+}
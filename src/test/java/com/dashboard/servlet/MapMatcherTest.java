@@ -0,0 +1,188 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntHashSet;
+import com.graphhopper.routing.ev.BooleanEncodedValue;
+import com.graphhopper.routing.ev.DecimalEncodedValue;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.VehicleEncodedValues;
+import com.graphhopper.routing.weighting.FastestWeighting;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.RAMDirectory;
+import com.graphhopper.storage.index.LocationIndexTree;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.PMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MapMatcherTest {
+    private BaseGraph graph;
+    private BooleanEncodedValue accessEnc;
+    private DecimalEncodedValue speedEnc;
+    private int nodes;
+
+    @Before
+    public void setUp() {
+        VehicleEncodedValues car = VehicleEncodedValues.car(new PMap());
+        EncodingManager em = EncodingManager.start().add(car).build();
+        graph = new BaseGraph.Builder(em).create();
+        accessEnc = car.getAccessEnc();
+        speedEnc = car.getAverageSpeedEnc();
+        nodes = 0;
+    }
+
+    @After
+    public void tearDown() {
+        graph.close();
+    }
+
+    private int node(double lat, double lon) {
+        graph.getNodeAccess().setNode(nodes, lat, lon);
+        return nodes++;
+    }
+
+    private int edge(int from, int to) {
+        double distance = DistanceCalcEarth.DIST_EARTH.calcDist(graph.getNodeAccess().getLat(from), graph.getNodeAccess().getLon(from),
+                graph.getNodeAccess().getLat(to), graph.getNodeAccess().getLon(to));
+        EdgeIteratorState edge = graph.edge(from, to).setDistance(distance);
+        edge.set(accessEnc, true);
+        edge.setReverse(accessEnc, true);
+        edge.set(speedEnc, 50);
+        edge.setReverse(speedEnc, 50);
+        return edge.getEdge();
+    }
+
+    // A road of 80 m edges along the parallel, from west to east
+    private IntHashSet road(double lat, int edges) {
+        IntHashSet road = new IntHashSet();
+        int previous = node(lat, 11);
+        for (int i = 1; i <= edges; i++) {
+            int next = node(lat, 11 + i * 0.001);
+            road.add(edge(previous, next));
+            previous = next;
+        }
+        return road;
+    }
+
+    private MapMatcher.Result match(List<MapMatcher.Observation> trace) {
+        LocationIndexTree index = new LocationIndexTree(graph, new RAMDirectory());
+        index.prepareIndex();
+        return new MapMatcher(graph, index, new FastestWeighting(accessEnc, speedEnc), EdgeFilter.ALL_EDGES).match(trace);
+    }
+
+    @Test
+    public void testNoisyPointCloserToSideRoad() {
+        IntHashSet main = road(43, 10);
+        // A side road 33 m north of the main road, reached only from its fourth node
+        int spurStart = node(43.0003, 11.003);
+        int spurEnd = node(43.0003, 11.008);
+        int link = edge(3, spurStart);
+        int spur = edge(spurStart, spurEnd);
+
+        List<MapMatcher.Observation> trace = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            // The sixth point is closer to the side road than to the main road
+            double lat = i == 5 ? 43.0002 : 43;
+            trace.add(new MapMatcher.Observation(lat, 11.0005 + i * 0.001, i * 10_000L));
+        }
+        MapMatcher.Result result = match(trace);
+
+        // The Viterbi sequence stays on the main road, the emission of the side road does not pay its detour
+        assertEquals(9, result.getMatchedPoints());
+        assertEquals(0, result.getBreaks());
+        assertTrue(result.getEdges().size() > 0);
+        for (int i = 0; i < result.getEdges().size(); i++) {
+            int edge = result.getEdges().get(i);
+            assertTrue(main.contains(edge));
+            assertTrue(edge != link && edge != spur);
+        }
+        double meters = 0;
+        for (int i = 0; i < result.getMeters().size(); i++) {
+            meters += result.getMeters().get(i);
+        }
+        // From the first to the last point, 8 steps of about 81 m
+        assertEquals(8 * 81.3, meters, 10);
+    }
+
+    @Test
+    public void testBreakBetweenDisconnectedRoads() {
+        IntHashSet south = road(43, 4);
+        IntHashSet north = road(43.01, 4);
+
+        List<MapMatcher.Observation> trace = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            trace.add(new MapMatcher.Observation(43, 11.0005 + i * 0.001, i * 10_000L));
+        }
+        for (int i = 0; i < 3; i++) {
+            trace.add(new MapMatcher.Observation(43.01, 11.0005 + i * 0.001, 60_000L + i * 10_000L));
+        }
+        MapMatcher.Result result = match(trace);
+
+        assertEquals(6, result.getMatchedPoints());
+        assertEquals(1, result.getBreaks());
+        // No traversal between the two roads
+        int southTraversals = 0;
+        int northTraversals = 0;
+        for (int i = 0; i < result.getEdges().size(); i++) {
+            int edge = result.getEdges().get(i);
+            if (south.contains(edge)) {
+                assertEquals(0, northTraversals);
+                assertTrue(result.getTimes().get(i) < 60_000L);
+                southTraversals++;
+            } else {
+                assertTrue(north.contains(edge));
+                assertTrue(result.getTimes().get(i) >= 60_000L);
+                northTraversals++;
+            }
+        }
+        assertTrue(southTraversals > 0);
+        assertTrue(northTraversals > 0);
+    }
+
+    @Test
+    public void testForwardOnTheSameEdge() {
+        int west = node(43, 11);
+        int east = node(43, 11.01);
+        int edge = edge(west, east);
+        // The location index needs bounds with an area
+        node(43.005, 11.005);
+
+        // Eastwards along a single edge of about 813 m, every 100 m
+        List<MapMatcher.Observation> trace = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            trace.add(new MapMatcher.Observation(43, 11.001 + i * 0.00123, i * 10_000L));
+        }
+        MapMatcher.Result result = match(trace);
+
+        assertEquals(6, result.getMatchedPoints());
+        assertEquals(5, result.getEdges().size());
+        for (int i = 0; i < result.getEdges().size(); i++) {
+            assertEquals(edge, result.getEdges().get(i));
+            // 100 m in 10 s
+            assertEquals(100, result.getMeters().get(i), 1);
+            assertEquals(10, result.getSeconds().get(i), 0.1);
+            assertEquals(i * 10_000L, result.getTimes().get(i));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.gtfs.PtRouter;
+import com.graphhopper.util.shapes.GHPoint;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark of the public transport engines: the same random queries between two stops are answered by the
+ * PtRouter of the graph and by the RaptorRouter, and the times and the earliest arrivals are compared.
+ * <p>
+ * Usage, from the project folder (it is in the test sources, so it is not deployed): mvn test-compile exec:java
+ * -Dexec.classpathScope=test -Dexec.mainClass=com.dashboard.servlet.PtEngineBenchmark -Dexec.args="[queries] [departure]"
+ * with the same environment variables of the servlet, e.g. 200 2024-03-12T08:00. The timetables are compiled before
+ * the measures.
+ */
+public class PtEngineBenchmark {
+    private static final ZoneId ZONE = EnvConfig.ZONE;
+
+    public static void main(String[] args) {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        ZonedDateTime departure = (args.length > 1 ? LocalDateTime.parse(args[1]) : LocalDateTime.now(ZONE)).atZone(ZONE);
+
+        PtRouter ptRouter = RealtimePtRouter.getRouter();
+        RaptorNetwork network = RaptorNetwork.get(RealtimePtRouter.getHopper());
+        network.getTimetable(departure.toLocalDate());
+        Random random = new Random(42);
+
+        long[] graphTimes = new long[queries];
+        long[] raptorTimes = new long[queries];
+        int graphFound = 0, raptorFound = 0, sameArrival = 0, raptorEarlier = 0;
+        for (int i = 0; i < queries; i++) {
+            int from = random.nextInt(network.getStopCount());
+            int to = random.nextInt(network.getStopCount());
+            GHPoint fromPoint = new GHPoint(network.getStopLat(from), network.getStopLon(from));
+            GHPoint toPoint = new GHPoint(network.getStopLat(to), network.getStopLon(to));
+
+            long start = System.nanoTime();
+            GHResponse graph = Servlet.getGtfsRoute(ptRouter, Arrays.asList(fromPoint, toPoint), departure.toLocalDateTime());
+            graphTimes[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            GHResponse raptor = new RaptorRouter(network).route(fromPoint, toPoint, departure);
+            raptorTimes[i] = System.nanoTime() - start;
+
+            long graphArrival = getArrival(graph);
+            long raptorArrival = getArrival(raptor);
+            if (graphArrival < Long.MAX_VALUE) graphFound++;
+            if (raptorArrival < Long.MAX_VALUE) raptorFound++;
+            if (graphArrival < Long.MAX_VALUE && graphArrival == raptorArrival) sameArrival++;
+            if (raptorArrival < graphArrival) raptorEarlier++;
+        }
+
+        System.out.printf("%d queries departing at %s%n", queries, departure);
+        print("graph", graphTimes, graphFound);
+        print("raptor", raptorTimes, raptorFound);
+        System.out.printf("same earliest arrival: %d, raptor earlier: %d%n", sameArrival, raptorEarlier);
+    }
+
+    // The earliest arrival of the journeys, Long.MAX_VALUE if none is found
+    private static long getArrival(GHResponse response) {
+        if (response.hasErrors()) {
+            return Long.MAX_VALUE;
+        }
+        long arrival = Long.MAX_VALUE;
+        for (ResponsePath path : response.getAll()) {
+            if (!path.getLegs().isEmpty()) {
+                arrival = Math.min(arrival, DepartureWindow.getArrival(path));
+            }
+        }
+        return arrival;
+    }
+
+    private static void print(String engine, long[] times, int found) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        System.out.printf("%-7s found %d, mean %.1f ms, median %.1f ms, max %.1f ms%n", engine, found,
+                total / 1e6 / times.length, sorted[times.length / 2] / 1e6, sorted[times.length - 1] / 1e6);
+    }
+}
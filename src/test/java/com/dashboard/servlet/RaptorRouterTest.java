@@ -0,0 +1,253 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.Trip;
+import com.graphhopper.util.shapes.GHPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RaptorRouterTest {
+    private static final int CLUSTERS = 12;
+    private static final int CLUSTER_SIZE = 4;
+    private static final int STOPS = CLUSTERS * CLUSTER_SIZE;
+    private static final int WALK = 60;  // seconds between consecutive stops of a cluster
+    private static final int UNREACHED = Integer.MAX_VALUE;
+    private static final ZonedDateTime MIDNIGHT = LocalDate.of(2023, 5, 10).atStartOfDay(ZoneOffset.UTC);
+
+    private RaptorNetwork network;
+    private RaptorTimetable timetable;
+    private int[] tripPatterns;
+
+    @Before
+    public void setUp() {
+        // Stops in clusters along a line, with transfers between all the stops of a cluster, so the walks are additive
+        String[] stopIds = new String[STOPS];
+        double[] lats = new double[STOPS];
+        double[] lons = new double[STOPS];
+        int[] transferOffsets = new int[STOPS + 1];
+        IntArrayList transferStops = new IntArrayList();
+        IntArrayList transferSeconds = new IntArrayList();
+        for (int s = 0; s < STOPS; s++) {
+            stopIds[s] = "s" + s;
+            lats[s] = 43 + s / CLUSTER_SIZE * 0.01;
+            lons[s] = 11 + s % CLUSTER_SIZE * 0.001;
+            transferOffsets[s] = transferStops.size();
+            int cluster = s / CLUSTER_SIZE * CLUSTER_SIZE;
+            for (int t = cluster; t < cluster + CLUSTER_SIZE; t++) {
+                if (t != s) {
+                    transferStops.add(t);
+                    transferSeconds.add(WALK * Math.abs(t - s));
+                }
+            }
+        }
+        transferOffsets[STOPS] = transferStops.size();
+        network = new RaptorNetwork(stopIds, lats, lons, transferOffsets, transferStops.toArray(), transferSeconds.toArray());
+
+        // Patterns of distinct random stops, their trips have the same running times so they do not overtake
+        Random random = new Random(1);
+        int patternCount = 20;
+        int[] patternStopOffsets = new int[patternCount + 1];
+        int[] patternTripOffsets = new int[patternCount + 1];
+        IntArrayList patternStops = new IntArrayList();
+        IntArrayList tripTimeOffsets = new IntArrayList();
+        IntArrayList arrivals = new IntArrayList();
+        IntArrayList departures = new IntArrayList();
+        IntArrayList patterns = new IntArrayList();
+        for (int p = 0; p < patternCount; p++) {
+            patternStopOffsets[p] = patternStops.size();
+            patternTripOffsets[p] = tripTimeOffsets.size();
+            List<Integer> stops = new ArrayList<>();
+            for (int s = 0; s < STOPS; s++) {
+                stops.add(s);
+            }
+            Collections.shuffle(stops, random);
+            int length = 3 + random.nextInt(6);
+            int[] hops = new int[length];
+            int[] dwells = new int[length];
+            for (int i = 0; i < length; i++) {
+                patternStops.add(stops.get(i));
+                hops[i] = 60 + random.nextInt(600);
+                dwells[i] = random.nextInt(60);
+            }
+            int[] starts = new int[5 + random.nextInt(8)];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = 6 * 3600 + random.nextInt(4 * 3600);
+            }
+            Arrays.sort(starts);
+            for (int start : starts) {
+                tripTimeOffsets.add(arrivals.size());
+                patterns.add(p);
+                int time = start;
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) {
+                        time += hops[i];
+                    }
+                    arrivals.add(time);
+                    time += i > 0 ? dwells[i] : 0;
+                    departures.add(time);
+                }
+            }
+        }
+        patternStopOffsets[patternCount] = patternStops.size();
+        patternTripOffsets[patternCount] = tripTimeOffsets.size();
+        int tripCount = tripTimeOffsets.size();
+        String[] tripIds = new String[tripCount];
+        String[] routeIds = new String[tripCount];
+        String[] tripFeeds = new String[tripCount];
+        for (int t = 0; t < tripCount; t++) {
+            tripIds[t] = "t" + t;
+            routeIds[t] = "r" + patterns.get(t);
+            tripFeeds[t] = "";
+        }
+        tripPatterns = patterns.toArray();
+        timetable = new RaptorTimetable(patternStopOffsets, patternStops.toArray(), patternTripOffsets, tripTimeOffsets.toArray(),
+                arrivals.toArray(), departures.toArray(), tripIds, routeIds, routeIds, tripFeeds, STOPS);
+    }
+
+    @Test
+    public void testSameJourneysAsBruteForce() {
+        Random random = new Random(2);
+        int found = 0;
+        int transfers = 0;
+        for (int query = 0; query < 300; query++) {
+            // Walks from the origin to the stops of a cluster and from the stops of another cluster to the destination,
+            // additive as the transfers
+            int fromCluster = random.nextInt(CLUSTERS);
+            int toCluster = (fromCluster + 1 + random.nextInt(CLUSTERS - 1)) % CLUSTERS;
+            IntIntHashMap access = walks(fromCluster, random);
+            IntIntHashMap egress = walks(toCluster, random);
+            int start = 5 * 3600 + random.nextInt(5 * 3600);
+
+            List<int[]> expected = bruteForce(access, egress, start);
+            GHResponse response = new RaptorRouter(network).route(timetable, new GHPoint(43, 11), new GHPoint(43.1, 11),
+                    MIDNIGHT.plusSeconds(start), access, egress);
+            if (expected.isEmpty()) {
+                assertTrue(response.hasErrors());
+                continue;
+            }
+            found++;
+            assertFalse(response.getErrors().toString(), response.hasErrors());
+            List<ResponsePath> paths = response.getAll();
+            assertEquals(expected.size(), paths.size());
+            // Earliest arrival first, with more trips
+            for (int i = 0; i < paths.size(); i++) {
+                int[] journey = expected.get(expected.size() - 1 - i);
+                ResponsePath path = paths.get(i);
+                List<Trip.Leg> legs = path.getLegs();
+                assertEquals(journey[0], seconds(legs.get(legs.size() - 1).getArrivalTime()));
+                assertEquals(journey[1] - 1, path.getNumChanges());
+                // The legs follow each other, from the access to the egress
+                int trips = 0;
+                for (int l = 1; l < legs.size(); l++) {
+                    assertTrue(seconds(legs.get(l).getDepartureTime()) >= seconds(legs.get(l - 1).getArrivalTime()));
+                    if (legs.get(l) instanceof Trip.PtLeg) {
+                        trips++;
+                    } else if (l < legs.size() - 1) {
+                        transfers++;
+                    }
+                }
+                assertEquals(journey[1], trips);
+                assertTrue(seconds(legs.get(0).getDepartureTime()) >= start);
+            }
+        }
+        assertTrue(found > 100);
+        assertTrue(transfers > 0);
+    }
+
+    private static IntIntHashMap walks(int cluster, Random random) {
+        IntIntHashMap walks = new IntIntHashMap();
+        int position = random.nextInt(CLUSTER_SIZE);
+        int base = random.nextInt(300);
+        for (int i = 0; i < CLUSTER_SIZE; i++) {
+            walks.put(cluster * CLUSTER_SIZE + i, base + WALK * Math.abs(i - position));
+        }
+        return walks;
+    }
+
+    private int seconds(Date date) {
+        return (int) (date.toInstant().getEpochSecond() - MIDNIGHT.toEpochSecond());
+    }
+
+    /**
+     * Earliest arrival with at most k trips for every k, trying every boarding of every trip.
+     *
+     * @return the arrival and trips of each k that improves the arrival at the destination
+     */
+    private List<int[]> bruteForce(IntIntHashMap access, IntIntHashMap egress, int start) {
+        int[] reached = new int[STOPS];
+        Arrays.fill(reached, UNREACHED);
+        for (IntIntCursor walk : access) {
+            reached[walk.key] = start + walk.value;
+        }
+        List<int[]> journeys = new ArrayList<>();
+        int bestTarget = UNREACHED;
+        for (int k = 1; k <= RaptorRouter.MAX_ROUNDS; k++) {
+            int[] byTrip = new int[STOPS];
+            Arrays.fill(byTrip, UNREACHED);
+            for (int trip = 0; trip < tripPatterns.length; trip++) {
+                int pattern = tripPatterns[trip];
+                int stops = timetable.getPatternStopCount(pattern);
+                for (int board = 0; board < stops; board++) {
+                    if (reached[timetable.getPatternStop(pattern, board)] > timetable.getDeparture(trip, board)) {
+                        continue;
+                    }
+                    for (int alight = board + 1; alight < stops; alight++) {
+                        int stop = timetable.getPatternStop(pattern, alight);
+                        byTrip[stop] = Math.min(byTrip[stop], timetable.getArrival(trip, alight));
+                    }
+                }
+            }
+            int[] next = reached.clone();
+            for (int stop = 0; stop < STOPS; stop++) {
+                if (byTrip[stop] == UNREACHED) {
+                    continue;
+                }
+                next[stop] = Math.min(next[stop], byTrip[stop]);
+                for (int t = network.getTransferStart(stop); t < network.getTransferEnd(stop); t++) {
+                    int to = network.getTransferStop(t);
+                    next[to] = Math.min(next[to], byTrip[stop] + network.getTransferSeconds(t));
+                }
+            }
+            for (IntIntCursor walk : egress) {
+                if (byTrip[walk.key] != UNREACHED && byTrip[walk.key] + walk.value < bestTarget) {
+                    bestTarget = byTrip[walk.key] + walk.value;
+                }
+            }
+            if (journeys.isEmpty() ? bestTarget != UNREACHED : bestTarget < journeys.get(journeys.size() - 1)[0]) {
+                journeys.add(new int[]{bestTarget, k});
+            }
+            reached = next;
+        }
+        return journeys;
+    }
+}
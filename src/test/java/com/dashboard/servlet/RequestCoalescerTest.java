@@ -0,0 +1,82 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.dashboard.servlet;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCoalescerTest {
+
+    private static Response streamed(String body) {
+        StreamingOutput output = out -> out.write(body.getBytes(StandardCharsets.UTF_8));
+        return Response.ok().header("Content-Type", "application/json").entity(output).build();
+    }
+
+    @Test
+    public void testNotBufferedWithoutWaiters() throws Exception {
+        Response response = streamed("{}");
+        assertSame(response, RequestCoalescer.execute("single", () -> response));
+        assertEquals(0, RequestCoalescer.getInFlight());
+    }
+
+    @Test
+    public void testSharedWithWaiters() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            long computations = RequestCoalescer.getComputations();
+            long coalesced = RequestCoalescer.getCoalesced();
+            Future<Response> first = executor.submit(() -> RequestCoalescer.execute("shared", () -> {
+                started.countDown();
+                release.await();
+                return streamed("{\"route\":1}");
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<Response> second = executor.submit(() -> RequestCoalescer.execute("shared", () -> {
+                throw new IllegalStateException("computed twice");
+            }));
+            // The second request attaches to the computation in progress
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (RequestCoalescer.getWaiters("shared") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            for (Response response : new Response[]{first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS)}) {
+                assertEquals(200, response.getStatus());
+                assertTrue(response.getEntity() instanceof RequestCoalescer.BufferedResponse);
+                assertEquals("{\"route\":1}", new String(((RequestCoalescer.BufferedResponse) response.getEntity()).getBody(),
+                        StandardCharsets.UTF_8));
+            }
+            assertEquals(computations + 1, RequestCoalescer.getComputations());
+            assertEquals(coalesced + 1, RequestCoalescer.getCoalesced());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
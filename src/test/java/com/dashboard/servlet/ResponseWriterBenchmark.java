@@ -0,0 +1,151 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.google.gson.Gson;
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Instruction;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.shapes.BBox;
+import com.graphhopper.util.shapes.GHPoint;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark of the serialization of the route responses: the bytes allocated and the time taken by
+ * RouteResponseWriter are compared with the JSONObject tree and the Gson instructions used before it, on the
+ * responses of random routes.
+ * <p>
+ * Usage, from the project folder (it is in the test sources, so it is not deployed): mvn test-compile exec:java
+ * -Dexec.classpathScope=test -Dexec.mainClass=com.dashboard.servlet.ResponseWriterBenchmark -Dexec.args="[vehicle] [queries]"
+ * with the same environment variables of the servlet, e.g. car 200. Both serializations run once on every response
+ * before the measures, and the allocations are read from the ThreadMXBean of the JVM.
+ */
+public class ResponseWriterBenchmark {
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        String vehicle = args.length > 0 ? args[0] : "car";
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        DynamicGraphHopper hopper = Servlet.initGH(vehicle, "fastest", LocalDateTime.now());
+        BBox bounds = hopper.getBaseGraph().getBounds();
+        Random random = new Random(42);
+        List<GHResponse> responses = new ArrayList<>();
+        while (responses.size() < queries) {
+            GHPoint from = new GHPoint(bounds.minLat + random.nextDouble() * (bounds.maxLat - bounds.minLat),
+                    bounds.minLon + random.nextDouble() * (bounds.maxLon - bounds.minLon));
+            GHPoint to = new GHPoint(bounds.minLat + random.nextDouble() * (bounds.maxLat - bounds.minLat),
+                    bounds.minLon + random.nextDouble() * (bounds.maxLon - bounds.minLon));
+            GHResponse response = Servlet.blockedRoute(vehicle, hopper, Arrays.asList(from, to), ResponseFields.ALL);
+            if (!response.hasErrors()) {
+                responses.add(response);
+            }
+        }
+
+        // Warm up both serializations
+        for (GHResponse response : responses) {
+            writeStream(hopper, response);
+            writeTree(hopper, response);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long streamBytes = 0, treeBytes = 0, streamNanos = 0, treeNanos = 0;
+        for (GHResponse response : responses) {
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            writeStream(hopper, response);
+            streamNanos += System.nanoTime() - start;
+            streamBytes += threads.getThreadAllocatedBytes(thread) - bytes;
+
+            bytes = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            writeTree(hopper, response);
+            treeNanos += System.nanoTime() - start;
+            treeBytes += threads.getThreadAllocatedBytes(thread) - bytes;
+        }
+
+        System.out.printf("%d responses of %s routes%n", queries, vehicle);
+        System.out.printf("stream: %d bytes allocated, %.3f ms per response%n", streamBytes / queries, streamNanos / 1e6 / queries);
+        System.out.printf("tree:   %d bytes allocated, %.3f ms per response%n", treeBytes / queries, treeNanos / 1e6 / queries);
+        System.out.printf("allocations: %.1fx fewer%n", (double) treeBytes / Math.max(1, streamBytes));
+        hopper.close();
+    }
+
+    private static void writeStream(DynamicGraphHopper hopper, GHResponse response) throws IOException {
+        new RouteResponseWriter("car", "false", hopper, response, ResponseFields.ALL).write(NULL_OUTPUT);
+    }
+
+    // The serialization before RouteResponseWriter: a JSONObject tree, with the instructions written by Gson and parsed again
+    private static void writeTree(DynamicGraphHopper hopper, GHResponse response) throws IOException {
+        JSONObject json = new JSONObject();
+        JSONArray paths = new JSONArray();
+        for (ResponsePath path : response.getAll()) {
+            JSONObject jsonPath = new JSONObject();
+            BBox box = hopper.getBaseGraph().getBounds();
+            jsonPath.put("bbox", new JSONArray("[" + box.minLon + "," + box.minLat + "," + box.maxLon + "," + box.maxLat + "]"));
+            jsonPath.put("points", Servlet.encodePolyline(path.getPoints(), false));
+            jsonPath.put("points_encoded", true);
+            jsonPath.put("distance", path.getDistance());
+            jsonPath.put("time", path.getTime());
+            jsonPath.put("instructions", new JSONArray(serializeInstructions(path.getInstructions())));
+            paths.put(jsonPath);
+        }
+        json.put("paths", paths);
+        JSONObject info = new JSONObject();
+        info.put("copyrights", new JSONArray(Arrays.asList("GraphHopper", "OpenStreetMap contributors")));
+        json.put("info", info);
+        NULL_OUTPUT.write(json.toString().getBytes());
+    }
+
+    private static String serializeInstructions(InstructionList instructions) {
+        List<Map<String, Object>> list = new ArrayList<>(instructions.size());
+        int pointsIndex = 0;
+        for (Instruction instruction : instructions) {
+            Map<String, Object> json = new HashMap<>();
+            list.add(json);
+            json.put("text", Helper.firstBig(instruction.getTurnDescription(instructions.getTr())));
+            json.put("street_name", instruction.getName());
+            json.put("time", instruction.getTime());
+            json.put("distance", Helper.round(instruction.getDistance(), 3));
+            json.put("sign", instruction.getSign());
+            json.putAll(instruction.getExtraInfoJSON());
+            int next = pointsIndex + instruction.getLength();
+            json.put("interval", Arrays.asList(pointsIndex, next));
+            pointsIndex = next;
+        }
+        return new Gson().toJson(list.toArray());
+    }
+}
@@ -0,0 +1,97 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.VehicleEncodedValues;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.util.PMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class RoadElementIndexTest {
+
+    @Test
+    public void testWayIdOfKnownFormat() {
+        assertEquals(Collections.singletonList(37024979L), RoadElementIndex.getWayIdCandidates("OS00037024979RE/2"));
+        assertEquals(Collections.singletonList(4256071L), RoadElementIndex.getWayIdCandidates("OS00004256071RE/13"));
+        assertEquals(Collections.singletonList(1234L), RoadElementIndex.getWayIdCandidates("OS00000001234RE/1"));
+        assertEquals(Collections.singletonList(37024979L), RoadElementIndex.getWayIdCandidates("OS00037024979RE"));
+    }
+
+    @Test
+    public void testOrdinalIsNotAWay() {
+        // The ordinal of a long way and the small numbers of other formats are not taken for ways
+        assertEquals(Collections.singletonList(37024979L), RoadElementIndex.getWayIdCandidates("OS00037024979RE/123456"));
+        assertEquals(Collections.singletonList(37024979L), RoadElementIndex.getWayIdCandidates("way-37024979/123456"));
+        assertEquals(Collections.emptyList(), RoadElementIndex.getWayIdCandidates("R12/3"));
+    }
+
+    @Test
+    public void testOtherFormats() {
+        assertEquals(Arrays.asList(37024979L, 4256071L), RoadElementIndex.getWayIdCandidates("X37024979_4256071/1"));
+        assertEquals(Collections.emptyList(), RoadElementIndex.getWayIdCandidates(""));
+    }
+
+    @Test
+    public void testBuildAndRebuild() throws Exception {
+        File folder = Files.createTempDirectory("road_element_index").toFile();
+        String location = folder.getPath();
+        try {
+            BaseGraph graph = new BaseGraph.Builder(EncodingManager.start().add(VehicleEncodedValues.car(new PMap())).build()).create();
+            EdgeToWayStore edgeToWay = EdgeToWayStore.create(location);
+            for (int node = 0; node < 4; node++) {
+                graph.getNodeAccess().setNode(node, 43.77, 11.25 + node * 0.001);
+                if (node > 0) {
+                    graph.edge(node - 1, node).setDistance(100);
+                    edgeToWay.add(37024979);
+                }
+            }
+            graph.edge(3, 0).setDistance(100);
+            edgeToWay.add(99999999);
+
+            // Without geometries the two road elements split the way in the order of their number
+            RoadElementIndex index = RoadElementIndex.build(location, graph, edgeToWay,
+                    Arrays.asList("OS00037024979RE/2", "OS00037024979RE/1", "OS00012345678RE/1"), Collections.emptyMap(), "a");
+            assertEquals("OS00037024979RE/1", index.getElementIds()[index.getElement(0)]);
+            assertEquals("OS00037024979RE/2", index.getElementIds()[index.getElement(1)]);
+            assertEquals("OS00037024979RE/2", index.getElementIds()[index.getElement(2)]);
+            assertEquals(RoadElementIndex.NO_ELEMENT, index.getElement(3));
+            assertEquals(RoadElementIndex.NO_ELEMENT, index.getElement(4));
+            assertTrue(index.isBuiltFrom("a"));
+            assertFalse(index.isBuiltFrom("b"));
+
+            // A new version replaces the files of the previous one
+            RoadElementIndex rebuilt = RoadElementIndex.build(location, graph, edgeToWay,
+                    Collections.singletonList("OS00037024979RE/1"), Collections.emptyMap(), "b");
+            assertNotSame(index, rebuilt);
+            assertTrue(rebuilt.isBuiltFrom("b"));
+            assertEquals(0, rebuilt.getElement(2));
+            assertEquals(rebuilt, RoadElementIndex.load(location));
+            assertEquals(1, folder.list((dir, name) -> name.startsWith(RoadElementIndex.NAME)).length);
+            edgeToWay.close();
+        } finally {
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+}
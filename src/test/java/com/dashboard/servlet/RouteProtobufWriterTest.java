@@ -0,0 +1,207 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import com.graphhopper.GHResponse;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Instruction;
+import com.graphhopper.util.InstructionList;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.Translation;
+import com.graphhopper.util.TranslationMap;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes the messages of RouteProtobufWriter as described in route.proto.
+ */
+public class RouteProtobufWriterTest {
+    private static final Translation TR = new TranslationMap().doImport().getWithFallBack(Locale.ENGLISH);
+
+    private static GHResponse createResponse() {
+        PointList points = new PointList(4, false);
+        points.add(43.77123, 11.25456);
+        points.add(43.77201, 11.25312);
+        points.add(43.76999, 11.25999);
+        points.add(43.77, 11.26);
+
+        InstructionList instructions = new InstructionList(TR);
+        PointList first = new PointList(2, false);
+        first.add(43.77123, 11.25456);
+        first.add(43.77201, 11.25312);
+        Instruction depart = new Instruction(Instruction.CONTINUE_ON_STREET, "Via Roma", first);
+        depart.setDistance(150.1234);
+        depart.setTime(20_000);
+        instructions.add(depart);
+        PointList second = new PointList(2, false);
+        second.add(43.76999, 11.25999);
+        second.add(43.77, 11.26);
+        Instruction turn = new Instruction(Instruction.TURN_LEFT, null, second);
+        turn.setDistance(600);
+        turn.setTime(70_000);
+        instructions.add(turn);
+
+        ResponsePath path = new ResponsePath();
+        path.setPoints(points);
+        path.setDistance(750.1234);
+        path.setTime(90_000);
+        path.setInstructions(instructions);
+        GHResponse response = new GHResponse();
+        response.add(path);
+        return response;
+    }
+
+    private static int tag(int field, int wireType) {
+        return field << 3 | wireType;
+    }
+
+    private static byte[] write(GHResponse response, ResponseFields fields) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new RouteProtobufWriter(response, fields).write(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDecodePath() throws Exception {
+        GHResponse response = createResponse();
+        CodedInputStream in = CodedInputStream.newInstance(write(response, ResponseFields.ALL));
+        List<byte[]> paths = new ArrayList<>();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            assertEquals(tag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED), tag);
+            paths.add(in.readByteArray());
+        }
+        assertEquals(1, paths.size());
+
+        CodedInputStream path = CodedInputStream.newInstance(paths.get(0));
+        double distance = 0;
+        long time = 0;
+        List<Integer> deltas = new ArrayList<>();
+        List<byte[]> instructions = new ArrayList<>();
+        while ((tag = path.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1:
+                    distance = path.readDouble();
+                    break;
+                case 2:
+                    time = path.readInt64();
+                    break;
+                case 3:
+                    assertEquals(WireFormat.WIRETYPE_LENGTH_DELIMITED, WireFormat.getTagWireType(tag));
+                    int limit = path.pushLimit(path.readRawVarint32());
+                    while (path.getBytesUntilLimit() > 0) {
+                        deltas.add(path.readSInt32());
+                    }
+                    path.popLimit(limit);
+                    break;
+                case 4:
+                    instructions.add(path.readByteArray());
+                    break;
+                default:
+                    throw new AssertionError("unexpected field " + WireFormat.getTagFieldNumber(tag));
+            }
+        }
+        assertEquals(750.1234, distance, 0);
+        assertEquals(90_000, time);
+
+        // The deltas add up to the points, with the precision of the encoded polyline
+        PointList points = response.getBest().getPoints();
+        assertEquals(2 * points.size(), deltas.size());
+        int lat = 0;
+        int lon = 0;
+        for (int i = 0; i < points.size(); i++) {
+            lat += deltas.get(2 * i);
+            lon += deltas.get(2 * i + 1);
+            assertEquals(points.getLat(i), lat / 1e5, 1e-5);
+            assertEquals(points.getLon(i), lon / 1e5, 1e-5);
+        }
+        // Negative deltas are zig-zag encoded
+        assertTrue(deltas.get(2) > 0 && deltas.get(3) < 0 && deltas.get(4) < 0);
+
+        assertEquals(2, instructions.size());
+        assertInstruction(instructions.get(0), response.getBest().getInstructions().get(0), "Via Roma", 0, 2);
+        assertInstruction(instructions.get(1), response.getBest().getInstructions().get(1), null, 2, 4);
+    }
+
+    private static void assertInstruction(byte[] bytes, Instruction expected, String streetName, int start, int end) throws Exception {
+        CodedInputStream in = CodedInputStream.newInstance(bytes);
+        String text = null;
+        String name = null;
+        long time = -1;
+        double distance = -1;
+        int sign = Integer.MIN_VALUE;
+        int intervalStart = -1;
+        int intervalEnd = -1;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1:
+                    text = in.readString();
+                    break;
+                case 2:
+                    name = in.readString();
+                    break;
+                case 3:
+                    time = in.readInt64();
+                    break;
+                case 4:
+                    distance = in.readDouble();
+                    break;
+                case 5:
+                    sign = in.readSInt32();
+                    break;
+                case 6:
+                    intervalStart = in.readUInt32();
+                    break;
+                case 7:
+                    intervalEnd = in.readUInt32();
+                    break;
+                default:
+                    throw new AssertionError("unexpected field " + WireFormat.getTagFieldNumber(tag));
+            }
+        }
+        assertEquals(Helper.firstBig(expected.getTurnDescription(TR)), text);
+        assertEquals(streetName, name);
+        assertEquals(expected.getTime(), time);
+        assertEquals(Helper.round(expected.getDistance(), 3), distance, 0);
+        assertEquals(expected.getSign(), sign);
+        assertEquals(start, intervalStart);
+        assertEquals(end, intervalEnd);
+    }
+
+    @Test
+    public void testFieldsAndLimit() throws Exception {
+        GHResponse response = createResponse();
+        response.getHints().putObject(SearchLimits.RESPONSE_HINT, "timeout");
+        CodedInputStream in = CodedInputStream.newInstance(write(response, ResponseFields.parse("time")));
+        assertEquals(tag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+        CodedInputStream path = CodedInputStream.newInstance(in.readByteArray());
+        // Only the time
+        assertEquals(tag(2, WireFormat.WIRETYPE_VARINT), path.readTag());
+        assertEquals(90_000, path.readInt64());
+        assertEquals(0, path.readTag());
+        assertEquals(tag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED), in.readTag());
+        assertEquals("timeout", in.readString());
+        assertEquals(0, in.readTag());
+    }
+}
@@ -0,0 +1,142 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SearchStateTest {
+
+    @Test
+    public void testHeapOrder() {
+        try (SearchState state = SearchState.acquire(1000)) {
+            Random random = new Random(42);
+            double[] weights = new double[1000];
+            for (int node = 0; node < weights.length; node++) {
+                weights[node] = random.nextDouble() * 100;
+                assertTrue(state.update(node, weights[node], node, -1));
+            }
+            // Lower weights replace the reached ones, the stale heap entries are skipped
+            for (int node = 0; node < weights.length; node += 3) {
+                weights[node] /= 2;
+                assertTrue(state.update(node, weights[node], node, -1));
+                assertFalse(state.update(node, weights[node] + 1, node, -1));
+            }
+            double last = -1;
+            int settled = 0;
+            int node;
+            while ((node = state.poll()) >= 0) {
+                assertEquals(weights[node], state.getWeight(node), 0);
+                assertTrue(state.getWeight(node) >= last);
+                last = state.getWeight(node);
+                settled++;
+                // A settled node is never updated again
+                assertFalse(state.update(node, 0, -1, -1));
+            }
+            assertEquals(weights.length, settled);
+        }
+    }
+
+    @Test
+    public void testParents() {
+        try (SearchState state = SearchState.acquire(3)) {
+            state.update(0, 0, -1, -1);
+            assertEquals(0, state.poll());
+            state.update(1, 5, 10, 0);
+            state.update(2, 9, 11, 0);
+            state.update(2, 7, 12, 1);
+            assertEquals(1, state.poll());
+            assertEquals(2, state.poll());
+            assertEquals(12, state.getParentEdge(2));
+            assertEquals(1, state.getParentNode(2));
+            assertEquals(-1, state.poll());
+        }
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        try (SearchState state = SearchState.acquire(4)) {
+            state.update(0, 0, -1, -1);
+            state.update(1, 1, 0, 0);
+            assertEquals(0, state.poll());
+
+            // The nodes of the previous search are neither reached nor settled, and the heap is empty
+            state.reset(4);
+            assertEquals(-1, state.poll());
+            assertTrue(state.update(0, 3, -1, -1));
+            assertTrue(state.update(1, 2, -1, -1));
+            assertEquals(1, state.poll());
+
+            // When the version overflows the markers are cleared
+            Field version = SearchState.class.getDeclaredField("version");
+            version.setAccessible(true);
+            version.setInt(state, Integer.MAX_VALUE - 1);
+            state.reset(4);
+            state.update(2, 1, -1, -1);
+            assertEquals(2, state.poll());
+            state.reset(4);
+            assertEquals(1, version.getInt(state));
+            assertTrue(state.update(2, 1, -1, -1));
+            assertTrue(state.update(3, 0, -1, -1));
+            assertEquals(3, state.poll());
+            assertEquals(2, state.poll());
+        }
+    }
+
+    @Test
+    public void testGrow() {
+        try (SearchState state = SearchState.acquire(2)) {
+            state.reset(5000);
+            for (int node = 0; node < 5000; node++) {
+                state.update(node, 5000 - node, -1, -1);
+            }
+            assertEquals(4999, state.poll());
+        }
+    }
+
+    @Test
+    public void testPool() {
+        SearchState first = SearchState.acquire(10);
+        first.close();
+        SearchState second = SearchState.acquire(10);
+        assertSame(first, second);
+        SearchState other = SearchState.acquire(10);
+        assertNotSame(second, other);
+        second.close();
+        other.close();
+
+        // The pool keeps a bounded number of states
+        int max = Runtime.getRuntime().availableProcessors();
+        List<SearchState> states = new ArrayList<>();
+        for (int i = 0; i < max + 5; i++) {
+            states.add(SearchState.acquire(10));
+        }
+        states.forEach(SearchState::close);
+        assertEquals(max, SearchState.getPooledCount());
+        // Closing twice does not add a state twice
+        SearchState state = SearchState.acquire(10);
+        state.close();
+        state.close();
+        assertEquals(max, SearchState.getPooledCount());
+    }
+}
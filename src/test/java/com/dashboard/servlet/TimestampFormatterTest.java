@@ -0,0 +1,87 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimestampFormatterTest {
+
+    private static String expected(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(EnvConfig.ZONE).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    }
+
+    private static void assertFormat(long millis) {
+        assertEquals(expected(millis), TimestampFormatter.format(millis));
+    }
+
+    @Test
+    public void testAroundTheTransitions() {
+        // In Europe/Rome (the default zone), the spring forward and the fall back of 2024
+        Instant instant = Instant.parse("2024-01-01T00:00:00Z");
+        for (int i = 0; i < 2; i++) {
+            ZoneOffsetTransition transition = EnvConfig.ZONE.getRules().nextTransition(instant);
+            if (transition == null) {
+                return;
+            }
+            long seconds = transition.toEpochSecond();
+            for (long second = seconds - 3 * 3600; second <= seconds + 3 * 3600; second += 7) {
+                assertFormat(second * 1000);
+            }
+            // The last second before, the first after, in both orders
+            assertFormat((seconds - 1) * 1000);
+            assertFormat(seconds * 1000);
+            assertFormat((seconds - 1) * 1000);
+            instant = transition.getInstant();
+        }
+    }
+
+    @Test
+    public void testAroundMidnight() {
+        for (LocalDate date = LocalDate.of(2024, 3, 29); date.isBefore(LocalDate.of(2024, 4, 2)); date = date.plusDays(1)) {
+            long midnight = date.atStartOfDay(EnvConfig.ZONE).toEpochSecond();
+            for (long second = midnight - 5; second <= midnight + 5; second++) {
+                assertFormat(second * 1000);
+            }
+            assertFormat(midnight * 1000 + 1);
+            assertFormat(midnight * 1000 - 1);
+        }
+    }
+
+    @Test
+    public void testMilliseconds() {
+        long second = Instant.parse("2024-10-27T00:59:59Z").getEpochSecond();
+        for (int millis : new int[]{1, 10, 100, 120, 999}) {
+            assertFormat(second * 1000 + millis);
+        }
+    }
+
+    @Test
+    public void testRandomTimes() {
+        Random random = new Random(42);
+        long from = Instant.parse("1999-01-01T00:00:00Z").toEpochMilli();
+        long to = Instant.parse("2040-01-01T00:00:00Z").toEpochMilli();
+        for (int i = 0; i < 100_000; i++) {
+            long millis = from + (long) (random.nextDouble() * (to - from));
+            // Most of the journeys have whole seconds
+            assertFormat(i % 4 == 0 ? millis : millis - Math.floorMod(millis, 1000L));
+        }
+    }
+}
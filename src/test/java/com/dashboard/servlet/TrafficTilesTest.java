@@ -0,0 +1,291 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import com.graphhopper.routing.ev.DecimalEncodedValue;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.VehicleEncodedValues;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.RAMDirectory;
+import com.graphhopper.storage.index.LocationIndexTree;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.PMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decodes the tiles of TrafficTiles as described in the vector_tile.proto of the Mapbox Vector Tile specification.
+ */
+public class TrafficTilesTest {
+    private static final int Z = 15;
+    private static final double[][] NODES = {{43.770, 11.250}, {43.771, 11.252}, {43.770, 11.254}};
+
+    private File folder;
+    private String location;
+    private VehicleEncodedValues car;
+    private BaseGraph graph;
+    private LocationIndexTree locationIndex;
+    private EdgeTrafficTable traffic;
+    private TravelTimeTable travelTimes;
+
+    // A decoded feature
+    private static class Feature {
+        long id;
+        int type;
+        Map<String, Object> tags = new HashMap<>();
+        List<int[]> points = new ArrayList<>();  // tile coordinates
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("traffic_tiles").toFile();
+        location = folder.getPath();
+        car = VehicleEncodedValues.car(new PMap());
+        DecimalEncodedValue speedEnc = car.getAverageSpeedEnc();
+        graph = new BaseGraph.Builder(EncodingManager.start().add(car).build()).create();
+        for (int node = 0; node < NODES.length; node++) {
+            graph.getNodeAccess().setNode(node, NODES[node][0], NODES[node][1]);
+        }
+        // A fast road, and a slow one with access only against its direction
+        EdgeIteratorState fast = graph.edge(0, 1).setDistance(distance(0, 1));
+        fast.set(car.getAccessEnc(), true, true).set(speedEnc, 100, 100);
+        EdgeIteratorState slow = graph.edge(1, 2).setDistance(distance(1, 2));
+        slow.set(car.getAccessEnc(), false, true).set(speedEnc, 0, 30);
+        locationIndex = new LocationIndexTree(graph, new RAMDirectory());
+        locationIndex.prepareIndex();
+
+        EdgeToWayStore edgeToWay = EdgeToWayStore.create(location);
+        edgeToWay.add(37024979);
+        edgeToWay.add(4256071);
+        RoadElementIndex index = RoadElementIndex.build(location, graph, edgeToWay,
+                Arrays.asList("OS00037024979RE/1", "OS00004256071RE/1"), Collections.emptyMap(), "");
+        edgeToWay.close();
+        File file = new File(folder, "0_08.json");
+        FileUtils.writeStringToFile(file, "{\"OS00037024979RE/1\": {\"ttt\": 10, \"max\": 20}, \"OS00004256071RE/1\": {\"ttt\": 0, \"max\": 20}}");
+        traffic = EdgeTrafficTable.load(index, file);
+        travelTimes = TravelTimeTable.build(location, "car", graph, traffic, new GreenshieldsSpeedModel(), speedEnc, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        travelTimes.release();
+        RoadElementIndex.invalidate(location);
+        graph.close();
+        FileUtils.deleteDirectory(folder);
+    }
+
+    private static double distance(int from, int to) {
+        return DistanceCalcEarth.DIST_EARTH.calcDist(NODES[from][0], NODES[from][1], NODES[to][0], NODES[to][1]);
+    }
+
+    private FastestWeightingWithTraffic weighting(EdgeSpeedObservations typical) {
+        return new FastestWeightingWithTraffic(travelTimes, null, typical, car.getAccessEnc(), car.getAverageSpeedEnc());
+    }
+
+    private static int tileX(double lon) {
+        return (int) Math.floor((lon + 180) / 360 * (1 << Z));
+    }
+
+    private static int tileY(double lat) {
+        double radians = Math.toRadians(lat);
+        return (int) Math.floor((1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2 * (1 << Z));
+    }
+
+    // The coordinates of a point in the tile, with an extent of 4096
+    private static int[] tilePoint(double lat, double lon, int x, int y) {
+        double radians = Math.toRadians(lat);
+        double tileY = (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2 * (1 << Z);
+        double tileX = (lon + 180) / 360 * (1 << Z);
+        return new int[]{(int) Math.round((tileX - x) * 4096), (int) Math.round((tileY - y) * 4096)};
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int[] readPacked(CodedInputStream in) throws Exception {
+        int limit = in.pushLimit(in.readRawVarint32());
+        IntArrayList values = new IntArrayList();
+        while (in.getBytesUntilLimit() > 0) {
+            values.add(in.readUInt32());
+        }
+        in.popLimit(limit);
+        return values.toArray();
+    }
+
+    /**
+     * Decode the single layer of a tile, checking its name, version and extent.
+     *
+     * @return the features by id
+     */
+    private static Map<Long, Feature> decode(byte[] tile) throws Exception {
+        CodedInputStream in = CodedInputStream.newInstance(tile);
+        assertEquals(3 << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED, in.readTag());
+        CodedInputStream layer = CodedInputStream.newInstance(in.readByteArray());
+        assertEquals(0, in.readTag());
+
+        String name = null;
+        int version = 0;
+        int extent = 0;
+        List<String> keys = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        List<byte[]> features = new ArrayList<>();
+        int tag;
+        while ((tag = layer.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1:
+                    name = layer.readString();
+                    break;
+                case 2:
+                    features.add(layer.readByteArray());
+                    break;
+                case 3:
+                    keys.add(layer.readString());
+                    break;
+                case 4:
+                    CodedInputStream value = CodedInputStream.newInstance(layer.readByteArray());
+                    int valueTag = value.readTag();
+                    values.add(WireFormat.getTagFieldNumber(valueTag) == 1 ? value.readString() : (Object) value.readDouble());
+                    assertEquals(0, value.readTag());
+                    break;
+                case 5:
+                    extent = layer.readUInt32();
+                    break;
+                case 15:
+                    version = layer.readUInt32();
+                    break;
+                default:
+                    throw new AssertionError("unexpected layer field " + WireFormat.getTagFieldNumber(tag));
+            }
+        }
+        assertEquals("traffic", name);
+        assertEquals(2, version);
+        assertEquals(4096, extent);
+        assertEquals(Arrays.asList("speed", "density", "max_density", "road_element"), keys);
+
+        Map<Long, Feature> decoded = new HashMap<>();
+        for (byte[] bytes : features) {
+            CodedInputStream featureIn = CodedInputStream.newInstance(bytes);
+            Feature feature = new Feature();
+            while ((tag = featureIn.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case 1:
+                        feature.id = featureIn.readUInt64();
+                        break;
+                    case 2:
+                        int[] tags = readPacked(featureIn);
+                        for (int i = 0; i < tags.length; i += 2) {
+                            feature.tags.put(keys.get(tags[i]), values.get(tags[i + 1]));
+                        }
+                        break;
+                    case 3:
+                        feature.type = featureIn.readEnum();
+                        break;
+                    case 4:
+                        decodeGeometry(readPacked(featureIn), feature.points);
+                        break;
+                    default:
+                        throw new AssertionError("unexpected feature field " + WireFormat.getTagFieldNumber(tag));
+                }
+            }
+            decoded.put(feature.id, feature);
+        }
+        return decoded;
+    }
+
+    // A MoveTo followed by a LineTo, with zig-zag deltas from the previous point
+    private static void decodeGeometry(int[] geometry, List<int[]> points) {
+        int x = 0;
+        int y = 0;
+        int i = 0;
+        while (i < geometry.length) {
+            int command = geometry[i] & 0x7;
+            int count = geometry[i] >>> 3;
+            assertEquals(points.isEmpty() ? 1 : 2, command);
+            i++;
+            for (int c = 0; c < count; c++) {
+                x += unZigZag(geometry[i++]);
+                y += unZigZag(geometry[i++]);
+                points.add(new int[]{x, y});
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeTile() throws Exception {
+        int x = tileX(NODES[0][1]);
+        int y = tileY(NODES[0][0]);
+        Map<Long, Feature> features = decode(TrafficTiles.render(graph, locationIndex, traffic, weighting(null), Z, x, y));
+        assertEquals(2, features.size());
+
+        // Half of the max density halves the speed
+        Feature fast = features.get(0L);
+        assertEquals(2, fast.type);
+        assertEquals(50.0, fast.tags.get("speed"));
+        assertEquals(10.0, fast.tags.get("density"));
+        assertEquals(20.0, fast.tags.get("max_density"));
+        assertEquals("OS00037024979RE/1", fast.tags.get("road_element"));
+        assertEquals(2, fast.points.size());
+        assertArrayEquals(tilePoint(NODES[0][0], NODES[0][1], x, y), fast.points.get(0));
+        assertArrayEquals(tilePoint(NODES[1][0], NODES[1][1], x, y), fast.points.get(1));
+
+        // The empty road has its own speed, against its direction
+        Feature slow = features.get(1L);
+        assertEquals(30.0, slow.tags.get("speed"));
+        assertEquals(0.0, slow.tags.get("density"));
+        assertEquals("OS00004256071RE/1", slow.tags.get("road_element"));
+        assertArrayEquals(tilePoint(NODES[1][0], NODES[1][1], x, y), slow.points.get(0));
+        assertArrayEquals(tilePoint(NODES[2][0], NODES[2][1], x, y), slow.points.get(1));
+        // The values are shared by the features
+        assertEquals(20.0, slow.tags.get("max_density"));
+    }
+
+    @Test
+    public void testObservedSpeeds() throws Exception {
+        EdgeSpeedObservations typical = EdgeSpeedObservations.get(location, "0_08");
+        typical.add(IntArrayList.from(0), DoubleArrayList.from(100), DoubleArrayList.from(10), IntArrayList.from(0));
+        Map<Long, Feature> features = decode(TrafficTiles.render(graph, locationIndex, traffic, weighting(typical), Z,
+                tileX(NODES[0][1]), tileY(NODES[0][0])));
+        // 10 m/s, instead of the 50 km/h of the speed model
+        assertEquals(36.0, features.get(0L).tags.get("speed"));
+        assertEquals(30.0, features.get(1L).tags.get("speed"));
+    }
+
+    @Test
+    public void testEmptyTiles() throws Exception {
+        // The next tiles to the east, and one far away
+        int x = tileX(NODES[0][1]);
+        int y = tileY(NODES[0][0]);
+        assertEquals(0, TrafficTiles.render(graph, locationIndex, traffic, weighting(null), Z, x + 2, y).length);
+        assertEquals(0, TrafficTiles.render(graph, locationIndex, traffic, weighting(null), Z, 0, 0).length);
+    }
+}
@@ -0,0 +1,145 @@
+/* WhatIfRouter
+ Copyright (C) 2023 DISIT Lab http://www.disit.org - University of Florence
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package com.dashboard.servlet;
+
+import com.graphhopper.routing.ev.DecimalEncodedValue;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.VehicleEncodedValues;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.PMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TravelTimeTableTest {
+    private File folder;
+    private String location;
+    private BaseGraph graph;
+    private DecimalEncodedValue speedEnc;
+    private EdgeTrafficTable traffic;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("travel_time_table").toFile();
+        location = folder.getPath();
+        VehicleEncodedValues car = VehicleEncodedValues.car(new PMap());
+        speedEnc = car.getAverageSpeedEnc();
+        graph = new BaseGraph.Builder(EncodingManager.start().add(car).build()).create();
+        for (int node = 0; node < 3; node++) {
+            graph.getNodeAccess().setNode(node, 43.77, 11.25 + node * 0.01);
+        }
+        // A fast road, and a slow one with access only against its direction
+        EdgeIteratorState fast = graph.edge(0, 1).setDistance(1000);
+        fast.set(car.getAccessEnc(), true, true).set(speedEnc, 100, 100);
+        EdgeIteratorState slow = graph.edge(1, 2).setDistance(1000);
+        slow.set(car.getAccessEnc(), false, true).set(speedEnc, 0, 30);
+
+        EdgeToWayStore edgeToWay = EdgeToWayStore.create(location);
+        edgeToWay.add(37024979);
+        edgeToWay.add(4256071);
+        RoadElementIndex index = RoadElementIndex.build(location, graph, edgeToWay,
+                Arrays.asList("OS00037024979RE/1", "OS00004256071RE/1"), Collections.emptyMap(), "");
+        edgeToWay.close();
+        File file = new File(folder, "0_08.json");
+        FileUtils.writeStringToFile(file, "{\"OS00037024979RE/1\": {\"ttt\": 10, \"max\": 20}, \"OS00004256071RE/1\": {\"ttt\": 0, \"max\": 20}}");
+        traffic = EdgeTrafficTable.load(index, file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TravelTimeTable.invalidate(location);
+        RoadElementIndex.invalidate(location);
+        graph.close();
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Test
+    public void testFreeFlowSpeedOfEachEdge() {
+        TravelTimeTable table = TravelTimeTable.build(location, "car", graph, traffic, new GreenshieldsSpeedModel(), speedEnc, null);
+        // Half of the max density halves the speed of the edge, in both directions
+        assertEquals(72, table.getSeconds(0, false), 0.1);
+        assertEquals(72, table.getSeconds(0, true), 0.1);
+        // The empty road keeps its own speed, only in the direction with access
+        assertTrue(Double.isNaN(table.getSeconds(1, false)));
+        assertEquals(120, table.getSeconds(1, true), 0.1);
+        assertTrue(Double.isNaN(table.getSeconds(2, false)));
+        table.release();
+    }
+
+    @Test
+    public void testClosedWhenReleased() {
+        String key = location + "|car|0_08|greenshields";
+        TravelTimeTable table = TravelTimeTable.get(key, () -> TravelTimeTable.build(location, "car", graph, traffic,
+                new GreenshieldsSpeedModel(), speedEnc, null));
+        assertSame(table, TravelTimeTable.get(key, () -> null));
+        File[] files = new File(folder, "travel_times").listFiles();
+        assertEquals(1, files.length);
+
+        // Removed from the cache, but still used by the two requests
+        TravelTimeTable.invalidate(location);
+        assertTrue(files[0].exists());
+        table.release();
+        assertEquals(72, table.getSeconds(0, false), 0.1);
+        table.release();
+        assertFalse(files[0].exists());
+        assertFalse(table.acquire());
+    }
+
+    @Test
+    public void testNewFileForEveryBuild() {
+        String key = location + "|car|0_08|greenshields";
+        TravelTimeTable first = TravelTimeTable.get(key, () -> TravelTimeTable.build(location, "car", graph, traffic,
+                new GreenshieldsSpeedModel(), speedEnc, null));
+        TravelTimeTable.invalidate(location);
+        TravelTimeTable second = TravelTimeTable.get(key, () -> TravelTimeTable.build(location, "car", graph, traffic,
+                new GreenshieldsSpeedModel(), speedEnc, null));
+        assertEquals(2, new File(folder, "travel_times").list().length);
+        assertEquals(72, first.getSeconds(0, false), 0.1);
+        first.release();
+        second.release();
+        assertEquals(1, new File(folder, "travel_times").list().length);
+    }
+
+    @Test
+    public void testUnusedFilesOfPreviousRunsDeleted() throws Exception {
+        File directory = new File(folder, "travel_times");
+        directory.mkdirs();
+        File previous = new File(directory, "car_0_08_greenshields_1");
+        FileUtils.writeStringToFile(previous, "");
+        File other = new File(directory, "notes.txt");
+        FileUtils.writeStringToFile(other, "");
+        String key = location + "|car|0_08|greenshields";
+        TravelTimeTable table = TravelTimeTable.get(key, () -> TravelTimeTable.build(location, "car_0_08_greenshields", graph, traffic,
+                new GreenshieldsSpeedModel(), speedEnc, null));
+
+        // Only the table of the previous run goes, the one of this run is in use
+        assertEquals(1, TravelTimeTable.deleteUnused(location));
+        assertFalse(previous.exists());
+        assertTrue(other.exists());
+        assertEquals(2, directory.list().length);
+        assertEquals(72, table.getSeconds(0, false), 0.1);
+        table.release();
+    }
+}